@@ -0,0 +1,298 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.syso.phonebook.metrics.ThreadAllocations;
+
+/**
+ * Average time microbenchmarks in the manner of JMH: warmup and measurement
+ * iterations of fixed time, results consumed by a blackhole, the score reported
+ * with its 99.9% confidence interval together with the bytes allocated per call.
+ * 
+ * Results are written in the JSON format of JMH (-rf json), so the usual JMH
+ * result viewers and regression scripts read them. Benchmarks of a class share
+ * one JVM, run a single benchmark with the filter when comparing numbers
+ * between builds.
+ * 
+ * Arguments of the benchmark classes:
+ * <pre>
+ * [filter regex] [result.json] [iterations] [seconds per iteration]
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public final class MicroBenchmark {
+    
+    /** Student's t quantiles for 99.9% two-sided intervals, by degrees of freedom */
+    private static final double[] T_999 = {
+        636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+        4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+        3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646};
+    private static final double[] PERCENTILES = {0.0, 50.0, 90.0, 95.0, 99.0, 99.9, 99.99, 99.999, 99.9999, 100.0};
+    // Calls between clock reads grow until a batch takes this long
+    private static final long BATCH_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    
+    /**
+     * Code under measurement
+     */
+    @FunctionalInterface
+    public interface Body {
+        
+        /**
+         * @param invocation number of the call, to pick inputs the JIT can not fold into constants
+         * @return result of the call, consumed so its computation is not eliminated
+         * @throws Exception fails the benchmark
+         */
+        Object run(int invocation) throws Exception;
+    }
+    
+    private final String benchmarkClass;
+    private final Pattern filter;
+    private final String resultFile;
+    private final int iterations;
+    private final int seconds;
+    private final List<String> summary = new ArrayList<>();
+    private final List<String> results = new ArrayList<>();
+    
+    private volatile Object sentinel = new Object();
+    private volatile Object sink;
+    
+    /**
+     * @param benchmarkClass prefix of the benchmark names
+     * @param args filter regex, result file, iterations and seconds per iteration, all optional
+     */
+    public MicroBenchmark(Class<?> benchmarkClass, String[] args) {
+        this.benchmarkClass = benchmarkClass.getName();
+        this.filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+        this.resultFile = args.length > 1 ? args[1] : null;
+        this.iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        this.seconds = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+    }
+    
+    /**
+     * @param name benchmark name, matched by the filter with the class name prefix
+     * @return true if the benchmark is selected, so its setup is worth doing
+     */
+    public boolean isSelected(String name) {
+        return filter.matcher(benchmarkClass + "." + name).find();
+    }
+    
+    /**
+     * Warm up and measure one benchmark if it is selected
+     * 
+     * @param name benchmark name
+     * @param body code under measurement
+     * @throws Exception thrown by the body
+     */
+    public void run(String name, Body body) throws Exception {
+        
+        if (!isSelected(name)) {
+            return;
+        }
+        String benchmark = benchmarkClass + "." + name;
+        System.out.println("# Benchmark: " + benchmark);
+        
+        long[] batch = {1};
+        int invocation = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] measured = iterate(body, batch, invocation, true);
+            invocation += (int) measured[0];
+            System.out.printf(Locale.ROOT, "# Warmup Iteration %3d: %.3f ns/op%n", i + 1, (double) measured[1] / measured[0]);
+        }
+        
+        double[] scores = new double[iterations];
+        double[] allocations = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long[] measured = iterate(body, batch, invocation, false);
+            invocation += (int) measured[0];
+            scores[i] = (double) measured[1] / measured[0];
+            allocations[i] = measured[2] < 0 ? Double.NaN : (double) measured[2] / measured[0];
+            System.out.printf(Locale.ROOT, "Iteration %3d: %.3f ns/op, %.1f B/op%n", i + 1, scores[i], allocations[i]);
+        }
+        
+        double score = mean(scores);
+        double error = error(scores);
+        summary.add(String.format(Locale.ROOT, "%-64s avgt %4d %12.3f +- %10.3f ns/op %12.1f B/op",
+                benchmark, iterations, score, error, mean(allocations)));
+        results.add(json(benchmark, scores, allocations));
+    }
+    
+    /**
+     * Print the summary and write the result file
+     * 
+     * @throws IOException if the result file can not be written
+     */
+    public void finish() throws IOException {
+        
+        System.out.printf("%n%-64s %4s %4s %12s    %10s %5s %12s%n", "Benchmark", "Mode", "Cnt", "Score", "Error", "Units", "Alloc");
+        for (String line : summary) {
+            System.out.println(line);
+        }
+        if (resultFile == null) {
+            return;
+        }
+        try (Writer out = new OutputStreamWriter(Files.newOutputStream(Paths.get(resultFile)), StandardCharsets.UTF_8)) {
+            out.write("[\n");
+            out.write(String.join(",\n", results));
+            out.write("\n]\n");
+        }
+        System.out.println("Result file: " + resultFile);
+    }
+    
+    /**
+     * Blackhole, the volatile read keeps the JIT from proving the value unused
+     */
+    public void consume(Object value) {
+        if (value == sentinel) {
+            sink = value;
+        }
+    }
+    
+    /**
+     * @return calls, nanoseconds and allocated bytes (negative if not supported) of one iteration
+     */
+    private long[] iterate(Body body, long[] batch, int invocation, boolean calibrate) throws Exception {
+        
+        long allocated = ThreadAllocations.current();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        long calls = 0;
+        long batchStart = start;
+        long now;
+        do {
+            for (long n = batch[0]; n > 0; n--) {
+                consume(body.run(invocation++));
+            }
+            calls += batch[0];
+            now = System.nanoTime();
+            if (calibrate && now - batchStart < BATCH_NANOS) {
+                batch[0] <<= 1;
+            }
+            batchStart = now;
+        } while (now < deadline);
+        long bytes = allocated == ThreadAllocations.UNSUPPORTED ? -1 : ThreadAllocations.since(allocated);
+        return new long[] {calls, now - start, bytes};
+    }
+    
+    private String json(String benchmark, double[] scores, double[] allocations) {
+        
+        StringBuilder out = new StringBuilder();
+        out.append("    {\n");
+        out.append("        \"benchmark\" : \"").append(benchmark).append("\",\n");
+        out.append("        \"mode\" : \"avgt\",\n");
+        out.append("        \"threads\" : 1,\n");
+        out.append("        \"forks\" : 1,\n");
+        out.append("        \"jdkVersion\" : \"").append(System.getProperty("java.version")).append("\",\n");
+        out.append("        \"vmName\" : \"").append(System.getProperty("java.vm.name")).append("\",\n");
+        out.append("        \"vmVersion\" : \"").append(System.getProperty("java.vm.version")).append("\",\n");
+        out.append("        \"warmupIterations\" : ").append(iterations).append(",\n");
+        out.append("        \"warmupTime\" : \"").append(seconds).append(" s\",\n");
+        out.append("        \"warmupBatchSize\" : 1,\n");
+        out.append("        \"measurementIterations\" : ").append(iterations).append(",\n");
+        out.append("        \"measurementTime\" : \"").append(seconds).append(" s\",\n");
+        out.append("        \"measurementBatchSize\" : 1,\n");
+        out.append("        \"primaryMetric\" : ");
+        metric(out, scores, "ns/op");
+        out.append(",\n        \"secondaryMetrics\" : {\n");
+        out.append("            \"\u00b7gc.alloc.rate.norm\" : ");
+        metric(out, allocations, "B/op");
+        out.append("\n        }\n    }");
+        return out.toString();
+    }
+    
+    /**
+     * Append a JMH metric object, the score being the mean of the values
+     */
+    static void metric(StringBuilder out, double[] values, String unit) {
+        
+        double score = mean(values);
+        double error = error(values);
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        
+        out.append("{\n");
+        out.append("            \"score\" : ").append(number(score)).append(",\n");
+        out.append("            \"scoreError\" : ").append(number(error)).append(",\n");
+        out.append("            \"scoreConfidence\" : [").append(number(score - error)).append(", ")
+                .append(number(score + error)).append("],\n");
+        out.append("            \"scorePercentiles\" : {");
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            out.append(i == 0 ? "" : ", ").append('"').append(PERCENTILES[i]).append("\" : ")
+                    .append(number(percentile(sorted, PERCENTILES[i])));
+        }
+        out.append("},\n");
+        out.append("            \"scoreUnit\" : \"").append(unit).append("\",\n");
+        out.append("            \"rawData\" : [[");
+        for (int i = 0; i < values.length; i++) {
+            out.append(i == 0 ? "" : ", ").append(number(values[i]));
+        }
+        out.append("]]\n        }");
+    }
+    
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+    
+    /**
+     * @return half width of the 99.9% confidence interval of the mean, NaN for a single value
+     */
+    private static double error(double[] values) {
+        int n = values.length;
+        if (n < 2) {
+            return Double.NaN;
+        }
+        double mean = mean(values);
+        double squares = 0;
+        for (double value : values) {
+            squares += (value - mean) * (value - mean);
+        }
+        double t = n - 1 <= T_999.length ? T_999[n - 2] : 3.291;
+        return t * Math.sqrt(squares / (n - 1) / n);
+    }
+    
+    private static double percentile(double[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+    
+    private static String number(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "\"NaN\"" : Double.toString(value);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.collections;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free approximate counts of long keys.
+ * 
+ * Each of the rows holds width counters, a key increments one counter per row
+ * chosen by a row specific hash, its count is the smallest of them. The count
+ * is never lower than the real one and exceeds it by at most 2 / width of all
+ * increments in most cases. Counters are updated by atomic adds, so any
+ * number of threads may increment and read concurrently.
+ * 
+ * @author Vladimir Syso
+ */
+public class CountMinSketch {
+    
+    private static final long[] SEEDS = {
+        0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L,
+        0xFF51AFD7ED558CCDL, 0xC4CEB9FE1A85EC53L, 0x27BB2EE687B0B0FDL, 0x94D049BB133111EBL
+    };
+    
+    private final AtomicLongArray counters;
+    private final int depth;
+    private final int widthBits;
+    private final int widthMask;
+    
+    /**
+     * @param width counters per row, rounded up to a power of 2
+     * @param depth number of rows, 1 to 8
+     */
+    public CountMinSketch(int width, int depth) {
+        if (depth < 1 || depth > SEEDS.length) {
+            throw new IllegalArgumentException("Depth must be between 1 and " + SEEDS.length + ": " + depth);
+        }
+        int roundedWidth = Integer.highestOneBit(Math.max(2, width) * 2 - 1);
+        this.depth = depth;
+        this.widthBits = Integer.numberOfTrailingZeros(roundedWidth);
+        this.widthMask = roundedWidth - 1;
+        this.counters = new AtomicLongArray(roundedWidth * depth);
+    }
+    
+    /**
+     * @param key a key
+     * @return estimated count of the key including this increment
+     */
+    public long increment(long key) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.incrementAndGet(index(key, row)));
+        }
+        return estimate;
+    }
+    
+    /**
+     * @param key a key
+     * @return estimated count of the key
+     */
+    public long estimate(long key) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters.get(index(key, row)));
+        }
+        return estimate;
+    }
+    
+    /**
+     * Reset all counters, increments made meanwhile may survive
+     */
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.lazySet(i, 0);
+        }
+    }
+    
+    public int getWidth() {
+        return widthMask + 1;
+    }
+    
+    public int getDepth() {
+        return depth;
+    }
+    
+    private int index(long key, int row) {
+        long hash = (key ^ SEEDS[row]) * SEEDS[(row + 1) % SEEDS.length];
+        hash ^= hash >>> 31;
+        return (row << widthBits) | ((int) (hash >>> 32) & widthMask);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.datasource;
+
+import java.io.Serializable;
+
+/**
+ * Read-your-writes stickiness of a request or an HTTP session.
+ * 
+ * Once a write went to the primary, reads of the same request or session
+ * stay on the primary for the configured window, so a replica which has
+ * not caught up yet cannot return stale data to the writer.
+ * 
+ * @author Vladimir Syso
+ */
+public final class ReadYourWrites implements Serializable {
+    
+    private static final long serialVersionUID = 1L;
+    
+    public static final long DEFAULT_WINDOW_MILLIS = 2000;
+    
+    private static final ThreadLocal<ReadYourWrites> CURRENT = new ThreadLocal<>();
+    
+    private final long windowMillis;
+    private volatile long lastWriteMillis;
+    
+    /**
+     * @param windowMillis how long reads stay on the primary after a write, 0 disables stickiness
+     */
+    public ReadYourWrites(long windowMillis) {
+        this(windowMillis, 0);
+    }
+    
+    /**
+     * @param windowMillis how long reads stay on the primary after a write, 0 disables stickiness
+     * @param lastWriteMillis time of a write made earlier, e.g. by a previous request, 0 if none
+     */
+    public ReadYourWrites(long windowMillis, long lastWriteMillis) {
+        this.windowMillis = windowMillis;
+        this.lastWriteMillis = lastWriteMillis;
+    }
+    
+    public void recordWrite() {
+        lastWriteMillis = System.currentTimeMillis();
+    }
+    
+    /**
+     * @return reads must go to the primary
+     */
+    public boolean isSticky() {
+        long lastWrite = lastWriteMillis;
+        return lastWrite != 0 && System.currentTimeMillis() - lastWrite < windowMillis;
+    }
+    
+    /**
+     * @return stickiness bound to the current thread or null
+     */
+    public static ReadYourWrites current() {
+        return CURRENT.get();
+    }
+    
+    /**
+     * Binds stickiness to the current thread
+     * 
+     * @param readYourWrites to bind, null unbinds
+     * @return previously bound stickiness to restore with the next bind call
+     */
+    public static ReadYourWrites bind(ReadYourWrites readYourWrites) {
+        ReadYourWrites previous = CURRENT.get();
+        if (readYourWrites == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(readYourWrites);
+        }
+        return previous;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.datasource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+/**
+ * Keeps the list of replicas which are reachable and not lagging too far behind the primary.
+ * 
+ * Replicas are checked periodically on a daemon thread, a replica failing
+ * to give a connection in between is excluded until the next check. The lag
+ * can be read over separate monitoring DataSources, so the account serving
+ * reads needs no privilege of the probe.
+ * 
+ * @author Vladimir Syso
+ */
+public class ReplicaHealthMonitor implements AutoCloseable {
+    
+    public static final long DEFAULT_MAX_LAG_MILLIS = 5000;
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 1000;
+    
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    
+    private final List<DataSource> replicas;
+    private final List<DataSource> monitors;
+    private final ReplicaLagProbe lagProbe;
+    private final long maxLagMillis;
+    private final Map<DataSource, Long> lagMillis = new ConcurrentHashMap<>();
+    
+    private volatile List<DataSource> healthyReplicas = Collections.emptyList();
+    private ScheduledExecutorService scheduler;
+    
+    /**
+     * @param replicas DataSources of replicas
+     * @param lagProbe measures replication lag
+     * @param maxLagMillis replicas lagging more are not used
+     */
+    public ReplicaHealthMonitor(List<DataSource> replicas, ReplicaLagProbe lagProbe, long maxLagMillis) {
+        this(replicas, replicas, lagProbe, maxLagMillis);
+    }
+    
+    /**
+     * @param replicas DataSources of replicas
+     * @param monitors DataSources the lag of the replicas is read over, in the order of the replicas
+     * @param lagProbe measures replication lag
+     * @param maxLagMillis replicas lagging more are not used
+     */
+    public ReplicaHealthMonitor(List<DataSource> replicas, List<DataSource> monitors, ReplicaLagProbe lagProbe, long maxLagMillis) {
+        if (monitors.size() != replicas.size()) {
+            throw new IllegalArgumentException("Every replica needs a monitoring DataSource");
+        }
+        this.replicas = Collections.unmodifiableList(new ArrayList<>(replicas));
+        this.monitors = Collections.unmodifiableList(new ArrayList<>(monitors));
+        this.lagProbe = lagProbe;
+        this.maxLagMillis = maxLagMillis;
+    }
+    
+    /**
+     * Checks replicas now and then with default interval
+     */
+    public void start() {
+        start(DEFAULT_CHECK_INTERVAL_MILLIS);
+    }
+    
+    /**
+     * Checks replicas now and then periodically
+     * 
+     * @param intervalMillis delay between checks
+     */
+    public synchronized void start(long intervalMillis) {
+        
+        checkNow();
+        if (scheduler != null || replicas.isEmpty()) {
+            return;
+        }
+        
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "phonebook-replica-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkNow, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Checks every replica and replaces the list of healthy ones
+     */
+    public void checkNow() {
+        
+        List<DataSource> healthy = new ArrayList<>(replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            DataSource replica = replicas.get(i);
+            long lag = check(replica, monitors.get(i));
+            lagMillis.put(replica, lag);
+            if (lag >= 0 && lag <= maxLagMillis) {
+                healthy.add(replica);
+            }
+        }
+        
+        List<DataSource> previous = healthyReplicas;
+        healthyReplicas = Collections.unmodifiableList(healthy);
+        if (healthy.size() != previous.size()) {
+            Logger.getLogger(ReplicaHealthMonitor.class.getName()).log(Level.INFO,
+                    "{0} of {1} replicas are healthy", new Object[]{healthy.size(), replicas.size()});
+        }
+    }
+    
+    /**
+     * A failed check fails closed, reads of the replica go to the primary until a check succeeds
+     * 
+     * @param replica to check
+     * @param monitor to read the lag over
+     * @return lag in milliseconds or a negative value if the replica is not usable
+     */
+    private long check(DataSource replica, DataSource monitor) {
+        try (Connection connection = replica.getConnection()) {
+            if (!connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                return -1;
+            }
+            if (monitor == replica) {
+                return lagProbe.lagMillis(connection);
+            }
+            try (Connection monitoring = monitor.getConnection()) {
+                return lagProbe.lagMillis(monitoring);
+            }
+        } catch (SQLException | RuntimeException ex) {
+            // A probe missing a privilege fails on every check, only the first failure is a warning
+            Long previous = lagMillis.get(replica);
+            Logger.getLogger(ReplicaHealthMonitor.class.getName()).log(previous == null || previous >= 0 ? Level.WARNING : Level.FINE,
+                    "Replica check failed, its reads go to the primary", ex);
+            return -1;
+        }
+    }
+    
+    /**
+     * Excludes a replica until the next check
+     * 
+     * @param replica failed to give a connection
+     */
+    public void markFailed(DataSource replica) {
+        
+        List<DataSource> healthy = new ArrayList<>(healthyReplicas);
+        if (healthy.remove(replica)) {
+            healthyReplicas = Collections.unmodifiableList(healthy);
+            lagMillis.put(replica, -1L);
+        }
+    }
+    
+    /**
+     * @return replicas to serve reads from, might be empty
+     */
+    public List<DataSource> getHealthyReplicas() {
+        return healthyReplicas;
+    }
+    
+    /**
+     * @param replica monitored DataSource
+     * @return lag measured by the last check or a negative value if the replica is not usable
+     */
+    public long getLagMillis(DataSource replica) {
+        return lagMillis.getOrDefault(replica, -1L);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.datasource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Measures how far a replica is behind the primary
+ * 
+ * @author Vladimir Syso
+ */
+@FunctionalInterface
+public interface ReplicaLagProbe {
+    
+    /**
+     * Probe for databases without replication lag, e.g. a replica sharing the primary storage
+     */
+    ReplicaLagProbe NONE = connection -> 0;
+    
+    /**
+     * @param connection open connection to the replica
+     * @return lag in milliseconds or a negative value if replication is not running
+     * @throws SQLException if the lag cannot be queried
+     */
+    long lagMillis(Connection connection) throws SQLException;
+}
@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.datasource;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * MySQL replication lag taken from Seconds_Behind_Master of SHOW SLAVE STATUS,
+ * the database user needs the REPLICATION CLIENT privilege (granted to phonebook_monitor
+ * by mysql/phonebook.sql). Without it the statement fails and the replica is not used.
+ * 
+ * @author Vladimir Syso
+ */
+public class SecondsBehindMasterProbe implements ReplicaLagProbe {
+
+    @Override
+    public long lagMillis(Connection connection) throws SQLException {
+        
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SHOW SLAVE STATUS")) {
+            
+            // Not a replica or replication was reset, its data may be of any age
+            if (!resultSet.next()) {
+                return -1;
+            }
+            
+            long seconds = resultSet.getLong("Seconds_Behind_Master");
+            if (resultSet.wasNull()) {
+                return -1;
+            }
+            return seconds * 1000;
+        }
+    }
+}
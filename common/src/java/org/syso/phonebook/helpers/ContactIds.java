@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.helpers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Parses the ids query parameter of bulk requests, accepts both
+ * ids=1,2,3 and ids=1&amp;ids=2&amp;ids=3 forms
+ * 
+ * @author Vladimir Syso
+ */
+public final class ContactIds {
+    
+    /**
+     * Upper limit of ids in one request, keeps the IN list of the DELETE statement bounded
+     */
+    public static final int MAX_IDS = 1000;
+    
+    private ContactIds() {
+    }
+    
+    /**
+     * @param values raw parameter values, might be null
+     * @return unique ids in request order or null if any of them is not a number or there are too many
+     */
+    public static List<Integer> parse(Collection<String> values) {
+        
+        Set<Integer> ids = new LinkedHashSet<>();
+        if (values == null) {
+            return new ArrayList<>(ids);
+        }
+        
+        for (String value : values) {
+            for (String id : value.split(",")) {
+                id = id.trim();
+                if (id.isEmpty()) {
+                    continue;
+                }
+                try {
+                    ids.add(Integer.valueOf(id));
+                } catch (NumberFormatException ex) {
+                    return null;
+                }
+                if (ids.size() > MAX_IDS) {
+                    return null;
+                }
+            }
+        }
+        return new ArrayList<>(ids);
+    }
+}
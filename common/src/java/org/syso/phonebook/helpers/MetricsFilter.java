@@ -0,0 +1,286 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.helpers;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.syso.phonebook.metrics.RequestMetrics;
+import org.syso.phonebook.metrics.RequestTiming;
+import org.syso.phonebook.metrics.ThreadAllocations;
+
+/**
+ * Records latency, status, body sizes and in-flight count of every request in RequestMetrics.
+ * 
+ * A RequestTiming is bound to the request thread, its phases are sent as a
+ * Server-Timing header when the response is flushed or closed, or when the
+ * chain returns. A body larger than the response buffer commits the headers
+ * early, the header then holds the phases measured before the first write.
+ * Heap allocations are counted on the request thread, threads continuing an
+ * asynchronous request add theirs to the RequestTiming.
+ * Asynchronous requests are recorded when their AsyncContext completes.
+ * The request size is its Content-Length, the response size is counted as
+ * it is written, characters of a Writer as UTF-8.
+ * 
+ * @author Vladimir Syso
+ */
+public class MetricsFilter implements Filter {
+    
+    private RequestMetrics metrics;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        metrics = RequestMetrics.shared();
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        
+        if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        
+        final long start = System.nanoTime();
+        final long allocated = ThreadAllocations.current();
+        final HttpServletRequest httpRequest = (HttpServletRequest) request;
+        final RequestMetrics.Route route = metrics.route(httpRequest.getMethod(), 
+                httpRequest.getRequestURI().substring(httpRequest.getContextPath().length()));
+        final RequestTiming timing = new RequestTiming(start);
+        final CountingResponse countingResponse = new CountingResponse((HttpServletResponse) response, timing);
+        
+        route.started();
+        RequestTiming previous = RequestTiming.bind(timing);
+        boolean failed = true;
+        try {
+            chain.doFilter(request, countingResponse);
+            failed = false;
+        } finally {
+            RequestTiming.bind(previous);
+            timing.addAllocatedBytes(ThreadAllocations.since(allocated));
+            if (!failed && request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event) {
+                        route.completed(countingResponse.getStatus(), start, 
+                                Math.max(0, httpRequest.getContentLengthLong()), countingResponse.count, timing);
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event) {
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event) {
+                        event.getAsyncContext().addListener(this);
+                    }
+                });
+            } else {
+                countingResponse.setServerTiming();
+                route.completed(failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : countingResponse.getStatus(), 
+                        start, Math.max(0, httpRequest.getContentLengthLong()), countingResponse.count, timing);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+    }
+    
+    /**
+     * Counts the bytes written to the response body and adds the Server-Timing header before the commit
+     */
+    private static final class CountingResponse extends HttpServletResponseWrapper {
+        
+        private static final String SERVER_TIMING = "Server-Timing";
+        
+        volatile long count;
+        private final RequestTiming timing;
+        private ServletOutputStream outputStream;
+        private PrintWriter writer;
+
+        CountingResponse(HttpServletResponse response, RequestTiming timing) {
+            super(response);
+            this.timing = timing;
+        }
+        
+        /**
+         * Set or replace the header while the response is not committed
+         */
+        void setServerTiming() {
+            if (!isCommitted()) {
+                setHeader(SERVER_TIMING, timing.toServerTiming());
+            }
+        }
+        
+        private void beforeWrite() {
+            if (count == 0) {
+                setServerTiming();
+            }
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            setServerTiming();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            setServerTiming();
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            setServerTiming();
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            setServerTiming();
+            super.sendRedirect(location);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                final ServletOutputStream target = super.getOutputStream();
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        beforeWrite();
+                        target.write(b);
+                        count++;
+                    }
+
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        beforeWrite();
+                        target.write(bytes, offset, length);
+                        count += length;
+                    }
+
+                    @Override
+                    public void flush() throws IOException {
+                        setServerTiming();
+                        target.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        setServerTiming();
+                        target.close();
+                    }
+
+                    @Override
+                    public boolean isReady() {
+                        return target.isReady();
+                    }
+
+                    @Override
+                    public void setWriteListener(WriteListener writeListener) {
+                        target.setWriteListener(writeListener);
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new PrintWriter(new CountingWriter(super.getWriter()));
+            }
+            return writer;
+        }
+        
+        /**
+         * Adds the UTF-8 length of the written characters, the target writer encodes them
+         */
+        private final class CountingWriter extends Writer {
+            
+            private final Writer target;
+
+            CountingWriter(Writer target) {
+                this.target = target;
+            }
+
+            @Override
+            public void write(char[] chars, int offset, int length) throws IOException {
+                beforeWrite();
+                target.write(chars, offset, length);
+                long bytes = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    char c = chars[i];
+                    bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+                }
+                count += bytes;
+            }
+
+            @Override
+            public void write(String value, int offset, int length) throws IOException {
+                beforeWrite();
+                target.write(value, offset, length);
+                long bytes = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    char c = value.charAt(i);
+                    bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+                }
+                count += bytes;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                setServerTiming();
+                target.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                setServerTiming();
+                target.close();
+            }
+        }
+    }
+}
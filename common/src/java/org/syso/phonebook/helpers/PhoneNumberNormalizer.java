@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.helpers;
+
+/**
+ * Normalizes phone numbers once into their digits, their mask or a packed long.
+ * 
+ * A packed number holds the digit count in bits 58-62 and the digits as a decimal
+ * value in bits 0-57, so leading zeros stay significant, equal numbers have equal
+ * keys and packed numbers sort by length and then by value. Up to 17 digits fit,
+ * E.164 numbers have at most 15.
+ * 
+ * @author Vladimir Syso
+ */
+public final class PhoneNumberNormalizer {
+    
+    public static final int MAX_PACKED_DIGITS = 17;
+    
+    /** Returned for numbers without digits or with more than MAX_PACKED_DIGITS */
+    public static final long NOT_PACKED = 0;
+    
+    private static final int COUNT_SHIFT = 58;
+    private static final long VALUE_MASK = (1L << COUNT_SHIFT) - 1;
+    private static final long[] POWERS_OF_TEN = new long[MAX_PACKED_DIGITS + 1];
+    
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+    
+    private PhoneNumberNormalizer() {
+    }
+    
+    /**
+     * Same as number.replaceAll("\\D", "") without the regular expression
+     * 
+     * @param number formatted phone number
+     * @return digits only
+     */
+    public static String digits(String number) {
+        int length = number.length();
+        int i = 0;
+        while (i < length && isDigit(number.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return number;
+        }
+        StringBuilder digits = new StringBuilder(length);
+        digits.append(number, 0, i);
+        for (; i < length; i++) {
+            char c = number.charAt(i);
+            if (isDigit(c)) {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+    
+    /**
+     * Same as number.replace("X", "").replaceAll("\\d", "X") without the regular expression
+     * 
+     * @param number formatted phone number
+     * @return the number with digits replaced by X
+     */
+    public static String mask(String number) {
+        StringBuilder mask = new StringBuilder(number.length());
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (isDigit(c)) {
+                mask.append('X');
+            } else if (c != 'X') {
+                mask.append(c);
+            }
+        }
+        return mask.toString();
+    }
+    
+    /**
+     * @param number formatted phone number or digits
+     * @return packed digits of the number or NOT_PACKED
+     */
+    public static long pack(String number) {
+        long value = 0;
+        int count = 0;
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (isDigit(c)) {
+                if (++count > MAX_PACKED_DIGITS) {
+                    return NOT_PACKED;
+                }
+                value = value * 10 + (c - '0');
+            }
+        }
+        return count == 0 ? NOT_PACKED : (long) count << COUNT_SHIFT | value;
+    }
+    
+    /**
+     * @param packed packed number
+     * @return number of digits
+     */
+    public static int digitCount(long packed) {
+        return (int) (packed >>> COUNT_SHIFT);
+    }
+    
+    /**
+     * @param packed packed number
+     * @return digits with the leading zeros
+     */
+    public static String unpack(long packed) {
+        char[] digits = new char[digitCount(packed)];
+        long value = packed & VALUE_MASK;
+        for (int i = digits.length - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(digits);
+    }
+    
+    /**
+     * Substring search on digits without unpacking
+     * 
+     * @param packed packed number
+     * @param part packed digits to look for
+     * @return true if the digits of the number contain the digits of the part
+     */
+    public static boolean contains(long packed, long part) {
+        int count = digitCount(packed);
+        int partCount = digitCount(part);
+        if (partCount > count) {
+            return false;
+        }
+        long value = packed & VALUE_MASK;
+        long partValue = part & VALUE_MASK;
+        long modulus = POWERS_OF_TEN[partCount];
+        for (int shift = count - partCount; shift >= 0; shift--) {
+            if (value % modulus == partValue) {
+                return true;
+            }
+            value /= 10;
+        }
+        return false;
+    }
+    
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.helpers;
+
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import org.syso.phonebook.datasource.ReadYourWrites;
+
+/**
+ * Binds read-your-writes stickiness to the request thread.
+ * 
+ * Init parameter <code>scope</code> selects <code>cookie</code> (default), <code>session</code>
+ * or <code>request</code>. The first two keep reads of a client on the primary after its write:
+ * the cookie carries the time of the last write request, the session is created by write
+ * requests only. Init parameter <code>windowMillis</code> sets the window.
+ * A subclass taking its settings elsewhere passes them to configure.
+ * 
+ * @author Vladimir Syso
+ */
+public class ReadYourWritesFilter implements Filter {
+    
+    public static final String SCOPE_COOKIE = "cookie";
+    public static final String SCOPE_SESSION = "session";
+    public static final String SCOPE_REQUEST = "request";
+    
+    /**
+     * Request and session attribute holding the stickiness
+     */
+    public static final String ATTRIBUTE = ReadYourWrites.class.getName();
+    
+    /**
+     * Cookie holding the time of the last write request in milliseconds
+     */
+    public static final String COOKIE = "phonebook-last-write";
+    
+    private boolean enabled;
+    private String scope;
+    private long windowMillis;
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        
+        String scopeParameter = filterConfig.getInitParameter("scope");
+        String window = filterConfig.getInitParameter("windowMillis");
+        configure(true, scopeParameter != null ? scopeParameter.trim() : SCOPE_COOKIE,
+                window != null ? Long.parseLong(window.trim()) : ReadYourWrites.DEFAULT_WINDOW_MILLIS);
+    }
+    
+    /**
+     * @param enabled a disabled filter passes requests through, e.g. without replicas
+     * @param scope one of the SCOPE_ constants
+     * @param windowMillis time reads of a client stay on the primary after its write
+     */
+    protected void configure(boolean enabled, String scope, long windowMillis) {
+        this.enabled = enabled;
+        this.scope = scope.toLowerCase();
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        
+        if (!enabled || !(request instanceof HttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        
+        ReadYourWrites readYourWrites = (ReadYourWrites) request.getAttribute(ATTRIBUTE);
+        if (readYourWrites == null) {
+            HttpServletRequest httpRequest = (HttpServletRequest) request;
+            boolean write = isWrite(httpRequest);
+            switch (scope) {
+                case SCOPE_COOKIE:
+                    readYourWrites = fromCookie(httpRequest, (HttpServletResponse) response, write);
+                    break;
+                case SCOPE_SESSION:
+                    readYourWrites = fromSession(httpRequest, write);
+                    break;
+                default:
+                    readYourWrites = new ReadYourWrites(windowMillis);
+            }
+            request.setAttribute(ATTRIBUTE, readYourWrites);
+        }
+        
+        ReadYourWrites previous = ReadYourWrites.bind(readYourWrites);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            ReadYourWrites.bind(previous);
+        }
+    }
+    
+    /**
+     * @return the method might change data
+     */
+    private static boolean isWrite(HttpServletRequest request) {
+        String method = request.getMethod();
+        return !"GET".equals(method) && !"HEAD".equals(method) && !"OPTIONS".equals(method);
+    }
+    
+    /**
+     * The cookie is set up front, it cannot be set once the response is committed
+     */
+    private ReadYourWrites fromCookie(HttpServletRequest request, HttpServletResponse response, boolean write) {
+        
+        long now = System.currentTimeMillis();
+        long lastWriteMillis = 0;
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (COOKIE.equals(cookie.getName())) {
+                    try {
+                        // A time in the future would keep the client on the primary for good
+                        lastWriteMillis = Math.min(Long.parseLong(cookie.getValue()), now);
+                    } catch (NumberFormatException ex) {
+                        lastWriteMillis = 0;
+                    }
+                }
+            }
+        }
+        
+        if (write) {
+            Cookie cookie = new Cookie(COOKIE, Long.toString(now));
+            cookie.setMaxAge((int) Math.max(1, (windowMillis + 999) / 1000));
+            cookie.setPath(request.getContextPath().isEmpty() ? "/" : request.getContextPath());
+            cookie.setHttpOnly(true);
+            response.addCookie(cookie);
+        }
+        return new ReadYourWrites(windowMillis, lastWriteMillis);
+    }
+    
+    /**
+     * Session is created up front by write requests, it cannot be created once the response is committed
+     */
+    private ReadYourWrites fromSession(HttpServletRequest request, boolean write) {
+        
+        HttpSession session = request.getSession(write);
+        if (session == null) {
+            // Nothing was written by this client yet
+            return new ReadYourWrites(windowMillis);
+        }
+        ReadYourWrites readYourWrites = (ReadYourWrites) session.getAttribute(ATTRIBUTE);
+        if (readYourWrites == null) {
+            readYourWrites = new ReadYourWrites(windowMillis);
+            session.setAttribute(ATTRIBUTE, readYourWrites);
+        }
+        return readYourWrites;
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
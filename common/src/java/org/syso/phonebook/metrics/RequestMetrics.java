@@ -0,0 +1,308 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counts, latencies and sizes per route, written in the Prometheus text format.
+ * 
+ * A route is the request path with the segments holding digits replaced by
+ * {id} (digits only) or {value}, e.g. /servlet/contact/{id}/{value}. Latency
+ * quantiles cover the last one to two windows, counts and sums the whole run.
+ * Phase times, SQL statement counts and allocated bytes of RequestTiming are summed per route.
+ * Counters are LongAdders and histograms striped by thread, so recording
+ * does not serialize requests. The number of routes is bounded, requests of
+ * further routes are counted as route "other".
+ * 
+ * @author Vladimir Syso
+ */
+public class RequestMetrics {
+    
+    public static final int MAX_ROUTES = 100;
+    public static final long DEFAULT_WINDOW_SECONDS = 60;
+    
+    private static final String OTHER = "other";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final RequestTiming.Phase[] PHASES = RequestTiming.Phase.values();
+    private static final RequestMetrics SHARED = new RequestMetrics(DEFAULT_WINDOW_SECONDS);
+    
+    private final long windowNanos;
+    private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<>();
+    
+    /**
+     * @param windowSeconds time the latency quantiles are computed over
+     */
+    public RequestMetrics(long windowSeconds) {
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+    }
+    
+    /**
+     * @return metrics shared by the filter and the /metrics endpoint of the application
+     */
+    public static RequestMetrics shared() {
+        return SHARED;
+    }
+    
+    /**
+     * @param method HTTP method
+     * @param path request path without the context path
+     * @return metrics of the route of the path
+     */
+    public Route route(String method, String path) {
+        String template = template(path);
+        String key = method + ' ' + template;
+        Route route = routes.get(key);
+        if (route != null) {
+            return route;
+        }
+        if (routes.size() >= MAX_ROUTES) {
+            return routes.computeIfAbsent(method + ' ' + OTHER, other -> new Route(method, OTHER));
+        }
+        return routes.computeIfAbsent(key, added -> new Route(method, template));
+    }
+    
+    /**
+     * @param path request path
+     * @return the path with the segments holding digits replaced by placeholders
+     */
+    public static String template(String path) {
+        if (path == null || path.isEmpty()) {
+            return "/";
+        }
+        StringBuilder template = new StringBuilder(path.length());
+        int start = path.charAt(0) == '/' ? 1 : 0;
+        while (start <= path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            template.append('/');
+            String segment = path.substring(start, end);
+            boolean digits = false;
+            boolean digitsOnly = !segment.isEmpty();
+            for (int i = 0; i < segment.length(); i++) {
+                boolean digit = Character.isDigit(segment.charAt(i));
+                digits |= digit;
+                digitsOnly &= digit;
+            }
+            template.append(digitsOnly ? "{id}" : digits ? "{value}" : segment);
+            start = end + 1;
+        }
+        return template.toString();
+    }
+    
+    /**
+     * Write all metrics in the Prometheus text exposition format 0.0.4
+     * 
+     * @param out target
+     * @throws IOException if writing fails
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        long now = System.nanoTime();
+        Map<String, Route> sorted = new TreeMap<>(routes);
+        
+        out.write("# HELP phonebook_http_request_duration_seconds Request latency by route and status, quantiles of the recent window\n");
+        out.write("# TYPE phonebook_http_request_duration_seconds summary\n");
+        for (Route route : sorted.values()) {
+            for (Map.Entry<Integer, Series> status : new TreeMap<>(route.statuses).entrySet()) {
+                String labels = route.labels + ",status=\"" + status.getKey() + '"';
+                Series series = status.getValue();
+                long[] counts = series.recent(now);
+                boolean empty = LatencyHistogram.totalCount(counts) == 0;
+                for (double quantile : QUANTILES) {
+                    out.write("phonebook_http_request_duration_seconds{" + labels + ",quantile=\"" + quantile + "\"} ");
+                    out.write(empty ? "NaN" : seconds(LatencyHistogram.valueAtQuantile(counts, quantile)));
+                    out.write('\n');
+                }
+                out.write("phonebook_http_request_duration_seconds_sum{" + labels + "} " + seconds(series.sumMicros.sum()) + '\n');
+                out.write("phonebook_http_request_duration_seconds_count{" + labels + "} " + series.count.sum() + '\n');
+            }
+        }
+        
+        out.write("# HELP phonebook_http_requests_in_flight Requests being processed\n");
+        out.write("# TYPE phonebook_http_requests_in_flight gauge\n");
+        for (Route route : sorted.values()) {
+            out.write("phonebook_http_requests_in_flight{" + route.labels + "} " + route.inFlight.sum() + '\n');
+        }
+        out.write("# HELP phonebook_http_request_phase_seconds_total Time spent by requests in service, database, hydration and serialization\n");
+        out.write("# TYPE phonebook_http_request_phase_seconds_total counter\n");
+        for (Route route : sorted.values()) {
+            for (RequestTiming.Phase phase : PHASES) {
+                out.write("phonebook_http_request_phase_seconds_total{" + route.labels + ",phase=\"" + phase.getMetricName() + "\"} ");
+                out.write(seconds(route.phaseMicros[phase.ordinal()].sum()) + '\n');
+            }
+        }
+        out.write("# HELP phonebook_http_request_sql_statements_total SQL statements executed by requests\n");
+        out.write("# TYPE phonebook_http_request_sql_statements_total counter\n");
+        for (Route route : sorted.values()) {
+            out.write("phonebook_http_request_sql_statements_total{" + route.labels + "} " + route.statements.sum() + '\n');
+        }
+        out.write("# HELP phonebook_http_request_allocated_bytes_total Heap bytes allocated by requests\n");
+        out.write("# TYPE phonebook_http_request_allocated_bytes_total counter\n");
+        for (Route route : sorted.values()) {
+            out.write("phonebook_http_request_allocated_bytes_total{" + route.labels + "} " + route.allocatedBytes.sum() + '\n');
+        }
+        out.write("# HELP phonebook_http_request_bytes_total Request body bytes\n");
+        out.write("# TYPE phonebook_http_request_bytes_total counter\n");
+        for (Route route : sorted.values()) {
+            out.write("phonebook_http_request_bytes_total{" + route.labels + "} " + route.requestBytes.sum() + '\n');
+        }
+        out.write("# HELP phonebook_http_response_bytes_total Response body bytes\n");
+        out.write("# TYPE phonebook_http_response_bytes_total counter\n");
+        for (Route route : sorted.values()) {
+            out.write("phonebook_http_response_bytes_total{" + route.labels + "} " + route.responseBytes.sum() + '\n');
+        }
+    }
+    
+    /**
+     * @param name metric name
+     * @param help description
+     * @param type gauge or counter
+     * @param value current value
+     * @param out target
+     * @throws IOException if writing fails
+     */
+    public static void writeSample(String name, String help, String type, Number value, Writer out) throws IOException {
+        out.write("# HELP " + name + ' ' + help + '\n');
+        out.write("# TYPE " + name + ' ' + type + '\n');
+        out.write(name + ' ' + value + '\n');
+    }
+    
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1e6);
+    }
+    
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+    
+    /**
+     * Metrics of one method and route
+     */
+    public final class Route {
+        
+        private final String labels;
+        private final ConcurrentMap<Integer, Series> statuses = new ConcurrentHashMap<>();
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder requestBytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+        private final LongAdder[] phaseMicros = new LongAdder[PHASES.length];
+        private final LongAdder statements = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+
+        Route(String method, String template) {
+            this.labels = "method=\"" + escape(method) + "\",route=\"" + escape(template) + '"';
+            for (int i = 0; i < phaseMicros.length; i++) {
+                phaseMicros[i] = new LongAdder();
+            }
+        }
+        
+        public void started() {
+            inFlight.increment();
+        }
+        
+        /**
+         * @param status HTTP status of the response
+         * @param startNanos System.nanoTime() when the request started
+         * @param requestBytes bytes of the request body
+         * @param responseBytes bytes of the response body
+         * @param timing phases of the request, may be null
+         */
+        public void completed(int status, long startNanos, long requestBytes, long responseBytes, RequestTiming timing) {
+            long now = System.nanoTime();
+            inFlight.decrement();
+            this.requestBytes.add(requestBytes);
+            this.responseBytes.add(responseBytes);
+            if (timing != null) {
+                for (RequestTiming.Phase phase : PHASES) {
+                    phaseMicros[phase.ordinal()].add(TimeUnit.NANOSECONDS.toMicros(timing.getNanos(phase)));
+                }
+                statements.add(timing.getStatements());
+                allocatedBytes.add(timing.getAllocatedBytes());
+            }
+            
+            Series series = statuses.get(status);
+            if (series == null) {
+                series = statuses.computeIfAbsent(status, added -> new Series(now));
+            }
+            series.record(now, TimeUnit.NANOSECONDS.toMicros(now - startNanos));
+        }
+    }
+    
+    /**
+     * Latencies of one route and status, two histograms take turns holding the current window
+     */
+    private final class Series {
+        
+        final LongAdder count = new LongAdder();
+        final LongAdder sumMicros = new LongAdder();
+        final LatencyHistogram[] histograms = {new LatencyHistogram(), new LatencyHistogram()};
+        volatile int current;
+        volatile long rotateAt;
+
+        Series(long now) {
+            rotateAt = now + windowNanos;
+        }
+        
+        void record(long now, long micros) {
+            if (now - rotateAt >= 0) {
+                rotate(now);
+            }
+            histograms[current].record(micros);
+            count.increment();
+            sumMicros.add(micros);
+        }
+        
+        long[] recent(long now) {
+            if (now - rotateAt >= 0) {
+                rotate(now);
+            }
+            long[] counts = histograms[0].snapshot();
+            histograms[1].addTo(counts);
+            return counts;
+        }
+        
+        synchronized void rotate(long now) {
+            if (now - rotateAt >= windowNanos) {
+                // Nothing recorded for a whole window, both are stale
+                histograms[0].clear();
+                histograms[1].clear();
+                rotateAt = now + windowNanos;
+            } else if (now - rotateAt >= 0) {
+                int next = 1 - current;
+                histograms[next].clear();
+                current = next;
+                rotateAt += windowNanos;
+            }
+        }
+    }
+}
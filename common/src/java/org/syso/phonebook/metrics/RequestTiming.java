@@ -0,0 +1,254 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time a single request spends in each phase, the number of SQL statements it
+ * runs and the bytes it allocates.
+ * 
+ * The filter binds a timing to the request thread, the service layer, the
+ * persistence hooks and the serializers add to it. Phases may overlap, e.g.
+ * database time is part of the service time. The summary is sent as a
+ * Server-Timing header and aggregated per route by RequestMetrics.
+ * 
+ * @author Vladimir Syso
+ */
+public final class RequestTiming {
+    
+    /**
+     * Measured phases with their Server-Timing names
+     */
+    public enum Phase {
+        /** Phonebook service calls */
+        SERVICE("svc"),
+        /** Execution of SQL statements */
+        DATABASE("db"),
+        /** JPA query work outside of SQL, mostly building entities from rows */
+        HYDRATION("hydrate"),
+        /** Marshalling and unmarshalling of bodies */
+        SERIALIZATION("ser");
+        
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+    
+    private static final Phase[] PHASES = Phase.values();
+    private static final ThreadLocal<RequestTiming> CURRENT = new ThreadLocal<>();
+    
+    private final long startNanos;
+    private final long[] nanos = new long[PHASES.length];
+    // Start times of the phases begun and not ended yet, 0 if none
+    private final long[] begins = new long[PHASES.length];
+    private int statements;
+    private long allocatedBytes;
+    // Nested queries of a query are measured as part of the outermost one
+    private int queryDepth;
+    private long queryStart;
+    private long queryDatabaseNanos;
+    private long statementStart;
+
+    /**
+     * @param startNanos System.nanoTime() when the request started
+     */
+    public RequestTiming(long startNanos) {
+        this.startNanos = startNanos;
+    }
+    
+    /**
+     * @return timing bound to the current thread or null
+     */
+    public static RequestTiming current() {
+        return CURRENT.get();
+    }
+    
+    /**
+     * Binds a timing to the current thread
+     * 
+     * @param timing to bind, null unbinds
+     * @return previously bound timing to restore with the next bind call
+     */
+    public static RequestTiming bind(RequestTiming timing) {
+        RequestTiming previous = CURRENT.get();
+        if (timing == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(timing);
+        }
+        return previous;
+    }
+    
+    /**
+     * @return start time to pass to stop, 0 if no timing is bound to the thread
+     */
+    public static long start() {
+        return CURRENT.get() != null ? System.nanoTime() : 0;
+    }
+    
+    /**
+     * Add the time since start to the phase of the timing bound to the thread
+     * 
+     * @param phase measured phase
+     * @param start value returned by start
+     */
+    public static void stop(Phase phase, long start) {
+        if (start == 0) {
+            return;
+        }
+        RequestTiming timing = CURRENT.get();
+        if (timing != null) {
+            timing.add(phase, System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * @param phase measured phase
+     * @param elapsedNanos time spent in the phase
+     */
+    public synchronized void add(Phase phase, long elapsedNanos) {
+        nanos[phase.ordinal()] += elapsedNanos;
+    }
+    
+    /**
+     * Start measuring a phase whose end is seen by another component
+     * 
+     * @param phase measured phase, ignored if already begun
+     */
+    public synchronized void begin(Phase phase) {
+        if (begins[phase.ordinal()] == 0) {
+            begins[phase.ordinal()] = System.nanoTime();
+        }
+    }
+    
+    /**
+     * @param phase measured phase, ignored if not begun
+     */
+    public synchronized void end(Phase phase) {
+        long begin = begins[phase.ordinal()];
+        if (begin != 0) {
+            nanos[phase.ordinal()] += System.nanoTime() - begin;
+            begins[phase.ordinal()] = 0;
+        }
+    }
+    
+    /**
+     * @param bytes allocated by one of the threads processing the request
+     */
+    public synchronized void addAllocatedBytes(long bytes) {
+        allocatedBytes += bytes;
+    }
+    
+    public synchronized void statementStarted() {
+        statementStart = System.nanoTime();
+    }
+    
+    public synchronized void statementFinished() {
+        if (statementStart != 0) {
+            nanos[Phase.DATABASE.ordinal()] += System.nanoTime() - statementStart;
+            statementStart = 0;
+        }
+        statements++;
+    }
+    
+    public synchronized void queryStarted() {
+        if (queryDepth++ == 0) {
+            queryStart = System.nanoTime();
+            queryDatabaseNanos = nanos[Phase.DATABASE.ordinal()];
+        }
+    }
+    
+    /**
+     * The time of the outermost query not spent in its statements is hydration
+     */
+    public synchronized void queryFinished() {
+        if (queryDepth == 0 || --queryDepth > 0) {
+            return;
+        }
+        long database = nanos[Phase.DATABASE.ordinal()] - queryDatabaseNanos;
+        nanos[Phase.HYDRATION.ordinal()] += Math.max(0, System.nanoTime() - queryStart - database);
+    }
+    
+    public long getStartNanos() {
+        return startNanos;
+    }
+    
+    /**
+     * @param phase measured phase
+     * @return time spent in the phase so far, including a begun phase not ended yet
+     */
+    public synchronized long getNanos(Phase phase) {
+        return elapsed(phase, System.nanoTime());
+    }
+    
+    /**
+     * @return SQL statements executed so far
+     */
+    public synchronized int getStatements() {
+        return statements;
+    }
+    
+    /**
+     * @return heap bytes allocated by the request threads, counted when they finish their part
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+    
+    /**
+     * @return Server-Timing header value of the phases measured so far and the total time
+     */
+    public synchronized String toServerTiming() {
+        long now = System.nanoTime();
+        StringBuilder header = new StringBuilder(96);
+        for (Phase phase : PHASES) {
+            long elapsed = elapsed(phase, now);
+            if (elapsed == 0 && !(phase == Phase.DATABASE && statements > 0)) {
+                continue;
+            }
+            header.append(phase.getMetricName()).append(";dur=").append(millis(elapsed));
+            if (phase == Phase.DATABASE) {
+                header.append(";desc=\"").append(statements).append(statements == 1 ? " statement\"" : " statements\"");
+            }
+            header.append(", ");
+        }
+        return header.append("total;dur=").append(millis(now - startNanos)).toString();
+    }
+    
+    private long elapsed(Phase phase, long now) {
+        long begin = begins[phase.ordinal()];
+        return nanos[phase.ordinal()] + (begin != 0 ? now - begin : 0);
+    }
+    
+    private static double millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos) / 1000.0;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.sql.SQLException;
+
+/**
+ * Recognizes integrity constraint violations in exceptions thrown by JDBC or JPA,
+ * MySQL vendor codes are checked first and standard SQL states next
+ * 
+ * @author Vladimir Syso
+ */
+public final class ConstraintViolations {
+    
+    // MySQL ER_DUP_ENTRY
+    private static final int MYSQL_DUPLICATE_ENTRY = 1062;
+    // MySQL ER_NO_REFERENCED_ROW and ER_NO_REFERENCED_ROW_2
+    private static final int MYSQL_NO_REFERENCED_ROW = 1216;
+    private static final int MYSQL_NO_REFERENCED_ROW_2 = 1452;
+    
+    private static final String SQL_STATE_UNIQUE_VIOLATION = "23505";
+    private static final String SQL_STATE_FOREIGN_KEY_VIOLATION = "23503";
+    
+    private ConstraintViolations() {        
+    }
+    
+    /**
+     * @param ex exception or any of its causes
+     * @return true if a unique or primary key was violated
+     */
+    public static boolean isDuplicateKey(Throwable ex) {
+        SQLException sqlException = findSQLException(ex);
+        if (sqlException == null) {
+            return false;
+        }
+        return sqlException.getErrorCode() == MYSQL_DUPLICATE_ENTRY
+                || SQL_STATE_UNIQUE_VIOLATION.equals(sqlException.getSQLState());
+    }
+    
+    /**
+     * @param ex exception or any of its causes
+     * @return true if a foreign key references a missing row
+     */
+    public static boolean isMissingReference(Throwable ex) {
+        SQLException sqlException = findSQLException(ex);
+        if (sqlException == null) {
+            return false;
+        }
+        return sqlException.getErrorCode() == MYSQL_NO_REFERENCED_ROW
+                || sqlException.getErrorCode() == MYSQL_NO_REFERENCED_ROW_2
+                || SQL_STATE_FOREIGN_KEY_VIOLATION.equals(sqlException.getSQLState());
+    }
+    
+    /**
+     * @param ex exception to inspect
+     * @return the first SQLException in the cause chain or null
+     */
+    public static SQLException findSQLException(Throwable ex) {
+        Throwable cause = ex;
+        while (cause != null) {
+            if (cause instanceof SQLException) {
+                return (SQLException) cause;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+            cause = cause.getCause();
+        }
+        return null;
+    }
+}
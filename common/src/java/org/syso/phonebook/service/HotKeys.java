@@ -0,0 +1,291 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongFunction;
+import org.syso.phonebook.collections.CountMinSketch;
+import org.syso.phonebook.helpers.PhoneNumberNormalizer;
+
+/**
+ * Most looked up keys over a sliding time window, e.g. the hottest numbers of the last minute.
+ * 
+ * The window is split into a ring of intervals. Each interval counts keys in
+ * a CountMinSketch and keeps a small table of candidate keys: a key replaces
+ * a candidate with a lower count. Recording takes a few atomic operations and
+ * no lock, allocation or clock read: a background tick moves the current
+ * interval and clears the oldest one. The top keys are merged from the
+ * intervals on request. Key 0 is not tracked.
+ * 
+ * @author Vladimir Syso
+ */
+public class HotKeys implements Closeable {
+    
+    /** Intervals of the windows made by forNumbers and forContacts */
+    public static final int INTERVALS = 6;
+    
+    private static final int SKETCH_WIDTH = 2048;
+    private static final int SKETCH_DEPTH = 4;
+    private static final int CANDIDATES_PER_KEY = 8;
+    private static final int PROBES = 8;
+    private static final long EMPTY = 0;
+    // Bit 63 is not used by packed numbers
+    private static final long PARTIAL = Long.MIN_VALUE;
+    
+    private final int size;
+    private final long intervalSeconds;
+    private final Interval[] intervals;
+    private final LongFunction<String> labels;
+    private volatile int current;
+    private ScheduledExecutorService ticks;
+    
+    /**
+     * @param size number of top keys reported
+     * @param intervals number of intervals in the window
+     * @param intervalSeconds length of an interval
+     * @param labels readable form of a key
+     */
+    public HotKeys(int size, int intervals, long intervalSeconds, LongFunction<String> labels) {
+        this.size = size;
+        this.intervalSeconds = intervalSeconds;
+        this.labels = labels;
+        this.intervals = new Interval[intervals];
+        for (int i = 0; i < intervals; i++) {
+            this.intervals[i] = new Interval(Integer.highestOneBit(Math.max(1, size * CANDIDATES_PER_KEY) * 2 - 1));
+        }
+    }
+    
+    /**
+     * @param size number of top numbers reported
+     * @param windowSeconds length of the window
+     * @return tracker of keys made by numberKey
+     */
+    public static HotKeys forNumbers(int size, long windowSeconds) {
+        return new HotKeys(size, INTERVALS, Math.max(1, windowSeconds / INTERVALS), HotKeys::numberLabel);
+    }
+    
+    /**
+     * @param size number of top contacts reported
+     * @param windowSeconds length of the window
+     * @return tracker of contact ids
+     */
+    public static HotKeys forContacts(int size, long windowSeconds) {
+        return new HotKeys(size, INTERVALS, Math.max(1, windowSeconds / INTERVALS), String::valueOf);
+    }
+    
+    /**
+     * Numbers are counted by their digits, numbers longer than
+     * PhoneNumberNormalizer.MAX_PACKED_DIGITS are not counted
+     * 
+     * @param number formatted number, search or digits
+     * @param match the whole number or a part of it
+     * @return key of the number, 0 if it is not counted
+     */
+    public static long numberKey(String number, boolean match) {
+        long packed = PhoneNumberNormalizer.pack(number);
+        if (packed == PhoneNumberNormalizer.NOT_PACKED) {
+            return EMPTY;
+        }
+        return match ? packed : packed | PARTIAL;
+    }
+    
+    /**
+     * @param key key made by numberKey
+     * @return digits of the number, ~ in front for a partial search
+     */
+    public static String numberLabel(long key) {
+        String digits = PhoneNumberNormalizer.unpack(key & ~PARTIAL);
+        return (key & PARTIAL) != 0 ? "~" + digits : digits;
+    }
+    
+    /**
+     * Count a lookup of the key
+     * 
+     * @param key a key other than 0
+     */
+    public void record(long key) {
+        if (key == EMPTY) {
+            return;
+        }
+        Interval interval = intervals[current];
+        interval.offer(key, interval.sketch.increment(key));
+    }
+    
+    /**
+     * Move to the next interval, the counts of the oldest one are dropped
+     */
+    public void tick() {
+        int next = (current + 1) % intervals.length;
+        intervals[next].clear();
+        current = next;
+    }
+    
+    /**
+     * Tick every interval in a background thread, counts are kept for the whole run until started
+     */
+    public synchronized void start() {
+        if (ticks != null) {
+            return;
+        }
+        ticks = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "phonebook-hot-keys");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticks.scheduleAtFixedRate(this::tick, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+    
+    @Override
+    public synchronized void close() {
+        if (ticks != null) {
+            ticks.shutdownNow();
+            ticks = null;
+        }
+    }
+    
+    /**
+     * @return top keys of the window with their estimated counts, the largest first
+     */
+    public List<HotKey> top() {
+        Map<Long, Long> counts = new HashMap<>();
+        for (Interval interval : intervals) {
+            for (int i = 0; i < interval.keys.length(); i++) {
+                long key = interval.keys.get(i);
+                if (key != EMPTY && !counts.containsKey(key)) {
+                    long count = 0;
+                    for (Interval other : intervals) {
+                        count += other.sketch.estimate(key);
+                    }
+                    counts.put(key, count);
+                }
+            }
+        }
+        
+        PriorityQueue<Map.Entry<Long, Long>> heap = new PriorityQueue<>(size + 1, Map.Entry.comparingByValue());
+        for (Map.Entry<Long, Long> count : counts.entrySet()) {
+            heap.offer(count);
+            if (heap.size() > size) {
+                heap.poll();
+            }
+        }
+        List<HotKey> top = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            Map.Entry<Long, Long> count = heap.poll();
+            top.add(new HotKey(labels.apply(count.getKey()), count.getValue()));
+        }
+        Collections.reverse(top);
+        return top;
+    }
+    
+    /**
+     * @return length of the window in seconds
+     */
+    public long getWindowSeconds() {
+        return intervalSeconds * intervals.length;
+    }
+    
+    /**
+     * A key with its estimated count
+     */
+    public static final class HotKey {
+        
+        private final String key;
+        private final long count;
+
+        public HotKey(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+    
+    /**
+     * Counts of one interval, the candidate table is open addressed with a bounded probe
+     */
+    private static final class Interval {
+        
+        final CountMinSketch sketch = new CountMinSketch(SKETCH_WIDTH, SKETCH_DEPTH);
+        final AtomicLongArray keys;
+        final AtomicLongArray counts;
+        final int mask;
+
+        Interval(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            counts = new AtomicLongArray(capacity);
+            mask = capacity - 1;
+        }
+        
+        void offer(long key, long count) {
+            int start = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            int smallest = -1;
+            long smallestCount = count;
+            for (int probe = 0; probe < PROBES; probe++) {
+                int slot = (start + probe) & mask;
+                long slotKey = keys.get(slot);
+                if (slotKey == key) {
+                    counts.lazySet(slot, Math.max(count, counts.get(slot)));
+                    return;
+                }
+                if (slotKey == EMPTY && keys.compareAndSet(slot, EMPTY, key)) {
+                    counts.lazySet(slot, count);
+                    return;
+                }
+                long slotCount = counts.get(slot);
+                if (slotCount < smallestCount) {
+                    smallest = slot;
+                    smallestCount = slotCount;
+                }
+            }
+            // Replace the least counted candidate, losing a race only delays the key
+            if (smallest >= 0 && keys.compareAndSet(smallest, keys.get(smallest), key)) {
+                counts.lazySet(smallest, count);
+            }
+        }
+        
+        void clear() {
+            sketch.clear();
+            for (int i = 0; i < keys.length(); i++) {
+                keys.lazySet(i, EMPTY);
+                counts.lazySet(i, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers find_by_number searches that matched nothing, so retries of the
+ * same search skip the LIKE scan until the entry expires.
+ * 
+ * Entries are keyed by the digits of the search and the match mode. An added
+ * number drops the exact search of its digits and every partial search it
+ * contains. A search records its miss only if no number was added while it
+ * ran. Numbers added by other application instances are seen after the TTL.
+ * 
+ * @author Vladimir Syso
+ */
+public class NegativeResultCache implements PhonebookListener {
+    
+    private final int maxEntries;
+    private final long ttlNanos;
+    // Insertion order is expiration order, since all entries live for the same time
+    private final Map<String, Long> expirations;
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    
+    /**
+     * @param maxEntries searches to remember, the oldest are dropped first
+     * @param ttlSeconds time a miss is remembered
+     */
+    public NegativeResultCache(final int maxEntries, long ttlSeconds) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.expirations = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+    
+    /**
+     * @param numbersOnly digits of the search
+     * @param match the whole number or a part of it
+     * @return true if the search is known to match nothing
+     */
+    public boolean isKnownMiss(String numbersOnly, boolean match) {
+        if (maxEntries <= 0) {
+            return false;
+        }
+        String key = key(numbersOnly, match);
+        synchronized (expirations) {
+            Long expiration = expirations.get(key);
+            if (expiration == null) {
+                return false;
+            }
+            if (expiration - System.nanoTime() <= 0) {
+                expirations.remove(key);
+                return false;
+            }
+        }
+        hits.increment();
+        return true;
+    }
+    
+    /**
+     * @return stamp to take before the search and pass to putMiss
+     */
+    public long generation() {
+        return generation.get();
+    }
+    
+    /**
+     * @param numbersOnly digits of the search
+     * @param match the whole number or a part of it
+     * @param generation stamp taken before the search
+     */
+    public void putMiss(String numbersOnly, boolean match, long generation) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        String key = key(numbersOnly, match);
+        synchronized (expirations) {
+            // A number added during the search might have matched it
+            if (this.generation.get() != generation) {
+                return;
+            }
+            expirations.remove(key);
+            expirations.put(key, System.nanoTime() + ttlNanos);
+        }
+    }
+    
+    @Override
+    public void numberAdded(String numbersOnly) {
+        synchronized (expirations) {
+            generation.incrementAndGet();
+            expirations.remove(key(numbersOnly, true));
+            
+            int length = numbersOnly.length();
+            if (expirations.size() < length * (length + 1) / 2) {
+                Iterator<String> keys = expirations.keySet().iterator();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    if (key.charAt(0) == '~' && numbersOnly.contains(key.substring(1))) {
+                        keys.remove();
+                    }
+                }
+                return;
+            }
+            expirations.remove(key("", false));
+            for (int start = 0; start < length; start++) {
+                for (int end = start + 1; end <= length; end++) {
+                    expirations.remove(key(numbersOnly.substring(start, end), false));
+                }
+            }
+        }
+    }
+    
+    public void clear() {
+        synchronized (expirations) {
+            generation.incrementAndGet();
+            expirations.clear();
+        }
+    }
+    
+    /**
+     * @return remembered searches including expired ones not dropped yet
+     */
+    public int size() {
+        synchronized (expirations) {
+            return expirations.size();
+        }
+    }
+    
+    /**
+     * @return searches answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    private static String key(String numbersOnly, boolean match) {
+        return (match ? '=' : '~') + numbersOnly;
+    }
+}
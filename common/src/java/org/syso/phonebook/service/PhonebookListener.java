@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.Collection;
+
+/**
+ * Receives notifications about data changed by the Phonebook Service,
+ * so caches built on top of it can drop stale entries
+ * 
+ * @author Vladimir Syso
+ */
+public interface PhonebookListener {
+    
+    /**
+     * Contacts were deleted together with all their phone numbers
+     * 
+     * @param contactIds ids of the removed contacts, some of them might have not existed
+     */
+    default void contactsDeleted(Collection<Integer> contactIds) {
+    }
+    
+    /**
+     * A phone number was added, so searches that missed before might match it now
+     * 
+     * @param numbersOnly digits of the added number
+     */
+    default void numberAdded(String numbersOnly) {
+    }
+}
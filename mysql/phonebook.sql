@@ -81,10 +81,27 @@ CREATE TABLE IF NOT EXISTS `phonebook`.`phone_number` (
     ON UPDATE NO ACTION)
 ENGINE = InnoDB;
 
+
+-- -----------------------------------------------------
+-- Table `phonebook`.`phone_number_directory`
+-- Phone number to shard map, used by ShardedPhonebookService only
+-- -----------------------------------------------------
+CREATE TABLE IF NOT EXISTS `phonebook`.`phone_number_directory` (
+  `phone_number` VARCHAR(45) NOT NULL,
+  `shard` INT NOT NULL,
+  PRIMARY KEY (`phone_number`))
+ENGINE = InnoDB;
+
 DROP USER restapi;
 FLUSH PRIVILEGES;
 CREATE USER 'restapi' IDENTIFIED BY 'restapi';
 
+-- Reads SHOW SLAVE STATUS of the replica lag checks only, see SecondsBehindMasterProbe
+DROP USER phonebook_monitor;
+FLUSH PRIVILEGES;
+CREATE USER 'phonebook_monitor' IDENTIFIED BY 'phonebook_monitor';
+GRANT REPLICATION CLIENT ON *.* TO 'phonebook_monitor';
+
 
 SET SQL_MODE=@OLD_SQL_MODE;
 SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS;
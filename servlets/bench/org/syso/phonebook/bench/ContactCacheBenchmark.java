@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneNumber;
+import org.syso.phonebook.domain.PhoneType;
+import org.syso.phonebook.offheap.ContactCodec;
+import org.syso.phonebook.service.ContactCache;
+
+/**
+ * Hit ratio of ContactCache versus a plain LRU of the same weight, replaying
+ * a recorded trace of contact lookups or a synthetic one.
+ * 
+ * A trace has one lookup per line: a contact id or an access log line with
+ * /contact/{id}. The synthetic trace draws ids from a Zipf distribution over
+ * 100000 contacts and runs a GET /contacts like scan of all of them after
+ * every 200000 lookups. Contacts have 1 to 4 phone numbers, so their weights differ.
+ * 
+ * Usage:
+ * <pre>
+ * java org.syso.phonebook.bench.ContactCacheBenchmark [trace file|-] [cache bytes]
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public class ContactCacheBenchmark {
+    
+    private static final Pattern CONTACT_ID = Pattern.compile("^(\\d+)$|/contact/(\\d+)");
+    private static final int SYNTHETIC_CONTACTS = 100000;
+    private static final int SYNTHETIC_LOOKUPS = 2000000;
+    private static final int SCAN_PERIOD = 200000;
+    private static final double ZIPF_EXPONENT = 0.9;
+    
+    public static void main(String[] args) throws Exception {
+        
+        int[] trace = args.length > 0 && !"-".equals(args[0]) ? read(args[0]) : synthetic();
+        long cacheBytes = args.length > 1 ? Long.parseLong(args[1]) : 512 * 1024;
+        
+        ContactCache cache = new ContactCache(cacheBytes, 0);
+        long start = System.nanoTime();
+        for (int contactId : trace) {
+            if (cache.get(contactId) == null) {
+                cache.put(contact(contactId), cache.generation());
+            }
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        
+        WeightedLru lru = new WeightedLru(cacheBytes);
+        for (int contactId : trace) {
+            lru.lookup(contactId);
+        }
+        
+        System.out.printf("lookups: %d, cache: %d bytes%n", trace.length, cacheBytes);
+        System.out.printf("W-TinyLFU hit ratio: %.2f%% (%d entries, %d evictions, %d rejections, %d ms)%n",
+                cache.getHitRatio() * 100, cache.size(), cache.getEvictions(), cache.getRejections(), millis);
+        System.out.printf("LRU hit ratio:       %.2f%%%n", lru.getHitRatio() * 100);
+    }
+    
+    private static int[] read(String file) throws IOException {
+        List<Integer> contactIds = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = CONTACT_ID.matcher(line.trim());
+                if (matcher.find()) {
+                    contactIds.add(Integer.valueOf(matcher.group(1) != null ? matcher.group(1) : matcher.group(2)));
+                }
+            }
+        }
+        return contactIds.stream().mapToInt(Integer::intValue).toArray();
+    }
+    
+    private static int[] synthetic() {
+        double[] cumulative = new double[SYNTHETIC_CONTACTS];
+        double sum = 0;
+        for (int i = 0; i < SYNTHETIC_CONTACTS; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
+        }
+        
+        Random random = new Random(1);
+        int scans = SYNTHETIC_LOOKUPS / SCAN_PERIOD;
+        int[] trace = new int[SYNTHETIC_LOOKUPS + scans * SYNTHETIC_CONTACTS];
+        int position = 0;
+        for (int i = 0; i < SYNTHETIC_LOOKUPS; i++) {
+            if (i > 0 && i % SCAN_PERIOD == 0) {
+                for (int contactId = 1; contactId <= SYNTHETIC_CONTACTS; contactId++) {
+                    trace[position++] = contactId;
+                }
+            }
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            // Ranks are spread over the ids, so popular contacts are not the first scanned
+            trace[position++] = 1 + (int) ((((rank < 0 ? -rank - 1 : rank) * 2654435761L) & 0xFFFFFFFFL) % SYNTHETIC_CONTACTS);
+        }
+        return Arrays.copyOf(trace, position);
+    }
+    
+    private static Contact contact(int contactId) {
+        Contact contact = new Contact(contactId);
+        contact.setFirstName("First" + contactId);
+        contact.setLastName("Last" + contactId);
+        List<PhoneNumber> phoneNumbers = new ArrayList<>();
+        for (int i = 0; i <= contactId % 4; i++) {
+            PhoneNumber phoneNumber = new PhoneNumber(contactId * 4 + i, contactId);
+            phoneNumber.setNumber(String.valueOf(70000000000L + contactId * 4L + i));
+            phoneNumber.setType(new PhoneType(1, "home"));
+            phoneNumbers.add(phoneNumber);
+        }
+        contact.setPhoneNumbers(phoneNumbers);
+        return contact;
+    }
+    
+    /**
+     * LRU bounded by the record sizes, the baseline
+     */
+    private static final class WeightedLru {
+        
+        private final long maximumWeight;
+        private final LinkedHashMap<Integer, Integer> weights = new LinkedHashMap<>(16, 0.75f, true);
+        private long weight;
+        private long hits;
+        private long lookups;
+
+        WeightedLru(long maximumWeight) {
+            this.maximumWeight = maximumWeight;
+        }
+        
+        void lookup(int contactId) {
+            lookups++;
+            if (weights.get(contactId) != null) {
+                hits++;
+                return;
+            }
+            int recordWeight = ContactCodec.encode(contact(contactId)).length;
+            weights.put(contactId, recordWeight);
+            weight += recordWeight;
+            Iterator<Map.Entry<Integer, Integer>> eldest = weights.entrySet().iterator();
+            while (weight > maximumWeight && eldest.hasNext()) {
+                weight -= eldest.next().getValue();
+                eldest.remove();
+            }
+        }
+        
+        double getHitRatio() {
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+}
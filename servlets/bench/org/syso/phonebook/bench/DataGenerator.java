@@ -0,0 +1,541 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Deterministic synthetic data for the phonebook schema, the same seed and size
+ * always give the same rows.
+ * 
+ * Contacts get first and last names drawn from Zipf distributions over common
+ * names, and 0 to 5 numbers (mostly 1 or 2). A number is stored as its digits with
+ * the mask of its formatted form, like PhoneNumberNormalizer does: national
+ * formats of a few countries and local 7 digit numbers, with the types home,
+ * work, mobile, fax and other. Numbers are unique, every mask gives out its
+ * numbers by an affine permutation of its digit space. Every number also gets its
+ * phone_number_directory row with the shard ShardedPhonebookService keeps the
+ * contact in, (contactId - 1) mod phonebook.generate.shards (1).
+ * 
+ * Rows are written as tab separated files with load.sql to import them with
+ * LOAD DATA LOCAL INFILE, or inserted in JDBC batches when
+ * phonebook.generate.jdbcUrl is set (add rewriteBatchedStatements=true to MySQL
+ * URLs). Both expect an empty schema, contact ids run from 1.
+ * 
+ * The output directory also gets skewed access keys for the tests:
+ * contact-lookups.txt with contact ids and number-lookups.txt with the digits of
+ * numbers, phonebook.generate.lookups (1000000) lines each drawn from a Zipf
+ * distribution over the contacts with the exponent phonebook.generate.zipf (0.9).
+ * Contacts without numbers give numbers nobody has, as searches for unknown
+ * numbers do. ContactCacheBenchmark replays contact-lookups.txt.
+ * 
+ * Usage:
+ * <pre>
+ * java -Dphonebook.generate.contacts=10000000 -Dphonebook.generate.seed=1 org.syso.phonebook.bench.DataGenerator [output directory]
+ * java -Dphonebook.generate.jdbcUrl=jdbc:mysql://localhost/phonebook?rewriteBatchedStatements=true \
+ *     -Dphonebook.generate.user=restapi -Dphonebook.generate.password=restapi org.syso.phonebook.bench.DataGenerator
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public class DataGenerator {
+    
+    private static final String[] FIRST_NAMES = {
+        "James", "Mary", "John", "Patricia", "Robert", "Jennifer", "Michael", "Linda", "William", "Elizabeth",
+        "David", "Barbara", "Richard", "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Charles", "Karen",
+        "Alexander", "Anna", "Dmitry", "Olga", "Sergey", "Elena", "Vladimir", "Natalia", "Andrey", "Irina",
+        "Daniel", "Nancy", "Matthew", "Lisa", "Anthony", "Betty", "Mark", "Margaret", "Donald", "Sandra",
+        "Hans", "Ursula", "Peter", "Monika", "Pierre", "Marie", "Jean", "Sophie", "Oliver", "Amelia",
+        "Mohammed", "Fatima", "Wei", "Li", "Hiroshi", "Yuki", "Carlos", "Maria", "Luis", "Ana"};
+    private static final String[] LAST_NAMES = {
+        "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez",
+        "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin",
+        "Ivanov", "Smirnov", "Kuznetsov", "Popov", "Vasiliev", "Petrov", "Sokolov", "Mikhailov", "Novikov", "Fedorov",
+        "Lee", "Perez", "Thompson", "White", "Harris", "Sanchez", "Clark", "Ramirez", "Lewis", "Robinson",
+        "Mueller", "Schmidt", "Schneider", "Fischer", "Weber", "Martin", "Bernard", "Dubois", "Thomas", "Robert",
+        "Wang", "Li", "Zhang", "Liu", "Chen", "Sato", "Suzuki", "Takahashi", "Silva", "Santos"};
+    
+    // Masks with the country code their numbers start with and their share of all numbers
+    private static final String[] MASKS = {"+X(XXX)XXX-XX-XX", "+X (XXX) XXX-XXXX", "+XX XXXX XXXXXX",
+        "+XX XXX XXXXXXXX", "+XX X XX XX XX XX", "XXX-XXXX"};
+    private static final String[] COUNTRY_CODES = {"7", "1", "44", "49", "33", ""};
+    private static final int[] MASK_WEIGHTS = {30, 30, 10, 10, 10, 10};
+    
+    private static final String[] TYPES = {"home", "work", "mobile", "fax", "other"};
+    private static final int[] TYPE_WEIGHTS = {20, 20, 55, 2, 3};
+    
+    // Share of contacts with 0, 1, ... 5 numbers
+    private static final int[] NUMBER_COUNT_WEIGHTS = {5, 40, 30, 15, 7, 3};
+    
+    private static final int BATCH_SIZE = 1000;
+    
+    private final int contacts = Integer.getInteger("phonebook.generate.contacts", 100000);
+    private final long seed = Long.getLong("phonebook.generate.seed", 1);
+    private final int lookups = Integer.getInteger("phonebook.generate.lookups", 1000000);
+    private final double zipf = Double.parseDouble(System.getProperty("phonebook.generate.zipf", "0.9"));
+    private final int shards = Integer.getInteger("phonebook.generate.shards", 1);
+    
+    private final long[] subscribers = new long[MASKS.length];
+    private final long[] issued = new long[MASKS.length];
+    private final long[] multipliers = new long[MASKS.length];
+    private final long[] offsets = new long[MASKS.length];
+    
+    public static void main(String[] args) throws Exception {
+        
+        Path directory = Paths.get(args.length > 0 ? args[0] : ".");
+        Files.createDirectories(directory);
+        String jdbcUrl = System.getProperty("phonebook.generate.jdbcUrl");
+        
+        DataGenerator generator = new DataGenerator();
+        long start = System.nanoTime();
+        long numbers;
+        try (Sink sink = jdbcUrl != null ? new JdbcSink(jdbcUrl, System.getProperty("phonebook.generate.user"),
+                System.getProperty("phonebook.generate.password")) : new FileSink(directory)) {
+            numbers = generator.generate(sink, directory);
+        }
+        System.out.printf("%d contacts, %d numbers in %d s, lookups in %s%n", generator.contacts, numbers,
+                (System.nanoTime() - start) / 1000000000L, directory.toAbsolutePath());
+    }
+    
+    private DataGenerator() {
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < MASKS.length; i++) {
+            int digits = 0;
+            for (char c : MASKS[i].toCharArray()) {
+                digits += c == 'X' ? 1 : 0;
+            }
+            subscribers[i] = pow10(digits - COUNTRY_CODES[i].length());
+            // Any multiplier coprime to 10 permutes the digit space
+            long multiplier = (random.nextLong(subscribers[i] / 3) + subscribers[i] / 2) | 1;
+            multipliers[i] = multiplier % 5 == 0 ? multiplier + 2 : multiplier;
+            offsets[i] = random.nextLong(subscribers[i]);
+        }
+    }
+    
+    /**
+     * @return number of phone numbers written
+     */
+    private long generate(Sink sink, Path directory) throws Exception {
+        
+        for (int i = 0; i < TYPES.length; i++) {
+            sink.type(i + 1, TYPES[i]);
+        }
+        for (int i = 0; i < MASKS.length; i++) {
+            sink.mask(i + 1, MASKS[i]);
+        }
+        
+        // Lookups are drawn first, so the numbers of the looked up contacts can be kept while generating
+        ZipfSampler sampler = new ZipfSampler(contacts, zipf);
+        SplittableRandom lookupRandom = new SplittableRandom(seed ^ 0x5DEECE66DL);
+        int[] contactLookups = new int[lookups];
+        int[] numberLookups = new int[lookups];
+        BitSet searched = new BitSet(contacts + 1);
+        for (int i = 0; i < lookups; i++) {
+            contactLookups[i] = contactId(sampler.sample(lookupRandom));
+            numberLookups[i] = contactId(sampler.sample(lookupRandom));
+            searched.set(numberLookups[i]);
+        }
+        Map<Integer, String> searchedNumbers = new HashMap<>();
+        
+        SplittableRandom random = new SplittableRandom(seed);
+        ZipfSampler firstNames = new ZipfSampler(FIRST_NAMES.length, 1.0);
+        ZipfSampler lastNames = new ZipfSampler(LAST_NAMES.length, 1.0);
+        StringBuilder number = new StringBuilder(16);
+        long numbers = 0;
+        for (int contactId = 1; contactId <= contacts; contactId++) {
+            // A few contacts only have a last name
+            String firstName = random.nextInt(50) == 0 ? null : FIRST_NAMES[firstNames.sample(random) - 1];
+            sink.contact(contactId, firstName, LAST_NAMES[lastNames.sample(random) - 1]);
+            
+            int count = pick(NUMBER_COUNT_WEIGHTS, random);
+            for (int i = 0; i < count; i++) {
+                int mask = nextNumber(pick(MASK_WEIGHTS, random), number);
+                sink.number(++numbers, number, pick(TYPE_WEIGHTS, random) + 1, mask + 1, contactId);
+                sink.directory(number, (contactId - 1) % shards);
+                if (i == 0 && searched.get(contactId)) {
+                    searchedNumbers.put(contactId, number.toString());
+                }
+            }
+        }
+        
+        try (Writer out = Files.newBufferedWriter(directory.resolve("contact-lookups.txt"), StandardCharsets.US_ASCII)) {
+            for (int contactId : contactLookups) {
+                out.write(Integer.toString(contactId));
+                out.write('\n');
+            }
+        }
+        try (Writer out = Files.newBufferedWriter(directory.resolve("number-lookups.txt"), StandardCharsets.US_ASCII)) {
+            for (int contactId : numberLookups) {
+                String digits = searchedNumbers.get(contactId);
+                if (digits == null) {
+                    // No mask gives out numbers starting with 0 and 8 to 10 digits long
+                    out.write('0');
+                    digits = Integer.toString(contactId);
+                    for (int i = digits.length(); i < 7; i++) {
+                        out.write('0');
+                    }
+                }
+                out.write(digits);
+                out.write('\n');
+            }
+        }
+        return numbers;
+    }
+    
+    /**
+     * Spread the ranks over the ids, so popular contacts are not the first ones
+     */
+    private int contactId(int rank) {
+        return 1 + (int) ((((rank - 1) * 2654435761L) & 0xFFFFFFFFL) % contacts);
+    }
+    
+    /**
+     * @param mask index of the preferred mask, the next one is used when its digits run out
+     * @param number receives the digits of the next number
+     * @return index of the mask used
+     */
+    private int nextNumber(int mask, StringBuilder number) {
+        
+        for (int tries = 0; issued[mask] >= subscribers[mask]; tries++) {
+            if (tries == MASKS.length) {
+                throw new IllegalStateException("All masks ran out of numbers");
+            }
+            mask = (mask + 1) % MASKS.length;
+        }
+        long subscriber = Math.floorMod(multipliers[mask] * issued[mask]++ + offsets[mask], subscribers[mask]);
+        number.setLength(0);
+        number.append(COUNTRY_CODES[mask]);
+        for (long digit = subscribers[mask] / 10; digit > 0; digit /= 10) {
+            number.append((char) ('0' + subscriber / digit % 10));
+        }
+        return mask;
+    }
+    
+    private static int pick(int[] weights, SplittableRandom random) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int value = random.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            value -= weights[i];
+            if (value < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+    
+    private static long pow10(int exponent) {
+        long value = 1;
+        for (int i = 0; i < exponent; i++) {
+            value *= 10;
+        }
+        return value;
+    }
+    
+    /**
+     * Zipf distribution over 1..n by rejection-inversion (Hoermann and Derflinger),
+     * constant time and memory for any n
+     */
+    static final class ZipfSampler {
+        
+        private final int n;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralN;
+        private final double s;
+        
+        ZipfSampler(int n, double exponent) {
+            this.n = n;
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5) - 1;
+            this.hIntegralN = hIntegral(n + 0.5);
+            this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+        }
+        
+        /**
+         * @return rank from 1, the most frequent, to n
+         */
+        int sample(SplittableRandom random) {
+            while (true) {
+                double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+                double x = hIntegralInverse(u);
+                int k = (int) (x + 0.5);
+                k = Math.max(1, Math.min(n, k));
+                if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                    return k;
+                }
+            }
+        }
+        
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+        
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return expm1OverX((1 - exponent) * logX) * logX;
+        }
+        
+        private double hIntegralInverse(double x) {
+            double t = Math.max(-1, x * (1 - exponent));
+            return Math.exp(log1pOverX(t) * x);
+        }
+        
+        private static double log1pOverX(double x) {
+            return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+        }
+        
+        private static double expm1OverX(double x) {
+            return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+        }
+    }
+    
+    /**
+     * Destination of the generated rows
+     */
+    private interface Sink extends AutoCloseable {
+        
+        void type(int typeId, String name) throws Exception;
+        
+        void mask(int maskId, String view) throws Exception;
+        
+        void contact(int contactId, String firstName, String lastName) throws Exception;
+        
+        void number(long numberId, CharSequence number, int typeId, int maskId, int contactId) throws Exception;
+        
+        void directory(CharSequence number, int shard) throws Exception;
+        
+        @Override
+        void close() throws IOException, SQLException;
+    }
+    
+    /**
+     * Tab separated files in the LOAD DATA format, \N stands for NULL
+     */
+    private static final class FileSink implements Sink {
+        
+        private static final String[] TABLES = {"phone_type", "phone_mask", "contact", "phone_number", "phone_number_directory"};
+        private static final String[] COLUMNS = {"phone_type_id, phone_type_name", "phone_mask_id, phone_mask_view",
+            "contact_id, first_name, last_name", "phone_number_id, phone_number, phone_type_id, phone_mask_id, contact_id",
+            "phone_number, shard"};
+        
+        private final Path directory;
+        private final BufferedWriter types;
+        private final BufferedWriter masks;
+        private final BufferedWriter contacts;
+        private final BufferedWriter numbers;
+        private final BufferedWriter shards;
+        
+        FileSink(Path directory) throws IOException {
+            this.directory = directory;
+            types = writer(TABLES[0]);
+            masks = writer(TABLES[1]);
+            contacts = writer(TABLES[2]);
+            numbers = writer(TABLES[3]);
+            shards = writer(TABLES[4]);
+        }
+        
+        @Override
+        public void type(int typeId, String name) throws IOException {
+            row(types, Integer.toString(typeId), name);
+        }
+        
+        @Override
+        public void mask(int maskId, String view) throws IOException {
+            row(masks, Integer.toString(maskId), view);
+        }
+        
+        @Override
+        public void contact(int contactId, String firstName, String lastName) throws IOException {
+            contacts.write(Integer.toString(contactId));
+            contacts.write('\t');
+            contacts.write(firstName != null ? firstName : "\\N");
+            contacts.write('\t');
+            contacts.write(lastName != null ? lastName : "\\N");
+            contacts.write('\n');
+        }
+        
+        @Override
+        public void number(long numberId, CharSequence number, int typeId, int maskId, int contactId) throws IOException {
+            numbers.write(Long.toString(numberId));
+            numbers.write('\t');
+            numbers.append(number);
+            numbers.write('\t');
+            numbers.write(Integer.toString(typeId));
+            numbers.write('\t');
+            numbers.write(Integer.toString(maskId));
+            numbers.write('\t');
+            numbers.write(Integer.toString(contactId));
+            numbers.write('\n');
+        }
+        
+        @Override
+        public void directory(CharSequence number, int shard) throws IOException {
+            shards.append(number);
+            shards.write('\t');
+            shards.write(Integer.toString(shard));
+            shards.write('\n');
+        }
+        
+        @Override
+        public void close() throws IOException {
+            types.close();
+            masks.close();
+            contacts.close();
+            numbers.close();
+            shards.close();
+            
+            try (Writer out = Files.newBufferedWriter(directory.resolve("load.sql"), StandardCharsets.US_ASCII)) {
+                out.write("-- Run from this directory: mysql --local-infile=1 phonebook < load.sql\n");
+                out.write("SET FOREIGN_KEY_CHECKS=0;\nSET UNIQUE_CHECKS=0;\n");
+                for (int i = 0; i < TABLES.length; i++) {
+                    out.write("LOAD DATA LOCAL INFILE '" + TABLES[i] + ".tsv' INTO TABLE " + TABLES[i]
+                            + " CHARACTER SET utf8 (" + COLUMNS[i] + ");\n");
+                }
+                out.write("SET UNIQUE_CHECKS=1;\nSET FOREIGN_KEY_CHECKS=1;\n");
+            }
+        }
+        
+        private BufferedWriter writer(String table) throws IOException {
+            return new BufferedWriter(Files.newBufferedWriter(directory.resolve(table + ".tsv"), StandardCharsets.UTF_8), 1 << 16);
+        }
+        
+        private static void row(Writer out, String id, String value) throws IOException {
+            out.write(id);
+            out.write('\t');
+            out.write(value);
+            out.write('\n');
+        }
+    }
+    
+    /**
+     * Batched inserts, committed every batch
+     */
+    private static final class JdbcSink implements Sink {
+        
+        private final Connection connection;
+        private final PreparedStatement types;
+        private final PreparedStatement masks;
+        private final PreparedStatement contacts;
+        private final PreparedStatement numbers;
+        private final PreparedStatement shards;
+        private int pendingContacts;
+        private int pendingNumbers;
+        
+        JdbcSink(String url, String user, String password) throws SQLException {
+            connection = DriverManager.getConnection(url, user, password);
+            connection.setAutoCommit(false);
+            types = connection.prepareStatement("INSERT INTO phone_type (phone_type_id, phone_type_name) VALUES (?, ?)");
+            masks = connection.prepareStatement("INSERT INTO phone_mask (phone_mask_id, phone_mask_view) VALUES (?, ?)");
+            contacts = connection.prepareStatement("INSERT INTO contact (contact_id, first_name, last_name) VALUES (?, ?, ?)");
+            numbers = connection.prepareStatement("INSERT INTO phone_number "
+                    + "(phone_number_id, phone_number, phone_type_id, phone_mask_id, contact_id) VALUES (?, ?, ?, ?, ?)");
+            shards = connection.prepareStatement("INSERT INTO phone_number_directory (phone_number, shard) VALUES (?, ?)");
+        }
+        
+        @Override
+        public void type(int typeId, String name) throws SQLException {
+            types.setInt(1, typeId);
+            types.setString(2, name);
+            types.executeUpdate();
+        }
+        
+        @Override
+        public void mask(int maskId, String view) throws SQLException {
+            masks.setInt(1, maskId);
+            masks.setString(2, view);
+            masks.executeUpdate();
+        }
+        
+        @Override
+        public void contact(int contactId, String firstName, String lastName) throws SQLException {
+            contacts.setInt(1, contactId);
+            contacts.setString(2, firstName);
+            contacts.setString(3, lastName);
+            contacts.addBatch();
+            if (++pendingContacts == BATCH_SIZE) {
+                flush();
+            }
+        }
+        
+        @Override
+        public void number(long numberId, CharSequence number, int typeId, int maskId, int contactId) throws SQLException {
+            numbers.setLong(1, numberId);
+            numbers.setString(2, number.toString());
+            numbers.setInt(3, typeId);
+            numbers.setInt(4, maskId);
+            numbers.setInt(5, contactId);
+            numbers.addBatch();
+            pendingNumbers++;
+        }
+        
+        @Override
+        public void directory(CharSequence number, int shard) throws SQLException {
+            shards.setString(1, number.toString());
+            shards.setInt(2, shard);
+            shards.addBatch();
+        }
+        
+        /**
+         * Contacts go first, their numbers reference them
+         */
+        private void flush() throws SQLException {
+            if (pendingContacts > 0) {
+                contacts.executeBatch();
+            }
+            if (pendingNumbers > 0) {
+                numbers.executeBatch();
+                shards.executeBatch();
+            }
+            connection.commit();
+            pendingContacts = 0;
+            pendingNumbers = 0;
+        }
+        
+        @Override
+        public void close() throws SQLException {
+            try {
+                flush();
+            } finally {
+                connection.close();
+            }
+        }
+    }
+}
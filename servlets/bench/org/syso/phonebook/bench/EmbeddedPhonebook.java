@@ -0,0 +1,133 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.syso.phonebook.service.PhonebookService;
+
+/**
+ * PhonebookLocalPU over an embedded in-memory Derby database holding contacts
+ * with two numbers each, the schema is the one ShardedPhonebookServiceTest uses
+ * 
+ * @author Vladimir Syso
+ */
+final class EmbeddedPhonebook implements AutoCloseable {
+    
+    private final EmbeddedDataSource dataSource = new EmbeddedDataSource();
+    private final EntityManagerFactory emf;
+    
+    /**
+     * @param contacts number of contacts, their ids run from 1
+     */
+    EmbeddedPhonebook(int contacts) throws SQLException {
+        
+        dataSource.setDatabaseName("memory:phonebook-bench");
+        dataSource.setCreateDatabase("create");
+        createSchema();
+        
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("javax.persistence.nonJtaDataSource", dataSource);
+        emf = Persistence.createEntityManagerFactory("PhonebookLocalPU", properties);
+        populate(contacts);
+    }
+    
+    EntityManagerFactory getEntityManagerFactory() {
+        return emf;
+    }
+    
+    /**
+     * @param contact index of the contact from 0
+     * @param index 0 for the home and 1 for the work number
+     * @return formatted number of the contact
+     */
+    static String number(int contact, int index) {
+        return String.format("+1(%03d)%03d-%02d-%02d", index, contact / 10000 % 1000, contact / 100 % 100, contact % 100);
+    }
+    
+    @Override
+    public void close() {
+        emf.close();
+        dataSource.setCreateDatabase(null);
+        dataSource.setConnectionAttributes("drop=true");
+        try {
+            dataSource.getConnection().close();
+        } catch (SQLException ex) {
+            // Derby reports a dropped database with an exception
+        }
+    }
+    
+    private void populate(int contacts) {
+        
+        EntityManager em = emf.createEntityManager();
+        try {
+            PhonebookService service = new PhonebookService(em);
+            for (int batch = 0; batch < contacts; batch += 1000) {
+                EntityTransaction transaction = em.getTransaction();
+                transaction.begin();
+                for (int i = batch; i < Math.min(contacts, batch + 1000); i++) {
+                    int contactId = service.createContact("First" + i, "Last" + i).getContactId();
+                    service.insertPhoneNumber(contactId, number(i, 0), "home");
+                    service.insertPhoneNumber(contactId, number(i, 1), "work");
+                }
+                transaction.commit();
+                em.clear();
+            }
+        } finally {
+            em.close();
+        }
+    }
+    
+    private void createSchema() throws SQLException {
+        
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            
+            statement.executeUpdate("CREATE TABLE contact ("
+                    + "contact_id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "first_name VARCHAR(45), last_name VARCHAR(45))");
+            statement.executeUpdate("CREATE TABLE phone_type ("
+                    + "phone_type_id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "phone_type_name VARCHAR(45) NOT NULL UNIQUE)");
+            statement.executeUpdate("CREATE TABLE phone_mask ("
+                    + "phone_mask_id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "phone_mask_view VARCHAR(45) NOT NULL UNIQUE)");
+            statement.executeUpdate("CREATE TABLE phone_number ("
+                    + "phone_number_id INT GENERATED BY DEFAULT AS IDENTITY, "
+                    + "phone_number VARCHAR(45) NOT NULL UNIQUE, "
+                    + "phone_type_id INT NOT NULL REFERENCES phone_type (phone_type_id), "
+                    + "phone_mask_id INT NOT NULL REFERENCES phone_mask (phone_mask_id), "
+                    + "contact_id INT NOT NULL REFERENCES contact (contact_id) ON DELETE CASCADE, "
+                    + "PRIMARY KEY (phone_number_id, contact_id))");
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.syso.phonebook.controllers.helpers.JAXBMapper;
+import org.syso.phonebook.controllers.helpers.RequestExecutor;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.service.PhonebookExecutors;
+import org.syso.phonebook.service.PhonebookService;
+
+/**
+ * Compares throughput and memory of the platform and virtual thread execution
+ * modes for mostly DB-waiting requests, on the path the servlets take.
+ * 
+ * Every client sends requests one after another to a pool of container
+ * threads, phonebook.bench.containerThreads (200) like the HTTP thread pool of
+ * the server. The container thread passes the request to RequestExecutor: in
+ * platform mode the handler runs on the container thread, in virtual mode the
+ * request goes asynchronous and the handler runs on a virtual thread of the
+ * shared executor. Outside a container there is no context service, so the
+ * cost of the contextual proxy is not included.
+ * 
+ * A request does the work of GET /contact/{id}: a PhonebookService lookup over
+ * JPA on an embedded Derby database of 10000 contacts and JAXB marshalling of
+ * the contact to JSON. Derby runs in process, so the request also blocks for
+ * the network latency of a remote database, which is where virtual threads make
+ * the difference. EclipseLink and Derby synchronize while executing queries,
+ * so virtual threads are pinned there like with MySQL Connector/J. Usage:
+ * <pre>
+ * java -Dphonebook.bench.containerThreads=200 org.syso.phonebook.bench.ExecutionModeBenchmark [latencyMillis] [requestsPerClient]
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public class ExecutionModeBenchmark {
+    
+    private static final int[] CLIENTS = {1000, 10000};
+    private static final int CONTACTS = 10000;
+    
+    public static void main(String[] args) throws Exception {
+        
+        long latencyMillis = args.length > 0 ? Long.parseLong(args[0]) : 20;
+        int requestsPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int containerThreads = Integer.getInteger("phonebook.bench.containerThreads", 200);
+        
+        try (EmbeddedPhonebook phonebook = new EmbeddedPhonebook(CONTACTS)) {
+            Handler handler = new Handler(phonebook.getEntityManagerFactory(), latencyMillis);
+            
+            System.out.printf("%-10s %8s %12s %10s %14s %14s%n",
+                    "mode", "clients", "requests/s", "threads", "heap MB", "non-heap MB");
+            
+            for (int clients : CLIENTS) {
+                run(PhonebookExecutors.MODE_PLATFORM, clients, requestsPerClient, containerThreads, handler);
+                run(PhonebookExecutors.MODE_VIRTUAL, clients, requestsPerClient, containerThreads, handler);
+            }
+        }
+    }
+    
+    private static void run(String mode, int clients, int requestsPerClient, int containerThreads, 
+            final Handler handler) throws InterruptedException {
+        
+        ExecutorService container = Executors.newFixedThreadPool(containerThreads);
+        ExecutorService virtual = PhonebookExecutors.MODE_VIRTUAL.equals(mode) 
+                ? PhonebookExecutors.newExecutor("bench", true) : null;
+        RequestExecutor requests = new RequestExecutor(virtual, null);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        
+        System.gc();
+        threads.resetPeakThreadCount();
+        
+        final CountDownLatch done = new CountDownLatch(clients * requestsPerClient);
+        long start = System.nanoTime();
+        
+        // Closed model: a client sends the next request once the previous one is completed
+        for (int i = 0; i < clients; i++) {
+            send(container, requests, done, requestsPerClient, handler);
+        }
+        
+        long heapUsed = 0;
+        long nonHeapUsed = 0;
+        while (!done.await(100, TimeUnit.MILLISECONDS)) {
+            heapUsed = Math.max(heapUsed, memory.getHeapMemoryUsage().getUsed());
+            nonHeapUsed = Math.max(nonHeapUsed, memory.getNonHeapMemoryUsage().getUsed());
+        }
+        
+        double seconds = (System.nanoTime() - start) / 1e9;
+        container.shutdownNow();
+        if (virtual != null) {
+            virtual.shutdownNow();
+        }
+        
+        System.out.printf("%-10s %8d %12.0f %10d %14.1f %14.1f%n",
+                mode, clients, clients * requestsPerClient / seconds, threads.getPeakThreadCount(),
+                heapUsed / 1048576.0, nonHeapUsed / 1048576.0);
+    }
+    
+    private static void send(final ExecutorService container, final RequestExecutor requests, 
+            final CountDownLatch done, final int remaining, final Handler handler) {
+        
+        if (remaining == 0) {
+            return;
+        }
+        final Runnable completed = () -> {
+            done.countDown();
+            send(container, requests, done, remaining - 1, handler);
+        };
+        container.execute(() -> {
+            AtomicBoolean async = new AtomicBoolean();
+            try {
+                requests.execute(request(async, completed), RESPONSE, handler);
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+            if (!async.get()) {
+                completed.run();
+            }
+        });
+    }
+    
+    /**
+     * @param async set when the request goes asynchronous
+     * @param completed run when the asynchronous request completes
+     * @return request supporting asynchronous processing
+     */
+    private static HttpServletRequest request(AtomicBoolean async, Runnable completed) {
+        
+        AsyncContext asyncContext = (AsyncContext) Proxy.newProxyInstance(AsyncContext.class.getClassLoader(),
+                new Class<?>[]{AsyncContext.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("complete")) {
+                        completed.run();
+                    }
+                    return null;
+                });
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isAsyncSupported":
+                            return true;
+                        case "startAsync":
+                            async.set(true);
+                            return asyncContext;
+                        default:
+                            return null;
+                    }
+                });
+    }
+    
+    private static final HttpServletResponse RESPONSE = (HttpServletResponse) Proxy.newProxyInstance(
+            HttpServletResponse.class.getClassLoader(), new Class<?>[]{HttpServletResponse.class}, 
+            (proxy, method, args) -> method.getReturnType() == boolean.class ? false : null);
+    
+    /**
+     * The work of GET /contact/{id} with the servlet facade
+     */
+    private static final class Handler implements RequestExecutor.RequestHandler {
+        
+        private final EntityManagerFactory emf;
+        private final long latencyMillis;
+        private final JAXBMapper<Contact> mapper = new JAXBMapper<>(Contact.class);
+        
+        Handler(EntityManagerFactory emf, long latencyMillis) {
+            this.emf = emf;
+            this.latencyMillis = latencyMillis;
+        }
+        
+        @Override
+        public void handle(HttpServletRequest request, HttpServletResponse response) {
+            
+            EntityManager em = emf.createEntityManager();
+            try {
+                Contact contact = new PhonebookService(em).findContact(1 + ThreadLocalRandom.current().nextInt(CONTACTS), true);
+                // Network round-trip to a remote database, the embedded one has none
+                Thread.sleep(latencyMillis);
+                mapper.marshal(contact, new StringWriter(), JAXBMapper.MEDIA_TYPE_JSON);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                em.close();
+            }
+        }
+    }
+}
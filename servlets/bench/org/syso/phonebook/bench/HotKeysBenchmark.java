@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.syso.phonebook.service.HotKeys;
+
+/**
+ * Cost of HotKeys.record per call with concurrent threads recording a skewed
+ * mix of keys: half of the calls go to 16 hot keys, the rest spread over 1M keys.
+ * 
+ * Usage:
+ * <pre>
+ * java org.syso.phonebook.bench.HotKeysBenchmark [threads] [seconds]
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public class HotKeysBenchmark {
+    
+    private static final int KEYS = 1 << 20;
+    private static final int HOT_KEYS = 16;
+    
+    public static void main(String[] args) throws Exception {
+        
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        
+        final HotKeys hotKeys = new HotKeys(20, 6, 10, String::valueOf);
+        final LongAdder calls = new LongAdder();
+        final long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        final long deadline = warmupEnd + TimeUnit.SECONDS.toNanos(seconds);
+        
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            Thread worker = new Thread(() -> {
+                long state = 0x9E3779B97F4A7C15L * (seed + 1);
+                long count = 0;
+                boolean measuring = false;
+                while (true) {
+                    // Check the clock every 1024 calls, so it does not dominate
+                    for (int i = 0; i < 1024; i++) {
+                        state ^= state << 13;
+                        state ^= state >>> 7;
+                        state ^= state << 17;
+                        int key = (state & 1) == 0 ? 1 + (int) ((state >>> 1) & (HOT_KEYS - 1)) : 1 + (int) ((state >>> 1) & (KEYS - 1));
+                        hotKeys.record(key);
+                    }
+                    long now = System.nanoTime();
+                    if (now >= deadline) {
+                        break;
+                    }
+                    if (measuring) {
+                        count += 1024;
+                    } else if (now >= warmupEnd) {
+                        measuring = true;
+                    }
+                }
+                calls.add(count);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        
+        double perThread = (double) calls.sum() / threads / seconds;
+        System.out.printf("threads: %d, calls: %d, %.0f calls/s per thread, %.1f ns per call%n",
+                threads, calls.sum(), perThread, 1e9 / perThread);
+        System.out.println("top: ");
+        for (HotKeys.HotKey hotKey : hotKeys.top()) {
+            System.out.printf("  %s %d%n", hotKey.getKey(), hotKey.getCount());
+        }
+    }
+}
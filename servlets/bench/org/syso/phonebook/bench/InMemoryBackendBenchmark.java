@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.syso.phonebook.service.InMemoryPhonebookService;
+import org.syso.phonebook.service.PhonebookExecutors;
+
+/**
+ * Baseline read throughput of the in-memory backend, the JPA backend
+ * does the same work plus the database round-trips.
+ * 
+ * Usage:
+ * <pre>
+ * java org.syso.phonebook.bench.InMemoryBackendBenchmark [contacts] [threads] [seconds]
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public class InMemoryBackendBenchmark {
+    
+    public static void main(String[] args) throws Exception {
+        
+        int contacts = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        
+        InMemoryPhonebookService phonebook = new InMemoryPhonebookService(contacts);
+        final List<String> numbers = new ArrayList<>(contacts);
+        for (int i = 0; i < contacts; i++) {
+            int contactId = phonebook.createContact("First" + i, "Last" + i).getContactId();
+            String number = String.format("+1(%03d)%03d-%02d-%02d", i / 1000000 % 1000, i / 1000 % 1000, i / 100 % 10, i % 100);
+            phonebook.insertPhoneNumber(contactId, number, i % 2 == 0 ? "home" : "work");
+            numbers.add(number);
+        }
+        
+        System.out.printf("%-16s %8s %8s %14s%n", "operation", "contacts", "threads", "ops/s");
+        run("findContact", contacts, threads, seconds, (random) -> phonebook.findContact(1 + random.nextInt(contacts)));
+        run("findByNumber", contacts, threads, seconds,
+                (random) -> phonebook.findContactsByPhoneNumber(numbers.get(random.nextInt(contacts)), true));
+    }
+    
+    private static void run(String operation, int contacts, int threads, int seconds, final Operation op) throws Exception {
+        
+        ExecutorService executor = PhonebookExecutors.newExecutor("bench", false);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        
+        List<Future<Long>> results = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final Random random = new Random(i);
+            results.add(executor.submit(() -> {
+                long count = 0;
+                while (System.nanoTime() < deadline) {
+                    op.run(random);
+                    count++;
+                }
+                return count;
+            }));
+        }
+        
+        long total = 0;
+        for (Future<Long> result : results) {
+            total += result.get();
+        }
+        executor.shutdownNow();
+        
+        System.out.printf("%-16s %8d %8d %14.0f%n", operation, contacts, threads, total / (double) seconds);
+    }
+    
+    @FunctionalInterface
+    private interface Operation {
+        void run(Random random);
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.syso.phonebook.metrics.LatencyHistogram;
+
+/**
+ * End-to-end load test of running Phonebook deployments. The targets are run
+ * one after another with the same workload, and their throughput and latency
+ * percentiles are printed side by side.
+ * 
+ * Every target gets phonebook.load.contacts contacts (200) with a number each,
+ * then a mix of reads (GET /contact/{id}), writes (PUT /contact/{id}) and
+ * searches (GET /contacts/find_by_number) set by phonebook.load.mix as
+ * read:write:search (80:10:10). The contacts are deleted at the end.
+ * 
+ * Requests go over a pool of phonebook.load.clients keep-alive connections (64).
+ * Workload models, phonebook.load.model:
+ * <ul>
+ * <li>open (default): requests start at a constant rate of phonebook.load.rate
+ * per second (200) whatever the response times are. Latency is measured from the
+ * scheduled start, so a stalled server is charged for the requests that waited
+ * behind it and the percentiles are free of coordinated omission.</li>
+ * <li>closed: each client sends its next request phonebook.load.thinkMillis (0)
+ * after the previous response. With a think time, responses slower than it are
+ * corrected by recording the requests the client would have sent meanwhile.</li>
+ * </ul>
+ * The test runs phonebook.load.warmupSeconds (5) before phonebook.load.seconds (30)
+ * of measurement. phonebook.load.resultFile names a file for the results in the
+ * JSON format of JMH: throughput per operation with a sample per second of the
+ * measurement, and latency percentiles as secondary metrics.
+ * 
+ * Usage:
+ * <pre>
+ * java -Dphonebook.load.model=open -Dphonebook.load.rate=500 org.syso.phonebook.bench.LoadBenchmark \
+ *     spring=http://localhost:8080/Phonebook jersey=http://localhost:8081/Phonebook/jersey servlet=http://localhost:8081/Phonebook/servlet
+ * </pre>
+ * Without arguments the Jersey and Servlet facades at localhost:8080 are tested.
+ * 
+ * @author Vladimir Syso
+ */
+public class LoadBenchmark {
+    
+    private static final String[] OPERATIONS = {"read", "write", "search"};
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+    // Secondary metric names of the quantiles, as JMH names them in sample time mode
+    private static final String[] QUANTILE_NAMES = {"\u00b7p0.50", "\u00b7p0.90", "\u00b7p0.99", "\u00b7p0.999", "\u00b7p1.00"};
+    
+    private final String model = System.getProperty("phonebook.load.model", "open");
+    private final int rate = Integer.getInteger("phonebook.load.rate", 200);
+    private final int clients = Integer.getInteger("phonebook.load.clients", 64);
+    private final long thinkMillis = Long.getLong("phonebook.load.thinkMillis", 0);
+    private final int contacts = Integer.getInteger("phonebook.load.contacts", 200);
+    private final int warmupSeconds = Integer.getInteger("phonebook.load.warmupSeconds", 5);
+    private final int seconds = Integer.getInteger("phonebook.load.seconds", 30);
+    private final int[] mix = parseMix(System.getProperty("phonebook.load.mix", "80:10:10"));
+    private final String resultFile = System.getProperty("phonebook.load.resultFile");
+    
+    private final CloseableHttpClient client;
+    
+    private LoadBenchmark() {
+        PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(clients);
+        connections.setDefaultMaxPerRoute(clients);
+        client = HttpClients.custom().setConnectionManager(connections).build();
+    }
+    
+    public static void main(String[] args) throws Exception {
+        
+        Map<String, String> targets = new LinkedHashMap<>();
+        if (args.length == 0) {
+            targets.put("jersey", "http://localhost:8080/Phonebook/jersey");
+            targets.put("servlet", "http://localhost:8080/Phonebook/servlet");
+        }
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            targets.put(separator > 0 ? arg.substring(0, separator) : arg, arg.substring(separator + 1));
+        }
+        
+        LoadBenchmark bench = new LoadBenchmark();
+        System.out.printf("model: %s, %s, mix read:write:search %d:%d:%d, %d s after %d s warmup%n", bench.model,
+                "open".equals(bench.model) ? bench.rate + " requests/s over " + bench.clients + " connections"
+                        : bench.clients + " clients, think time " + bench.thinkMillis + " ms",
+                bench.mix[0], bench.mix[1], bench.mix[2], bench.seconds, bench.warmupSeconds);
+        
+        List<Result> results = new ArrayList<>();
+        try {
+            for (Map.Entry<String, String> target : targets.entrySet()) {
+                System.out.println("running " + target.getKey() + " " + target.getValue());
+                results.add(bench.run(target.getKey(), target.getValue()));
+            }
+        } finally {
+            bench.client.close();
+        }
+        
+        System.out.printf("%n%-10s %-7s %10s %10s %8s %10s %10s %10s %10s %10s%n",
+                "target", "op", "requests", "req/s", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (String operation : new String[] {"all", "read", "write", "search"}) {
+            for (Result result : results) {
+                result.print(operation);
+            }
+        }
+        if (bench.resultFile != null) {
+            bench.write(results);
+        }
+    }
+    
+    private void write(List<Result> results) throws IOException {
+        
+        String params = String.format("\"model\" : \"%s\", \"rate\" : \"%d\", \"clients\" : \"%d\", \"thinkMillis\" : \"%d\", "
+                + "\"mix\" : \"%d:%d:%d\"", model, rate, clients, thinkMillis, mix[0], mix[1], mix[2]);
+        List<String> entries = new ArrayList<>();
+        for (String operation : new String[] {"all", "read", "write", "search"}) {
+            for (Result result : results) {
+                entries.add(result.json(operation, params, clients, warmupSeconds));
+            }
+        }
+        try (Writer out = new OutputStreamWriter(Files.newOutputStream(Paths.get(resultFile)), StandardCharsets.UTF_8)) {
+            out.write("[\n");
+            out.write(String.join(",\n", entries));
+            out.write("\n]\n");
+        }
+        System.out.println("Result file: " + resultFile);
+    }
+    
+    private Result run(String name, String baseUrl) throws Exception {
+        
+        Target target = new Target(baseUrl);
+        for (int i = 0; i < contacts; i++) {
+            target.seed(i);
+        }
+        
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        Result result = new Result(name, measureStart, seconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+        try {
+            if ("closed".equals(model)) {
+                runClosed(target, result, measureStart, end);
+            } else {
+                runOpen(target, result, start, measureStart, end);
+            }
+        } finally {
+            target.cleanUp();
+        }
+        return result;
+    }
+    
+    /**
+     * Requests are scheduled on a fixed timetable and queue up for a free
+     * connection when the server falls behind
+     */
+    private void runOpen(Target target, Result result, long start, long measureStart, long end) throws InterruptedException {
+        
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            for (long k = 0; ; k++) {
+                final long scheduled = start + k * interval;
+                if (scheduled >= end) {
+                    break;
+                }
+                long delay = scheduled - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+                final int operation = pickOperation(ThreadLocalRandom.current());
+                executor.execute(() -> {
+                    boolean success = target.call(operation, ThreadLocalRandom.current());
+                    if (scheduled >= measureStart) {
+                        result.record(operation, success, System.nanoTime() - scheduled, 0);
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        result.elapsed(System.nanoTime() - measureStart);
+    }
+    
+    /**
+     * Clients wait for each response, and the think time, before sending the next request
+     */
+    private void runClosed(Target target, Result result, long measureStart, long end) throws InterruptedException {
+        
+        long think = TimeUnit.MILLISECONDS.toNanos(thinkMillis);
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            Thread thread = new Thread(() -> {
+                Random random = ThreadLocalRandom.current();
+                while (true) {
+                    long started = System.nanoTime();
+                    if (started >= end) {
+                        break;
+                    }
+                    int operation = pickOperation(random);
+                    boolean success = target.call(operation, random);
+                    if (started >= measureStart) {
+                        result.record(operation, success, System.nanoTime() - started, think);
+                    }
+                    if (think > 0) {
+                        LockSupport.parkNanos(think);
+                    }
+                }
+            }, "load-" + c);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        result.elapsed(System.nanoTime() - measureStart);
+    }
+    
+    private int pickOperation(Random random) {
+        int value = random.nextInt(mix[0] + mix[1] + mix[2]);
+        return value < mix[0] ? 0 : value < mix[0] + mix[1] ? 1 : 2;
+    }
+    
+    private static int[] parseMix(String mix) {
+        String[] parts = mix.split(":");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("phonebook.load.mix must be read:write:search, got " + mix);
+        }
+        int[] weights = new int[3];
+        for (int i = 0; i < 3; i++) {
+            weights[i] = Integer.parseInt(parts[i].trim());
+        }
+        if (weights[0] + weights[1] + weights[2] <= 0) {
+            throw new IllegalArgumentException("phonebook.load.mix has no requests: " + mix);
+        }
+        return weights;
+    }
+    
+    /**
+     * Contacts created on one deployment and the requests against them
+     */
+    private final class Target {
+        
+        private final String baseUrl;
+        private final List<Integer> contactIds = new ArrayList<>();
+        private final List<String> numbers = new ArrayList<>();
+        
+        Target(String baseUrl) {
+            this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        }
+        
+        void seed(int i) throws IOException {
+            
+            HttpPost create = new HttpPost(baseUrl + "/contact");
+            create.setEntity(json("{\"firstName\":\"Load" + i + "\",\"lastName\":\"Test\"}"));
+            String location;
+            try {
+                HttpResponse response = client.execute(create);
+                EntityUtils.consume(response.getEntity());
+                if (response.getStatusLine().getStatusCode() != 201 || response.getFirstHeader(HttpHeaders.LOCATION) == null) {
+                    throw new IOException("POST " + create.getURI() + " returned " + response.getStatusLine());
+                }
+                location = response.getFirstHeader(HttpHeaders.LOCATION).getValue();
+            } finally {
+                create.releaseConnection();
+            }
+            int contactId = Integer.parseInt(location.substring(location.lastIndexOf('/') + 1));
+            contactIds.add(contactId);
+            
+            String number = String.format("+7(9%02d)%03d-%02d-%02d", contactId / 10000000 % 100,
+                    contactId / 10000 % 1000, contactId / 100 % 100, contactId % 100);
+            HttpPost addNumber = new HttpPost(baseUrl + "/contact/" + contactId + "/add_number");
+            addNumber.setEntity(json("{\"number\":\"" + number + "\",\"type\":\"mobile\"}"));
+            if (execute(addNumber) == 201) {
+                numbers.add(number);
+            }
+        }
+        
+        /**
+         * @return true if the request succeeded
+         */
+        boolean call(int operation, Random random) {
+            
+            int contactId = contactIds.get(random.nextInt(contactIds.size()));
+            HttpRequestBase request;
+            switch (operation) {
+                case 0:
+                    request = new HttpGet(baseUrl + "/contact/" + contactId);
+                    break;
+                case 1:
+                    HttpPut update = new HttpPut(baseUrl + "/contact/" + contactId);
+                    update.setEntity(json("{\"firstName\":\"Load" + contactId + "\",\"lastName\":\"Test" + random.nextInt(1000) + "\"}"));
+                    request = update;
+                    break;
+                default:
+                    String number = numbers.isEmpty() ? "0" : numbers.get(random.nextInt(numbers.size()));
+                    request = new HttpGet(baseUrl + "/contacts/find_by_number?match=true&phone_number="
+                            + number.replaceAll("\\D", ""));
+            }
+            request.setHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
+            try {
+                int status = execute(request);
+                return status >= 200 && status < 300;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+        
+        void cleanUp() throws IOException {
+            for (int from = 0; from < contactIds.size(); from += 1000) {
+                StringBuilder ids = new StringBuilder();
+                for (Integer contactId : contactIds.subList(from, Math.min(contactIds.size(), from + 1000))) {
+                    ids.append(ids.length() > 0 ? "," : "").append(contactId);
+                }
+                execute(new HttpDelete(baseUrl + "/contacts?ids=" + ids));
+            }
+        }
+        
+        private int execute(HttpRequestBase request) throws IOException {
+            try {
+                HttpResponse response = client.execute(request);
+                // Reading the body to the end returns the connection to the pool for keep-alive
+                EntityUtils.consume(response.getEntity());
+                return response.getStatusLine().getStatusCode();
+            } finally {
+                request.releaseConnection();
+            }
+        }
+        
+        private StringEntity json(String body) {
+            return new StringEntity(body, ContentType.create("application/json", StandardCharsets.UTF_8));
+        }
+    }
+    
+    /**
+     * Latencies and errors of one target, per operation
+     */
+    private static final class Result {
+        
+        private final String name;
+        private final LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+        private final LongAdder[] completed = new LongAdder[OPERATIONS.length];
+        private final LongAdder[] errors = new LongAdder[OPERATIONS.length];
+        // Requests completed in each second of the measurement
+        private final AtomicLongArray[] perSecond = new AtomicLongArray[OPERATIONS.length];
+        private final long measureStart;
+        private long elapsedNanos;
+        
+        Result(String name, long measureStart, int seconds) {
+            this.name = name;
+            this.measureStart = measureStart;
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                histograms[i] = new LatencyHistogram();
+                completed[i] = new LongAdder();
+                errors[i] = new LongAdder();
+                perSecond[i] = new AtomicLongArray(seconds);
+            }
+        }
+        
+        /**
+         * @param expectedInterval time between requests of a client, 0 for no correction
+         */
+        void record(int operation, boolean success, long nanos, long expectedInterval) {
+            if (!success) {
+                errors[operation].increment();
+                return;
+            }
+            completed[operation].increment();
+            long second = (System.nanoTime() - measureStart) / TimeUnit.SECONDS.toNanos(1);
+            if (second < perSecond[operation].length()) {
+                perSecond[operation].incrementAndGet((int) second);
+            }
+            histograms[operation].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+            if (expectedInterval > 0) {
+                for (long missed = nanos - expectedInterval; missed >= expectedInterval; missed -= expectedInterval) {
+                    histograms[operation].record(TimeUnit.NANOSECONDS.toMicros(missed));
+                }
+            }
+        }
+        
+        void elapsed(long nanos) {
+            elapsedNanos = nanos;
+        }
+        
+        void print(String operation) {
+            
+            long[] counts = new long[LatencyHistogram.BUCKETS];
+            long requests = 0;
+            long failed = 0;
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                if (operation.equals("all") || operation.equals(OPERATIONS[i])) {
+                    histograms[i].addTo(counts);
+                    requests += completed[i].sum() + errors[i].sum();
+                    failed += errors[i].sum();
+                }
+            }
+            StringBuilder line = new StringBuilder(String.format("%-10s %-7s %10d %10.1f %8d", name, operation,
+                    requests, requests * 1e9 / Math.max(1, elapsedNanos), failed));
+            for (double quantile : QUANTILES) {
+                line.append(String.format(" %10.2f", LatencyHistogram.valueAtQuantile(counts, quantile) / 1000.0));
+            }
+            System.out.println(line);
+        }
+        
+        String json(String operation, String params, int threads, int warmupSeconds) {
+            
+            long[] counts = new long[LatencyHistogram.BUCKETS];
+            double[] throughput = new double[perSecond[0].length()];
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                if (operation.equals("all") || operation.equals(OPERATIONS[i])) {
+                    histograms[i].addTo(counts);
+                    for (int second = 0; second < throughput.length; second++) {
+                        throughput[second] += perSecond[i].get(second);
+                    }
+                }
+            }
+            
+            StringBuilder out = new StringBuilder();
+            out.append("    {\n");
+            out.append("        \"benchmark\" : \"").append(LoadBenchmark.class.getName()).append('.').append(operation).append("\",\n");
+            out.append("        \"mode\" : \"thrpt\",\n");
+            out.append("        \"threads\" : ").append(threads).append(",\n");
+            out.append("        \"forks\" : 1,\n");
+            out.append("        \"jdkVersion\" : \"").append(System.getProperty("java.version")).append("\",\n");
+            out.append("        \"warmupIterations\" : 1,\n");
+            out.append("        \"warmupTime\" : \"").append(warmupSeconds).append(" s\",\n");
+            out.append("        \"measurementIterations\" : ").append(throughput.length).append(",\n");
+            out.append("        \"measurementTime\" : \"1 s\",\n");
+            out.append("        \"params\" : {\"target\" : \"").append(name).append("\", ").append(params).append("},\n");
+            out.append("        \"primaryMetric\" : ");
+            MicroBenchmark.metric(out, throughput, "ops/s");
+            out.append(",\n        \"secondaryMetrics\" : {\n");
+            for (int i = 0; i < QUANTILES.length; i++) {
+                out.append(i == 0 ? "" : ",\n").append("            \"").append(QUANTILE_NAMES[i]).append("\" : ");
+                MicroBenchmark.metric(out, new double[] {LatencyHistogram.valueAtQuantile(counts, QUANTILES[i]) / 1000.0}, "ms/op");
+            }
+            out.append("\n        }\n    }");
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.syso.phonebook.collections.IntObjectHashMap;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneNumber;
+import org.syso.phonebook.domain.PhoneType;
+import org.syso.phonebook.offheap.ContactCodec;
+import org.syso.phonebook.offheap.OffHeapRecordStore;
+
+/**
+ * Heap footprint and collector work of contacts held as objects on the heap
+ * versus serialized in OffHeapRecordStore, under a read and replace churn.
+ * Run each mode in its own JVM with the same -Xmx, e.g. -Xmx4g -XX:MaxDirectMemorySize=4g.
+ * 
+ * Usage:
+ * <pre>
+ * java org.syso.phonebook.bench.OffHeapStoreBenchmark heap|offheap [contacts] [seconds]
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public class OffHeapStoreBenchmark {
+    
+    public static void main(String[] args) throws Exception {
+        
+        boolean offHeap = args.length > 0 && "offheap".equals(args[0]);
+        int contacts = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        
+        final IntObjectHashMap<Contact> heap = new IntObjectHashMap<>(offHeap ? 16 : contacts);
+        final OffHeapRecordStore store = offHeap
+                ? new OffHeapRecordStore(Long.MAX_VALUE, OffHeapRecordStore.DEFAULT_SLAB_SIZE, contacts) : null;
+        
+        for (int i = 1; i <= contacts; i++) {
+            Contact contact = contact(i, i);
+            if (offHeap) {
+                store.put(i, ContactCodec.encode(contact));
+            } else {
+                heap.put(i, contact);
+            }
+        }
+        
+        long gcStart = System.nanoTime();
+        System.gc();
+        long gcMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - gcStart);
+        long heapUsed = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        
+        long collections = collections();
+        long collectionMillis = collectionMillis();
+        Random random = new Random(1);
+        long operations = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (System.nanoTime() < deadline) {
+            int contactId = 1 + random.nextInt(contacts);
+            // 9 reads for every replacement
+            if (operations % 10 == 9) {
+                Contact contact = contact(contactId, random.nextInt());
+                if (offHeap) {
+                    store.put(contactId, ContactCodec.encode(contact));
+                } else {
+                    heap.put(contactId, contact);
+                }
+            } else if (offHeap) {
+                ContactCodec.decode(store.get(contactId));
+            } else {
+                heap.get(contactId);
+            }
+            operations++;
+        }
+        
+        System.out.printf("%-8s %10s %12s %10s %12s %8s %10s %12s%n", 
+                "mode", "contacts", "heapUsedMB", "fullGcMs", "offHeapMB", "gcCount", "gcTimeMs", "ops/s");
+        System.out.printf("%-8s %10d %12d %10d %12d %8d %10d %12.0f%n", 
+                offHeap ? "offheap" : "heap", contacts, heapUsed >> 20, gcMillis,
+                offHeap ? store.getAllocatedBytes() >> 20 : 0,
+                collections() - collections, collectionMillis() - collectionMillis, operations / (double) seconds);
+    }
+    
+    private static Contact contact(int contactId, int seed) {
+        Contact contact = new Contact(contactId);
+        contact.setFirstName("First" + seed);
+        contact.setLastName("Last" + seed);
+        List<PhoneNumber> phoneNumbers = new ArrayList<>(2);
+        for (int i = 1; i <= 2; i++) {
+            PhoneNumber phoneNumber = new PhoneNumber(i, contactId);
+            phoneNumber.setNumber(String.format("1%03d%07d", i, Math.abs(seed) % 10000000));
+            phoneNumber.setType(new PhoneType(i, i == 1 ? "home" : "work"));
+            phoneNumber.setContact(contact);
+            phoneNumbers.add(phoneNumber);
+        }
+        contact.setPhoneNumbers(phoneNumbers);
+        return contact;
+    }
+    
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+    
+    private static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, bean.getCollectionTime());
+        }
+        return millis;
+    }
+}
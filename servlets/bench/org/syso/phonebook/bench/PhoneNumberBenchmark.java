@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import org.syso.phonebook.domain.PhoneMask;
+import org.syso.phonebook.domain.PhoneNumber;
+import org.syso.phonebook.helpers.PhoneNumberNormalizer;
+
+/**
+ * Number handling done on every request: digit normalization, mask extraction,
+ * packing for the indexes and formatting a stored number with its mask.
+ * 
+ * Usage:
+ * <pre>
+ * java org.syso.phonebook.bench.PhoneNumberBenchmark [filter regex] [result.json] [iterations] [seconds]
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public class PhoneNumberBenchmark {
+    
+    // A power of two, inputs are picked by the invocation number
+    private static final int INPUTS = 1024;
+    
+    public static void main(String[] args) throws Exception {
+        
+        String[] numbers = new String[INPUTS];
+        long[] packed = new long[INPUTS];
+        PhoneNumber[] stored = new PhoneNumber[INPUTS];
+        PhoneMask mask = new PhoneMask(1, "+X(XXX)XXX-XX-XX");
+        for (int i = 0; i < INPUTS; i++) {
+            numbers[i] = String.format("+1(%03d)%03d-%02d-%02d", i % 1000, (i * 7919) % 1000, i % 100, (i * 31) % 100);
+            packed[i] = PhoneNumberNormalizer.pack(numbers[i]);
+            stored[i] = new PhoneNumber(i, i);
+            stored[i].setNumber(PhoneNumberNormalizer.digits(numbers[i]));
+            stored[i].setPhoneMaskId(mask);
+        }
+        long part = PhoneNumberNormalizer.pack("555");
+        
+        MicroBenchmark bench = new MicroBenchmark(PhoneNumberBenchmark.class, args);
+        bench.run("digits", (i) -> PhoneNumberNormalizer.digits(numbers[i & (INPUTS - 1)]));
+        bench.run("mask", (i) -> PhoneNumberNormalizer.mask(numbers[i & (INPUTS - 1)]));
+        bench.run("pack", (i) -> PhoneNumberNormalizer.pack(numbers[i & (INPUTS - 1)]));
+        bench.run("unpack", (i) -> PhoneNumberNormalizer.unpack(packed[i & (INPUTS - 1)]));
+        bench.run("contains", (i) -> PhoneNumberNormalizer.contains(packed[i & (INPUTS - 1)], part));
+        bench.run("format", (i) -> stored[i & (INPUTS - 1)].getNumber());
+        bench.finish();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.util.function.Function;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import org.syso.phonebook.service.PhonebookService;
+
+/**
+ * PhonebookService calls over PhonebookLocalPU on an embedded in-memory Derby
+ * database, each call with its own EntityManager like a request. Measures the
+ * JPA and JDBC work of the service without the network round-trips of MySQL.
+ * The writes compare adding a number with lookups before the insert and with
+ * the single INSERT statement. Both run in a resource local transaction that is
+ * rolled back, so the data stays the same and the contacts can be reused.
+ * 
+ * The database holds phonebook.bench.contacts contacts (10000) with two numbers each.
+ * 
+ * Usage:
+ * <pre>
+ * java -Dphonebook.bench.contacts=10000 org.syso.phonebook.bench.PhonebookServiceBenchmark [filter regex] [result.json] [iterations] [seconds]
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public class PhonebookServiceBenchmark {
+    
+    // Nobody owns it and it has the mask of the existent numbers
+    private static final String NEW_NUMBER = "+2(000)000-00-00";
+    
+    public static void main(String[] args) throws Exception {
+        
+        int contacts = Integer.getInteger("phonebook.bench.contacts", 10000);
+        
+        try (EmbeddedPhonebook phonebook = new EmbeddedPhonebook(contacts)) {
+            EntityManagerFactory emf = phonebook.getEntityManagerFactory();
+            
+            MicroBenchmark bench = new MicroBenchmark(PhonebookServiceBenchmark.class, args);
+            bench.run("findContact", (i) -> call(emf, (service) -> service.findContact(1 + i % contacts, true)));
+            bench.run("findByNumberExact", (i) -> call(emf, (service) -> service.findContactsByPhoneNumber(
+                    EmbeddedPhonebook.number(i % contacts, 0), true)));
+            bench.run("findByNumberPartial", (i) -> call(emf, (service) -> service.findContactsByPhoneNumber(
+                    String.format("%04d", i % contacts), false)));
+            bench.run("findAll", (i) -> call(emf, PhonebookService::findAllContacts));
+            bench.run("addPhoneNumber", (i) -> rolledBack(emf, (service) -> service.addPhoneNumber(
+                    1 + i % contacts, NEW_NUMBER, "home")));
+            bench.run("insertPhoneNumber", (i) -> rolledBack(emf, (service) -> service.insertPhoneNumber(
+                    1 + i % contacts, NEW_NUMBER, "home")));
+            bench.finish();
+        }
+    }
+    
+    private static Object rolledBack(EntityManagerFactory emf, Function<PhonebookService, Object> operation) {
+        EntityManager em = emf.createEntityManager();
+        EntityTransaction transaction = em.getTransaction();
+        try {
+            transaction.begin();
+            return operation.apply(new PhonebookService(em));
+        } finally {
+            transaction.rollback();
+            em.close();
+        }
+    }
+    
+    private static Object call(EntityManagerFactory emf, Function<PhonebookService, Object> operation) {
+        EntityManager em = emf.createEntityManager();
+        try {
+            return operation.apply(new PhonebookService(em));
+        } finally {
+            em.close();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.syso.phonebook.journal.FsyncPolicy;
+import org.syso.phonebook.service.InMemoryPhonebookService;
+import org.syso.phonebook.service.PhonebookJournal;
+
+/**
+ * Restart cost of the journaled in-memory backend: snapshot load plus replay
+ * of the writes made after the snapshot, compared with replay of the whole journal.
+ * 
+ * Every contact has one phone number. 10M contacts need about 6 GB of heap. Usage:
+ * <pre>
+ * java -Xmx8g org.syso.phonebook.bench.RecoveryBenchmark [contacts] [writesAfterSnapshot] [directory]
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public class RecoveryBenchmark {
+    
+    public static void main(String[] args) throws IOException {
+        
+        int contacts = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int tail = args.length > 1 ? Integer.parseInt(args[1]) : contacts / 100;
+        Path directory = args.length > 2 ? Paths.get(args[2]) : Files.createTempDirectory("phonebook-recovery");
+        
+        System.out.printf("%-20s %10s %10s %12s %12s%n", "recovery", "contacts", "records", "disk MB", "millis");
+        
+        Path journalOnly = directory.resolve("journal-only");
+        populate(journalOnly, contacts, tail, false);
+        recover(journalOnly, "journal only", contacts, 2L * contacts + tail);
+        delete(journalOnly);
+        
+        Path snapshot = directory.resolve("snapshot");
+        populate(snapshot, contacts, tail, true);
+        recover(snapshot, "snapshot + replay", contacts, tail);
+        delete(snapshot);
+    }
+    
+    /**
+     * Create contacts with a number each, optionally snapshot them, then update the tail
+     */
+    private static void populate(Path directory, int contacts, int tail, boolean snapshot) throws IOException {
+        
+        try (InMemoryPhonebookService phonebook = new InMemoryPhonebookService(contacts,
+                new PhonebookJournal(directory, FsyncPolicy.NEVER, 0))) {
+            
+            for (int i = 0; i < contacts; i++) {
+                int contactId = phonebook.createContact("First" + i, "Last" + i).getContactId();
+                phonebook.insertPhoneNumber(contactId, String.format("+%011d", i), i % 2 == 0 ? "home" : "work");
+            }
+            if (snapshot) {
+                phonebook.snapshot();
+            }
+            for (int i = 0; i < tail; i++) {
+                phonebook.updateContact(1 + i % contacts, "Updated" + i, null);
+            }
+        }
+    }
+    
+    private static void recover(Path directory, String name, int contacts, long records) throws IOException {
+        
+        System.gc();
+        long start = System.nanoTime();
+        try (InMemoryPhonebookService phonebook = new InMemoryPhonebookService(contacts,
+                new PhonebookJournal(directory, FsyncPolicy.NEVER, 0))) {
+            
+            long millis = (System.nanoTime() - start) / 1000000;
+            System.out.printf("%-20s %10d %10d %12.1f %12d%n", 
+                    name, phonebook.size(), records, size(directory) / 1048576.0, millis);
+        }
+    }
+    
+    private static long size(Path directory) throws IOException {
+        long size = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                size += Files.size(file);
+            }
+        }
+        return size;
+    }
+    
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
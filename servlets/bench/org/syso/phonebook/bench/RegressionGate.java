@@ -0,0 +1,435 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Compares benchmark results with a baseline and fails on regressions.
+ * 
+ * Reads result files in the JSON format of JMH, as written by the microbenchmarks
+ * and LoadBenchmark, or a directory of them. Benchmarks are matched by name and
+ * params. A metric regresses when it got worse by more than the threshold and
+ * the 99.9% confidence intervals of the baseline and the current score do not
+ * overlap, so noise alone does not fail the gate. Metrics without an interval,
+ * like latency percentiles, are judged by the threshold alone. Higher is better
+ * for ops/time units, lower for time/op and B/op.
+ * 
+ * Properties:
+ * <ul>
+ * <li>phonebook.gate.threshold: allowed change in percent (10)</li>
+ * <li>phonebook.gate.include: regex of the tracked benchmarks (all)</li>
+ * <li>phonebook.gate.metrics: regex of the compared metrics, score is the primary one
+ * (score|gc.alloc.rate.norm|p0.50|p0.99)</li>
+ * </ul>
+ * A tracked benchmark or metric missing from the current results fails the gate.
+ * The process exits with 1 on regressions, so a build step can run it.
+ * 
+ * Usage:
+ * <pre>
+ * java -Dphonebook.gate.threshold=5 org.syso.phonebook.bench.RegressionGate baseline.json|dir current.json|dir
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public class RegressionGate {
+    
+    private static final String PRIMARY = "score";
+    
+    private final double threshold = Double.parseDouble(System.getProperty("phonebook.gate.threshold", "10")) / 100;
+    private final Pattern include = Pattern.compile(System.getProperty("phonebook.gate.include", ".*"));
+    private final Pattern metrics = Pattern.compile(System.getProperty("phonebook.gate.metrics",
+            "score|gc\\.alloc\\.rate\\.norm|p0\\.50|p0\\.99"));
+    
+    public static void main(String[] args) throws Exception {
+        
+        if (args.length < 2) {
+            System.err.println("Usage: RegressionGate <baseline file or directory> <current file or directory>");
+            System.exit(2);
+        }
+        RegressionGate gate = new RegressionGate();
+        int regressions = gate.compare(gate.read(Paths.get(args[0])), gate.read(Paths.get(args[1])));
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+    
+    /**
+     * Print the diff report
+     * 
+     * @return number of regressed metrics and missing benchmarks and metrics
+     */
+    private int compare(Map<String, Map<String, Metric>> baseline, Map<String, Map<String, Metric>> current) {
+        
+        System.out.printf(Locale.ROOT, "%-72s %-22s %26s %26s %9s  %s%n",
+                "Benchmark", "Metric", "Baseline", "Current", "Change", "Verdict");
+        int regressions = 0;
+        int improvements = 0;
+        for (Map.Entry<String, Map<String, Metric>> benchmark : baseline.entrySet()) {
+            Map<String, Metric> now = current.get(benchmark.getKey());
+            if (now == null) {
+                System.out.printf(Locale.ROOT, "%-72s %-22s %26s %26s %9s  %s%n",
+                        benchmark.getKey(), "", "", "", "", "MISSING");
+                regressions++;
+                continue;
+            }
+            for (Map.Entry<String, Metric> metric : benchmark.getValue().entrySet()) {
+                Metric before = metric.getValue();
+                Metric after = now.get(metric.getKey());
+                if (after == null) {
+                    System.out.printf(Locale.ROOT, "%-72s %-22s %26s %26s %9s  %s%n",
+                            benchmark.getKey(), metric.getKey(), before, "", "", "MISSING");
+                    regressions++;
+                    continue;
+                }
+                String verdict = verdict(before, after);
+                if (verdict.equals("REGRESSION")) {
+                    regressions++;
+                } else if (verdict.equals("improved")) {
+                    improvements++;
+                }
+                System.out.printf(Locale.ROOT, "%-72s %-22s %26s %26s %+8.1f%%  %s%n", benchmark.getKey(),
+                        metric.getKey(), before, after, change(before, after) * 100, verdict);
+            }
+        }
+        for (String benchmark : current.keySet()) {
+            if (!baseline.containsKey(benchmark)) {
+                System.out.printf(Locale.ROOT, "%-72s %-22s %26s %26s %9s  %s%n", benchmark, "", "", "", "", "new");
+            }
+        }
+        System.out.printf(Locale.ROOT, "%n%d regressions, %d improvements, threshold %.1f%%%n",
+                regressions, improvements, threshold * 100);
+        return regressions;
+    }
+    
+    private String verdict(Metric before, Metric after) {
+        
+        double change = change(before, after);
+        // Allocation below one byte per call is measurement noise
+        boolean tiny = before.unit.equals("B/op") && Math.abs(after.score - before.score) < 1;
+        if (Math.abs(change) <= threshold || tiny) {
+            return "ok";
+        }
+        boolean separated = !before.hasInterval() || !after.hasInterval()
+                || after.low > before.high || after.high < before.low;
+        if (!separated) {
+            return "within noise";
+        }
+        return change > 0 ? "REGRESSION" : "improved";
+    }
+    
+    /**
+     * @return relative change, positive when the metric got worse
+     */
+    private static double change(Metric before, Metric after) {
+        if (before.score == 0) {
+            return after.score == 0 ? 0 : after.higherIsBetter() ? -1 : Double.POSITIVE_INFINITY;
+        }
+        double change = (after.score - before.score) / Math.abs(before.score);
+        return after.higherIsBetter() ? -change : change;
+    }
+    
+    /**
+     * @return tracked metrics by benchmark name with params
+     */
+    private Map<String, Map<String, Metric>> read(Path path) throws IOException {
+        
+        List<Path> files = new ArrayList<>();
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(path, "*.json")) {
+                children.forEach(files::add);
+            }
+        } else {
+            files.add(path);
+        }
+        
+        Map<String, Map<String, Metric>> results = new TreeMap<>();
+        for (Path file : files) {
+            Object parsed = new JsonParser(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)).parse();
+            if (!(parsed instanceof List)) {
+                throw new IOException(file + " is not a JMH result file");
+            }
+            for (Object item : (List<?>) parsed) {
+                Map<?, ?> entry = (Map<?, ?>) item;
+                String name = (String) entry.get("benchmark");
+                Object params = entry.get("params");
+                if (params instanceof Map && !((Map<?, ?>) params).isEmpty()) {
+                    StringBuilder key = new StringBuilder(name).append(':');
+                    for (Map.Entry<?, ?> param : new TreeMap<>((Map<?, ?>) params).entrySet()) {
+                        key.append(key.charAt(key.length() - 1) == ':' ? "" : ",").append(param.getKey()).append('=').append(param.getValue());
+                    }
+                    name = key.toString();
+                }
+                if (!include.matcher(name).find()) {
+                    continue;
+                }
+                Map<String, Metric> tracked = new LinkedHashMap<>();
+                addMetric(tracked, PRIMARY, entry.get("primaryMetric"));
+                Object secondary = entry.get("secondaryMetrics");
+                if (secondary instanceof Map) {
+                    for (Map.Entry<?, ?> metric : ((Map<?, ?>) secondary).entrySet()) {
+                        addMetric(tracked, (String) metric.getKey(), metric.getValue());
+                    }
+                }
+                results.put(name, tracked);
+            }
+        }
+        return results;
+    }
+    
+    private void addMetric(Map<String, Metric> tracked, String name, Object value) {
+        // JMH prefixes the names of profiler metrics with a middle dot
+        name = name.startsWith("\u00b7") ? name.substring(1) : name;
+        if (!(value instanceof Map) || !metrics.matcher(name).matches()) {
+            return;
+        }
+        Map<?, ?> metric = (Map<?, ?>) value;
+        double score = number(metric.get("score"));
+        double low = Double.NaN;
+        double high = Double.NaN;
+        if (metric.get("scoreConfidence") instanceof List && ((List<?>) metric.get("scoreConfidence")).size() == 2) {
+            low = number(((List<?>) metric.get("scoreConfidence")).get(0));
+            high = number(((List<?>) metric.get("scoreConfidence")).get(1));
+        }
+        if (!Double.isNaN(score)) {
+            tracked.put(name, new Metric(score, low, high, String.valueOf(metric.get("scoreUnit"))));
+        }
+    }
+    
+    private static double number(Object value) {
+        return value instanceof Double ? (Double) value : Double.NaN;
+    }
+    
+    /**
+     * A score with its confidence interval
+     */
+    private static final class Metric {
+        
+        final double score;
+        final double low;
+        final double high;
+        final String unit;
+        
+        Metric(double score, double low, double high, String unit) {
+            this.score = score;
+            this.low = low;
+            this.high = high;
+            this.unit = unit;
+        }
+        
+        boolean hasInterval() {
+            return !Double.isNaN(low) && !Double.isNaN(high);
+        }
+        
+        boolean higherIsBetter() {
+            return unit.startsWith("ops/");
+        }
+        
+        @Override
+        public String toString() {
+            if (!hasInterval()) {
+                return String.format(Locale.ROOT, "%.3f %s", score, unit);
+            }
+            return String.format(Locale.ROOT, "%.3f +- %.3f %s", score, (high - low) / 2, unit);
+        }
+    }
+    
+    /**
+     * Just enough JSON for result files: objects, arrays, strings, numbers, true, false and null
+     */
+    private static final class JsonParser {
+        
+        private final String text;
+        private int position;
+        
+        JsonParser(String text) {
+            this.text = text;
+        }
+        
+        Object parse() throws IOException {
+            Object value = value();
+            skipSpace();
+            if (position != text.length()) {
+                throw error("end of input");
+            }
+            return value;
+        }
+        
+        private Object value() throws IOException {
+            skipSpace();
+            if (position >= text.length()) {
+                throw error("a value");
+            }
+            char c = text.charAt(position);
+            if (c == '{') {
+                return object();
+            } else if (c == '[') {
+                return array();
+            } else if (c == '"') {
+                return string();
+            } else if (text.startsWith("true", position)) {
+                position += 4;
+                return Boolean.TRUE;
+            } else if (text.startsWith("false", position)) {
+                position += 5;
+                return Boolean.FALSE;
+            } else if (text.startsWith("null", position)) {
+                position += 4;
+                return null;
+            }
+            int start = position;
+            while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+            try {
+                return Double.valueOf(text.substring(start, position));
+            } catch (NumberFormatException ex) {
+                position = start;
+                throw error("a value");
+            }
+        }
+        
+        private Map<String, Object> object() throws IOException {
+            Map<String, Object> object = new LinkedHashMap<>();
+            position++;
+            skipSpace();
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+            while (true) {
+                skipSpace();
+                if (peek() != '"') {
+                    throw error("a member name");
+                }
+                String name = string();
+                expect(':');
+                object.put(name, value());
+                skipSpace();
+                if (peek() == '}') {
+                    position++;
+                    return object;
+                }
+                expect(',');
+            }
+        }
+        
+        private List<Object> array() throws IOException {
+            List<Object> array = new ArrayList<>();
+            position++;
+            skipSpace();
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+            while (true) {
+                array.add(value());
+                skipSpace();
+                if (peek() == ']') {
+                    position++;
+                    return array;
+                }
+                expect(',');
+            }
+        }
+        
+        private String string() throws IOException {
+            StringBuilder value = new StringBuilder();
+            position++;
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= text.length()) {
+                    break;
+                }
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        if (position + 4 > text.length()) {
+                            throw error("4 hex digits");
+                        }
+                        value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        position += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            }
+            throw error("end of string");
+        }
+        
+        private void expect(char c) throws IOException {
+            skipSpace();
+            if (peek() != c) {
+                throw error("'" + c + "'");
+            }
+            position++;
+        }
+        
+        private char peek() {
+            return position < text.length() ? text.charAt(position) : 0;
+        }
+        
+        private void skipSpace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+        
+        private IOException error(String expected) {
+            return new IOException("Expected " + expected + " at offset " + position);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import org.syso.phonebook.controllers.helpers.JAXBMapper;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.Contacts;
+import org.syso.phonebook.domain.PhoneMask;
+import org.syso.phonebook.domain.PhoneNumber;
+import org.syso.phonebook.domain.PhoneType;
+
+/**
+ * JAXBMapper marshal and unmarshal of a contact with two numbers and of a page
+ * of 100 contacts, in XML and JSON, the way the servlets write the responses.
+ * 
+ * Usage:
+ * <pre>
+ * java org.syso.phonebook.bench.SerializationBenchmark [filter regex] [result.json] [iterations] [seconds]
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public class SerializationBenchmark {
+    
+    public static void main(String[] args) throws Exception {
+        
+        Contact contact = contact(1);
+        List<Contact> page = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            page.add(contact(i));
+        }
+        Contacts contacts = new Contacts();
+        contacts.setContacts(page);
+        
+        JAXBMapper<Contact> contactMapper = new JAXBMapper<>(Contact.class);
+        JAXBMapper<Contacts> contactsMapper = new JAXBMapper<>(Contacts.class);
+        // Request bodies as the clients send them, JSON without the root element
+        String contactXml = "<contact><firstName>First</firstName><lastName>Last</lastName></contact>";
+        String contactJson = "{\"firstName\":\"First\",\"lastName\":\"Last\"}";
+        String numberXml = "<phoneNumber><number>+1(555)123-45-67</number><type>home</type></phoneNumber>";
+        String numberJson = "{\"number\":\"+1(555)123-45-67\",\"type\":\"home\"}";
+        JAXBMapper<PhoneNumber> numberMapper = new JAXBMapper<>(PhoneNumber.class);
+        
+        MicroBenchmark bench = new MicroBenchmark(SerializationBenchmark.class, args);
+        bench.run("marshalContactXml", (i) -> marshal(contactMapper, contact, JAXBMapper.MEDIA_TYPE_XML));
+        bench.run("marshalContactJson", (i) -> marshal(contactMapper, contact, JAXBMapper.MEDIA_TYPE_JSON));
+        bench.run("marshalContactsXml", (i) -> marshal(contactsMapper, contacts, JAXBMapper.MEDIA_TYPE_XML));
+        bench.run("marshalContactsJson", (i) -> marshal(contactsMapper, contacts, JAXBMapper.MEDIA_TYPE_JSON));
+        bench.run("unmarshalContactXml", (i) -> contactMapper.unmarshal(contactXml, JAXBMapper.MEDIA_TYPE_XML));
+        bench.run("unmarshalContactJson", (i) -> contactMapper.unmarshal(contactJson, JAXBMapper.MEDIA_TYPE_JSON));
+        bench.run("unmarshalNumberXml", (i) -> numberMapper.unmarshal(numberXml, JAXBMapper.MEDIA_TYPE_XML));
+        bench.run("unmarshalNumberJson", (i) -> numberMapper.unmarshal(numberJson, JAXBMapper.MEDIA_TYPE_JSON));
+        bench.finish();
+    }
+    
+    private static <T> String marshal(JAXBMapper<T> mapper, Object object, String mediaType) {
+        StringWriter out = new StringWriter(256);
+        mapper.marshal(object, out, mediaType);
+        return out.toString();
+    }
+    
+    private static Contact contact(int contactId) {
+        
+        Contact contact = new Contact(contactId);
+        contact.setFirstName("First" + contactId);
+        contact.setLastName("Last" + contactId);
+        PhoneMask mask = new PhoneMask(1, "+X(XXX)XXX-XX-XX");
+        List<PhoneNumber> numbers = new ArrayList<>();
+        String[] types = {"home", "work"};
+        for (int i = 0; i < types.length; i++) {
+            PhoneNumber number = new PhoneNumber(contactId * 2 + i, contactId);
+            number.setNumber(String.format("1555%03d%04d", contactId % 1000, i));
+            number.setPhoneMaskId(mask);
+            number.setType(new PhoneType(i + 1, types[i]));
+            number.setContact(contact);
+            numbers.add(number);
+        }
+        contact.setPhoneNumbers(numbers);
+        return contact;
+    }
+}
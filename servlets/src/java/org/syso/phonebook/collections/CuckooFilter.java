@@ -0,0 +1,299 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.collections;
+
+/**
+ * Cuckoo filter over long keys: a compact set that answers "definitely not"
+ * or "maybe", and unlike a Bloom filter supports removal.
+ * 
+ * Each key is stored as a fingerprint in one of two buckets of 4 slots, the
+ * fingerprints are packed into a bit array. The fingerprint width follows from
+ * the requested false positive rate, the bucket count from the capacity.
+ * If the table overflows the filter turns saturated and answers "maybe"
+ * for every key, so it never gives a false negative.
+ * Only keys that were added may be removed.
+ * Not thread safe, callers guard access.
+ * 
+ * @author Vladimir Syso
+ */
+public class CuckooFilter {
+    
+    private static final int SLOTS_PER_BUCKET = 4;
+    private static final double MAX_LOAD_FACTOR = 0.95;
+    private static final int MAX_KICKS = 500;
+    private static final int MIN_FINGERPRINT_BITS = 4;
+    private static final int MAX_FINGERPRINT_BITS = 32;
+    private static final int EMPTY = 0;
+    
+    private final long[] bits;
+    private final int fingerprintBits;
+    private final long fingerprintMask;
+    private final int bucketMask;
+    
+    private int size;
+    private int victimFingerprint = EMPTY;
+    private int victimBucket;
+    private boolean saturated;
+    // Slot chosen for eviction, varied without a Random per filter
+    private int kickSeed = 0x9E3779B9;
+    
+    /**
+     * @param capacity number of keys to hold
+     * @param falsePositiveRate wanted rate of "maybe" answers for absent keys, e.g. 0.01
+     */
+    public CuckooFilter(int capacity, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        // A lookup compares 2 buckets of fingerprints, each matches with probability 1 / 2^bits
+        int wantedBits = (int) Math.ceil(Math.log(2.0 * SLOTS_PER_BUCKET / falsePositiveRate) / Math.log(2));
+        fingerprintBits = Math.max(MIN_FINGERPRINT_BITS, Math.min(MAX_FINGERPRINT_BITS, wantedBits));
+        fingerprintMask = (1L << fingerprintBits) - 1;
+        
+        long buckets = Long.highestOneBit(Math.max(1, (long) Math.ceil(capacity / (SLOTS_PER_BUCKET * MAX_LOAD_FACTOR))) * 2 - 1);
+        if (buckets * SLOTS_PER_BUCKET * fingerprintBits / 64 >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Capacity is too large: " + capacity);
+        }
+        bucketMask = (int) buckets - 1;
+        // One spare word so a slot crossing the last word boundary needs no check
+        bits = new long[(int) (buckets * SLOTS_PER_BUCKET * fingerprintBits / 64) + 1];
+    }
+    
+    /**
+     * @param key a key
+     * @return false if the filter is saturated, the key then counts as present
+     */
+    public boolean add(long key) {
+        if (saturated) {
+            return false;
+        }
+        long hash = mix(key);
+        int fingerprint = fingerprint(hash);
+        int bucket = (int) hash & bucketMask;
+        size++;
+        
+        if (insert(bucket, fingerprint) || insert(alternate(bucket, fingerprint), fingerprint)) {
+            return true;
+        }
+        if (victimFingerprint != EMPTY) {
+            saturated = true;
+            return false;
+        }
+        
+        // Evict random residents to their alternate buckets until one finds a free slot
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            kickSeed = kickSeed * 1103515245 + 12345;
+            int slot = bucket * SLOTS_PER_BUCKET + ((kickSeed >>> 16) & (SLOTS_PER_BUCKET - 1));
+            int evicted = getSlot(slot);
+            setSlot(slot, fingerprint);
+            fingerprint = evicted;
+            bucket = alternate(bucket, fingerprint);
+            if (insert(bucket, fingerprint)) {
+                return true;
+            }
+        }
+        // The last evicted fingerprint waits aside, the next overflow saturates the filter
+        victimFingerprint = fingerprint;
+        victimBucket = bucket;
+        return true;
+    }
+    
+    /**
+     * @param key a key
+     * @return false if the key was definitely not added
+     */
+    public boolean mightContain(long key) {
+        if (saturated) {
+            return true;
+        }
+        long hash = mix(key);
+        int fingerprint = fingerprint(hash);
+        int bucket = (int) hash & bucketMask;
+        int alternate = alternate(bucket, fingerprint);
+        
+        if (victimFingerprint == fingerprint && (victimBucket == bucket || victimBucket == alternate)) {
+            return true;
+        }
+        return find(bucket, fingerprint) >= 0 || find(alternate, fingerprint) >= 0;
+    }
+    
+    /**
+     * @param key a key that was added
+     * @return true if a fingerprint of the key was removed
+     */
+    public boolean remove(long key) {
+        if (saturated) {
+            return false;
+        }
+        long hash = mix(key);
+        int fingerprint = fingerprint(hash);
+        int bucket = (int) hash & bucketMask;
+        int alternate = alternate(bucket, fingerprint);
+        
+        int slot = find(bucket, fingerprint);
+        if (slot < 0) {
+            slot = find(alternate, fingerprint);
+        }
+        if (slot >= 0) {
+            setSlot(slot, EMPTY);
+        } else if (victimFingerprint == fingerprint && (victimBucket == bucket || victimBucket == alternate)) {
+            victimFingerprint = EMPTY;
+        } else {
+            return false;
+        }
+        size--;
+        
+        // A slot is free now, so the victim may fit
+        if (victimFingerprint != EMPTY) {
+            int victim = victimFingerprint;
+            int victimHome = victimBucket;
+            victimFingerprint = EMPTY;
+            size--;
+            add(victim, victimHome);
+        }
+        return true;
+    }
+    
+    /**
+     * @return number of keys added and not removed
+     */
+    public int size() {
+        return size;
+    }
+    
+    public boolean isSaturated() {
+        return saturated;
+    }
+    
+    public int getFingerprintBits() {
+        return fingerprintBits;
+    }
+    
+    /**
+     * @return bytes of the fingerprint table
+     */
+    public long getMemoryBytes() {
+        return (long) bits.length * Long.BYTES;
+    }
+    
+    /**
+     * @return number of slots
+     */
+    public long getCapacity() {
+        return (long) (bucketMask + 1) * SLOTS_PER_BUCKET;
+    }
+    
+    /**
+     * @return expected false positive rate at the current load
+     */
+    public double getExpectedFalsePositiveRate() {
+        if (saturated) {
+            return 1;
+        }
+        double load = size / (double) getCapacity();
+        return Math.min(1, 2.0 * SLOTS_PER_BUCKET * load / (1L << fingerprintBits));
+    }
+    
+    /**
+     * Re-insert a fingerprint whose bucket is known
+     */
+    private void add(int fingerprint, int bucket) {
+        size++;
+        if (insert(bucket, fingerprint) || insert(alternate(bucket, fingerprint), fingerprint)) {
+            return;
+        }
+        victimFingerprint = fingerprint;
+        victimBucket = bucket;
+    }
+    
+    private boolean insert(int bucket, int fingerprint) {
+        int slot = find(bucket, EMPTY);
+        if (slot < 0) {
+            return false;
+        }
+        setSlot(slot, fingerprint);
+        return true;
+    }
+    
+    /**
+     * @return slot of the fingerprint in the bucket or -1
+     */
+    private int find(int bucket, int fingerprint) {
+        int first = bucket * SLOTS_PER_BUCKET;
+        for (int slot = first; slot < first + SLOTS_PER_BUCKET; slot++) {
+            if (getSlot(slot) == fingerprint) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+    
+    private int getSlot(int slot) {
+        long position = (long) slot * fingerprintBits;
+        int word = (int) (position >>> 6);
+        int offset = (int) (position & 63);
+        long value = bits[word] >>> offset;
+        if (offset + fingerprintBits > 64) {
+            value |= bits[word + 1] << (64 - offset);
+        }
+        return (int) (value & fingerprintMask);
+    }
+    
+    private void setSlot(int slot, int fingerprint) {
+        long position = (long) slot * fingerprintBits;
+        int word = (int) (position >>> 6);
+        int offset = (int) (position & 63);
+        long value = fingerprint & fingerprintMask;
+        bits[word] = (bits[word] & ~(fingerprintMask << offset)) | (value << offset);
+        if (offset + fingerprintBits > 64) {
+            int shift = 64 - offset;
+            bits[word + 1] = (bits[word + 1] & ~(fingerprintMask >>> shift)) | (value >>> shift);
+        }
+    }
+    
+    /**
+     * The alternate of the alternate bucket is the original one
+     */
+    private int alternate(int bucket, int fingerprint) {
+        return (bucket ^ (int) mix(fingerprint)) & bucketMask;
+    }
+    
+    private int fingerprint(long hash) {
+        int fingerprint = (int) ((hash >>> 32) & fingerprintMask);
+        // Zero marks an empty slot
+        return fingerprint == EMPTY ? 1 : fingerprint;
+    }
+    
+    /**
+     * Finalizer of MurmurHash3, spreads all key bits over the hash
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb53fe5a9a87bL;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.collections;
+
+/**
+ * Approximate access counts of int keys for cache admission (TinyLFU).
+ * 
+ * A count-min sketch of 4 rows with 4 bit counters packed 16 to a long.
+ * A key increments only its smallest counters (conservative update) and its
+ * frequency is the smallest of its 4 counters, so it may be overestimated
+ * but never underestimated. Counters saturate at 15. After a sample of
+ * 10 accesses per expected key all counters are halved, so the sketch
+ * follows the recent popularity instead of the all-time one.
+ * Not thread safe, callers guard access.
+ * 
+ * @author Vladimir Syso
+ */
+public class FrequencySketch {
+    
+    /** The largest frequency */
+    public static final int MAX_FREQUENCY = 15;
+    
+    private static final int DEPTH = 4;
+    private static final int MIN_LENGTH = 16;
+    // The counter within a long is selected by the top 4 bits of a hash, the index by the bits below
+    private static final int MAX_LENGTH = 1 << 24;
+    private static final int SAMPLE_FACTOR = 10;
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int[] SEEDS = {0x97CB3127, 0xB492B66F, 0x9AE16A3B, 0xC2B2AE3D};
+    
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+    private int resets;
+    
+    /**
+     * @param expectedKeys number of keys whose frequencies are compared, e.g. the cache entries
+     */
+    public FrequencySketch(int expectedKeys) {
+        int length = Integer.highestOneBit(Math.max(MIN_LENGTH, Math.min(MAX_LENGTH, expectedKeys)) * 2 - 1);
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = SAMPLE_FACTOR * length;
+    }
+    
+    /**
+     * @param key a key
+     * @return estimated number of recent accesses, 0 to MAX_FREQUENCY
+     */
+    public int frequency(int key) {
+        int frequency = MAX_FREQUENCY;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, counter(hash(key, i)));
+        }
+        return frequency;
+    }
+    
+    /**
+     * Count an access of the key
+     * 
+     * @param key accessed key
+     */
+    public void increment(int key) {
+        int minimum = frequency(key);
+        if (minimum == MAX_FREQUENCY) {
+            return;
+        }
+        for (int i = 0; i < DEPTH; i++) {
+            int hash = hash(key, i);
+            if (counter(hash) == minimum) {
+                table[hash & tableMask] += 1L << shift(hash);
+            }
+        }
+        if (++additions >= sampleSize) {
+            reset();
+        }
+    }
+    
+    /**
+     * @return number of times the counters were halved
+     */
+    public int getResets() {
+        return resets;
+    }
+    
+    public int getSampleSize() {
+        return sampleSize;
+    }
+    
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+        resets++;
+    }
+    
+    private int counter(int hash) {
+        return (int) (table[hash & tableMask] >>> shift(hash)) & MAX_FREQUENCY;
+    }
+    
+    /**
+     * Counter of the row within the long, taken from the bits above the table index
+     */
+    private static int shift(int hash) {
+        return (hash >>> 28) << 2;
+    }
+    
+    private static int hash(int key, int row) {
+        int hash = (key + SEEDS[row]) * SEEDS[row];
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        return hash ^ (hash >>> 13);
+    }
+}
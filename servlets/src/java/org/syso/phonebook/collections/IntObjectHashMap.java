@@ -0,0 +1,246 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.collections;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from int keys to objects.
+ * Keys are stored unboxed in a plain array and removal shifts the following
+ * entries back, so there are no tombstones to clean up.
+ * Not thread safe, callers guard access.
+ * 
+ * @author Vladimir Syso
+ * @param <V> type of values
+ */
+public class IntObjectHashMap<V> {
+    
+    private static final int FREE_KEY = 0;
+    private static final float LOAD_FACTOR = 0.5f;
+    
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int threshold;
+    private int size;
+    
+    // The free key marks empty slots so its value is kept aside
+    private boolean hasFreeKey;
+    private Object freeKeyValue;
+    
+    public IntObjectHashMap() {
+        this(16);
+    }
+    
+    public IntObjectHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    public boolean containsKey(int key) {
+        if (key == FREE_KEY) {
+            return hasFreeKey;
+        }
+        return keys[slot(key)] != FREE_KEY;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        if (key == FREE_KEY) {
+            return (V) freeKeyValue;
+        }
+        return (V) values[slot(key)];
+    }
+    
+    /**
+     * @param key a key
+     * @param value a value, null is not allowed
+     * @return previous value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+        if (key == FREE_KEY) {
+            V previous = (V) freeKeyValue;
+            if (!hasFreeKey) {
+                hasFreeKey = true;
+                size++;
+            }
+            freeKeyValue = value;
+            return previous;
+        }
+        
+        int index = slot(key);
+        V previous = (V) values[index];
+        values[index] = value;
+        if (keys[index] == FREE_KEY) {
+            keys[index] = key;
+            if (++size > threshold) {
+                allocate(keys.length << 1);
+            }
+        }
+        return previous;
+    }
+    
+    /**
+     * @param key a key
+     * @return removed value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        if (key == FREE_KEY) {
+            V previous = (V) freeKeyValue;
+            if (hasFreeKey) {
+                hasFreeKey = false;
+                freeKeyValue = null;
+                size--;
+            }
+            return previous;
+        }
+        
+        int index = slot(key);
+        if (keys[index] == FREE_KEY) {
+            return null;
+        }
+        V previous = (V) values[index];
+        shiftBack(index);
+        size--;
+        return previous;
+    }
+    
+    public void clear() {
+        Arrays.fill(keys, FREE_KEY);
+        Arrays.fill(values, null);
+        hasFreeKey = false;
+        freeKeyValue = null;
+        size = 0;
+    }
+    
+    /**
+     * Visit all entries in no particular order, the map must not be modified meanwhile
+     * 
+     * @param action called for every entry
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<? super V> action) {
+        if (hasFreeKey) {
+            action.accept(FREE_KEY, (V) freeKeyValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE_KEY) {
+                action.accept(keys[i], (V) values[i]);
+            }
+        }
+    }
+    
+    /**
+     * @param key a key other than the free key
+     * @return index of the key or of the empty slot it would be stored in
+     */
+    private int slot(int key) {
+        int index = hash(key) & mask;
+        while (keys[index] != FREE_KEY && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+    
+    /**
+     * Move entries of the probe chain into the released slot so lookups
+     * never meet a gap before their key
+     */
+    private void shiftBack(int index) {
+        int gap = index;
+        int current = index;
+        while (true) {
+            current = (current + 1) & mask;
+            int key = keys[current];
+            if (key == FREE_KEY) {
+                break;
+            }
+            int home = hash(key) & mask;
+            // Shift only the entries whose home slot is not between the gap and the current slot
+            if (gap <= current ? (gap >= home || home > current) : (gap >= home && home > current)) {
+                keys[gap] = key;
+                values[gap] = values[current];
+                gap = current;
+            }
+        }
+        keys[gap] = FREE_KEY;
+        values[gap] = null;
+    }
+    
+    private void allocate(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+        
+        if (oldKeys == null) {
+            return;
+        }
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE_KEY) {
+                int index = slot(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+    
+    private static int capacityFor(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+    
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+    
+    /**
+     * Receives entries of the map without boxing the keys
+     * 
+     * @param <V> type of values
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(int key, V value);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.collections;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from long keys to int values, both stored unboxed.
+ * Removal shifts the following entries back, so there are no tombstones.
+ * Not thread safe, callers guard access.
+ * 
+ * @author Vladimir Syso
+ */
+public class LongIntHashMap {
+    
+    private static final long FREE_KEY = 0L;
+    private static final float LOAD_FACTOR = 0.5f;
+    
+    private final int noEntryValue;
+    
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int threshold;
+    private int size;
+    
+    // The free key marks empty slots so its value is kept aside
+    private boolean hasFreeKey;
+    private int freeKeyValue;
+    
+    /**
+     * @param expectedSize number of entries to hold without resizing
+     * @param noEntryValue value returned for missing keys
+     */
+    public LongIntHashMap(int expectedSize, int noEntryValue) {
+        this.noEntryValue = noEntryValue;
+        allocate(capacityFor(expectedSize));
+    }
+    
+    public int getNoEntryValue() {
+        return noEntryValue;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    public boolean containsKey(long key) {
+        if (key == FREE_KEY) {
+            return hasFreeKey;
+        }
+        return keys[slot(key)] != FREE_KEY;
+    }
+    
+    /**
+     * @param key a key
+     * @return the value or no entry value
+     */
+    public int get(long key) {
+        if (key == FREE_KEY) {
+            return hasFreeKey ? freeKeyValue : noEntryValue;
+        }
+        int index = slot(key);
+        return keys[index] != FREE_KEY ? values[index] : noEntryValue;
+    }
+    
+    /**
+     * @param key a key
+     * @param value a value
+     * @return previous value or no entry value
+     */
+    public int put(long key, int value) {
+        if (key == FREE_KEY) {
+            int previous = hasFreeKey ? freeKeyValue : noEntryValue;
+            if (!hasFreeKey) {
+                hasFreeKey = true;
+                size++;
+            }
+            freeKeyValue = value;
+            return previous;
+        }
+        
+        int index = slot(key);
+        if (keys[index] != FREE_KEY) {
+            int previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size > threshold) {
+            allocate(keys.length << 1);
+        }
+        return noEntryValue;
+    }
+    
+    /**
+     * Store the value only if the key is missing
+     * 
+     * @param key a key
+     * @param value a value
+     * @return existing value or no entry value if the value was stored
+     */
+    public int putIfAbsent(long key, int value) {
+        if (containsKey(key)) {
+            return get(key);
+        }
+        put(key, value);
+        return noEntryValue;
+    }
+    
+    /**
+     * @param key a key
+     * @return removed value or no entry value
+     */
+    public int remove(long key) {
+        if (key == FREE_KEY) {
+            if (!hasFreeKey) {
+                return noEntryValue;
+            }
+            hasFreeKey = false;
+            size--;
+            return freeKeyValue;
+        }
+        
+        int index = slot(key);
+        if (keys[index] == FREE_KEY) {
+            return noEntryValue;
+        }
+        int previous = values[index];
+        shiftBack(index);
+        size--;
+        return previous;
+    }
+    
+    public void clear() {
+        Arrays.fill(keys, FREE_KEY);
+        hasFreeKey = false;
+        size = 0;
+    }
+    
+    /**
+     * @param key a key other than the free key
+     * @return index of the key or of the empty slot it would be stored in
+     */
+    private int slot(long key) {
+        int index = hash(key) & mask;
+        while (keys[index] != FREE_KEY && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+    
+    /**
+     * Move entries of the probe chain into the released slot so lookups
+     * never meet a gap before their key
+     */
+    private void shiftBack(int index) {
+        int gap = index;
+        int current = index;
+        while (true) {
+            current = (current + 1) & mask;
+            long key = keys[current];
+            if (key == FREE_KEY) {
+                break;
+            }
+            int home = hash(key) & mask;
+            // Shift only the entries whose home slot is not between the gap and the current slot
+            if (gap <= current ? (gap >= home || home > current) : (gap >= home && home > current)) {
+                keys[gap] = key;
+                values[gap] = values[current];
+                gap = current;
+            }
+        }
+        keys[gap] = FREE_KEY;
+    }
+    
+    private void allocate(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * LOAD_FACTOR);
+        
+        if (oldKeys == null) {
+            return;
+        }
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE_KEY) {
+                int index = slot(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+    
+    private static int capacityFor(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+    
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
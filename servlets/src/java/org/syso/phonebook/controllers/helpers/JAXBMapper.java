@@ -24,8 +24,13 @@
 
 package org.syso.phonebook.controllers.helpers;
 
+import java.io.FilterWriter;
+import java.io.IOException;
 import java.io.StringReader;
 import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.bind.JAXBContext;
@@ -36,6 +41,8 @@ import javax.xml.bind.Unmarshaller;
 import javax.xml.transform.stream.StreamSource;
 import org.eclipse.persistence.jaxb.MarshallerProperties;
 import org.eclipse.persistence.jaxb.JAXBContextFactory;
+import org.syso.phonebook.metrics.FlightRecorderEvents;
+import org.syso.phonebook.metrics.RequestTiming;
 /**
  * JAXBMapper to marshal and unmarshal object to JSON or XML
  * 
@@ -47,6 +54,9 @@ public final class JAXBMapper<T> {
     public static final String MEDIA_TYPE_XML = "application/xml";
     public static final String MEDIA_TYPE_JSON = "application/json";
     
+    // Contexts are thread safe and expensive to build, one per entity class is kept
+    private static final ConcurrentMap<Class<?>, JAXBContext> CONTEXTS = new ConcurrentHashMap<>();
+    
     private final Class<T> entityClass;
 
 
@@ -63,11 +73,14 @@ public final class JAXBMapper<T> {
      */
     public T unmarshal(String in, String contentType){
        
+        String mediaType = getMediaType(contentType);
+        long start = RequestTiming.start();
+        Object event = FlightRecorderEvents.beginSerialization();
         try {
-            JAXBContext jc = JAXBContextFactory.createContext(new Class<?>[] {entityClass}, null);
+            JAXBContext jc = getContext();
             Unmarshaller jaxbUnmarshaller = jc.createUnmarshaller();
 
-            jaxbUnmarshaller.setProperty(MarshallerProperties.MEDIA_TYPE, getMediaType(contentType));
+            jaxbUnmarshaller.setProperty(MarshallerProperties.MEDIA_TYPE, mediaType);
             jaxbUnmarshaller.setProperty(MarshallerProperties.JSON_INCLUDE_ROOT, false);
             
             StringReader reader = new StringReader(in);            
@@ -76,7 +89,12 @@ public final class JAXBMapper<T> {
 
         } catch (JAXBException ex) {
             Logger.getLogger(JAXBMapper.class.getName()).log(Level.SEVERE, null, ex);
-        }        
+        } finally {
+            RequestTiming.stop(RequestTiming.Phase.SERIALIZATION, start);
+            if (event != null) {
+                FlightRecorderEvents.commitSerialization(event, entityClass, mediaType, false, in != null ? utf8Length(in, 0, in.length()) : 0);
+            }
+        }
         return null;
     }
 
@@ -92,22 +110,43 @@ public final class JAXBMapper<T> {
         
         String mediaType = getMediaType(acceptType);
         
+        long start = RequestTiming.start();
+        Object event = FlightRecorderEvents.beginSerialization();
+        CountingWriter counting = event != null ? new CountingWriter(out) : null;
         try {
-            JAXBContext jc = JAXBContextFactory.createContext(new Class<?>[] {entityClass}, null);
+            JAXBContext jc = getContext();
             Marshaller jaxbMarshaller = jc.createMarshaller();
 
             jaxbMarshaller.setProperty(MarshallerProperties.MEDIA_TYPE, mediaType);
             jaxbMarshaller.setProperty(MarshallerProperties.JSON_INCLUDE_ROOT, true);
             jaxbMarshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
-            jaxbMarshaller.marshal(object, out);
+            jaxbMarshaller.marshal(object, counting != null ? counting : out);
             return mediaType;
         } catch (JAXBException ex) {
             Logger.getLogger(JAXBMapper.class.getName()).log(Level.SEVERE, null, ex);
-        }        
+        } finally {
+            RequestTiming.stop(RequestTiming.Phase.SERIALIZATION, start);
+            if (event != null) {
+                FlightRecorderEvents.commitSerialization(event, entityClass, mediaType, true, counting.bytes);
+            }
+        }
         
         return null;
     }
 
+    private JAXBContext getContext() throws JAXBException {
+        JAXBContext context = CONTEXTS.get(entityClass);
+        if (context == null) {
+            // A concurrent first call may build a spare context, only one is kept
+            context = JAXBContextFactory.createContext(new Class<?>[] {entityClass}, null);
+            JAXBContext existing = CONTEXTS.putIfAbsent(entityClass, context);
+            if (existing != null) {
+                context = existing;
+            }
+        }
+        return context;
+    }
+    
     /**
      * @param mediaType to recognize
      * @return recognized media type or XML by default
@@ -121,4 +160,42 @@ public final class JAXBMapper<T> {
         }
     }
     
+    private static long utf8Length(CharSequence chars, int offset, int length) {
+        long bytes = 0;
+        for (int i = offset; i < offset + length; i++) {
+            char c = chars.charAt(i);
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+        return bytes;
+    }
+    
+    /**
+     * Counts the UTF-8 bytes of a marshalled body for the serialization event
+     */
+    private static final class CountingWriter extends FilterWriter {
+        
+        long bytes;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate((char) c) ? 2 : 3;
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            out.write(chars, offset, length);
+            bytes += utf8Length(CharBuffer.wrap(chars), offset, length);
+        }
+
+        @Override
+        public void write(String value, int offset, int length) throws IOException {
+            out.write(value, offset, length);
+            bytes += utf8Length(value, offset, length);
+        }
+    }
 }
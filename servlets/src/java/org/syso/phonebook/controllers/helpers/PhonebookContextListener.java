@@ -0,0 +1,144 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.controllers.helpers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Resource;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceUnit;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+import javax.sql.DataSource;
+import org.syso.phonebook.datasource.ReplicaHealthMonitor;
+import org.syso.phonebook.datasource.ReplicaRoutingDataSource;
+import org.syso.phonebook.datasource.SecondsBehindMasterProbe;
+import org.syso.phonebook.service.PhonebookBackends;
+import org.syso.phonebook.service.PhonebookExecutors;
+
+/**
+ * Starts application wide resources on deploy and releases them on undeploy.
+ * 
+ * Reads of <code>PhonebookLocalPU</code> are routed to replicas if their DataSources
+ * are set via system property, e.g. -Dphonebook.replicas=java:app/mysql-phonebook-read,
+ * replicas lagging more than -Dphonebook.replicas.maxLagMillis=5000 are skipped.
+ * The lag is read over the DataSources of -Dphonebook.replicas.monitors, given in
+ * the order of the replicas, or over the replicas themselves if it is not set.
+ * The factory of the persistence unit is kept in the servlet context attribute
+ * <code>LOCAL_EMF_ATTRIBUTE</code>.
+ * 
+ * @author Vladimir Syso
+ */
+@WebListener
+public class PhonebookContextListener implements ServletContextListener {
+    
+    public static final String REPLICAS_PROPERTY = "phonebook.replicas";
+    public static final String REPLICA_MAX_LAG_PROPERTY = "phonebook.replicas.maxLagMillis";
+    public static final String REPLICA_MONITORS_PROPERTY = "phonebook.replicas.monitors";
+    
+    public static final String LOCAL_EMF_ATTRIBUTE = PhonebookContextListener.class.getName() + ".localEntityManagerFactory";
+    
+    @PersistenceUnit(unitName = "PhonebookPU")
+    private EntityManagerFactory emf;
+    @PersistenceUnit(unitName = "PhonebookLocalPU")
+    private EntityManagerFactory localEmf;
+    @Resource(lookup = "java:app/mysql-phonebook")
+    private DataSource primaryDataSource;
+    
+    private ReplicaHealthMonitor healthMonitor;
+    private EntityManagerFactory routedEmf;
+    
+    /**
+     * @return replica DataSources are configured
+     */
+    public static boolean isReplicaRouting() {
+        String replicas = System.getProperty(REPLICAS_PROPERTY);
+        return replicas != null && !replicas.trim().isEmpty();
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent sce) {
+        PhonebookBackends.startReverseLookupIndex(emf);
+        PhonebookBackends.startNumberFilter(emf);
+        sce.getServletContext().setAttribute(LOCAL_EMF_ATTRIBUTE, isReplicaRouting() ? startReplicaRouting() : localEmf);
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent sce) {
+        PhonebookExecutors.shutdown();
+        PhonebookBackends.shutdown();
+        if (routedEmf != null) {
+            routedEmf.close();
+            healthMonitor.close();
+        }
+    }
+    
+    /**
+     * @return factory of PhonebookLocalPU over the routing DataSource, 
+     * the injected one if the replicas cannot be found
+     */
+    private EntityManagerFactory startReplicaRouting() {
+        
+        List<DataSource> replicas;
+        List<DataSource> monitors;
+        try {
+            InitialContext context = new InitialContext();
+            replicas = lookup(context, System.getProperty(REPLICAS_PROPERTY));
+            String monitorNames = System.getProperty(REPLICA_MONITORS_PROPERTY);
+            monitors = monitorNames == null || monitorNames.trim().isEmpty() ? replicas : lookup(context, monitorNames);
+        } catch (NamingException ex) {
+            Logger.getLogger(PhonebookContextListener.class.getName()).log(Level.SEVERE, 
+                    "Replicas cannot be found, reads go to the primary", ex);
+            return localEmf;
+        }
+        
+        if (monitors.size() != replicas.size()) {
+            Logger.getLogger(PhonebookContextListener.class.getName()).log(Level.SEVERE, 
+                    "{0} needs a DataSource per replica, reads go to the primary", REPLICA_MONITORS_PROPERTY);
+            return localEmf;
+        }
+        
+        healthMonitor = new ReplicaHealthMonitor(replicas, monitors, new SecondsBehindMasterProbe(),
+                Long.getLong(REPLICA_MAX_LAG_PROPERTY, ReplicaHealthMonitor.DEFAULT_MAX_LAG_MILLIS));
+        healthMonitor.start();
+        routedEmf = Persistence.createEntityManagerFactory("PhonebookLocalPU", Collections.singletonMap(
+                "javax.persistence.nonJtaDataSource", new ReplicaRoutingDataSource(primaryDataSource, healthMonitor)));
+        return routedEmf;
+    }
+    
+    private static List<DataSource> lookup(InitialContext context, String names) throws NamingException {
+        List<DataSource> dataSources = new ArrayList<>();
+        for (String name : names.split(",")) {
+            dataSources.add((DataSource) context.lookup(name.trim()));
+        }
+        return dataSources;
+    }
+}
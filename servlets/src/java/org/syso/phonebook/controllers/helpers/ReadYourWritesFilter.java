@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.controllers.helpers;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebFilter;
+import org.syso.phonebook.datasource.ReadYourWrites;
+
+/**
+ * Read-your-writes filter of the shared sources, enabled if reads are routed
+ * to replicas (see PhonebookContextListener).
+ * 
+ * System property <code>phonebook.readYourWrites.scope</code> selects <code>cookie</code>
+ * (default), <code>session</code> or <code>request</code>, <code>phonebook.readYourWrites.windowMillis</code>
+ * sets the window.
+ * 
+ * @author Vladimir Syso
+ */
+@WebFilter(filterName = "ReadYourWritesFilter", urlPatterns = {"/*"}, asyncSupported = true)
+public class ReadYourWritesFilter extends org.syso.phonebook.helpers.ReadYourWritesFilter {
+    
+    public static final String SCOPE_PROPERTY = "phonebook.readYourWrites.scope";
+    public static final String WINDOW_PROPERTY = "phonebook.readYourWrites.windowMillis";
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        configure(PhonebookContextListener.isReplicaRouting(), System.getProperty(SCOPE_PROPERTY, SCOPE_COOKIE),
+                Long.getLong(WINDOW_PROPERTY, ReadYourWrites.DEFAULT_WINDOW_MILLIS));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.controllers.helpers;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.enterprise.concurrent.ContextService;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.syso.phonebook.datasource.ReadYourWrites;
+import org.syso.phonebook.metrics.RequestTiming;
+import org.syso.phonebook.metrics.ThreadAllocations;
+import org.syso.phonebook.service.PhonebookExecutors;
+
+/**
+ * RequestExecutor hands servlet requests over to a virtual thread of the shared
+ * executor when the virtual thread mode is enabled, the container thread is
+ * released at once. Handlers use the UserTransaction and the container
+ * EntityManager, so each request runs as a contextual proxy of the container
+ * context service; without one requests are processed on the container thread.
+ * 
+ * @author Vladimir Syso
+ */
+public final class RequestExecutor {
+    
+    /**
+     * Request processing callback
+     */
+    public interface RequestHandler {
+        void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException;
+    }
+    
+    private final Executor executor;
+    private final ContextService contexts;
+    
+    /**
+     * Constructs the executor in the mode selected by system properties
+     */
+    public RequestExecutor() {
+        this(PhonebookExecutors.isVirtualMode() ? PhonebookExecutors.lookupContextService() : null);
+    }
+    
+    private RequestExecutor(ContextService contexts) {
+        this(contexts != null ? PhonebookExecutors.getSharedExecutor() : null, contexts);
+    }
+    
+    /**
+     * @param executor runs the requests, null to process them on the calling container thread
+     * @param contexts wraps the requests in the context of the calling component, null if the handlers need none
+     */
+    public RequestExecutor(Executor executor, ContextService contexts) {
+        this.executor = executor;
+        this.contexts = contexts;
+    }
+    
+    /**
+     * Process a request on the container thread or asynchronously on the executor
+     * 
+     * @param request servlet request
+     * @param response servlet response
+     * @param handler processes the request
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    public void execute(final HttpServletRequest request, final HttpServletResponse response, final RequestHandler handler)
+            throws ServletException, IOException {
+        
+        if (executor == null || !request.isAsyncSupported()) {
+            handler.handle(request, response);
+            return;
+        }
+        
+        final AsyncContext asyncContext = request.startAsync();
+        try {
+            final ReadYourWrites readYourWrites = ReadYourWrites.current();
+            final RequestTiming timing = RequestTiming.current();
+            Runnable task = () -> {
+                ReadYourWrites previous = ReadYourWrites.bind(readYourWrites);
+                RequestTiming previousTiming = RequestTiming.bind(timing);
+                long allocated = timing != null ? ThreadAllocations.current() : ThreadAllocations.UNSUPPORTED;
+                try {
+                    handler.handle(request, response);
+                } catch (ServletException | IOException | RuntimeException ex) {
+                    Logger.getLogger(RequestExecutor.class.getName()).log(Level.SEVERE, null, ex);
+                    sendServerError(response);
+                } finally {
+                    if (timing != null) {
+                        timing.addAllocatedBytes(ThreadAllocations.since(allocated));
+                    }
+                    RequestTiming.bind(previousTiming);
+                    ReadYourWrites.bind(previous);
+                    asyncContext.complete();
+                }
+            };
+            executor.execute(contexts != null ? contexts.createContextualProxy(task, Runnable.class) : task);
+        } catch (RejectedExecutionException ex) {
+            Logger.getLogger(RequestExecutor.class.getName()).log(Level.SEVERE, null, ex);
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            asyncContext.complete();
+        }
+    }
+    
+    /**
+     * The container would answer 500 for a failed synchronous request, do the same
+     */
+    private static void sendServerError(HttpServletResponse response) {
+        if (response.isCommitted()) {
+            return;
+        }
+        try {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        } catch (IOException ex) {
+            Logger.getLogger(RequestExecutor.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+}
@@ -24,10 +24,13 @@
 package org.syso.phonebook.controllers.jersey;
 
 import javax.annotation.PostConstruct;
-import org.syso.phonebook.service.PhonebookService;
+import org.syso.phonebook.service.Phonebook;
+import org.syso.phonebook.service.PhonebookBackends;
 import org.syso.phonebook.domain.Contact;
 import org.syso.phonebook.domain.PhoneNumber;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.ws.rs.Consumes;
@@ -54,14 +57,14 @@ public class ContactFacadeREST{
 
     @PersistenceContext(unitName = "PhonebookPU")
     private EntityManager em;
-    private PhonebookService phonebook;
+    private Phonebook phonebook;
     
     public ContactFacadeREST() {
     }
     
     @PostConstruct
     public void init() {
-        phonebook = new PhonebookService(em);
+        phonebook = PhonebookBackends.create(em);
     }
     
     /**
@@ -108,25 +111,18 @@ public class ContactFacadeREST{
             return Response.status(Response.Status.BAD_REQUEST).build(); 
         }
         
-        if(phonebook.findPhoneNumber(phoneNumber.getNumber()) != null) {            
-             return Response.status(Response.Status.CONFLICT).build(); 
-        }        
-        
-        phoneNumber = phonebook.addPhoneNumber(contactId, phoneNumber.getNumber(), phoneNumber.getType().getPhoneTypeName());        
-        if(phoneNumber == null) {
-           return Response.status(Response.Status.NOT_FOUND).build(); 
-        }        
-        
-        Contact owner = phoneNumber.getContact();
-        if (owner == null) {
-            return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
+        switch (phonebook.insertPhoneNumber(contactId, phoneNumber.getNumber(), phoneNumber.getType().getPhoneTypeName())) {
+            case CREATED:
+                return Response.status(Response.Status.CREATED).build();
+            case CONFLICT:
+                return Response.status(Response.Status.CONFLICT).build();
+            case CONTACT_NOT_FOUND:
+                return Response.status(Response.Status.NOT_FOUND).build();
+            case INVALID:
+                return Response.status(Response.Status.BAD_REQUEST).build();
+            default:
+                return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         }
-        
-        if (!owner.getContactId().equals(contactId)) {
-            return Response.status(Response.Status.CONFLICT).build();
-        }
-        
-        return Response.status(Response.Status.CREATED).build();
     }
 
     /**
@@ -208,11 +204,12 @@ public class ContactFacadeREST{
      * @return Response object
      */
     @GET
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
     @Path("{id}")
     @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
     public Response findContact(@PathParam("id") Integer contactId) {
 
-        Contact contact = phonebook.findContact(contactId);  
+        Contact contact = phonebook.findContact(contactId, true);  
         
         if(contact == null) {
             return Response.status(Response.Status.NOT_FOUND).build();
@@ -23,13 +23,18 @@
  */
 package org.syso.phonebook.controllers.jersey;
 
-import org.syso.phonebook.service.PhonebookService;
+import org.syso.phonebook.helpers.ContactIds;
+import org.syso.phonebook.service.Phonebook;
+import org.syso.phonebook.service.PhonebookBackends;
 import org.syso.phonebook.domain.Contact;
 
 import java.util.List;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -62,12 +67,13 @@ public class ContactsFacadeREST {
      * @return Response object
      */
     @GET
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
     @Path("find_by_number")
     @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
     public Response displayContactsByPhoneNumber(@QueryParam("phone_number") String phoneNumber,
                                            @DefaultValue("false") @QueryParam("match") boolean match) {  
         
-        PhonebookService phonebook = new PhonebookService(em);        
+        Phonebook phonebook = PhonebookBackends.create(em);        
         List<Contact> contactsList = phonebook.findContactsByPhoneNumber(phoneNumber, match);
         
         if(contactsList == null || contactsList.isEmpty()){
@@ -83,9 +89,10 @@ public class ContactsFacadeREST {
      * @return Response object
      */
     @GET
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
     @Produces({MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON})
     public Response displayAllContacts() {
-        PhonebookService phonebook = new PhonebookService(em);
+        Phonebook phonebook = PhonebookBackends.create(em);
         List<Contact> contactsList = phonebook.findAllContacts();
         
         if(contactsList == null || contactsList.isEmpty()){
@@ -94,4 +101,26 @@ public class ContactsFacadeREST {
         GenericEntity<List<Contact>> entity = new GenericEntity<List<Contact>>(contactsList) {};
         return Response.ok().entity(entity).build();
     } 
+    
+    /**
+     * Remove Contact entities by ids, phone numbers are removed by the database
+     * 
+     * @param ids comma separated or repeated ids of contacts
+     * @return Response object
+     */
+    @DELETE
+    public Response removeContacts(@QueryParam("ids") List<String> ids) {
+        
+        List<Integer> contactIds = ContactIds.parse(ids);
+        if (contactIds == null || contactIds.isEmpty()) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        
+        Phonebook phonebook = PhonebookBackends.create(em);
+        if (phonebook.deleteContacts(contactIds) > 0) {
+            return Response.status(Response.Status.NO_CONTENT).build();
+        } else {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+    }
 }
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.controllers.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.syso.phonebook.service.HotKeys;
+import org.syso.phonebook.service.PhonebookBackends;
+
+/**
+ * Admin Servlet, GET /servlet/admin/stats returns the counters of the backend
+ * components as a flat JSON object, GET /servlet/admin/hot-keys the most
+ * looked up numbers and contacts, or 404 if they are not counted
+ * 
+ * @author Vladimir Syso
+ */
+@WebServlet(name = "AdminServletREST", urlPatterns = {"/AdminServletREST"})
+public class AdminServletREST extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final String DEFAULT_ENCODING = "UTF-8";
+
+    /**
+     * Handles the HTTP <code>GET</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        
+        String pathInfo = request.getPathInfo();
+        boolean hotKeys = "/hot-keys".equals(pathInfo) && PhonebookBackends.getHotNumbers() != null;
+        if (!"/stats".equals(pathInfo) && !hotKeys) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        
+        response.setCharacterEncoding(DEFAULT_ENCODING);
+        response.setContentType("application/json");
+        try (PrintWriter out = response.getWriter()) {
+            if ("/stats".equals(pathInfo)) {
+                displayStats(out);
+            } else {
+                displayHotKeys(out);
+            }
+        }
+    }
+    
+    /**
+     * Processes GET /admin/stats
+     * 
+     * @param out Writer
+     */
+    protected void displayStats(PrintWriter out) {
+        out.print('{');
+        String separator = "";
+        for (Map.Entry<String, Number> stat : PhonebookBackends.getStats().entrySet()) {
+            out.print(separator);
+            out.print('"');
+            out.print(stat.getKey());
+            out.print("\":");
+            out.print(stat.getValue());
+            separator = ",";
+        }
+        out.print('}');
+    }
+    
+    /**
+     * Processes GET /admin/hot-keys
+     * 
+     * @param out Writer
+     */
+    protected void displayHotKeys(PrintWriter out) {
+        HotKeys numbers = PhonebookBackends.getHotNumbers();
+        out.print("{\"windowSeconds\":");
+        out.print(numbers.getWindowSeconds());
+        out.print(",\"numbers\":");
+        displayHotKeys(out, numbers.top());
+        out.print(",\"contacts\":");
+        displayHotKeys(out, PhonebookBackends.getHotContacts().top());
+        out.print('}');
+    }
+    
+    private static void displayHotKeys(PrintWriter out, List<HotKeys.HotKey> hotKeys) {
+        out.print('[');
+        String separator = "";
+        for (HotKeys.HotKey hotKey : hotKeys) {
+            out.print(separator);
+            out.print("{\"key\":\"");
+            out.print(hotKey.getKey());
+            out.print("\",\"count\":");
+            out.print(hotKey.getCount());
+            out.print('}');
+            separator = ",";
+        }
+        out.print(']');
+    }
+}
@@ -25,7 +25,9 @@
 package org.syso.phonebook.controllers.servlet;
 
 import org.syso.phonebook.controllers.helpers.JAXBMapper;
-import org.syso.phonebook.service.PhonebookService;
+import org.syso.phonebook.controllers.helpers.RequestExecutor;
+import org.syso.phonebook.service.Phonebook;
+import org.syso.phonebook.service.PhonebookBackends;
 import org.syso.phonebook.domain.Contact;
 import org.syso.phonebook.domain.PhoneNumber;
 import java.io.BufferedReader;
@@ -58,12 +60,14 @@ public class ContactServletREST extends HttpServlet {
     private EntityManager em;   
     @Resource
     UserTransaction ut;    
-    private PhonebookService phonebook;
+    private Phonebook phonebook;
+    private RequestExecutor requestExecutor;
     
     @Override
     public void init(ServletConfig config) throws ServletException{        
         super.init(config);        
-        phonebook = new PhonebookService(em, ut);
+        phonebook = PhonebookBackends.create(em, ut);
+        requestExecutor = new RequestExecutor();
     }
 
     /**
@@ -169,7 +173,7 @@ public class ContactServletREST extends HttpServlet {
      */
     protected Pair<Integer, String> displayContactById(String acceptType, PrintWriter out, Integer contactId)
     {
-        Contact contact = phonebook.findContact(contactId);  
+        Contact contact = phonebook.findContact(contactId, true);  
         
         if(contact == null) {
             return new Pair<>(HttpServletResponse.SC_NOT_FOUND, null);
@@ -204,25 +208,18 @@ public class ContactServletREST extends HttpServlet {
             return HttpServletResponse.SC_BAD_REQUEST;
         }
         
-        if(phonebook.findPhoneNumber(phoneNumber.getNumber()) != null)
-        {
-            return HttpServletResponse.SC_CONFLICT;
+        switch (phonebook.insertPhoneNumber(contactId, phoneNumber.getNumber(), phoneNumber.getType().getPhoneTypeName())) {
+            case CREATED:
+                return HttpServletResponse.SC_CREATED;
+            case CONFLICT:
+                return HttpServletResponse.SC_CONFLICT;
+            case CONTACT_NOT_FOUND:
+                return HttpServletResponse.SC_NOT_FOUND;
+            case INVALID:
+                return HttpServletResponse.SC_BAD_REQUEST;
+            default:
+                return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
         }
-        
-        phoneNumber = phonebook.addPhoneNumber(contactId, phoneNumber.getNumber(), phoneNumber.getType().getPhoneTypeName());        
-        if(phoneNumber == null) {
-           return HttpServletResponse.SC_NOT_FOUND; 
-        }        
-        
-        Contact owner = phoneNumber.getContact();
-        if (owner == null) {
-            return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
-        }
-        
-        if (!owner.getContactId().equals(contactId)) {
-            return HttpServletResponse.SC_CONFLICT;
-        }
-        return HttpServletResponse.SC_CREATED;
     }
     /**
      * Processes DELETE contact/{id}/{phone_number}
@@ -369,7 +366,7 @@ public class ContactServletREST extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {        
-        processRequest(request, response);
+        requestExecutor.execute(request, response, this::processRequest);
     }
 
     /**
@@ -383,7 +380,7 @@ public class ContactServletREST extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        processRequest(request, response);
+        requestExecutor.execute(request, response, this::processRequest);
     }
     
     /**
@@ -397,7 +394,7 @@ public class ContactServletREST extends HttpServlet {
     @Override
     protected void doDelete(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        processRequest(request, response);
+        requestExecutor.execute(request, response, this::processRequest);
     }
     
     /**
@@ -411,7 +408,7 @@ public class ContactServletREST extends HttpServlet {
     @Override
     protected void doPut(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
-        processRequest(request, response);
+        requestExecutor.execute(request, response, this::processRequest);
     }
 
     /**
@@ -24,18 +24,27 @@
 package org.syso.phonebook.controllers.servlet;
 
 import org.syso.phonebook.domain.Contacts;
+import org.syso.phonebook.helpers.ContactIds;
 import org.syso.phonebook.controllers.helpers.JAXBMapper;
-import org.syso.phonebook.service.PhonebookService;
+import org.syso.phonebook.controllers.helpers.PhonebookContextListener;
+import org.syso.phonebook.controllers.helpers.RequestExecutor;
+import org.syso.phonebook.service.AsyncPhonebookService;
+import org.syso.phonebook.service.ConcurrentPhonebookService;
+import org.syso.phonebook.service.Phonebook;
+import org.syso.phonebook.service.PhonebookBackends;
 import org.syso.phonebook.domain.Contact;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javafx.util.Pair;
 import javax.annotation.Resource;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -50,7 +59,7 @@ import javax.transaction.UserTransaction;
  * 
  * @author Vladimir Syso
  */
-@WebServlet(name = "ContactsServletREST", urlPatterns = {"/ContactsServletREST"})
+@WebServlet(name = "ContactsServletREST", urlPatterns = {"/ContactsServletREST"}, asyncSupported = true)
 public class ContactsServletREST extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
@@ -61,12 +70,21 @@ public class ContactsServletREST extends HttpServlet {
     @Resource
     UserTransaction ut;
     
-    private PhonebookService phonebook;
+    private Phonebook phonebook;
+    private AsyncPhonebookService concurrentPhonebook;
+    private RequestExecutor requestExecutor;
     
     @Override
     public void init(ServletConfig config) throws ServletException{        
         super.init(config);        
-        phonebook = new PhonebookService(em, ut);
+        phonebook = PhonebookBackends.create(em, ut);
+        // PhonebookLocalPU, its reads go to replicas if they are configured
+        EntityManagerFactory localEmf = (EntityManagerFactory) config.getServletContext()
+                .getAttribute(PhonebookContextListener.LOCAL_EMF_ATTRIBUTE);
+        if (localEmf != null && !PhonebookBackends.isMemoryBackend()) {
+            concurrentPhonebook = new ConcurrentPhonebookService(localEmf);
+        }
+        requestExecutor = new RequestExecutor();
     }
 
     /**
@@ -80,6 +98,33 @@ public class ContactsServletREST extends HttpServlet {
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
+        requestExecutor.execute(request, response, this::processRequest);
+    }
+    
+    /**
+     * Handles the HTTP <code>DELETE</code> method.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    protected void doDelete(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        requestExecutor.execute(request, response, this::processRequest);
+    }
+    
+    /**
+     * Processes requests for both HTTP <code>GET</code> and <code>DELETE</code> methods.
+     *
+     * @param request servlet request
+     * @param response servlet response
+     * @throws ServletException if a servlet-specific error occurs
+     * @throws IOException if an I/O error occurs
+     */
+    protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
         
         response.setCharacterEncoding(DEFAULT_ENCODING);
         
@@ -89,8 +134,16 @@ public class ContactsServletREST extends HttpServlet {
             Pair<Integer, String> responseParam;
             
             String acceptType = request.getHeader("accept");
-            if (pathInfo != null && pathInfo.equals("/find_by_number")) {                
+            if (request.getMethod().equals("DELETE")) {
+                if (pathInfo == null || pathInfo.equals("/")) {
+                    responseParam = new Pair<>(deleteContacts(request), null);
+                } else {
+                    responseParam = new Pair<>(HttpServletResponse.SC_NOT_FOUND, null);
+                }
+            } else if (pathInfo != null && pathInfo.equals("/find_by_number")) {                
                 responseParam = displayContactsByPhoneNumber(acceptType, out, request);                
+            } else if ((pathInfo == null || pathInfo.equals("/")) && request.getParameter("ids") != null) {
+                responseParam = displayContactsByIds(acceptType, out, request);
             } else if(pathInfo == null || pathInfo.equals("/")){
                 responseParam = displayAllContacts(acceptType, out);
             }else{
@@ -149,6 +202,57 @@ public class ContactsServletREST extends HttpServlet {
         return displayContacts(acceptType, out, contactsList);
     }
     
+    /**
+     * Processes GET /contacts?ids={id},{id}, the contacts of the JPA backend
+     * are looked up in parallel, each one on its own connection
+     * 
+     * @param acceptType JSON or XML
+     * @param out Writer
+     * @param request servlet request
+     * @return a Pair of Response code and Media Type (might be null if no content to return)
+     */
+    protected Pair<Integer, String> displayContactsByIds(String acceptType, PrintWriter out, HttpServletRequest request)
+    {
+        List<Integer> contactIds = ContactIds.parse(Arrays.asList(request.getParameterValues("ids")));
+        if (contactIds == null || contactIds.isEmpty()) {
+            return new Pair<>(HttpServletResponse.SC_BAD_REQUEST, null);
+        }
+        
+        if (concurrentPhonebook != null) {
+            return displayContacts(acceptType, out, concurrentPhonebook.findContacts(contactIds).join());
+        }
+        
+        List<Contact> contactsList = new ArrayList<>(contactIds.size());
+        for (Integer contactId : contactIds) {
+            Contact contact = phonebook.findContact(contactId, true);
+            if (contact != null) {
+                contactsList.add(contact);
+            }
+        }
+        return displayContacts(acceptType, out, contactsList);
+    }
+    
+    /**
+     * Processes DELETE /contacts?ids={id},{id}
+     * 
+     * @param request servlet request
+     * @return a Status Code
+     */
+    protected int deleteContacts(HttpServletRequest request)
+    {
+        String[] values = request.getParameterValues("ids");
+        List<Integer> contactIds = ContactIds.parse(values == null ? null : Arrays.asList(values));
+        if (contactIds == null || contactIds.isEmpty()) {
+            return HttpServletResponse.SC_BAD_REQUEST;
+        }
+        
+        if (phonebook.deleteContacts(contactIds) > 0) {
+            return HttpServletResponse.SC_NO_CONTENT;
+        } else {
+            return HttpServletResponse.SC_NOT_FOUND;
+        }
+    }
+    
     /**
      * Serializes a Contact Entities List to XML or JSON format
      * 
@@ -53,8 +53,10 @@ import javax.xml.bind.annotation.XmlRootElement;
     @NamedQuery(name = "Contact.findByContactId", query = "SELECT c FROM Contact c WHERE c.contactId = :contactId"),
     @NamedQuery(name = "Contact.findByFirstName", query = "SELECT c FROM Contact c WHERE c.firstName = :firstName"),
     @NamedQuery(name = "Contact.findByLastName", query = "SELECT c FROM Contact c WHERE c.lastName = :lastName"),
-    @NamedQuery(name = "Contact.findByPhoneNumber", query = "SELECT c FROM Contact c INNER JOIN PhoneNumber p ON c.contactId = p.phoneNumberPK.contactId WHERE p.number LIKE :phoneNumber GROUP BY c.contactId"),
-    @NamedQuery(name = "Contact.deletePhoneNumber", query = "DELETE FROM PhoneNumber p WHERE p.number = :phoneNumber AND p.phoneNumberPK.contactId = :contactId"),})
+    @NamedQuery(name = "Contact.findByPhoneNumber", query = "SELECT DISTINCT c FROM Contact c INNER JOIN PhoneNumber p ON c.contactId = p.phoneNumberPK.contactId WHERE p.number LIKE :phoneNumber"),
+    @NamedQuery(name = "Contact.deletePhoneNumber", query = "DELETE FROM PhoneNumber p WHERE p.number = :phoneNumber AND p.phoneNumberPK.contactId = :contactId"),
+    @NamedQuery(name = "Contact.deleteByContactId", query = "DELETE FROM Contact c WHERE c.contactId = :contactId"),
+    @NamedQuery(name = "Contact.deleteByContactIds", query = "DELETE FROM Contact c WHERE c.contactId IN :contactIds"),})
 
 public class Contact implements Serializable {
 
@@ -30,6 +30,7 @@ import javax.persistence.EmbeddedId;
 import javax.persistence.Entity;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedNativeQuery;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.Table;
@@ -52,7 +53,11 @@ import javax.persistence.FetchType;
     @NamedQuery(name = "PhoneNumber.findAll", query = "SELECT p FROM PhoneNumber p"),
     @NamedQuery(name = "PhoneNumber.findByPhoneNumberId", query = "SELECT p FROM PhoneNumber p WHERE p.phoneNumberPK.phoneNumberId = :phoneNumberId"),
     @NamedQuery(name = "PhoneNumber.findByPhoneNumber", query = "SELECT p FROM PhoneNumber p WHERE p.number = :phoneNumber"),
-    @NamedQuery(name = "PhoneNumber.findByContactId", query = "SELECT p FROM PhoneNumber p WHERE p.phoneNumberPK.contactId = :contactId")})
+    @NamedQuery(name = "PhoneNumber.findByContactId", query = "SELECT p FROM PhoneNumber p WHERE p.phoneNumberPK.contactId = :contactId"),
+    @NamedQuery(name = "PhoneNumber.findNumbersByContactIds", query = "SELECT p.number FROM PhoneNumber p WHERE p.phoneNumberPK.contactId IN :contactIds"),
+    @NamedQuery(name = "PhoneNumber.findNumbers", query = "SELECT p.number FROM PhoneNumber p WHERE p.number IN :numbers"),
+    @NamedQuery(name = "PhoneNumber.findIndexPage", query = "SELECT p.phoneNumberPK.phoneNumberId, p.number, p.phoneNumberPK.contactId FROM PhoneNumber p WHERE p.phoneNumberPK.phoneNumberId > :phoneNumberId ORDER BY p.phoneNumberPK.phoneNumberId")})
+@NamedNativeQuery(name = "PhoneNumber.insert", query = "INSERT INTO phone_number (phone_number, phone_type_id, phone_mask_id, contact_id) VALUES (?, ?, ?, ?)")
 public class PhoneNumber implements Serializable {
 
     private static final long serialVersionUID = 1L;
@@ -106,7 +111,13 @@ public class PhoneNumber implements Serializable {
         }
 
         String mask = phoneMaskId.getPhoneMaskView();
-        if (mask.length() - mask.replace("X", "").length() != number.length()) {
+        int digits = 0;
+        for (int i = 0; i < mask.length(); i++) {
+            if (mask.charAt(i) == 'X') {
+                digits++;
+            }
+        }
+        if (digits != number.length()) {
             //Invalid mask
             return number;
         }
@@ -0,0 +1,214 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Immutable number to contact index file, memory mapped for lookups.
+ * 
+ * The file holds a 16 byte header (magic, record count, build time) and
+ * fixed width records of phone numbers packed by PhoneNumberNormalizer (long)
+ * and contact id (int) sorted by the number, so a lookup is a binary search over the mapping
+ * and an opened file needs no warm-up beyond the page cache.
+ * 
+ * @author Vladimir Syso
+ */
+public final class NumberIndexFile {
+    
+    /** Contact ids start from 1 */
+    public static final int NOT_FOUND = 0;
+    
+    // Changes with the key layout of PhoneNumberNormalizer, older files are rebuilt
+    private static final int MAGIC = 0x50424E32;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 12;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+    
+    private final Path path;
+    private final ByteBuffer records;
+    private final int count;
+    private final long builtAt;
+    
+    private NumberIndexFile(Path path, ByteBuffer records, int count, long builtAt) {
+        this.path = path;
+        this.records = records;
+        this.count = count;
+        this.builtAt = builtAt;
+    }
+    
+    /**
+     * Map an index file
+     * 
+     * @param path file written by write
+     * @return opened index
+     * @throws IOException if the file can not be mapped or is not an index
+     */
+    public static NumberIndexFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid number index size " + size + ": " + path);
+            }
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            
+            int count = buffer.getInt(4);
+            if (buffer.getInt(0) != MAGIC || HEADER_SIZE + (long) count * RECORD_SIZE != size) {
+                throw new IOException("Not a number index: " + path);
+            }
+            return new NumberIndexFile(path, buffer, count, buffer.getLong(8));
+        }
+    }
+    
+    /**
+     * Sort the entries and write them to the path atomically, the arrays are sorted in place
+     * 
+     * @param path target file, replaced if exists
+     * @param keys packed digits, unique and non zero
+     * @param contactIds contact ids at the same positions as the keys
+     * @param count number of entries
+     * @param builtAt time the source data was read
+     * @throws IOException if the file can not be written
+     */
+    public static void write(Path path, long[] keys, int[] contactIds, int count, long builtAt) throws IOException {
+        
+        sort(keys, contactIds, 0, count - 1);
+        
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, 
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.putInt(MAGIC).putInt(count).putLong(builtAt);
+            for (int i = 0; i < count; i++) {
+                if (buffer.remaining() < RECORD_SIZE) {
+                    drain(channel, buffer);
+                }
+                buffer.putLong(keys[i]).putInt(contactIds[i]);
+            }
+            drain(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * @param key packed digits
+     * @return contact id or NOT_FOUND
+     */
+    public int find(long key) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int offset = HEADER_SIZE + middle * RECORD_SIZE;
+            long middleKey = records.getLong(offset);
+            if (middleKey < key) {
+                low = middle + 1;
+            } else if (middleKey > key) {
+                high = middle - 1;
+            } else {
+                return records.getInt(offset + 8);
+            }
+        }
+        return NOT_FOUND;
+    }
+    
+    public Path getPath() {
+        return path;
+    }
+    
+    public int getCount() {
+        return count;
+    }
+    
+    /**
+     * @return time in milliseconds the source data was read
+     */
+    public long getBuiltAt() {
+        return builtAt;
+    }
+    
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    /**
+     * Quicksort of the keys moving the contact ids along
+     */
+    private static void sort(long[] keys, int[] values, int low, int high) {
+        while (high - low > INSERTION_SORT_THRESHOLD) {
+            long pivot = keys[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+            // Recurse into the smaller part to bound the stack depth
+            if (j - low < high - i) {
+                sort(keys, values, low, j);
+                low = i;
+            } else {
+                sort(keys, values, i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && keys[j - 1] > keys[j]; j--) {
+                swap(keys, values, j, j - 1);
+            }
+        }
+    }
+    
+    private static void swap(long[] keys, int[] values, int i, int j) {
+        long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.journal;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal split into numbered segment files.
+ * 
+ * Records are framed as length, CRC32 and payload. Appends only copy the record
+ * into a buffer, a flusher thread writes everything appended so far with a
+ * single FileChannel write and fsync, so concurrent writers share the cost of
+ * one fsync (group commit). Replay stops at the first torn or corrupt record
+ * of a segment.
+ * 
+ * Every open starts a new segment, segments are also rolled when a snapshot is
+ * taken, so segments older than the latest snapshot can be deleted.
+ * 
+ * @author Vladimir Syso
+ */
+public class Journal implements Closeable {
+    
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private final CRC32 crc = new CRC32();
+    private final Thread flusher;
+    
+    // Appenders fill the pending buffer while the flusher writes the other one
+    private ByteBuffer pending = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer flushing = ByteBuffer.allocate(BUFFER_SIZE);
+    private FileChannel channel;
+    private int segment;
+    private long appendedPosition;
+    private long flushedPosition;
+    private boolean flushInProgress;
+    private boolean flushRequested;
+    private boolean closed;
+    private IOException failure;
+    
+    /**
+     * Open the journal in the directory, a new segment is started for appends
+     * 
+     * @param directory directory of the segment files, created if missing
+     * @param fsyncPolicy when records are forced to the disk
+     * @param fsyncIntervalMillis flush interval for the INTERVAL policy
+     * @throws IOException if the segment can not be created
+     */
+    public Journal(Path directory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        
+        Files.createDirectories(directory);
+        List<Integer> segments = segments();
+        segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        channel = openSegment(segment);
+        
+        flusher = new Thread(this::flushLoop, "phonebook-journal");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+    
+    public Path getDirectory() {
+        return directory;
+    }
+    
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+    
+    /**
+     * @return number of the segment appends go to
+     */
+    public int getSegment() {
+        lock.lock();
+        try {
+            return segment;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Append a record, it is not durable until sync returns
+     * 
+     * @param payload record content
+     * @return position to pass to sync
+     * @throws IOException if the journal is closed or failed to write earlier records
+     */
+    public long append(byte[] payload) throws IOException {
+        lock.lock();
+        try {
+            checkWritable();
+            
+            int frameSize = HEADER_SIZE + payload.length;
+            if (pending.remaining() < frameSize) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + frameSize));
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            pending.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+            
+            appendedPosition += frameSize;
+            appended.signal();
+            return appendedPosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Wait until the record at the position is stored as required by the fsync policy
+     * 
+     * @param position value returned by append
+     * @throws IOException if the record could not be written
+     */
+    public void sync(long position) throws IOException {
+        lock.lock();
+        try {
+            if (fsyncPolicy != FsyncPolicy.INTERVAL) {
+                while (flushedPosition < position && failure == null && !closed) {
+                    flushed.awaitUninterruptibly();
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Journal write failed", failure);
+            }
+            if (flushedPosition < position && closed) {
+                throw new IOException("Journal is closed");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Force appended records to the disk and start a new segment.
+     * The caller must prevent appends meanwhile to know which records went to the old segment.
+     * 
+     * @return number of the new segment
+     * @throws IOException if the records could not be written or the segment created
+     */
+    public int roll() throws IOException {
+        lock.lock();
+        try {
+            awaitFlushed();
+            checkWritable();
+            
+            channel.force(true);
+            channel.close();
+            channel = openSegment(++segment);
+            return segment;
+        } catch (IOException ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Read records of the closed segments in order
+     * 
+     * @param fromSegment the first segment to read
+     * @param handler receives payloads of the records
+     * @return number of replayed records
+     * @throws IOException if a segment can not be read or the handler fails
+     */
+    public long replay(int fromSegment, RecordHandler handler) throws IOException {
+        
+        int currentSegment = getSegment();
+        long count = 0;
+        CRC32 recordCrc = new CRC32();
+        
+        for (int number : segments()) {
+            if (number < fromSegment || number >= currentSegment) {
+                continue;
+            }
+            Path path = segmentPath(number);
+            long size = Files.size(path);
+            try (InputStream stream = Files.newInputStream(path);
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE))) {
+                while (true) {
+                    byte[] payload;
+                    int expectedCrc;
+                    try {
+                        int length = in.readInt();
+                        expectedCrc = in.readInt();
+                        if (length < 0 || length > size) {
+                            Logger.getLogger(Journal.class.getName()).log(Level.WARNING, 
+                                    "Corrupt record length in {0} after {1} records", new Object[]{path, count});
+                            break;
+                        }
+                        payload = new byte[length];
+                        in.readFully(payload);
+                    } catch (EOFException ex) {
+                        // End of the segment or a torn write of the last record
+                        break;
+                    }
+                    recordCrc.reset();
+                    recordCrc.update(payload, 0, payload.length);
+                    if ((int) recordCrc.getValue() != expectedCrc) {
+                        Logger.getLogger(Journal.class.getName()).log(Level.WARNING, 
+                                "Corrupt record in {0} after {1} records", new Object[]{path, count});
+                        break;
+                    }
+                    handler.accept(payload);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Remove segments covered by a snapshot
+     * 
+     * @param beforeSegment segments with smaller numbers are deleted
+     * @throws IOException if a segment can not be deleted
+     */
+    public void deleteSegmentsBefore(int beforeSegment) throws IOException {
+        for (int number : segments()) {
+            if (number < beforeSegment) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        }
+    }
+    
+    /**
+     * @return sorted numbers of the segment files in the directory
+     * @throws IOException if the directory can not be listed
+     */
+    public List<Integer> segments() throws IOException {
+        List<Integer> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    // Not a segment
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+    
+    /**
+     * Write and force the appended records and close the segment
+     * 
+     * @throws IOException if the records could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        if (failure != null) {
+            throw new IOException("Journal write failed", failure);
+        }
+    }
+    
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+    
+    private FileChannel openSegment(int number) throws IOException {
+        return FileChannel.open(segmentPath(number), 
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+    
+    /**
+     * Must be called under the lock
+     */
+    private void checkWritable() throws IOException {
+        if (failure != null) {
+            throw new IOException("Journal write failed", failure);
+        }
+        if (closed) {
+            throw new IOException("Journal is closed");
+        }
+    }
+    
+    /**
+     * Wait until the flusher has written everything, must be called under the lock
+     */
+    private void awaitFlushed() {
+        while ((pending.position() > 0 || flushInProgress) && failure == null) {
+            flushRequested = true;
+            appended.signal();
+            flushed.awaitUninterruptibly();
+        }
+    }
+    
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer buffer;
+            FileChannel target;
+            long position;
+            
+            lock.lock();
+            try {
+                if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+                    long nanos = fsyncIntervalNanos;
+                    while (nanos > 0 && !closed && !flushRequested) {
+                        nanos = appended.awaitNanos(nanos);
+                    }
+                }
+                while (pending.position() == 0 && !closed) {
+                    appended.await();
+                }
+                if (pending.position() == 0) {
+                    return;
+                }
+                
+                buffer = pending;
+                pending = flushing;
+                flushing = buffer;
+                buffer.flip();
+                target = channel;
+                position = appendedPosition;
+                flushInProgress = true;
+                flushRequested = false;
+                
+            } catch (InterruptedException ex) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            
+            IOException error = null;
+            try {
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                if (fsyncPolicy != FsyncPolicy.NEVER) {
+                    target.force(false);
+                }
+            } catch (IOException ex) {
+                error = ex;
+            }
+            
+            lock.lock();
+            try {
+                buffer.clear();
+                flushInProgress = false;
+                if (error == null) {
+                    flushedPosition = position;
+                } else {
+                    failure = error;
+                }
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            
+            if (error != null) {
+                Logger.getLogger(Journal.class.getName()).log(Level.SEVERE, null, error);
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Receives payloads of replayed records
+     */
+    @FunctionalInterface
+    public interface RecordHandler {
+        void accept(byte[] payload) throws IOException;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.metrics;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Java Flight Recorder events of phonebook operations, serializations and cache lookups.
+ * 
+ * The event types are defined at runtime by jdk.jfr.EventFactory and driven
+ * through method handles to keep the sources Java 8 compatible, on JVMs
+ * without JFR every method is a no-op. The events are cheap enough to stay
+ * enabled: nothing is allocated while no recording enables them, stack traces
+ * are off by default and field values are set only for events passing the
+ * threshold. Settings are changed in a .jfc file by the event names below.
+ * 
+ * @author Vladimir Syso
+ */
+public final class FlightRecorderEvents {
+    
+    public static final String OPERATION = "org.syso.phonebook.Operation";
+    public static final String SERIALIZATION = "org.syso.phonebook.Serialization";
+    public static final String CACHE_ACCESS = "org.syso.phonebook.CacheAccess";
+    
+    private static final String CATEGORY = "Phonebook";
+    
+    private static final MethodHandle BEGIN;
+    private static final MethodHandle END;
+    private static final MethodHandle SHOULD_COMMIT;
+    private static final MethodHandle COMMIT;
+    private static final MethodHandle SET;
+    private static final MethodHandle IS_ENABLED;
+    
+    private static final EventType OPERATIONS;
+    private static final EventType SERIALIZATIONS;
+    private static final EventType CACHE_ACCESSES;
+    
+    static {
+        MethodHandle begin = null;
+        MethodHandle end = null;
+        MethodHandle shouldCommit = null;
+        MethodHandle commit = null;
+        MethodHandle set = null;
+        MethodHandle isEnabled = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            begin = lookup.findVirtual(event, "begin", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            end = lookup.findVirtual(event, "end", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            shouldCommit = lookup.findVirtual(event, "shouldCommit", MethodType.methodType(boolean.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+            commit = lookup.findVirtual(event, "commit", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            set = lookup.findVirtual(event, "set", MethodType.methodType(void.class, int.class, Object.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+            isEnabled = lookup.findVirtual(Class.forName("jdk.jfr.EventType"), "isEnabled", MethodType.methodType(boolean.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            Logger.getLogger(FlightRecorderEvents.class.getName()).log(Level.FINE, 
+                    "Java Flight Recorder is not supported by this JVM", ex);
+            begin = null;
+        }
+        BEGIN = begin;
+        END = end;
+        SHOULD_COMMIT = shouldCommit;
+        COMMIT = commit;
+        SET = set;
+        IS_ENABLED = isEnabled;
+        
+        OPERATIONS = EventType.define(OPERATION, "Phonebook Operation", "Call of a Phonebook backend operation",
+                new Field(String.class, "operation", "Operation", null),
+                new Field(int.class, "contactId", "Contact Id", null),
+                new Field(int.class, "rows", "Rows", null));
+        SERIALIZATIONS = EventType.define(SERIALIZATION, "Phonebook Serialization", "Marshalling or unmarshalling of a body",
+                new Field(Class.class, "entityClass", "Entity Class", null),
+                new Field(String.class, "mediaType", "Media Type", null),
+                new Field(boolean.class, "marshal", "Marshal", null),
+                new Field(long.class, "bytes", "Bytes", "BYTES"));
+        CACHE_ACCESSES = EventType.define(CACHE_ACCESS, "Phonebook Cache Access", "Lookup in a phonebook cache",
+                new Field(String.class, "cache", "Cache", null),
+                new Field(String.class, "key", "Key", null),
+                new Field(boolean.class, "hit", "Hit", null));
+    }
+    
+    private FlightRecorderEvents() {
+    }
+    
+    /**
+     * @return true if the JVM supports the events, they are recorded only while a recording enables them
+     */
+    public static boolean isSupported() {
+        return OPERATIONS.factory != null;
+    }
+    
+    /**
+     * @return event to pass to commitOperation, null if not recorded
+     */
+    public static Object beginOperation() {
+        return OPERATIONS.begin();
+    }
+    
+    /**
+     * @param event value of beginOperation
+     * @param operation name of the Phonebook method
+     * @param contactId id of the contact, 0 if the operation has no single contact
+     * @param rows number of contacts returned or changed
+     */
+    public static void commitOperation(Object event, String operation, int contactId, int rows) {
+        if (event != null && OPERATIONS.end(event)) {
+            OPERATIONS.commit(event, operation, contactId, rows);
+        }
+    }
+    
+    /**
+     * @return event to pass to commitSerialization, null if not recorded
+     */
+    public static Object beginSerialization() {
+        return SERIALIZATIONS.begin();
+    }
+    
+    /**
+     * @param event value of beginSerialization
+     * @param entityClass class of the root element
+     * @param mediaType JSON or XML
+     * @param marshal false for unmarshalling
+     * @param bytes size of the body
+     */
+    public static void commitSerialization(Object event, Class<?> entityClass, String mediaType, boolean marshal, long bytes) {
+        if (event != null && SERIALIZATIONS.end(event)) {
+            SERIALIZATIONS.commit(event, entityClass, mediaType, marshal, bytes);
+        }
+    }
+    
+    /**
+     * @param cache name of the cache
+     * @param key looked up key
+     * @param hit true if the cache answered
+     */
+    public static void cacheAccess(String cache, Object key, boolean hit) {
+        Object event = CACHE_ACCESSES.begin();
+        if (event != null && CACHE_ACCESSES.end(event)) {
+            CACHE_ACCESSES.commit(event, cache, String.valueOf(key), hit);
+        }
+    }
+    
+    /**
+     * Field of an event type
+     */
+    private static final class Field {
+        
+        final Class<?> type;
+        final String name;
+        final String label;
+        final String dataAmount;
+
+        Field(Class<?> type, String name, String label, String dataAmount) {
+            this.type = type;
+            this.name = name;
+            this.label = label;
+            this.dataAmount = dataAmount;
+        }
+    }
+    
+    /**
+     * Event type created by jdk.jfr.EventFactory
+     */
+    private static final class EventType {
+        
+        final Object factory;
+        final Object type;
+        final MethodHandle newEvent;
+
+        EventType(Object factory, Object type, MethodHandle newEvent) {
+            this.factory = factory;
+            this.type = type;
+            this.newEvent = newEvent;
+        }
+        
+        static EventType define(String name, String label, String description, Field... fields) {
+            if (BEGIN == null) {
+                return new EventType(null, null, null);
+            }
+            try {
+                Class<?> element = Class.forName("jdk.jfr.AnnotationElement");
+                Constructor<?> annotation = element.getConstructor(Class.class, Object.class);
+                List<Object> annotations = Arrays.asList(
+                        annotation.newInstance(Class.forName("jdk.jfr.Name"), name),
+                        annotation.newInstance(Class.forName("jdk.jfr.Label"), label),
+                        annotation.newInstance(Class.forName("jdk.jfr.Description"), description),
+                        annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{CATEGORY}),
+                        annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), false));
+                
+                Constructor<?> descriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+                List<Object> values = new ArrayList<>(fields.length);
+                for (Field field : fields) {
+                    List<Object> fieldAnnotations = new ArrayList<>(2);
+                    fieldAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), field.label));
+                    if (field.dataAmount != null) {
+                        fieldAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.DataAmount"), field.dataAmount));
+                    }
+                    values.add(descriptor.newInstance(field.type, field.name, Collections.unmodifiableList(fieldAnnotations)));
+                }
+                
+                Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+                Object factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, values);
+                Object type = eventFactory.getMethod("getEventType").invoke(factory);
+                MethodHandle newEvent = MethodHandles.publicLookup()
+                        .findVirtual(eventFactory, "newEvent", MethodType.methodType(Class.forName("jdk.jfr.Event")))
+                        .bindTo(factory).asType(MethodType.methodType(Object.class));
+                return new EventType(factory, type, newEvent);
+            } catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+                Logger.getLogger(FlightRecorderEvents.class.getName()).log(Level.WARNING, 
+                        "Can not define event " + name, ex);
+                return new EventType(null, null, null);
+            }
+        }
+        
+        /**
+         * @return started event, null if the type is not enabled by a recording
+         */
+        Object begin() {
+            if (factory == null) {
+                return null;
+            }
+            try {
+                if (!(boolean) IS_ENABLED.invokeExact(type)) {
+                    return null;
+                }
+                Object event = (Object) newEvent.invokeExact();
+                BEGIN.invokeExact(event);
+                return event;
+            } catch (Throwable ex) {
+                Logger.getLogger(FlightRecorderEvents.class.getName()).log(Level.WARNING, null, ex);
+                return null;
+            }
+        }
+        
+        /**
+         * @return true if the event passes the threshold and should be committed
+         */
+        boolean end(Object event) {
+            try {
+                END.invokeExact(event);
+                return (boolean) SHOULD_COMMIT.invokeExact(event);
+            } catch (Throwable ex) {
+                Logger.getLogger(FlightRecorderEvents.class.getName()).log(Level.WARNING, null, ex);
+                return false;
+            }
+        }
+        
+        void commit(Object event, Object... values) {
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    SET.invokeExact(event, i, values[i]);
+                }
+                COMMIT.invokeExact(event);
+            } catch (Throwable ex) {
+                Logger.getLogger(FlightRecorderEvents.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+}
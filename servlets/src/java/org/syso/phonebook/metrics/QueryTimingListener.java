@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.metrics;
+
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+
+/**
+ * EclipseLink session listener adding SQL statement time and count, and the
+ * query time outside of SQL as hydration, to the RequestTiming of the thread.
+ * 
+ * Registered by the eclipselink.session-event-listener property of the persistence units.
+ * 
+ * @author Vladimir Syso
+ */
+public class QueryTimingListener extends SessionEventAdapter {
+    
+    @Override
+    public void preExecuteQuery(SessionEvent event) {
+        RequestTiming timing = RequestTiming.current();
+        if (timing != null) {
+            timing.queryStarted();
+        }
+    }
+
+    @Override
+    public void postExecuteQuery(SessionEvent event) {
+        RequestTiming timing = RequestTiming.current();
+        if (timing != null) {
+            timing.queryFinished();
+        }
+    }
+
+    @Override
+    public void preExecuteCall(SessionEvent event) {
+        RequestTiming timing = RequestTiming.current();
+        if (timing != null) {
+            timing.statementStarted();
+        }
+    }
+
+    @Override
+    public void postExecuteCall(SessionEvent event) {
+        RequestTiming timing = RequestTiming.current();
+        if (timing != null) {
+            timing.statementFinished();
+        }
+    }
+}
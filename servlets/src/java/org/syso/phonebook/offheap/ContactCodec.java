@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.offheap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneMask;
+import org.syso.phonebook.domain.PhoneNumber;
+import org.syso.phonebook.domain.PhoneType;
+import org.syso.phonebook.helpers.PhoneNumberNormalizer;
+
+/**
+ * Compact binary form of a Contact with its phone numbers for OffHeapRecordStore.
+ * 
+ * Integers are written as variable length (7 bits per byte), strings as UTF-8
+ * with the length plus one in front, 0 marks null. Numbers keep only their
+ * digits packed by PhoneNumberNormalizer, the formatting is restored from the mask.
+ * 
+ * @author Vladimir Syso
+ */
+public final class ContactCodec {
+    
+    private ContactCodec() {
+    }
+    
+    /**
+     * @param contact a contact with loaded phone numbers
+     * @return serialized contact
+     */
+    public static byte[] encode(Contact contact) {
+        Writer out = new Writer();
+        out.writeInt(contact.getContactId());
+        out.writeString(contact.getFirstName());
+        out.writeString(contact.getLastName());
+        
+        List<PhoneNumber> phoneNumbers = contact.getPhoneNumbers() != null 
+                ? new ArrayList<>(contact.getPhoneNumbers()) : new ArrayList<>();
+        out.writeInt(phoneNumbers.size());
+        for (PhoneNumber phoneNumber : phoneNumbers) {
+            out.writeInt(phoneNumber.getPhoneNumberPK() != null ? phoneNumber.getPhoneNumberPK().getPhoneNumberId() : 0);
+            String digits = PhoneNumberNormalizer.digits(phoneNumber.getNumber());
+            long packed = PhoneNumberNormalizer.pack(digits);
+            out.writeLong(packed);
+            if (packed == PhoneNumberNormalizer.NOT_PACKED) {
+                out.writeString(digits);
+            }
+            
+            PhoneType type = phoneNumber.getType();
+            out.writeInt(type != null && type.getPhoneTypeId() != null ? type.getPhoneTypeId() : 0);
+            out.writeString(type != null ? type.getPhoneTypeName() : null);
+            
+            PhoneMask mask = phoneNumber.getPhoneMaskId();
+            out.writeInt(mask != null && mask.getPhoneMaskId() != null ? mask.getPhoneMaskId() : 0);
+            out.writeString(mask != null ? mask.getPhoneMaskView() : null);
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * @param record serialized contact
+     * @return a detached Contact
+     */
+    public static Contact decode(byte[] record) {
+        Reader in = new Reader(record);
+        Contact contact = new Contact(in.readInt());
+        contact.setFirstName(in.readString());
+        contact.setLastName(in.readString());
+        
+        int count = in.readInt();
+        List<PhoneNumber> phoneNumbers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            PhoneNumber phoneNumber = new PhoneNumber(in.readInt(), contact.getContactId());
+            long packed = in.readLong();
+            phoneNumber.setNumber(packed != PhoneNumberNormalizer.NOT_PACKED 
+                    ? PhoneNumberNormalizer.unpack(packed) : in.readString());
+            
+            int typeId = in.readInt();
+            String typeName = in.readString();
+            if (typeName != null) {
+                phoneNumber.setType(new PhoneType(typeId, typeName));
+            }
+            int maskId = in.readInt();
+            String maskView = in.readString();
+            if (maskView != null) {
+                phoneNumber.setPhoneMaskId(new PhoneMask(maskId, maskView));
+            }
+            phoneNumber.setContact(contact);
+            phoneNumbers.add(phoneNumber);
+        }
+        contact.setPhoneNumbers(phoneNumbers);
+        return contact;
+    }
+    
+    private static final class Writer {
+        
+        private byte[] bytes = new byte[64];
+        private int size;
+        
+        void writeInt(int value) {
+            writeLong(value & 0xFFFFFFFFL);
+        }
+        
+        void writeLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+        
+        void writeString(String value) {
+            if (value == null) {
+                writeInt(0);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(utf8.length + 1);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+        
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+        
+        private void ensure(int count) {
+            if (size + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + count));
+            }
+        }
+    }
+    
+    private static final class Reader {
+        
+        private final byte[] bytes;
+        private int position;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+        
+        int readInt() {
+            return (int) readLong();
+        }
+        
+        long readLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+        
+        String readString() {
+            int length = readInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.syso.phonebook.collections.IntLongHashMap;
+
+/**
+ * Byte records keyed by int kept outside of the Java heap.
+ * 
+ * Records are appended to direct ByteBuffer slabs, the heap holds only the
+ * primitive index from key to slab and position, so the garbage collector
+ * neither traces nor copies the records. A replaced or removed record leaves
+ * garbage in its slab, the live records are compacted into fresh slabs when
+ * the memory limit is reached.
+ * 
+ * Direct memory is limited by -XX:MaxDirectMemorySize, the heap size by default,
+ * leave room for one more copy of the live records used by the compaction.
+ * 
+ * @author Vladimir Syso
+ */
+public class OffHeapRecordStore {
+    
+    public static final int DEFAULT_SLAB_SIZE = 64 * 1024 * 1024;
+    
+    private static final long NO_OFFSET = -1;
+    private static final int LENGTH_SIZE = 4;
+    
+    private final int slabSize;
+    private final long maxBytes;
+    private final Lock readLock;
+    private final Lock writeLock;
+    
+    private List<ByteBuffer> slabs = new ArrayList<>();
+    private IntLongHashMap offsets;
+    private ByteBuffer current;
+    private long liveBytes;
+    private long compactions;
+    
+    /**
+     * @param maxBytes limit of the allocated direct memory
+     */
+    public OffHeapRecordStore(long maxBytes) {
+        this(maxBytes, DEFAULT_SLAB_SIZE, 1024);
+    }
+    
+    /**
+     * @param maxBytes limit of the allocated direct memory, at least one slab
+     * @param slabSize size of a direct buffer, the largest record is 4 bytes shorter
+     * @param expectedRecords number of records to index without resizing
+     */
+    public OffHeapRecordStore(long maxBytes, int slabSize, int expectedRecords) {
+        if (maxBytes < slabSize) {
+            throw new IllegalArgumentException("The limit must hold at least one slab");
+        }
+        this.slabSize = slabSize;
+        this.maxBytes = maxBytes;
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        readLock = lock.readLock();
+        writeLock = lock.writeLock();
+        offsets = new IntLongHashMap(expectedRecords, NO_OFFSET);
+    }
+    
+    /**
+     * Store or replace a record
+     * 
+     * @param key a key
+     * @param record content, copied into the store
+     * @return false if the record does not fit into the memory limit, a replaced record is removed anyway
+     */
+    public boolean put(int key, byte[] record) {
+        int size = LENGTH_SIZE + record.length;
+        if (size > slabSize) {
+            remove(key);
+            return false;
+        }
+        
+        writeLock.lock();
+        try {
+            release(offsets.remove(key));
+            
+            if (current == null || current.remaining() < size) {
+                if (!allocate(size)) {
+                    return false;
+                }
+            }
+            long offset = ((long) (slabs.size() - 1) << 32) | current.position();
+            current.putInt(record.length).put(record);
+            offsets.put(key, offset);
+            liveBytes += size;
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * @param key a key
+     * @return a heap copy of the record or null
+     */
+    public byte[] get(int key) {
+        readLock.lock();
+        try {
+            long offset = offsets.get(key);
+            if (offset == NO_OFFSET) {
+                return null;
+            }
+            // Absolute reads on a duplicate keep concurrent readers apart
+            ByteBuffer slab = slabs.get((int) (offset >>> 32)).duplicate();
+            slab.position((int) offset);
+            byte[] record = new byte[slab.getInt()];
+            slab.get(record);
+            return record;
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * @param key a key
+     * @return length of the record or -1 if there is no such record
+     */
+    public int length(int key) {
+        readLock.lock();
+        try {
+            long offset = offsets.get(key);
+            if (offset == NO_OFFSET) {
+                return -1;
+            }
+            return slabs.get((int) (offset >>> 32)).getInt((int) offset);
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
+    public boolean contains(int key) {
+        readLock.lock();
+        try {
+            return offsets.containsKey(key);
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * @param key a key
+     * @return true if the record existed
+     */
+    public boolean remove(int key) {
+        writeLock.lock();
+        try {
+            long offset = offsets.remove(key);
+            release(offset);
+            return offset != NO_OFFSET;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Drop all records, the slabs are released by the garbage collector
+     */
+    public void clear() {
+        writeLock.lock();
+        try {
+            offsets.clear();
+            slabs = new ArrayList<>();
+            current = null;
+            liveBytes = 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    public int size() {
+        readLock.lock();
+        try {
+            return offsets.size();
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * @return bytes of the stored records including their length prefixes
+     */
+    public long getLiveBytes() {
+        readLock.lock();
+        try {
+            return liveBytes;
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * @return direct memory held by the slabs
+     */
+    public long getAllocatedBytes() {
+        readLock.lock();
+        try {
+            return (long) slabs.size() * slabSize;
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
+    public long getCompactions() {
+        readLock.lock();
+        try {
+            return compactions;
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * Must be called under the write lock
+     */
+    private void release(long offset) {
+        if (offset != NO_OFFSET) {
+            liveBytes -= LENGTH_SIZE + slabs.get((int) (offset >>> 32)).getInt((int) offset);
+        }
+    }
+    
+    /**
+     * Make room for a record in a new slab, compacting if the limit is reached.
+     * Must be called under the write lock.
+     * 
+     * @param size bytes needed
+     * @return false if the live records leave no room
+     */
+    private boolean allocate(int size) {
+        if ((long) (slabs.size() + 1) * slabSize > maxBytes) {
+            // Compaction briefly holds the old and the new slabs, so it runs only if it frees a slab at least
+            if (garbageBytes() < slabSize) {
+                return false;
+            }
+            compact();
+            if (current.remaining() >= size) {
+                return true;
+            }
+            if ((long) (slabs.size() + 1) * slabSize > maxBytes) {
+                return false;
+            }
+        }
+        current = ByteBuffer.allocateDirect(slabSize);
+        slabs.add(current);
+        return true;
+    }
+    
+    private long garbageBytes() {
+        long used = 0;
+        for (ByteBuffer slab : slabs) {
+            used += slab == current ? slab.position() : slabSize;
+        }
+        return used - liveBytes;
+    }
+    
+    /**
+     * Copy the live records into fresh slabs, must be called under the write lock
+     */
+    private void compact() {
+        final List<ByteBuffer> oldSlabs = slabs;
+        final List<ByteBuffer> newSlabs = new ArrayList<>();
+        final IntLongHashMap newOffsets = new IntLongHashMap(offsets.size(), NO_OFFSET);
+        final ByteBuffer[] target = {null};
+        
+        offsets.forEach((key, offset) -> {
+            ByteBuffer source = oldSlabs.get((int) (offset >>> 32)).duplicate();
+            int start = (int) offset;
+            int size = LENGTH_SIZE + source.getInt(start);
+            source.limit(start + size).position(start);
+            
+            if (target[0] == null || target[0].remaining() < size) {
+                target[0] = ByteBuffer.allocateDirect(slabSize);
+                newSlabs.add(target[0]);
+            }
+            newOffsets.put(key, ((long) (newSlabs.size() - 1) << 32) | target[0].position());
+            target[0].put(source);
+        });
+        
+        slabs = newSlabs;
+        offsets = newOffsets;
+        current = target[0];
+        if (current == null) {
+            current = ByteBuffer.allocateDirect(slabSize);
+            slabs.add(current);
+        }
+        compactions++;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Defers actions until the transaction of the calling thread commits, the
+ * counterpart of Spring's TransactionSynchronization.afterCommit.
+ * 
+ * JTA transactions get an interposed synchronization, resource local ones are
+ * tracked between begin and end. Outside of transactions actions run at once.
+ * 
+ * @author Vladimir Syso
+ */
+final class AfterCommit {
+    
+    private static final String REGISTRY = "java:comp/TransactionSynchronizationRegistry";
+    
+    private static final ThreadLocal<List<Runnable>> LOCAL_ACTIONS = new ThreadLocal<>();
+    
+    private AfterCommit() {
+    }
+    
+    /**
+     * The registry is the same for the whole server, so it is looked up once
+     */
+    private static final class Registry {
+        static final TransactionSynchronizationRegistry INSTANCE = lookup();
+        
+        private static TransactionSynchronizationRegistry lookup() {
+            try {
+                return (TransactionSynchronizationRegistry) new InitialContext().lookup(REGISTRY);
+            } catch (NamingException ex) {
+                // No JTA outside of the container, e.g. in tests and benchmarks
+                Logger.getLogger(AfterCommit.class.getName()).log(Level.FINE, null, ex);
+                return null;
+            }
+        }
+    }
+    
+    /**
+     * @param action runs once the current transaction commits, is dropped on rollback
+     */
+    static void run(Runnable action) {
+        
+        List<Runnable> localActions = LOCAL_ACTIONS.get();
+        if (localActions != null) {
+            localActions.add(action);
+            return;
+        }
+        
+        TransactionSynchronizationRegistry registry = Registry.INSTANCE;
+        if (registry != null && registry.getTransactionStatus() != Status.STATUS_NO_TRANSACTION) {
+            registry.registerInterposedSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    if (status == Status.STATUS_COMMITTED) {
+                        action.run();
+                    }
+                }
+            });
+            return;
+        }
+        action.run();
+    }
+    
+    /**
+     * Start collecting actions of a resource local transaction on the calling thread
+     * 
+     * @return actions of an enclosing transaction, to be passed to end
+     */
+    static List<Runnable> begin() {
+        List<Runnable> enclosing = LOCAL_ACTIONS.get();
+        LOCAL_ACTIONS.set(new ArrayList<>());
+        return enclosing;
+    }
+    
+    /**
+     * Finish the resource local transaction started by begin
+     * 
+     * @param enclosing value returned by begin
+     * @param committed run the collected actions or drop them
+     */
+    static void end(List<Runnable> enclosing, boolean committed) {
+        
+        List<Runnable> actions = LOCAL_ACTIONS.get();
+        if (enclosing != null) {
+            LOCAL_ACTIONS.set(enclosing);
+        } else {
+            LOCAL_ACTIONS.remove();
+        }
+        if (committed && actions != null) {
+            actions.forEach(AfterCommit::run);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneNumber;
+
+/**
+ * Non-blocking counterpart of PhonebookService, every operation returns
+ * immediately and completes the future once the database work is done.
+ * Semantics of the results match the blocking methods.
+ * 
+ * @author Vladimir Syso
+ */
+public interface AsyncPhonebookService {
+    
+    /**
+     * @param contactId an id of a contact
+     * @return a Contact found by the id or null
+     */
+    CompletableFuture<Contact> findContact(Integer contactId);
+    
+    /**
+     * Look up several contacts at once, each one on its own connection
+     * 
+     * @param contactIds ids of contacts
+     * @return found Contacts in the order of the ids, missing ones are skipped
+     */
+    CompletableFuture<List<Contact>> findContacts(List<Integer> contactIds);
+    
+    /**
+     * @return a List of all contacts in database
+     */
+    CompletableFuture<List<Contact>> findAllContacts();
+    
+    /**
+     * @param phoneNumber un-filtered number to match
+     * @param match the whole number of just a part of it
+     * @return a List of matched Contacts
+     */
+    CompletableFuture<List<Contact>> findContactsByPhoneNumber(String phoneNumber, Boolean match);
+    
+    /**
+     * @param number sequence of digits and format symbols to match
+     * @return PhoneNumber object if exists, otherwise null
+     */
+    CompletableFuture<PhoneNumber> findPhoneNumber(String number);
+    
+    /**
+     * @param firstName must not be null or empty if lastName is
+     * @param lastName must not be null or empty if firstName is
+     * @return a new Contact object or null
+     */
+    CompletableFuture<Contact> createContact(String firstName, String lastName);
+    
+    /**
+     * @param contactId of a Contact entity to update
+     * @param firstName must not be null or empty if lastName is
+     * @param lastName must not be null or empty if firstName is
+     * @return Updated or newly created Contact object if it wasn't found by contactId
+     */
+    CompletableFuture<Contact> updateContact(Integer contactId, String firstName, String lastName);
+    
+    /**
+     * @param contactId an id of a contact
+     * @return operation completed successfully or not
+     */
+    CompletableFuture<Boolean> deleteContact(Integer contactId);
+    
+    /**
+     * @param contactIds ids of contacts
+     * @return number of deleted contacts
+     */
+    CompletableFuture<Integer> deleteContacts(Collection<Integer> contactIds);
+    
+    /**
+     * @param contactId owner of specific phone number
+     * @param phoneNumber un-filtered phone number
+     * @return operation completed successfully or not
+     */
+    CompletableFuture<Boolean> deletePhoneNumber(Integer contactId, String phoneNumber);
+    
+    /**
+     * Add a phone number to a Contact with a single INSERT statement,
+     * see PhonebookService.insertPhoneNumber
+     * 
+     * @param contactId of Contact to place a PhoneNumber
+     * @param number un-filtered phone number to add
+     * @param type phone type name
+     * @return result of the insert
+     */
+    CompletableFuture<AddPhoneNumberResult> insertPhoneNumber(Integer contactId, String number, String type);
+}
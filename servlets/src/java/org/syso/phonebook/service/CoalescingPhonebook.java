@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.syso.phonebook.datasource.ReadYourWrites;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.helpers.PhoneNumberNormalizer;
+
+/**
+ * Phonebook sharing one backend query among concurrent identical read-only lookups,
+ * all other operations go to the backend.
+ * 
+ * Every caller gets its own Contacts and lists, the phone numbers are loaded
+ * and shared and must not be modified. Requests that must read their own writes
+ * from the primary run their own query. Writes let later lookups of the data they
+ * changed run a new query once they commit, a query running since before the
+ * write is not joined. Number searches match parts of numbers and return names,
+ * so any write starts them over.
+ * 
+ * @author Vladimir Syso
+ */
+public class CoalescingPhonebook implements Phonebook {
+    
+    private final Phonebook phonebook;
+    private final SingleFlight<Integer, Contact> contactLookups;
+    private final SingleFlight<String, List<Contact>> numberLookups;
+
+    /**
+     * @param phonebook backend
+     * @param contactLookups shared by all requests
+     * @param numberLookups shared by all requests
+     */
+    public CoalescingPhonebook(Phonebook phonebook, SingleFlight<Integer, Contact> contactLookups,
+            SingleFlight<String, List<Contact>> numberLookups) {
+        this.phonebook = phonebook;
+        this.contactLookups = contactLookups;
+        this.numberLookups = numberLookups;
+    }
+
+    @Override
+    public Contact findContact(Integer contactId, boolean readOnly) {
+        if (!readOnly || contactId == null || isSticky()) {
+            return phonebook.findContact(contactId, readOnly);
+        }
+        return copy(contactLookups.execute(contactId, () -> loaded(phonebook.findContact(contactId, true))));
+    }
+
+    @Override
+    public List<Contact> findContactsByPhoneNumber(String phoneNumber, Boolean match) {
+        if (phoneNumber == null || phoneNumber.isEmpty() || match == null || isSticky()) {
+            return phonebook.findContactsByPhoneNumber(phoneNumber, match);
+        }
+        String key = (match ? '=' : '~') + PhoneNumberNormalizer.digits(phoneNumber);
+        List<Contact> contactsList = numberLookups.execute(key, () -> {
+            List<Contact> found = phonebook.findContactsByPhoneNumber(phoneNumber, match);
+            if (found != null) {
+                found.forEach(CoalescingPhonebook::loaded);
+            }
+            return found;
+        });
+        if (contactsList == null) {
+            return null;
+        }
+        List<Contact> copies = new ArrayList<>(contactsList.size());
+        for (Contact contact : contactsList) {
+            copies.add(copy(contact));
+        }
+        return copies;
+    }
+
+    @Override
+    public Contact findContact(Integer contactId) {
+        return phonebook.findContact(contactId);
+    }
+
+    @Override
+    public List<Contact> findAllContacts() {
+        return phonebook.findAllContacts();
+    }
+
+    @Override
+    public Contact createContact(String firstName, String lastName) {
+        return phonebook.createContact(firstName, lastName);
+    }
+
+    @Override
+    public Contact updateContact(Integer contactId, String firstName, String lastName) {
+        try {
+            return phonebook.updateContact(contactId, firstName, lastName);
+        } finally {
+            changed(contactId);
+        }
+    }
+
+    @Override
+    public boolean deleteContact(Integer contactId) {
+        try {
+            return phonebook.deleteContact(contactId);
+        } finally {
+            changed(contactId);
+        }
+    }
+
+    @Override
+    public int deleteContacts(Collection<Integer> contactIds) {
+        try {
+            return phonebook.deleteContacts(contactIds);
+        } finally {
+            if (contactIds != null) {
+                contactIds.forEach(this::changed);
+            }
+        }
+    }
+
+    @Override
+    public boolean deletePhoneNumber(Integer contactId, String phoneNumber) {
+        try {
+            return phonebook.deletePhoneNumber(contactId, phoneNumber);
+        } finally {
+            changed(contactId);
+        }
+    }
+
+    @Override
+    public AddPhoneNumberResult insertPhoneNumber(Integer contactId, String number, String type) {
+        try {
+            return phonebook.insertPhoneNumber(contactId, number, type);
+        } finally {
+            changed(contactId);
+        }
+    }
+    
+    /**
+     * Stop joining lookups of the contact and number searches now and again
+     * after the commit, the write may still be in a transaction of the caller
+     */
+    private void changed(Integer contactId) {
+        forget(contactId);
+        AfterCommit.run(() -> forget(contactId));
+    }
+    
+    private void forget(Integer contactId) {
+        if (contactId != null) {
+            contactLookups.forget(contactId);
+        }
+        numberLookups.forgetAll();
+    }
+    
+    private static boolean isSticky() {
+        ReadYourWrites readYourWrites = ReadYourWrites.current();
+        return readYourWrites != null && readYourWrites.isSticky();
+    }
+    
+    /**
+     * @return Contact of this caller sharing the phone numbers
+     */
+    private static Contact copy(Contact contact) {
+        if (contact == null) {
+            return null;
+        }
+        Contact copy = new Contact(contact.getContactId());
+        copy.setFirstName(contact.getFirstName());
+        copy.setLastName(contact.getLastName());
+        if (contact.getPhoneNumbers() != null) {
+            copy.setPhoneNumbers(new ArrayList<>(contact.getPhoneNumbers()));
+        }
+        return copy;
+    }
+    
+    /**
+     * Load the lazy phone numbers by the leading request, the others may get the Contact after its query ended
+     */
+    private static Contact loaded(Contact contact) {
+        if (contact != null && contact.getPhoneNumbers() != null) {
+            contact.getPhoneNumbers().size();
+        }
+        return contact;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.LockModeType;
+import org.syso.phonebook.datasource.ReadYourWrites;
+import org.syso.phonebook.datasource.RoutingContext;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneNumber;
+
+/**
+ * AsyncPhonebookService implementation on top of PhonebookService.
+ * 
+ * Every operation gets its own EntityManager, so independent reads run concurrently
+ * on separate connections. Writes run in a resource local transaction and are
+ * composed after the reads they depend on. The EntityManagerFactory must belong
+ * to a RESOURCE_LOCAL persistence unit such as <code>PhonebookLocalPU</code>.
+ * Reads are marked in RoutingContext, so a ReplicaRoutingDataSource given to
+ * the persistence unit serves them from replicas.
+ * 
+ * @author Vladimir Syso
+ */
+public class ConcurrentPhonebookService implements AsyncPhonebookService {
+    
+    private final EntityManagerFactory emf;
+    private final Executor executor;
+    
+    /**
+     * Constructs the service running on the shared phonebook executor
+     * 
+     * @param emf factory of RESOURCE_LOCAL entity managers
+     */
+    public ConcurrentPhonebookService(EntityManagerFactory emf) {
+        this(emf, PhonebookExecutors.getSharedExecutor());
+    }
+    
+    /**
+     * Constructs the service
+     * 
+     * @param emf factory of RESOURCE_LOCAL entity managers
+     * @param executor runs database operations
+     */
+    public ConcurrentPhonebookService(EntityManagerFactory emf, Executor executor) {
+        this.emf = emf;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Contact> findContact(Integer contactId) {
+        return read(phonebook -> phonebook.findContact(contactId));
+    }
+
+    @Override
+    public CompletableFuture<List<Contact>> findContacts(List<Integer> contactIds) {
+        
+        List<CompletableFuture<Contact>> contacts = new ArrayList<>(contactIds.size());
+        for (Integer contactId : contactIds) {
+            contacts.add(findContact(contactId));
+        }
+        return collect(contacts);
+    }
+    
+    /**
+     * @param contacts lookups of single contacts
+     * @return found Contacts in the order of the lookups
+     */
+    static CompletableFuture<List<Contact>> collect(List<CompletableFuture<Contact>> contacts) {
+        return CompletableFuture.allOf(contacts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<Contact> found = new ArrayList<>(contacts.size());
+            for (CompletableFuture<Contact> contact : contacts) {
+                if (contact.join() != null) {
+                    found.add(contact.join());
+                }
+            }
+            return found;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<Contact>> findAllContacts() {
+        return read(PhonebookService::findAllContacts);
+    }
+
+    @Override
+    public CompletableFuture<List<Contact>> findContactsByPhoneNumber(String phoneNumber, Boolean match) {
+        return read(phonebook -> phonebook.findContactsByPhoneNumber(phoneNumber, match));
+    }
+
+    @Override
+    public CompletableFuture<PhoneNumber> findPhoneNumber(String number) {
+        return read(phonebook -> phonebook.findPhoneNumber(number));
+    }
+
+    @Override
+    public CompletableFuture<Contact> createContact(String firstName, String lastName) {
+        return write(em -> new PhonebookService(em).createContact(firstName, lastName));
+    }
+
+    /**
+     * Create a Contact and check it before the transaction commits
+     * 
+     * @param firstName must not be null or empty if lastName is
+     * @param lastName must not be null or empty if firstName is
+     * @param check throws to roll the new Contact back
+     * @return created Contact
+     */
+    CompletableFuture<Contact> createContact(String firstName, String lastName, Consumer<Contact> check) {
+        return write(em -> {
+            Contact contact = new PhonebookService(em).createContact(firstName, lastName);
+            if (contact != null) {
+                check.accept(contact);
+            }
+            return contact;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Contact> updateContact(Integer contactId, String firstName, String lastName) {
+        return write(em -> new PhonebookService(em).updateContact(contactId, firstName, lastName));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteContact(Integer contactId) {
+        return write(em -> new PhonebookService(em).deleteContact(contactId));
+    }
+
+    @Override
+    public CompletableFuture<Integer> deleteContacts(Collection<Integer> contactIds) {
+        return write(em -> new PhonebookService(em).deleteContacts(contactIds));
+    }
+
+    /**
+     * Delete Contacts and collect their phone numbers in one transaction.
+     * The numbers are locked before the delete, so a number added concurrently
+     * to one of the Contacts fails or is collected.
+     * 
+     * @param contactIds ids of contacts
+     * @return number of deleted Contacts and their phone numbers
+     */
+    public CompletableFuture<DeletedContacts> deleteContactsAndNumbers(Collection<Integer> contactIds) {
+        return write(em -> {
+            List<String> numbers = em.createNamedQuery("PhoneNumber.findNumbersByContactIds", String.class)
+                    .setParameter("contactIds", contactIds)
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                    .getResultList();
+            int deleted = new PhonebookService(em).deleteContacts(contactIds);
+            return new DeletedContacts(deleted, deleted > 0 ? numbers : Collections.<String>emptyList());
+        });
+    }
+    
+    /**
+     * Result of deleteContactsAndNumbers
+     */
+    public static final class DeletedContacts {
+        
+        private final int count;
+        private final List<String> numbers;
+        
+        DeletedContacts(int count, List<String> numbers) {
+            this.count = count;
+            this.numbers = numbers;
+        }
+        
+        /**
+         * @return number of deleted Contacts
+         */
+        public int getCount() {
+            return count;
+        }
+        
+        /**
+         * @return digits of the phone numbers of the deleted Contacts
+         */
+        public List<String> getNumbers() {
+            return numbers;
+        }
+    }
+
+    /**
+     * Numbers are looked up on the primary, a lagging replica could miss a number just added
+     * 
+     * @param numbersOnly filtered phone numbers
+     * @return those of the numbers that exist in this database
+     */
+    public CompletableFuture<List<String>> findExistingNumbers(Collection<String> numbersOnly) {
+        if (numbersOnly.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.<String>emptyList());
+        }
+        return write(em -> em.createNamedQuery("PhoneNumber.findNumbers", String.class)
+                .setParameter("numbers", numbersOnly)
+                .getResultList());
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deletePhoneNumber(Integer contactId, String phoneNumber) {
+        return write(em -> new PhonebookService(em).deletePhoneNumber(contactId, phoneNumber));
+    }
+
+    @Override
+    public CompletableFuture<AddPhoneNumberResult> insertPhoneNumber(Integer contactId, String number, String type) {
+        return write(em -> new PhonebookService(em).insertPhoneNumber(contactId, number, type));
+    }
+    
+    /**
+     * Run a read operation on a new EntityManager
+     */
+    private <T> CompletableFuture<T> read(Function<PhonebookService, T> operation) {
+        final ReadYourWrites readYourWrites = ReadYourWrites.current();
+        return CompletableFuture.supplyAsync(() -> {
+            ReadYourWrites previous = ReadYourWrites.bind(readYourWrites);
+            RoutingContext.setReadOnly(true);
+            EntityManager em = emf.createEntityManager();
+            try {
+                return operation.apply(new PhonebookService(em));
+            } finally {
+                em.close();
+                RoutingContext.setReadOnly(false);
+                ReadYourWrites.bind(previous);
+            }
+        }, executor);
+    }
+    
+    /**
+     * Run a write operation in a new resource local transaction,
+     * its after commit actions run once the transaction commits
+     */
+    private <T> CompletableFuture<T> write(Function<EntityManager, T> operation) {
+        final ReadYourWrites readYourWrites = ReadYourWrites.current();
+        return CompletableFuture.supplyAsync(() -> {
+            ReadYourWrites previous = ReadYourWrites.bind(readYourWrites);
+            List<Runnable> enclosing = AfterCommit.begin();
+            boolean committed = false;
+            EntityManager em = emf.createEntityManager();
+            EntityTransaction transaction = em.getTransaction();
+            try {
+                transaction.begin();
+                T result = operation.apply(em);
+                // A failed statement such as a duplicate number insert marks the transaction
+                if (transaction.getRollbackOnly()) {
+                    transaction.rollback();
+                } else {
+                    transaction.commit();
+                    committed = true;
+                }
+                return result;
+            } finally {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+                em.close();
+                AfterCommit.end(enclosing, committed);
+                ReadYourWrites.bind(previous);
+            }
+        }, executor);
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.syso.phonebook.collections.FrequencySketch;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.offheap.ContactCodec;
+
+/**
+ * Read cache of contacts with W-TinyLFU admission and a weight limit.
+ * 
+ * Contacts are kept serialized by ContactCodec, so a hit returns a detached
+ * copy and the weight of an entry is its record size including the phone numbers.
+ * New entries enter a small LRU window (1% of the weight). An entry leaving
+ * the window replaces the least recently used entries of the main space only
+ * if it was looked up more often recently than each of them, as estimated by
+ * a FrequencySketch, so scans and one-off lookups do not flush hot contacts.
+ * The main space is a segmented LRU: an entry hit again moves from probation
+ * to the protected segment (80% of the main space).
+ * 
+ * Lookups take no lock: entries are read from a concurrent map and the
+ * accesses are recorded in striped lossy buffers. The buffers are replayed on
+ * the sketch and the LRU lists under the lock when one of them fills up or by
+ * the next write, an access finding its buffer full and the lock taken is dropped.
+ * 
+ * A write drops the entry of the contact, a lookup stores its result only if
+ * no write happened while it ran. Writes of other application instances are
+ * seen after the TTL.
+ * 
+ * @author Vladimir Syso
+ */
+public class ContactCache implements PhonebookListener {
+    
+    // Expected record size, sizes the frequency sketch to the number of entries
+    private static final int AVERAGE_RECORD_BYTES = 64;
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+    // Frequency of an expired entry, any candidate may replace it
+    private static final int EXPIRED = -1;
+    // Read buffers, a power of two covering the processors
+    private static final int READ_BUFFERS = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+    
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long mainMaximum;
+    private final long protectedMaximum;
+    private final long ttlNanos;
+    
+    // Changed under the lock, read without it
+    private final ConcurrentMap<Integer, Node> nodes = new ConcurrentHashMap<>();
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFERS];
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    // Guarded by the lock
+    private final FrequencySketch sketch;
+    private final Segment window = new Segment();
+    private final Segment probation = new Segment();
+    private final Segment protectedSegment = new Segment();
+    
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long evictions;
+    private long rejections;
+    
+    /**
+     * @param maximumWeight total size of the cached records in bytes
+     * @param ttlSeconds time an entry is kept, 0 keeps it until it is evicted or dropped by a write
+     */
+    public ContactCache(long maximumWeight, long ttlSeconds) {
+        this.maximumWeight = Math.max(0, maximumWeight);
+        this.windowMaximum = Math.max(1, (long) (this.maximumWeight * WINDOW_SHARE));
+        this.mainMaximum = Math.max(0, this.maximumWeight - windowMaximum);
+        this.protectedMaximum = (long) (mainMaximum * PROTECTED_SHARE);
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, this.maximumWeight / AVERAGE_RECORD_BYTES));
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+    
+    /**
+     * Look up a contact and count the access for admission
+     * 
+     * @param contactId an id of a contact
+     * @return a detached copy of the cached Contact or null
+     */
+    public Contact get(int contactId) {
+        if (maximumWeight == 0) {
+            return null;
+        }
+        Node node = nodes.get(contactId);
+        recordAccess(contactId);
+        // An expired entry is dropped when its access is replayed
+        if (node == null || isExpired(node, System.nanoTime())) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return ContactCodec.decode(node.record);
+    }
+    
+    /**
+     * @return stamp to take before the lookup and pass to put
+     */
+    public long generation() {
+        return generation.get();
+    }
+    
+    /**
+     * @param contact a looked up Contact with its phone numbers
+     * @param generation stamp taken before the lookup
+     */
+    public void put(Contact contact, long generation) {
+        if (maximumWeight == 0 || contact == null || contact.getContactId() == null) {
+            return;
+        }
+        byte[] record = ContactCodec.encode(contact);
+        lock.lock();
+        try {
+            // A write during the lookup might have changed the contact
+            if (this.generation.get() != generation) {
+                return;
+            }
+            drainReadBuffers();
+            Node node = nodes.get(contact.getContactId());
+            if (node != null) {
+                drop(node);
+            }
+            node = new Node(contact.getContactId(), record, ttlNanos > 0 ? System.nanoTime() + ttlNanos : 0);
+            nodes.put(node.key, node);
+            window.addFirst(node);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Drop a contact changed by a write
+     * 
+     * @param contactId an id of a contact
+     */
+    public void invalidate(int contactId) {
+        lock.lock();
+        try {
+            generation.incrementAndGet();
+            Node node = nodes.get(contactId);
+            if (node != null) {
+                drop(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void contactsDeleted(Collection<Integer> contactIds) {
+        lock.lock();
+        try {
+            generation.incrementAndGet();
+            for (Integer contactId : contactIds) {
+                Node node = nodes.get(contactId);
+                if (node != null) {
+                    drop(node);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void clear() {
+        lock.lock();
+        try {
+            generation.incrementAndGet();
+            while (window.last != null) {
+                drop(window.last);
+            }
+            while (probation.last != null) {
+                drop(probation.last);
+            }
+            while (protectedSegment.last != null) {
+                drop(protectedSegment.last);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * @return cached contacts including expired ones not dropped yet
+     */
+    public int size() {
+        return nodes.size();
+    }
+    
+    /**
+     * @return total size of the cached records in bytes
+     */
+    public long getWeightedSize() {
+        lock.lock();
+        try {
+            return window.weight + probation.weight + protectedSegment.weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+    
+    /**
+     * @return lookups answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    /**
+     * @return lookups that went to the backend
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+    
+    /**
+     * @return share of lookups answered from the cache, 0 before the first lookup
+     */
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return lookups == 0 ? 0 : (double) hitCount / lookups;
+    }
+    
+    /**
+     * @return entries removed from the main space to admit others
+     */
+    public long getEvictions() {
+        lock.lock();
+        try {
+            return evictions;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * @return entries leaving the window that were not admitted to the main space
+     */
+    public long getRejections() {
+        lock.lock();
+        try {
+            return rejections;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Record an access without waiting for the lock
+     */
+    private void recordAccess(int contactId) {
+        ReadBuffer buffer = readBuffers[(int) Thread.currentThread().getId() & (READ_BUFFERS - 1)];
+        if (buffer.offer(contactId)) {
+            return;
+        }
+        if (lock.tryLock()) {
+            try {
+                drainReadBuffers();
+                buffer.offer(contactId);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Replay recorded accesses, must be called under the lock
+     */
+    private void drainReadBuffers() {
+        long now = System.nanoTime();
+        for (ReadBuffer buffer : readBuffers) {
+            long head = buffer.readCounter;
+            long tail = buffer.writeCounter.get();
+            for (; head < tail; head++) {
+                int index = (int) head & ReadBuffer.MASK;
+                long access = buffer.slots.get(index);
+                // Claimed but not written yet
+                if (access == ReadBuffer.EMPTY) {
+                    break;
+                }
+                buffer.slots.lazySet(index, ReadBuffer.EMPTY);
+                onAccess((int) access, now);
+            }
+            buffer.readCounter = head;
+        }
+    }
+    
+    private void onAccess(int contactId, long now) {
+        sketch.increment(contactId);
+        Node node = nodes.get(contactId);
+        if (node == null) {
+            return;
+        }
+        if (isExpired(node, now)) {
+            drop(node);
+        } else {
+            onHit(node);
+        }
+    }
+    
+    private void onHit(Node node) {
+        if (node.segment == probation) {
+            probation.remove(node);
+            protectedSegment.addFirst(node);
+            // Entries pushed out of the protected segment get another chance in probation
+            while (protectedSegment.weight > protectedMaximum && protectedSegment.last != node) {
+                Node demoted = protectedSegment.last;
+                protectedSegment.remove(demoted);
+                probation.addFirst(demoted);
+            }
+        } else {
+            Segment segment = node.segment;
+            segment.remove(node);
+            segment.addFirst(node);
+        }
+    }
+    
+    private void evict() {
+        while (window.weight > windowMaximum) {
+            Node candidate = window.last;
+            window.remove(candidate);
+            admit(candidate);
+        }
+    }
+    
+    /**
+     * Move the candidate to probation if it is more popular than each entry it replaces
+     */
+    private void admit(Node candidate) {
+        if (candidate.weight > mainMaximum) {
+            nodes.remove(candidate.key, candidate);
+            rejections++;
+            return;
+        }
+        
+        long excess = probation.weight + protectedSegment.weight + candidate.weight - mainMaximum;
+        if (excess > 0) {
+            long now = System.nanoTime();
+            int candidateFrequency = sketch.frequency(candidate.key);
+            long freed = 0;
+            for (Node victim = firstVictim(); freed < excess; victim = nextVictim(victim)) {
+                int victimFrequency = isExpired(victim, now) ? EXPIRED : sketch.frequency(victim.key);
+                if (victimFrequency >= candidateFrequency) {
+                    nodes.remove(candidate.key, candidate);
+                    rejections++;
+                    return;
+                }
+                freed += victim.weight;
+            }
+            while (excess > 0) {
+                Node victim = firstVictim();
+                excess -= victim.weight;
+                drop(victim);
+                evictions++;
+            }
+        }
+        probation.addFirst(candidate);
+    }
+    
+    /**
+     * Victims are taken from the least recently used end of probation, then of the protected segment
+     */
+    private Node firstVictim() {
+        return probation.last != null ? probation.last : protectedSegment.last;
+    }
+    
+    private Node nextVictim(Node victim) {
+        if (victim.previous != null) {
+            return victim.previous;
+        }
+        return victim.segment == probation ? protectedSegment.last : null;
+    }
+    
+    private boolean isExpired(Node node, long now) {
+        return ttlNanos > 0 && node.expiresAt - now <= 0;
+    }
+    
+    private void drop(Node node) {
+        node.segment.remove(node);
+        nodes.remove(node.key, node);
+    }
+    
+    private static final class Node {
+        
+        final int key;
+        final byte[] record;
+        final int weight;
+        final long expiresAt;
+        Segment segment;
+        Node previous;
+        Node next;
+
+        Node(int key, byte[] record, long expiresAt) {
+            this.key = key;
+            this.record = record;
+            this.weight = record.length;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    /**
+     * Lossy ring of accessed contact ids, filled without the lock and drained under it
+     */
+    private static final class ReadBuffer {
+        
+        static final int SIZE = 16;
+        static final int MASK = SIZE - 1;
+        static final long EMPTY = 0;
+        // Marks a written slot, so contact id 0 is not taken for an empty one
+        static final long PRESENT = 1L << 32;
+        
+        final AtomicLongArray slots = new AtomicLongArray(SIZE);
+        final AtomicLong writeCounter = new AtomicLong();
+        // Written under the lock
+        volatile long readCounter;
+        
+        /**
+         * @return false if the buffer is full, an access losing the race for a slot is dropped
+         */
+        boolean offer(int contactId) {
+            long tail = writeCounter.get();
+            if (tail - readCounter >= SIZE) {
+                return false;
+            }
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                slots.lazySet((int) tail & MASK, PRESENT | (contactId & 0xFFFFFFFFL));
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * LRU list of entries, the first is the most recently used
+     */
+    private static final class Segment {
+        
+        Node first;
+        Node last;
+        long weight;
+        
+        void addFirst(Node node) {
+            node.segment = this;
+            node.previous = null;
+            node.next = first;
+            if (first != null) {
+                first.previous = node;
+            } else {
+                last = node;
+            }
+            first = node;
+            weight += node.weight;
+        }
+        
+        void remove(Node node) {
+            if (node.previous != null) {
+                node.previous.next = node.next;
+            } else {
+                first = node.next;
+            }
+            if (node.next != null) {
+                node.next.previous = node.previous;
+            } else {
+                last = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            node.segment = null;
+            weight -= node.weight;
+        }
+    }
+}
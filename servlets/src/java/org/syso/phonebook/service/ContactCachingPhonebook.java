@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.Collection;
+import java.util.List;
+import org.syso.phonebook.datasource.ReadYourWrites;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.metrics.FlightRecorderEvents;
+
+/**
+ * Phonebook answering read-only contact lookups from a ContactCache,
+ * all other operations go to the backend and writes drop the changed contacts.
+ * A changed contact is dropped at once and again after the commit, so a lookup
+ * running before the commit can not leave the old copy in the cache.
+ * 
+ * GET /contacts and number searches do not touch the cache, so they can not
+ * push hot contacts out. Requests that must read their own writes from the
+ * primary bypass it.
+ * 
+ * @author Vladimir Syso
+ */
+public class ContactCachingPhonebook implements Phonebook {
+    
+    private final Phonebook phonebook;
+    private final ContactCache cache;
+
+    /**
+     * @param phonebook backend
+     * @param cache shared cache registered as a PhonebookListener
+     */
+    public ContactCachingPhonebook(Phonebook phonebook, ContactCache cache) {
+        this.phonebook = phonebook;
+        this.cache = cache;
+    }
+
+    @Override
+    public Contact findContact(Integer contactId, boolean readOnly) {
+        if (!readOnly || contactId == null || isSticky()) {
+            return phonebook.findContact(contactId, readOnly);
+        }
+        
+        Contact contact = cache.get(contactId);
+        FlightRecorderEvents.cacheAccess("contact", contactId, contact != null);
+        if (contact != null) {
+            return contact;
+        }
+        long generation = cache.generation();
+        contact = phonebook.findContact(contactId, true);
+        if (contact != null) {
+            cache.put(contact, generation);
+        }
+        return contact;
+    }
+
+    @Override
+    public Contact findContact(Integer contactId) {
+        return phonebook.findContact(contactId);
+    }
+
+    @Override
+    public List<Contact> findAllContacts() {
+        return phonebook.findAllContacts();
+    }
+
+    @Override
+    public List<Contact> findContactsByPhoneNumber(String phoneNumber, Boolean match) {
+        return phonebook.findContactsByPhoneNumber(phoneNumber, match);
+    }
+
+    @Override
+    public Contact createContact(String firstName, String lastName) {
+        return phonebook.createContact(firstName, lastName);
+    }
+
+    @Override
+    public Contact updateContact(Integer contactId, String firstName, String lastName) {
+        try {
+            return phonebook.updateContact(contactId, firstName, lastName);
+        } finally {
+            invalidate(contactId);
+        }
+    }
+
+    @Override
+    public boolean deleteContact(Integer contactId) {
+        try {
+            return phonebook.deleteContact(contactId);
+        } finally {
+            invalidate(contactId);
+        }
+    }
+
+    @Override
+    public int deleteContacts(Collection<Integer> contactIds) {
+        try {
+            return phonebook.deleteContacts(contactIds);
+        } finally {
+            if (contactIds != null) {
+                contactIds.forEach(this::invalidate);
+            }
+        }
+    }
+
+    @Override
+    public boolean deletePhoneNumber(Integer contactId, String phoneNumber) {
+        try {
+            return phonebook.deletePhoneNumber(contactId, phoneNumber);
+        } finally {
+            invalidate(contactId);
+        }
+    }
+
+    @Override
+    public AddPhoneNumberResult insertPhoneNumber(Integer contactId, String number, String type) {
+        try {
+            return phonebook.insertPhoneNumber(contactId, number, type);
+        } finally {
+            invalidate(contactId);
+        }
+    }
+    
+    private void invalidate(Integer contactId) {
+        if (contactId != null) {
+            cache.invalidate(contactId);
+            AfterCommit.run(() -> cache.invalidate(contactId));
+        }
+    }
+    
+    private static boolean isSticky() {
+        ReadYourWrites readYourWrites = ReadYourWrites.current();
+        return readYourWrites != null && readYourWrites.isSticky();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.Collection;
+import java.util.List;
+import org.syso.phonebook.domain.Contact;
+
+/**
+ * Phonebook counting looked up contacts and numbers in HotKeys before
+ * passing every operation to the backend.
+ * 
+ * Number searches and the duplicate checks of inserted numbers are counted by
+ * HotKeys.numberKey.
+ * 
+ * @author Vladimir Syso
+ */
+public class HotKeysPhonebook implements Phonebook {
+    
+    private final Phonebook phonebook;
+    private final HotKeys numbers;
+    private final HotKeys contacts;
+
+    /**
+     * @param phonebook backend
+     * @param numbers counts of looked up numbers, shared by all requests
+     * @param contacts counts of looked up contact ids, shared by all requests
+     */
+    public HotKeysPhonebook(Phonebook phonebook, HotKeys numbers, HotKeys contacts) {
+        this.phonebook = phonebook;
+        this.numbers = numbers;
+        this.contacts = contacts;
+    }
+    
+    @Override
+    public Contact findContact(Integer contactId) {
+        recordContact(contactId);
+        return phonebook.findContact(contactId);
+    }
+
+    @Override
+    public Contact findContact(Integer contactId, boolean readOnly) {
+        recordContact(contactId);
+        return phonebook.findContact(contactId, readOnly);
+    }
+
+    @Override
+    public List<Contact> findContactsByPhoneNumber(String phoneNumber, Boolean match) {
+        if (phoneNumber != null && match != null) {
+            numbers.record(HotKeys.numberKey(phoneNumber, match));
+        }
+        return phonebook.findContactsByPhoneNumber(phoneNumber, match);
+    }
+
+    @Override
+    public List<Contact> findAllContacts() {
+        return phonebook.findAllContacts();
+    }
+
+    @Override
+    public Contact createContact(String firstName, String lastName) {
+        return phonebook.createContact(firstName, lastName);
+    }
+
+    @Override
+    public Contact updateContact(Integer contactId, String firstName, String lastName) {
+        return phonebook.updateContact(contactId, firstName, lastName);
+    }
+
+    @Override
+    public boolean deleteContact(Integer contactId) {
+        return phonebook.deleteContact(contactId);
+    }
+
+    @Override
+    public int deleteContacts(Collection<Integer> contactIds) {
+        return phonebook.deleteContacts(contactIds);
+    }
+
+    @Override
+    public boolean deletePhoneNumber(Integer contactId, String phoneNumber) {
+        return phonebook.deletePhoneNumber(contactId, phoneNumber);
+    }
+
+    @Override
+    public AddPhoneNumberResult insertPhoneNumber(Integer contactId, String number, String type) {
+        if (number != null) {
+            numbers.record(HotKeys.numberKey(number, true));
+        }
+        return phonebook.insertPhoneNumber(contactId, number, type);
+    }
+    
+    private void recordContact(Integer contactId) {
+        if (contactId != null) {
+            contacts.record(contactId);
+        }
+    }
+}
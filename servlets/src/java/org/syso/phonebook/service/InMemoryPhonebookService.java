@@ -0,0 +1,875 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.syso.phonebook.collections.IntObjectHashMap;
+import org.syso.phonebook.collections.LongIntHashMap;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneMask;
+import org.syso.phonebook.domain.PhoneNumber;
+import org.syso.phonebook.domain.PhoneType;
+import org.syso.phonebook.helpers.PhoneNumberNormalizer;
+
+/**
+ * Phonebook kept in memory without a database, for edge nodes and tests.
+ * 
+ * Contacts are immutable records in an int keyed map, phone numbers are kept and
+ * indexed packed into a long by PhoneNumberNormalizer, types and masks are interned into ids.
+ * Results and error codes are the same as of PhonebookService, including the
+ * unique phone numbers and the contacts deleted events.
+ * Readers share a lock, so lookups run in parallel and never see a half done update.
+ * 
+ * With a PhonebookJournal every write is appended to the journal first and
+ * applied to memory once the journal is synced, so readers never see a write
+ * that can be lost. Writes waiting for the sync are queued in journal order and
+ * checked by later writes, so concurrent writers still share one fsync.
+ * A failed journal write fails the operation and all writes after it.
+ * 
+ * @author Vladimir Syso
+ */
+public class InMemoryPhonebookService implements Phonebook, Closeable {
+    
+    private static final int NO_CONTACT = 0;
+    private static final NumberRecord[] NO_NUMBERS = new NumberRecord[0];
+    
+    private static final Comparator<Contact> BY_CONTACT_ID = new Comparator<Contact>() {
+        @Override
+        public int compare(Contact c1, Contact c2) {
+            return c1.getContactId().compareTo(c2.getContactId());
+        }
+    };
+    
+    private final Lock readLock;
+    private final Lock writeLock;
+    private final PhonebookJournal journal;
+    
+    private final IntObjectHashMap<ContactRecord> contacts;
+    private final LongIntHashMap numberIndex;
+    // Numbers too long to be packed, the column allows up to 45 characters
+    private final Map<String, Integer> longNumberIndex = new HashMap<>();
+    
+    private final Map<String, Integer> typeIds = new HashMap<>();
+    private final List<String> typeNames = new ArrayList<>();
+    private final Map<String, Integer> maskIds = new HashMap<>();
+    private final List<String> maskViews = new ArrayList<>();
+    
+    private int lastContactId;
+    private int lastPhoneNumberId;
+    
+    // Journaled writes waiting for the sync in journal order and the latest of them
+    // changing each contact and number, empty without journal
+    private final ArrayDeque<PendingWrite> pending = new ArrayDeque<>();
+    private final Map<Integer, PendingWrite> pendingContacts = new HashMap<>();
+    private final Map<String, PendingWrite> pendingNumbers = new HashMap<>();
+    
+    public InMemoryPhonebookService() {
+        this(1024);
+    }
+    
+    /**
+     * @param expectedContacts number of contacts to hold without resizing
+     */
+    public InMemoryPhonebookService(int expectedContacts) {
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        readLock = lock.readLock();
+        writeLock = lock.writeLock();
+        contacts = new IntObjectHashMap<>(expectedContacts);
+        numberIndex = new LongIntHashMap(expectedContacts * 2, NO_CONTACT);
+        journal = null;
+    }
+    
+    /**
+     * Recover the phonebook from the journal and keep journaling writes
+     * 
+     * @param expectedContacts number of contacts to hold without resizing
+     * @param journal opened journal, closed together with the service
+     * @throws IOException if the snapshot or journal can not be read
+     */
+    public InMemoryPhonebookService(int expectedContacts, PhonebookJournal journal) throws IOException {
+        ReadWriteLock lock = new ReentrantReadWriteLock();
+        readLock = lock.readLock();
+        writeLock = lock.writeLock();
+        contacts = new IntObjectHashMap<>(expectedContacts);
+        numberIndex = new LongIntHashMap(expectedContacts * 2, NO_CONTACT);
+        this.journal = journal;
+        journal.recover(this);
+    }
+    
+    @Override
+    public Contact findContact(Integer contactId) {
+        if (contactId == null) {
+            return null;
+        }
+        readLock.lock();
+        try {
+            ContactRecord record = contacts.get(contactId);
+            return record != null ? toContact(record) : null;
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * Every call returns a new Contact, so there is nothing to protect for read only access
+     */
+    @Override
+    public Contact findContact(Integer contactId, boolean readOnly) {
+        return findContact(contactId);
+    }
+    
+    @Override
+    public List<Contact> findAllContacts() {
+        final List<Contact> contactsList;
+        readLock.lock();
+        try {
+            contactsList = new ArrayList<>(contacts.size());
+            contacts.forEach((contactId, record) -> contactsList.add(toContact(record)));
+        } finally {
+            readLock.unlock();
+        }
+        Collections.sort(contactsList, BY_CONTACT_ID);
+        return contactsList;
+    }
+    
+    @Override
+    public List<Contact> findContactsByPhoneNumber(String phoneNumber, Boolean match) {
+        if (phoneNumber == null || phoneNumber.isEmpty()) {
+            return null;
+        }
+        String numbersOnly = PhoneNumberNormalizer.digits(phoneNumber);
+        long key = PhoneNumberNormalizer.pack(numbersOnly);
+        
+        final List<Contact> contactsList = new ArrayList<>();
+        readLock.lock();
+        try {
+            if (Boolean.TRUE.equals(match)) {
+                ContactRecord record = contacts.get(indexedContact(key, numbersOnly));
+                if (record != null) {
+                    contactsList.add(toContact(record));
+                }
+                return contactsList;
+            }
+            
+            contacts.forEach((contactId, record) -> {
+                for (NumberRecord number : record.numbers) {
+                    if (number.contains(key, numbersOnly)) {
+                        contactsList.add(toContact(record));
+                        break;
+                    }
+                }
+            });
+        } finally {
+            readLock.unlock();
+        }
+        Collections.sort(contactsList, BY_CONTACT_ID);
+        return contactsList;
+    }
+    
+    @Override
+    public Contact createContact(String firstName, String lastName) {
+        if ((firstName != null && firstName.isEmpty()) && (lastName != null && lastName.isEmpty())) {
+            return null;
+        }
+        
+        Contact contact;
+        PendingWrite write;
+        writeLock.lock();
+        try {
+            int contactId = lastContactId + 1;
+            long position = journal != null ? journal.contactSaved(contactId, firstName, lastName) : 0;
+            write = begin(position);
+            lastContactId = contactId;
+            ContactRecord record = new ContactRecord(contactId, firstName, lastName, NO_NUMBERS);
+            change(write, contactId, record);
+            contact = toContact(record);
+        } catch (IOException ex) {
+            Logger.getLogger(InMemoryPhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        } finally {
+            writeLock.unlock();
+        }
+        
+        return commit(write) ? contact : null;
+    }
+    
+    @Override
+    public Contact updateContact(Integer contactId, String firstName, String lastName) {
+        
+        Contact contact = null;
+        PendingWrite write = null;
+        writeLock.lock();
+        try {
+            ContactRecord record = currentRecord(contactId);
+            if (record != null) {
+                if ((firstName != null && firstName.isEmpty()) && (lastName != null && lastName.isEmpty())) {
+                    return null;
+                }
+                firstName = firstName != null ? firstName : record.firstName;
+                lastName = lastName != null ? lastName : record.lastName;
+                long position = journal != null ? journal.contactSaved(contactId, firstName, lastName) : 0;
+                write = begin(position);
+                record = new ContactRecord(contactId, firstName, lastName, record.numbers);
+                change(write, contactId, record);
+                contact = toContact(record);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(InMemoryPhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        } finally {
+            writeLock.unlock();
+        }
+        
+        if (contact == null) {
+            return createContact(firstName, lastName);
+        }
+        return commit(write) ? contact : null;
+    }
+    
+    @Override
+    public boolean deleteContact(Integer contactId) {
+        return contactId != null && deleteContacts(Collections.singletonList(contactId)) > 0;
+    }
+    
+    @Override
+    public int deleteContacts(Collection<Integer> contactIds) {
+        if (contactIds == null || contactIds.isEmpty()) {
+            return 0;
+        }
+        
+        List<Integer> deleted = new ArrayList<>(contactIds.size());
+        PendingWrite write;
+        writeLock.lock();
+        try {
+            // All deletes are journaled before any contact is removed, a failed append removes none
+            long position = 0;
+            for (Integer contactId : contactIds) {
+                if (currentRecord(contactId) == null || deleted.contains(contactId)) {
+                    continue;
+                }
+                if (journal != null) {
+                    position = journal.contactDeleted(contactId);
+                }
+                deleted.add(contactId);
+            }
+            if (deleted.isEmpty()) {
+                return 0;
+            }
+            write = begin(position);
+            for (Integer contactId : deleted) {
+                change(write, contactId, null);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(InMemoryPhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+            return 0;
+        } finally {
+            writeLock.unlock();
+        }
+        
+        if (!commit(write)) {
+            return 0;
+        }
+        PhonebookEvents.fireContactsDeleted(deleted);
+        return deleted.size();
+    }
+    
+    @Override
+    public boolean deletePhoneNumber(Integer contactId, String phoneNumber) {
+        if (contactId == null || phoneNumber == null) {
+            return false;
+        }
+        String numbersOnly = PhoneNumberNormalizer.digits(phoneNumber);
+        long key = PhoneNumberNormalizer.pack(numbersOnly);
+        
+        PendingWrite write;
+        writeLock.lock();
+        try {
+            if (currentOwner(key, numbersOnly) != contactId) {
+                return false;
+            }
+            long position = journal != null ? journal.phoneNumberDeleted(contactId, numbersOnly) : 0;
+            write = begin(position);
+            change(write, contactId, withoutNumber(currentRecord(contactId), key, numbersOnly));
+        } catch (IOException ex) {
+            Logger.getLogger(InMemoryPhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+        
+        return commit(write);
+    }
+    
+    @Override
+    public AddPhoneNumberResult insertPhoneNumber(Integer contactId, String number, String type) {
+        if (number == null || type == null || type.isEmpty()) {
+            return AddPhoneNumberResult.INVALID;
+        }
+        String numbersOnly = PhoneNumberNormalizer.digits(number);
+        if (numbersOnly.isEmpty()) {
+            return AddPhoneNumberResult.INVALID;
+        }
+        long key = PhoneNumberNormalizer.pack(numbersOnly);
+        String maskOnly = PhoneNumberNormalizer.mask(number);
+        
+        PendingWrite write;
+        writeLock.lock();
+        try {
+            if (currentOwner(key, numbersOnly) != NO_CONTACT) {
+                return AddPhoneNumberResult.CONFLICT;
+            }
+            ContactRecord record = currentRecord(contactId);
+            if (record == null) {
+                return AddPhoneNumberResult.CONTACT_NOT_FOUND;
+            }
+            
+            int phoneNumberId = lastPhoneNumberId + 1;
+            long position = journal != null
+                    ? journal.phoneNumberAdded(contactId, phoneNumberId, numbersOnly, type, maskOnly) : 0;
+            write = begin(position);
+            lastPhoneNumberId = phoneNumberId;
+            change(write, contactId, withNumber(record, new NumberRecord(phoneNumberId, key, numbersOnly,
+                    internId(type, typeIds, typeNames), internId(maskOnly, maskIds, maskViews))));
+        } catch (IOException ex) {
+            Logger.getLogger(InMemoryPhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+            return AddPhoneNumberResult.FAILED;
+        } finally {
+            writeLock.unlock();
+        }
+        
+        if (!commit(write)) {
+            return AddPhoneNumberResult.FAILED;
+        }
+        PhonebookEvents.fireNumberAdded(numbersOnly);
+        return AddPhoneNumberResult.CREATED;
+    }
+    
+    /**
+     * @return number of stored contacts
+     */
+    public int size() {
+        readLock.lock();
+        try {
+            return contacts.size();
+        } finally {
+            readLock.unlock();
+        }
+    }
+    
+    /**
+     * Remove all contacts, ids are not reused
+     * 
+     * @return false if the journal could not be written
+     */
+    public boolean clear() {
+        writeLock.lock();
+        try {
+            if (journal != null) {
+                // Readers wait for the sync, clearing is rare. Pending writes were
+                // journaled before, so they are synced and applied first
+                journal.sync(journal.cleared());
+                applyAll();
+            }
+            clearContacts();
+        } catch (IOException ex) {
+            Logger.getLogger(InMemoryPhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+        return true;
+    }
+    
+    /**
+     * Write a snapshot of all contacts and drop the journal segments it covers.
+     * Writes are blocked only while the records are collected.
+     * 
+     * @throws IOException if the snapshot can not be written
+     */
+    public void snapshot() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        
+        State state;
+        int segment;
+        writeLock.lock();
+        try {
+            // Rolling forces the pending writes to the old segment, the snapshot must cover them
+            segment = journal.roll();
+            applyAll();
+            
+            final ContactRecord[] records = new ContactRecord[contacts.size()];
+            contacts.forEach(new IntObjectHashMap.EntryConsumer<ContactRecord>() {
+                private int i;
+                @Override
+                public void accept(int contactId, ContactRecord record) {
+                    records[i++] = record;
+                }
+            });
+            state = new State(lastContactId, lastPhoneNumberId, 
+                    new ArrayList<>(typeNames), new ArrayList<>(maskViews), records);
+        } finally {
+            writeLock.unlock();
+        }
+        
+        // Records are immutable, so they are written without the lock
+        journal.writeSnapshot(segment, state);
+    }
+    
+    /**
+     * Close the journal, if any
+     * 
+     * @throws IOException if journaled writes could not be stored
+     */
+    @Override
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+    
+    void restore(State state) {
+        writeLock.lock();
+        try {
+            clearContacts();
+            lastContactId = state.lastContactId;
+            lastPhoneNumberId = state.lastPhoneNumberId;
+            for (String typeName : state.typeNames) {
+                internId(typeName, typeIds, typeNames);
+            }
+            for (String maskView : state.maskViews) {
+                internId(maskView, maskIds, maskViews);
+            }
+            for (ContactRecord record : state.contacts) {
+                contacts.put(record.contactId, record);
+                for (NumberRecord number : record.numbers) {
+                    indexNumber(number, record.contactId);
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    void replayContactSaved(int contactId, String firstName, String lastName) {
+        writeLock.lock();
+        try {
+            lastContactId = Math.max(lastContactId, contactId);
+            ContactRecord record = contacts.get(contactId);
+            install(contactId, new ContactRecord(contactId, firstName, lastName,
+                    record != null ? record.numbers : NO_NUMBERS));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    void replayContactDeleted(int contactId) {
+        writeLock.lock();
+        try {
+            install(contactId, null);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    void replayPhoneNumberAdded(int contactId, int phoneNumberId, String digits, String type, String mask) {
+        writeLock.lock();
+        try {
+            lastPhoneNumberId = Math.max(lastPhoneNumberId, phoneNumberId);
+            ContactRecord record = contacts.get(contactId);
+            if (record != null) {
+                install(contactId, withNumber(record, new NumberRecord(phoneNumberId, digits,
+                        internId(type, typeIds, typeNames), internId(mask, maskIds, maskViews))));
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    void replayPhoneNumberDeleted(int contactId, String digits) {
+        writeLock.lock();
+        try {
+            long key = PhoneNumberNormalizer.pack(digits);
+            if (indexedContact(key, digits) == contactId) {
+                install(contactId, withoutNumber(contacts.get(contactId), key, digits));
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    void replayCleared() {
+        writeLock.lock();
+        try {
+            clearContacts();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Queue a journaled write, must be called under the write lock right after its last append
+     * 
+     * @param position journal position of the last record of the write
+     * @return the queued write or null without journal
+     */
+    private PendingWrite begin(long position) {
+        if (journal == null) {
+            return null;
+        }
+        PendingWrite write = new PendingWrite(position);
+        pending.add(write);
+        return write;
+    }
+    
+    /**
+     * Change a contact, must be called under the write lock.
+     * Without journal the change is applied at once, otherwise it is kept in the write
+     * and seen only by the checks of later writes until the write is synced.
+     * 
+     * @param write the write or null without journal
+     * @param contactId id of the contact
+     * @param record new state of the contact or null to delete it
+     */
+    private void change(PendingWrite write, int contactId, ContactRecord record) {
+        if (write == null) {
+            install(contactId, record);
+            return;
+        }
+        
+        ContactRecord previous = currentRecord(contactId);
+        if (previous != null && (record == null || previous.numbers != record.numbers)) {
+            for (NumberRecord number : previous.numbers) {
+                write.owners.put(number.digits(), NO_CONTACT);
+                pendingNumbers.put(number.digits(), write);
+            }
+        }
+        if (record != null && (previous == null || previous.numbers != record.numbers)) {
+            for (NumberRecord number : record.numbers) {
+                write.owners.put(number.digits(), contactId);
+                pendingNumbers.put(number.digits(), write);
+            }
+        }
+        write.records.put(contactId, record);
+        pendingContacts.put(contactId, write);
+    }
+    
+    /**
+     * Wait until the write is synced and apply it together with the writes journaled before it
+     * 
+     * @param write the write or null without journal
+     * @return true if the write is stored
+     */
+    private boolean commit(PendingWrite write) {
+        if (write == null) {
+            return true;
+        }
+        try {
+            journal.sync(write.position);
+        } catch (IOException ex) {
+            // Later writes fail as well, so the queued writes are never applied
+            Logger.getLogger(InMemoryPhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        }
+        
+        writeLock.lock();
+        try {
+            while (!write.applied) {
+                apply(pending.remove());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        return true;
+    }
+    
+    /**
+     * Apply all queued writes, must be called under the write lock once they are synced
+     */
+    private void applyAll() {
+        while (!pending.isEmpty()) {
+            apply(pending.remove());
+        }
+    }
+    
+    /**
+     * Must be called under the write lock, writes are applied in journal order
+     */
+    private void apply(PendingWrite write) {
+        for (Map.Entry<Integer, ContactRecord> entry : write.records.entrySet()) {
+            install(entry.getKey(), entry.getValue());
+            pendingContacts.remove(entry.getKey(), write);
+        }
+        for (String digits : write.owners.keySet()) {
+            pendingNumbers.remove(digits, write);
+        }
+        write.applied = true;
+    }
+    
+    /**
+     * Must be called under the write lock
+     * 
+     * @return the contact as of the last queued write, null if missing
+     */
+    private ContactRecord currentRecord(Integer contactId) {
+        if (contactId == null) {
+            return null;
+        }
+        PendingWrite write = pendingContacts.isEmpty() ? null : pendingContacts.get(contactId);
+        return write != null ? write.records.get(contactId) : contacts.get(contactId);
+    }
+    
+    /**
+     * Must be called under the write lock
+     * 
+     * @return owner of the number as of the last queued write or NO_CONTACT
+     */
+    private int currentOwner(long key, String digits) {
+        PendingWrite write = pendingNumbers.isEmpty() ? null : pendingNumbers.get(digits);
+        return write != null ? write.owners.get(digits) : indexedContact(key, digits);
+    }
+    
+    /**
+     * Replace a contact and reindex its numbers if they changed, must be called under the write lock
+     * 
+     * @param contactId id of the contact
+     * @param record new state of the contact or null to remove it
+     */
+    private void install(int contactId, ContactRecord record) {
+        ContactRecord previous = record != null ? contacts.put(contactId, record) : contacts.remove(contactId);
+        if (previous != null && (record == null || previous.numbers != record.numbers)) {
+            for (NumberRecord number : previous.numbers) {
+                unindexNumber(number.key, number.longDigits);
+            }
+        }
+        if (record != null && (previous == null || previous.numbers != record.numbers)) {
+            for (NumberRecord number : record.numbers) {
+                indexNumber(number, contactId);
+            }
+        }
+    }
+    
+    private static ContactRecord withNumber(ContactRecord record, NumberRecord number) {
+        NumberRecord[] numbers = Arrays.copyOf(record.numbers, record.numbers.length + 1);
+        numbers[record.numbers.length] = number;
+        return new ContactRecord(record.contactId, record.firstName, record.lastName, numbers);
+    }
+    
+    /**
+     * @return the contact without the number, the number must belong to the contact
+     */
+    private static ContactRecord withoutNumber(ContactRecord record, long key, String digits) {
+        NumberRecord[] numbers = new NumberRecord[record.numbers.length - 1];
+        int i = 0;
+        for (NumberRecord number : record.numbers) {
+            if (!number.matches(key, digits)) {
+                numbers[i++] = number;
+            }
+        }
+        return new ContactRecord(record.contactId, record.firstName, record.lastName, numbers);
+    }
+    
+    /**
+     * Must be called under the write lock
+     */
+    private void clearContacts() {
+        contacts.clear();
+        numberIndex.clear();
+        longNumberIndex.clear();
+    }
+    
+    /**
+     * @param key packed digits of a phone number
+     * @param digits the same digits, looked up if they are not packed
+     * @return id of the owner or NO_CONTACT
+     */
+    private int indexedContact(long key, String digits) {
+        if (key != PhoneNumberNormalizer.NOT_PACKED) {
+            return numberIndex.get(key);
+        }
+        Integer contactId = longNumberIndex.get(digits);
+        return contactId != null ? contactId : NO_CONTACT;
+    }
+    
+    private void indexNumber(NumberRecord number, int contactId) {
+        if (number.key != PhoneNumberNormalizer.NOT_PACKED) {
+            numberIndex.put(number.key, contactId);
+        } else {
+            longNumberIndex.put(number.longDigits, contactId);
+        }
+    }
+    
+    private void unindexNumber(long key, String digits) {
+        if (key != PhoneNumberNormalizer.NOT_PACKED) {
+            numberIndex.remove(key);
+        } else {
+            longNumberIndex.remove(digits);
+        }
+    }
+    
+    /**
+     * Must be called under the write lock
+     */
+    private static int internId(String value, Map<String, Integer> ids, List<String> values) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            values.add(value);
+            id = values.size();
+            ids.put(value, id);
+        }
+        return id;
+    }
+    
+    /**
+     * Build a detached Contact, must be called under a lock
+     */
+    private Contact toContact(ContactRecord record) {
+        Contact contact = new Contact(record.contactId);
+        contact.setFirstName(record.firstName);
+        contact.setLastName(record.lastName);
+        
+        List<PhoneNumber> phoneNumbers = new ArrayList<>(record.numbers.length);
+        for (NumberRecord number : record.numbers) {
+            PhoneNumber phoneNumber = new PhoneNumber(number.phoneNumberId, record.contactId);
+            phoneNumber.setNumber(number.digits());
+            phoneNumber.setType(new PhoneType(number.typeId, typeNames.get(number.typeId - 1)));
+            phoneNumber.setPhoneMaskId(new PhoneMask(number.maskId, maskViews.get(number.maskId - 1)));
+            phoneNumber.setContact(contact);
+            phoneNumbers.add(phoneNumber);
+        }
+        contact.setPhoneNumbers(phoneNumbers);
+        return contact;
+    }
+    
+    /**
+     * Immutable contact state, replaced as a whole on every change
+     */
+    static final class ContactRecord {
+        
+        final int contactId;
+        final String firstName;
+        final String lastName;
+        final NumberRecord[] numbers;
+
+        ContactRecord(int contactId, String firstName, String lastName, NumberRecord[] numbers) {
+            this.contactId = contactId;
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.numbers = numbers;
+        }
+    }
+    
+    /**
+     * A phone number of a contact, the digits are kept as a String only if they can not be packed
+     */
+    static final class NumberRecord {
+        
+        final int phoneNumberId;
+        final long key;
+        final String longDigits;
+        final int typeId;
+        final int maskId;
+
+        NumberRecord(int phoneNumberId, String digits, int typeId, int maskId) {
+            this(phoneNumberId, PhoneNumberNormalizer.pack(digits), digits, typeId, maskId);
+        }
+
+        NumberRecord(int phoneNumberId, long key, String digits, int typeId, int maskId) {
+            this.phoneNumberId = phoneNumberId;
+            this.key = key;
+            this.longDigits = key == PhoneNumberNormalizer.NOT_PACKED ? digits : null;
+            this.typeId = typeId;
+            this.maskId = maskId;
+        }
+        
+        String digits() {
+            return longDigits != null ? longDigits : PhoneNumberNormalizer.unpack(key);
+        }
+        
+        boolean matches(long key, String digits) {
+            return key != PhoneNumberNormalizer.NOT_PACKED ? key == this.key : digits.equals(longDigits);
+        }
+        
+        boolean contains(long partKey, String part) {
+            if (key != PhoneNumberNormalizer.NOT_PACKED && partKey != PhoneNumberNormalizer.NOT_PACKED) {
+                return PhoneNumberNormalizer.contains(key, partKey);
+            }
+            return digits().contains(part);
+        }
+    }
+    
+    /**
+     * Contacts and numbers changed by a journaled write, applied once the journal is synced
+     */
+    private static final class PendingWrite {
+        
+        final long position;
+        // New states of the contacts, null for deleted ones
+        final Map<Integer, ContactRecord> records = new HashMap<>(4);
+        // New owners of the numbers, NO_CONTACT for deleted ones
+        final Map<String, Integer> owners = new HashMap<>(4);
+        boolean applied;
+
+        PendingWrite(long position) {
+            this.position = position;
+        }
+    }
+    
+    /**
+     * Everything a snapshot holds, type and mask ids are positions in their lists plus one
+     */
+    static final class State {
+        
+        final int lastContactId;
+        final int lastPhoneNumberId;
+        final List<String> typeNames;
+        final List<String> maskViews;
+        final ContactRecord[] contacts;
+
+        State(int lastContactId, int lastPhoneNumberId, List<String> typeNames, List<String> maskViews,
+                ContactRecord[] contacts) {
+            this.lastContactId = lastContactId;
+            this.lastPhoneNumberId = lastPhoneNumberId;
+            this.typeNames = typeNames;
+            this.maskViews = maskViews;
+            this.contacts = contacts;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.helpers.PhoneNumberNormalizer;
+import org.syso.phonebook.metrics.FlightRecorderEvents;
+
+/**
+ * Phonebook answering repeated number searches that matched nothing from a NegativeResultCache,
+ * all other operations go to the backend
+ * 
+ * @author Vladimir Syso
+ */
+public class NegativeCachingPhonebook implements Phonebook {
+    
+    private final Phonebook phonebook;
+    private final NegativeResultCache cache;
+
+    /**
+     * @param phonebook backend
+     * @param cache shared cache registered as a PhonebookListener
+     */
+    public NegativeCachingPhonebook(Phonebook phonebook, NegativeResultCache cache) {
+        this.phonebook = phonebook;
+        this.cache = cache;
+    }
+
+    @Override
+    public List<Contact> findContactsByPhoneNumber(String phoneNumber, Boolean match) {
+        if (phoneNumber == null || phoneNumber.isEmpty() || match == null) {
+            return phonebook.findContactsByPhoneNumber(phoneNumber, match);
+        }
+        
+        String numbersOnly = PhoneNumberNormalizer.digits(phoneNumber);
+        boolean knownMiss = cache.isKnownMiss(numbersOnly, match);
+        FlightRecorderEvents.cacheAccess(match ? "negative" : "negativePartial", numbersOnly, knownMiss);
+        if (knownMiss) {
+            return new ArrayList<>();
+        }
+        
+        long generation = cache.generation();
+        List<Contact> contactsList = phonebook.findContactsByPhoneNumber(phoneNumber, match);
+        if (contactsList != null && contactsList.isEmpty()) {
+            cache.putMiss(numbersOnly, match, generation);
+        }
+        return contactsList;
+    }
+
+    @Override
+    public Contact findContact(Integer contactId) {
+        return phonebook.findContact(contactId);
+    }
+
+    @Override
+    public Contact findContact(Integer contactId, boolean readOnly) {
+        return phonebook.findContact(contactId, readOnly);
+    }
+
+    @Override
+    public List<Contact> findAllContacts() {
+        return phonebook.findAllContacts();
+    }
+
+    @Override
+    public Contact createContact(String firstName, String lastName) {
+        return phonebook.createContact(firstName, lastName);
+    }
+
+    @Override
+    public Contact updateContact(Integer contactId, String firstName, String lastName) {
+        return phonebook.updateContact(contactId, firstName, lastName);
+    }
+
+    @Override
+    public boolean deleteContact(Integer contactId) {
+        return phonebook.deleteContact(contactId);
+    }
+
+    @Override
+    public int deleteContacts(Collection<Integer> contactIds) {
+        return phonebook.deleteContacts(contactIds);
+    }
+
+    @Override
+    public boolean deletePhoneNumber(Integer contactId, String phoneNumber) {
+        return phonebook.deletePhoneNumber(contactId, phoneNumber);
+    }
+
+    @Override
+    public AddPhoneNumberResult insertPhoneNumber(Integer contactId, String number, String type) {
+        return phonebook.insertPhoneNumber(contactId, number, type);
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.syso.phonebook.collections.CuckooFilter;
+import org.syso.phonebook.helpers.PhoneNumberNormalizer;
+
+/**
+ * In-heap filter of the phone numbers in the database, answers definite
+ * misses of number lookups without a query.
+ * 
+ * The CuckooFilter is built from the phone_number table and kept up to date
+ * by the number writes of this instance. Numbers added while a rebuild reads
+ * the table are collected and added to the new filter before the swap.
+ * Numbers deleted meanwhile and numbers of deleted contacts stay in the
+ * filter until the next rebuild, they only cost a query.
+ * Until the first build every number counts as present.
+ * 
+ * @author Vladimir Syso
+ */
+public class NumberFilter implements Closeable {
+    
+    private final int capacity;
+    private final double falsePositiveRate;
+    // Lookups read optimistically, writes and the swap lock exclusively
+    private final StampedLock lock = new StampedLock();
+    private final Object rebuildLock = new Object();
+    
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+    
+    private CuckooFilter filter;
+    private Keys addedDuringRebuild;
+    private ScheduledExecutorService rebuilds;
+    
+    /**
+     * @param capacity minimal number of numbers to hold, the filter grows with the table on rebuilds
+     * @param falsePositiveRate wanted rate of absent numbers that still need a query
+     */
+    public NumberFilter(int capacity, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        this.capacity = capacity;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+    
+    /**
+     * @param digits digits of a phone number
+     * @return false if the number is definitely not in the phonebook
+     */
+    public boolean mightContain(String digits) {
+        long key = key(digits);
+        boolean result;
+        
+        long stamp = lock.tryOptimisticRead();
+        result = filter == null || filter.mightContain(key);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                result = filter == null || filter.mightContain(key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        
+        lookups.increment();
+        if (!result) {
+            misses.increment();
+        }
+        return result;
+    }
+    
+    /**
+     * Count a lookup that passed the filter but found nothing
+     */
+    public void falsePositive() {
+        falsePositives.increment();
+    }
+    
+    /**
+     * @param digits digits of the added number
+     */
+    public void numberAdded(String digits) {
+        long key = key(digits);
+        long stamp = lock.writeLock();
+        try {
+            if (filter != null) {
+                filter.add(key);
+            }
+            if (addedDuringRebuild != null) {
+                addedDuringRebuild.add(key);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * @param digits digits of a number deleted from the database
+     */
+    public void numberDeleted(String digits) {
+        long key = key(digits);
+        long stamp = lock.writeLock();
+        try {
+            // During a rebuild the number may be added to the new filter after this, so it is kept
+            if (filter != null && addedDuringRebuild == null) {
+                filter.remove(key);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Build a new filter from all numbers and swap it in
+     * 
+     * @param source all phone numbers with their owners
+     */
+    public void rebuild(ReverseLookupIndex.NumberSource source) {
+        synchronized (rebuildLock) {
+            
+            long start = System.currentTimeMillis();
+            long stamp = lock.writeLock();
+            try {
+                addedDuringRebuild = new Keys();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            
+            CuckooFilter rebuilt;
+            try {
+                Keys keys = new Keys();
+                source.forEachNumber((digits, contactId) -> keys.add(key(digits)));
+                // Room for the numbers added until the next rebuild
+                rebuilt = new CuckooFilter(Math.max(capacity, keys.count + keys.count / 4), falsePositiveRate);
+                for (int i = 0; i < keys.count; i++) {
+                    rebuilt.add(keys.keys[i]);
+                }
+            } catch (RuntimeException ex) {
+                stamp = lock.writeLock();
+                try {
+                    addedDuringRebuild = null;
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+                throw ex;
+            }
+            
+            stamp = lock.writeLock();
+            try {
+                for (int i = 0; i < addedDuringRebuild.count; i++) {
+                    rebuilt.add(addedDuringRebuild.keys[i]);
+                }
+                addedDuringRebuild = null;
+                filter = rebuilt;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            
+            Logger.getLogger(NumberFilter.class.getName()).log(rebuilt.isSaturated() ? Level.WARNING : Level.INFO, 
+                    "Built number filter in {0} ms: {1}", new Object[]{System.currentTimeMillis() - start, this});
+        }
+    }
+    
+    /**
+     * Rebuild the filter periodically, the first build runs at once
+     * 
+     * @param source all phone numbers with their owners
+     * @param intervalSeconds time between builds
+     */
+    public synchronized void startRebuilds(final ReverseLookupIndex.NumberSource source, long intervalSeconds) {
+        if (rebuilds != null) {
+            return;
+        }
+        rebuilds = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "phonebook-number-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rebuilds.scheduleWithFixedDelay(() -> {
+            try {
+                rebuild(source);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(NumberFilter.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Stop rebuilds
+     */
+    @Override
+    public synchronized void close() {
+        if (rebuilds != null) {
+            rebuilds.shutdownNow();
+            rebuilds = null;
+        }
+    }
+    
+    /**
+     * @return configured false positive rate
+     */
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+    
+    /**
+     * @return false positive rate expected from the current load, 1 before the first build
+     */
+    public double getExpectedFalsePositiveRate() {
+        long stamp = lock.readLock();
+        try {
+            return filter != null ? filter.getExpectedFalsePositiveRate() : 1;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    /**
+     * @return bytes of the fingerprint table
+     */
+    public long getMemoryBytes() {
+        long stamp = lock.readLock();
+        try {
+            return filter != null ? filter.getMemoryBytes() : 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    /**
+     * @return number of numbers in the filter
+     */
+    public int getSize() {
+        long stamp = lock.readLock();
+        try {
+            return filter != null ? filter.size() : 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    public long getLookups() {
+        return lookups.sum();
+    }
+    
+    /**
+     * @return lookups answered without a query
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+    
+    /**
+     * @return lookups that passed the filter and found nothing
+     */
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+    
+    /**
+     * @return share of the lookups of absent numbers that passed the filter
+     */
+    public double getObservedFalsePositiveRate() {
+        long falsePositiveCount = falsePositives.sum();
+        long absent = misses.sum() + falsePositiveCount;
+        return absent > 0 ? falsePositiveCount / (double) absent : 0;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d numbers, %d KB, false positive rate %.4f configured, %.4f expected, %.4f observed", 
+                getSize(), getMemoryBytes() / 1024, falsePositiveRate, getExpectedFalsePositiveRate(), 
+                getObservedFalsePositiveRate());
+    }
+    
+    /**
+     * Numbers too long to be packed are filtered by their hash
+     */
+    private static long key(String digits) {
+        long key = PhoneNumberNormalizer.pack(digits);
+        return key != PhoneNumberNormalizer.NOT_PACKED ? key : -1L - (digits.hashCode() & 0xFFFFFFFFL);
+    }
+    
+    /**
+     * Growable array of filter keys
+     */
+    private static final class Keys {
+        
+        long[] keys = new long[1024];
+        int count;
+        
+        void add(long key) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+            }
+            keys[count++] = key;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+
+/**
+ * Global phone number to shard directory kept in the phone_number_directory table.
+ * 
+ * Its primary key makes phone numbers unique across all shards: a number is
+ * reserved here before it is inserted into a shard and released after it is
+ * deleted from the shard.
+ * 
+ * @author Vladimir Syso
+ */
+public class PhoneNumberDirectory {
+    
+    private final EntityManagerFactory emf;
+    private final Executor executor;
+    
+    /**
+     * @param emf factory of RESOURCE_LOCAL entity managers of the database holding the directory
+     * @param executor runs database operations
+     */
+    public PhoneNumberDirectory(EntityManagerFactory emf, Executor executor) {
+        this.emf = emf;
+        this.executor = executor;
+    }
+    
+    /**
+     * @param numbersOnly filtered phone number
+     * @param shard owning the number
+     * @return true if reserved, false if the number is owned already
+     */
+    public CompletableFuture<Boolean> reserve(String numbersOnly, int shard) {
+        return execute(em -> {
+            try {
+                em.createNativeQuery("INSERT INTO phone_number_directory (phone_number, shard) VALUES (?, ?)")
+                        .setParameter(1, numbersOnly)
+                        .setParameter(2, shard)
+                        .executeUpdate();
+                return true;
+            } catch (PersistenceException ex) {
+                if (ConstraintViolations.isDuplicateKey(ex)) {
+                    return false;
+                }
+                throw ex;
+            }
+        });
+    }
+    
+    /**
+     * @param numbersOnly filtered phone number
+     * @return shard owning the number or null if the number is unknown
+     */
+    public CompletableFuture<Integer> findShard(String numbersOnly) {
+        return execute(em -> {
+            List<?> shards = em.createNativeQuery("SELECT shard FROM phone_number_directory WHERE phone_number = ?")
+                    .setParameter(1, numbersOnly)
+                    .getResultList();
+            return shards.isEmpty() ? null : ((Number) shards.get(0)).intValue();
+        });
+    }
+    
+    /**
+     * @param shard index of a shard
+     * @return filtered phone numbers owned by the shard
+     */
+    public CompletableFuture<List<String>> findNumbers(int shard) {
+        return execute(em -> {
+            List<?> numbers = em.createNativeQuery("SELECT phone_number FROM phone_number_directory WHERE shard = ?")
+                    .setParameter(1, shard)
+                    .getResultList();
+            List<String> numbersOnly = new ArrayList<>(numbers.size());
+            for (Object number : numbers) {
+                numbersOnly.add((String) number);
+            }
+            return numbersOnly;
+        });
+    }
+    
+    /**
+     * @param numbersOnly filtered phone numbers deleted from their shard
+     * @param shard owning the numbers, numbers owned by another shard are kept
+     * @return number of released numbers
+     */
+    public CompletableFuture<Integer> release(Collection<String> numbersOnly, int shard) {
+        if (numbersOnly.isEmpty()) {
+            return CompletableFuture.completedFuture(0);
+        }
+        return execute(em -> {
+            int released = 0;
+            for (String number : numbersOnly) {
+                released += em.createNativeQuery("DELETE FROM phone_number_directory WHERE phone_number = ? AND shard = ?")
+                        .setParameter(1, number)
+                        .setParameter(2, shard)
+                        .executeUpdate();
+            }
+            return released;
+        });
+    }
+    
+    /**
+     * Run an operation in a new resource local transaction
+     */
+    private <T> CompletableFuture<T> execute(Function<EntityManager, T> operation) {
+        return CompletableFuture.supplyAsync(() -> {
+            EntityManager em = emf.createEntityManager();
+            EntityTransaction transaction = em.getTransaction();
+            try {
+                transaction.begin();
+                T result = operation.apply(em);
+                // A rejected reservation leaves the transaction marked for rollback
+                if (transaction.getRollbackOnly()) {
+                    transaction.rollback();
+                } else {
+                    transaction.commit();
+                }
+                return result;
+            } finally {
+                if (transaction.isActive()) {
+                    transaction.rollback();
+                }
+                em.close();
+            }
+        }, executor);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.Collection;
+import java.util.List;
+import org.syso.phonebook.domain.Contact;
+
+/**
+ * Phonebook operations used by the controllers.
+ * Implemented by the JPA backed PhonebookService and by InMemoryPhonebookService,
+ * the backend is selected by PhonebookBackends.
+ * 
+ * @author Vladimir Syso
+ */
+public interface Phonebook {
+    
+    /**
+     * @param contactId an id of a contact
+     * @return a Contact found by the id or null
+     */
+    Contact findContact(Integer contactId);
+    
+    /**
+     * @param contactId an id of a contact
+     * @param readOnly the Contact is only displayed and must not be modified
+     * @return a Contact found by the id or null
+     */
+    Contact findContact(Integer contactId, boolean readOnly);
+    
+    /**
+     * @return all contacts
+     */
+    List<Contact> findAllContacts();
+    
+    /**
+     * @param phoneNumber un-filtered number to match
+     * @param match the whole number of just a part of it
+     * @return matched Contacts or null if the number is empty
+     */
+    List<Contact> findContactsByPhoneNumber(String phoneNumber, Boolean match);
+    
+    /**
+     * @param firstName first name
+     * @param lastName last name
+     * @return created Contact or null if both names are empty
+     */
+    Contact createContact(String firstName, String lastName);
+    
+    /**
+     * Update names of a Contact or create a new one if there is no such id
+     * 
+     * @param contactId an id of a contact
+     * @param firstName first name, null keeps the current one
+     * @param lastName last name, null keeps the current one
+     * @return updated Contact or null
+     */
+    Contact updateContact(Integer contactId, String firstName, String lastName);
+    
+    /**
+     * @param contactId an id of a contact
+     * @return true if the contact was deleted
+     */
+    boolean deleteContact(Integer contactId);
+    
+    /**
+     * @param contactIds ids of contacts
+     * @return number of deleted contacts
+     */
+    int deleteContacts(Collection<Integer> contactIds);
+    
+    /**
+     * @param contactId owner of specific phone number
+     * @param phoneNumber un-filtered phone number
+     * @return true if the number was deleted
+     */
+    boolean deletePhoneNumber(Integer contactId, String phoneNumber);
+    
+    /**
+     * @param contactId owner of the number
+     * @param number formatted phone number
+     * @param type type name of the number
+     * @return outcome of the insert
+     */
+    AddPhoneNumberResult insertPhoneNumber(Integer contactId, String number, String type);
+}
@@ -0,0 +1,425 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.transaction.UserTransaction;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.journal.FsyncPolicy;
+
+/**
+ * Selects the Phonebook backend of the controllers.
+ * The backend is set via system property, e.g. -Dphonebook.backend=memory,
+ * JPA is used by default.
+ * The in-memory backend is durable if a journal directory is set,
+ * e.g. -Dphonebook.memory.journal=/var/lib/phonebook.
+ * The JPA backend answers exact number lookups from a reverse lookup index
+ * if its file is set, e.g. -Dphonebook.reverseIndex.file=/var/lib/phonebook/numbers.idx,
+ * and definite number misses from a number filter if it is enabled, e.g. -Dphonebook.numberFilter=true.
+ * Number searches that matched nothing are remembered if the negative cache
+ * has a size, e.g. -Dphonebook.negativeCache.size=10000.
+ * Concurrent identical read-only lookups share one query if enabled
+ * with -Dphonebook.singleFlight=true.
+ * Read-only contact lookups are cached if the contact cache has a size,
+ * e.g. -Dphonebook.contactCache.maxBytes=67108864.
+ * The most looked up numbers and contacts of the last minute are counted
+ * if enabled with -Dphonebook.hotKeys=true.
+ * 
+ * The properties selecting the components are read once. The components are
+ * created on first use and read without locking, so create() costs no lock per request.
+ * 
+ * @author Vladimir Syso
+ */
+public final class PhonebookBackends {
+    
+    public static final String BACKEND_PROPERTY = "phonebook.backend";
+    
+    public static final String BACKEND_JPA = "jpa";
+    public static final String BACKEND_MEMORY = "memory";
+    
+    public static final String JOURNAL_PROPERTY = "phonebook.memory.journal";
+    public static final String FSYNC_PROPERTY = "phonebook.memory.fsync";
+    public static final String FSYNC_INTERVAL_PROPERTY = "phonebook.memory.fsyncIntervalMillis";
+    public static final String SNAPSHOT_INTERVAL_PROPERTY = "phonebook.memory.snapshotIntervalSeconds";
+    
+    public static final String REVERSE_INDEX_PROPERTY = "phonebook.reverseIndex.file";
+    public static final String REVERSE_INDEX_REBUILD_PROPERTY = "phonebook.reverseIndex.rebuildIntervalSeconds";
+    
+    public static final String NUMBER_FILTER_PROPERTY = "phonebook.numberFilter";
+    public static final String NUMBER_FILTER_CAPACITY_PROPERTY = "phonebook.numberFilter.capacity";
+    public static final String NUMBER_FILTER_FPR_PROPERTY = "phonebook.numberFilter.falsePositiveRate";
+    public static final String NUMBER_FILTER_REBUILD_PROPERTY = "phonebook.numberFilter.rebuildIntervalSeconds";
+    
+    public static final String NEGATIVE_CACHE_SIZE_PROPERTY = "phonebook.negativeCache.size";
+    public static final String NEGATIVE_CACHE_TTL_PROPERTY = "phonebook.negativeCache.ttlSeconds";
+    
+    public static final String SINGLE_FLIGHT_PROPERTY = "phonebook.singleFlight";
+    
+    public static final String CONTACT_CACHE_SIZE_PROPERTY = "phonebook.contactCache.maxBytes";
+    public static final String CONTACT_CACHE_TTL_PROPERTY = "phonebook.contactCache.ttlSeconds";
+    
+    public static final String HOT_KEYS_PROPERTY = "phonebook.hotKeys";
+    public static final String HOT_KEYS_SIZE_PROPERTY = "phonebook.hotKeys.size";
+    public static final String HOT_KEYS_WINDOW_PROPERTY = "phonebook.hotKeys.windowSeconds";
+    
+    private static final int EXPECTED_CONTACTS = 1024;
+    private static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 100;
+    private static final long DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 600;
+    private static final long DEFAULT_REBUILD_INTERVAL_SECONDS = 3600;
+    private static final int DEFAULT_FILTER_CAPACITY = 1000000;
+    private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    private static final long DEFAULT_NEGATIVE_CACHE_TTL_SECONDS = 30;
+    private static final long DEFAULT_CONTACT_CACHE_TTL_SECONDS = 300;
+    private static final int DEFAULT_HOT_KEYS_SIZE = 20;
+    private static final long DEFAULT_HOT_KEYS_WINDOW_SECONDS = 60;
+    
+    // Written under the class lock, read without it
+    private static volatile InMemoryPhonebookService memoryService;
+    private static volatile ReverseLookupIndex reverseLookupIndex;
+    private static volatile NumberFilter numberFilter;
+    private static volatile NegativeResultCache negativeResultCache;
+    private static volatile ContactCache contactCache;
+    private static volatile HotKeys hotNumbers;
+    private static volatile HotKeys hotContacts;
+    
+    private static final SingleFlight<Integer, Contact> CONTACT_LOOKUPS = new SingleFlight<>();
+    private static final SingleFlight<String, List<Contact>> NUMBER_LOOKUPS = new SingleFlight<>();
+    
+    private PhonebookBackends() {
+    }
+    
+    /**
+     * Properties selecting the components, read on first use
+     */
+    private static final class Settings {
+        static final boolean MEMORY_BACKEND = BACKEND_MEMORY.equalsIgnoreCase(System.getProperty(BACKEND_PROPERTY, BACKEND_JPA));
+        static final boolean SINGLE_FLIGHT = Boolean.parseBoolean(System.getProperty(SINGLE_FLIGHT_PROPERTY, "false"));
+        static final boolean HOT_KEYS = Boolean.parseBoolean(System.getProperty(HOT_KEYS_PROPERTY, "false"));
+        static final int NEGATIVE_CACHE_SIZE = Integer.getInteger(NEGATIVE_CACHE_SIZE_PROPERTY, 0);
+        static final long CONTACT_CACHE_SIZE = Long.getLong(CONTACT_CACHE_SIZE_PROPERTY, 0);
+    }
+    
+    /**
+     * @return true if the in-memory backend was requested via system property
+     */
+    public static boolean isMemoryBackend() {
+        return Settings.MEMORY_BACKEND;
+    }
+    
+    /**
+     * Application wide in-memory backend, created on first use and recovered
+     * from the journal if one is configured
+     * 
+     * @return shared in-memory service
+     * @throws IllegalStateException if the journal can not be recovered
+     */
+    public static InMemoryPhonebookService getMemoryService() {
+        InMemoryPhonebookService service = memoryService;
+        return service != null ? service : createMemoryService();
+    }
+    
+    private static synchronized InMemoryPhonebookService createMemoryService() {
+        if (memoryService != null) {
+            return memoryService;
+        }
+        
+        String directory = System.getProperty(JOURNAL_PROPERTY);
+        if (directory == null || directory.isEmpty()) {
+            memoryService = new InMemoryPhonebookService(EXPECTED_CONTACTS);
+            return memoryService;
+        }
+        
+        FsyncPolicy fsyncPolicy = FsyncPolicy.valueOf(System.getProperty(FSYNC_PROPERTY, FsyncPolicy.ALWAYS.name()).toUpperCase());
+        long fsyncIntervalMillis = Long.getLong(FSYNC_INTERVAL_PROPERTY, DEFAULT_FSYNC_INTERVAL_MILLIS);
+        long snapshotIntervalSeconds = Long.getLong(SNAPSHOT_INTERVAL_PROPERTY, DEFAULT_SNAPSHOT_INTERVAL_SECONDS);
+        
+        try {
+            PhonebookJournal journal = new PhonebookJournal(Paths.get(directory), fsyncPolicy, fsyncIntervalMillis);
+            InMemoryPhonebookService service = new InMemoryPhonebookService(EXPECTED_CONTACTS, journal);
+            if (snapshotIntervalSeconds > 0) {
+                journal.startSnapshots(service, snapshotIntervalSeconds);
+            }
+            memoryService = service;
+        } catch (IOException ex) {
+            // Serving an empty phonebook would lose the journaled data on the next snapshot
+            throw new IllegalStateException("Can not recover the phonebook from " + directory, ex);
+        }
+        return memoryService;
+    }
+    
+    /**
+     * Map the reverse lookup index of the JPA backend and schedule its rebuilds, if configured
+     * 
+     * @param emf factory of the phonebook persistence unit
+     */
+    public static synchronized void startReverseLookupIndex(EntityManagerFactory emf) {
+        
+        String file = System.getProperty(REVERSE_INDEX_PROPERTY);
+        if (file == null || file.isEmpty() || isMemoryBackend() || reverseLookupIndex != null) {
+            return;
+        }
+        
+        ReverseLookupIndex index = new ReverseLookupIndex(Paths.get(file));
+        try {
+            index.open();
+        } catch (IOException ex) {
+            // Lookups go to the database until the first rebuild
+            Logger.getLogger(PhonebookBackends.class.getName()).log(Level.WARNING, null, ex);
+        }
+        PhonebookEvents.addListener(index);
+        index.startRebuilds(ReverseLookupIndex.fromDatabase(emf), 
+                Long.getLong(REVERSE_INDEX_REBUILD_PROPERTY, DEFAULT_REBUILD_INTERVAL_SECONDS));
+        reverseLookupIndex = index;
+    }
+    
+    /**
+     * @return reverse lookup index of the JPA backend or null if it is not configured
+     */
+    public static ReverseLookupIndex getReverseLookupIndex() {
+        return reverseLookupIndex;
+    }
+    
+    /**
+     * Build the number filter of the JPA backend and schedule its rebuilds, if enabled
+     * 
+     * @param emf factory of the phonebook persistence unit
+     */
+    public static synchronized void startNumberFilter(EntityManagerFactory emf) {
+        
+        if (!Boolean.getBoolean(NUMBER_FILTER_PROPERTY) || isMemoryBackend() || numberFilter != null) {
+            return;
+        }
+        
+        String falsePositiveRate = System.getProperty(NUMBER_FILTER_FPR_PROPERTY);
+        NumberFilter filter = new NumberFilter(Integer.getInteger(NUMBER_FILTER_CAPACITY_PROPERTY, DEFAULT_FILTER_CAPACITY),
+                falsePositiveRate != null ? Double.parseDouble(falsePositiveRate) : DEFAULT_FALSE_POSITIVE_RATE);
+        filter.startRebuilds(ReverseLookupIndex.fromDatabase(emf), 
+                Long.getLong(NUMBER_FILTER_REBUILD_PROPERTY, DEFAULT_REBUILD_INTERVAL_SECONDS));
+        numberFilter = filter;
+    }
+    
+    /**
+     * @return number filter of the JPA backend or null if it is not enabled
+     */
+    public static NumberFilter getNumberFilter() {
+        return numberFilter;
+    }
+    
+    /**
+     * @return cache of number searches that matched nothing or null if it has no size
+     */
+    public static NegativeResultCache getNegativeResultCache() {
+        NegativeResultCache cache = negativeResultCache;
+        return cache != null || Settings.NEGATIVE_CACHE_SIZE <= 0 ? cache : createNegativeResultCache();
+    }
+    
+    private static synchronized NegativeResultCache createNegativeResultCache() {
+        if (negativeResultCache == null) {
+            NegativeResultCache cache = new NegativeResultCache(Settings.NEGATIVE_CACHE_SIZE, 
+                    Long.getLong(NEGATIVE_CACHE_TTL_PROPERTY, DEFAULT_NEGATIVE_CACHE_TTL_SECONDS));
+            PhonebookEvents.addListener(cache);
+            negativeResultCache = cache;
+        }
+        return negativeResultCache;
+    }
+    
+    /**
+     * @return read cache of contacts or null if it has no size
+     */
+    public static ContactCache getContactCache() {
+        ContactCache cache = contactCache;
+        return cache != null || Settings.CONTACT_CACHE_SIZE <= 0 ? cache : createContactCache();
+    }
+    
+    private static synchronized ContactCache createContactCache() {
+        if (contactCache == null) {
+            ContactCache cache = new ContactCache(Settings.CONTACT_CACHE_SIZE, 
+                    Long.getLong(CONTACT_CACHE_TTL_PROPERTY, DEFAULT_CONTACT_CACHE_TTL_SECONDS));
+            PhonebookEvents.addListener(cache);
+            contactCache = cache;
+        }
+        return contactCache;
+    }
+    
+    /**
+     * @return most looked up numbers, counted while the application runs, or null if they are not counted
+     */
+    public static HotKeys getHotNumbers() {
+        HotKeys hotKeys = hotNumbers;
+        return hotKeys != null || !Settings.HOT_KEYS ? hotKeys : createHotNumbers();
+    }
+    
+    private static synchronized HotKeys createHotNumbers() {
+        if (hotNumbers == null) {
+            HotKeys hotKeys = HotKeys.forNumbers(Integer.getInteger(HOT_KEYS_SIZE_PROPERTY, DEFAULT_HOT_KEYS_SIZE),
+                    Long.getLong(HOT_KEYS_WINDOW_PROPERTY, DEFAULT_HOT_KEYS_WINDOW_SECONDS));
+            hotKeys.start();
+            hotNumbers = hotKeys;
+        }
+        return hotNumbers;
+    }
+    
+    /**
+     * @return most looked up contact ids, counted while the application runs, or null if they are not counted
+     */
+    public static HotKeys getHotContacts() {
+        HotKeys hotKeys = hotContacts;
+        return hotKeys != null || !Settings.HOT_KEYS ? hotKeys : createHotContacts();
+    }
+    
+    private static synchronized HotKeys createHotContacts() {
+        if (hotContacts == null) {
+            HotKeys hotKeys = HotKeys.forContacts(Integer.getInteger(HOT_KEYS_SIZE_PROPERTY, DEFAULT_HOT_KEYS_SIZE),
+                    Long.getLong(HOT_KEYS_WINDOW_PROPERTY, DEFAULT_HOT_KEYS_WINDOW_SECONDS));
+            hotKeys.start();
+            hotContacts = hotKeys;
+        }
+        return hotContacts;
+    }
+    
+    /**
+     * @return counters of the backend components keyed by metric name
+     */
+    public static synchronized Map<String, Number> getStats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("singleFlight.contact.calls", CONTACT_LOOKUPS.getCalls());
+        stats.put("singleFlight.contact.coalesced", CONTACT_LOOKUPS.getCoalesced());
+        stats.put("singleFlight.number.calls", NUMBER_LOOKUPS.getCalls());
+        stats.put("singleFlight.number.coalesced", NUMBER_LOOKUPS.getCoalesced());
+        if (contactCache != null) {
+            stats.put("contactCache.size", contactCache.size());
+            stats.put("contactCache.weightedSize", contactCache.getWeightedSize());
+            stats.put("contactCache.maximumWeight", contactCache.getMaximumWeight());
+            stats.put("contactCache.hits", contactCache.getHits());
+            stats.put("contactCache.misses", contactCache.getMisses());
+            stats.put("contactCache.hitRatio", contactCache.getHitRatio());
+            stats.put("contactCache.evictions", contactCache.getEvictions());
+            stats.put("contactCache.rejections", contactCache.getRejections());
+        }
+        if (negativeResultCache != null) {
+            stats.put("negativeCache.size", negativeResultCache.size());
+            stats.put("negativeCache.hits", negativeResultCache.getHits());
+        }
+        if (numberFilter != null) {
+            stats.put("numberFilter.size", numberFilter.getSize());
+            stats.put("numberFilter.memoryBytes", numberFilter.getMemoryBytes());
+            stats.put("numberFilter.lookups", numberFilter.getLookups());
+            stats.put("numberFilter.misses", numberFilter.getMisses());
+            stats.put("numberFilter.falsePositives", numberFilter.getFalsePositives());
+            stats.put("numberFilter.expectedFalsePositiveRate", numberFilter.getExpectedFalsePositiveRate());
+        }
+        if (reverseLookupIndex != null) {
+            stats.put("reverseIndex.fileCount", reverseLookupIndex.getFileCount());
+            stats.put("reverseIndex.deltaSize", reverseLookupIndex.getDeltaSize());
+        }
+        return stats;
+    }
+    
+    /**
+     * Close the journal of the in-memory backend, stop the index and filter rebuilds and the hot key ticks
+     */
+    public static synchronized void shutdown() {
+        if (reverseLookupIndex != null) {
+            PhonebookEvents.removeListener(reverseLookupIndex);
+            reverseLookupIndex.close();
+            reverseLookupIndex = null;
+        }
+        if (numberFilter != null) {
+            numberFilter.close();
+            numberFilter = null;
+        }
+        if (negativeResultCache != null) {
+            PhonebookEvents.removeListener(negativeResultCache);
+            negativeResultCache = null;
+        }
+        if (contactCache != null) {
+            PhonebookEvents.removeListener(contactCache);
+            contactCache = null;
+        }
+        if (hotNumbers != null) {
+            hotNumbers.close();
+            hotNumbers = null;
+        }
+        if (hotContacts != null) {
+            hotContacts.close();
+            hotContacts = null;
+        }
+        if (memoryService == null) {
+            return;
+        }
+        try {
+            memoryService.close();
+        } catch (IOException ex) {
+            Logger.getLogger(PhonebookBackends.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        memoryService = null;
+    }
+    
+    /**
+     * @param em entity manager of the JPA backend
+     * @return configured backend
+     */
+    public static Phonebook create(EntityManager em) {
+        return create(em, null);
+    }
+    
+    /**
+     * @param em entity manager of the JPA backend
+     * @param ut user transaction of the JPA backend, null for container managed transactions
+     * @return configured backend
+     */
+    public static Phonebook create(EntityManager em, UserTransaction ut) {
+        if (isMemoryBackend()) {
+            return tracked(getMemoryService());
+        }
+        Phonebook phonebook = new PhonebookService(em, ut, getReverseLookupIndex(), getNumberFilter());
+        if (Settings.SINGLE_FLIGHT) {
+            phonebook = new CoalescingPhonebook(phonebook, CONTACT_LOOKUPS, NUMBER_LOOKUPS);
+        }
+        ContactCache contacts = getContactCache();
+        if (contacts != null) {
+            phonebook = new ContactCachingPhonebook(phonebook, contacts);
+        }
+        NegativeResultCache cache = getNegativeResultCache();
+        if (cache != null) {
+            phonebook = new NegativeCachingPhonebook(phonebook, cache);
+        }
+        return tracked(phonebook);
+    }
+    
+    private static Phonebook tracked(Phonebook phonebook) {
+        if (Settings.HOT_KEYS) {
+            phonebook = new HotKeysPhonebook(phonebook, getHotNumbers(), getHotContacts());
+        }
+        return new TimedPhonebook(phonebook);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of Phonebook Listeners shared by all service instances.
+ * Events are delivered once the transaction of the caller commits and
+ * dropped if it rolls back, so listeners never see uncommitted changes.
+ * 
+ * @author Vladimir Syso
+ */
+public final class PhonebookEvents {
+    
+    private static final List<PhonebookListener> LISTENERS = new CopyOnWriteArrayList<>();
+    
+    private PhonebookEvents() {
+    }
+    
+    public static void addListener(PhonebookListener listener) {
+        LISTENERS.add(listener);
+    }
+    
+    public static void removeListener(PhonebookListener listener) {
+        LISTENERS.remove(listener);
+    }
+    
+    /**
+     * Notifies listeners about deleted contacts after the commit, a failing listener does not stop the others
+     * 
+     * @param contactIds ids of the removed contacts
+     */
+    public static void fireContactsDeleted(Collection<Integer> contactIds) {
+        AfterCommit.run(() -> contactsDeleted(contactIds));
+    }
+    
+    private static void contactsDeleted(Collection<Integer> contactIds) {
+        for (PhonebookListener listener : LISTENERS) {
+            try {
+                listener.contactsDeleted(contactIds);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(PhonebookEvents.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    /**
+     * Notifies listeners about an added phone number after the commit, a failing listener does not stop the others
+     * 
+     * @param numbersOnly digits of the added number
+     */
+    public static void fireNumberAdded(String numbersOnly) {
+        AfterCommit.run(() -> numberAdded(numbersOnly));
+    }
+    
+    private static void numberAdded(String numbersOnly) {
+        for (PhonebookListener listener : LISTENERS) {
+            try {
+                listener.numberAdded(numbersOnly);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(PhonebookEvents.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
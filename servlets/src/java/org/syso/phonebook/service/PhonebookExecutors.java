@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.enterprise.concurrent.ContextService;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * Executors for request processing and PhonebookService calls.
+ * 
+ * The execution mode is selected by the <code>phonebook.execution</code> system
+ * property: <code>platform</code> (default) runs tasks on a bounded pool of platform
+ * threads, <code>virtual</code> runs every task on its own virtual thread when the
+ * JVM supports them (Java 21+) and falls back to the platform pool otherwise.
+ * 
+ * Known pinning hotspots in virtual mode, a virtual thread blocked inside a
+ * <code>synchronized</code> block keeps its carrier thread:
+ * <ul>
+ * <li>MySQL Connector/J 5.x synchronizes every statement execution on the connection mutex</li>
+ * <li>EclipseLink synchronizes on the session while acquiring a connection and
+ * in its ConcurrencyManager while building objects</li>
+ * <li>the container connection pool synchronizes while a connection is handed out</li>
+ * </ul>
+ * Run with <code>-Djdk.tracePinnedThreads=full</code> to list pinned frames.
+ * 
+ * @author Vladimir Syso
+ */
+public final class PhonebookExecutors {
+    
+    public static final String EXECUTION_MODE_PROPERTY = "phonebook.execution";
+    public static final String POOL_SIZE_PROPERTY = "phonebook.execution.poolSize";
+    public static final String CONTEXT_SERVICE_PROPERTY = "phonebook.execution.contextService";
+    
+    /** Default context service of Java EE 7 containers */
+    public static final String DEFAULT_CONTEXT_SERVICE = "java:comp/DefaultContextService";
+    
+    public static final String MODE_PLATFORM = "platform";
+    public static final String MODE_VIRTUAL = "virtual";
+    
+    // Matches max-pool-size of the JDBC connection pool
+    private static final int DEFAULT_POOL_SIZE = 32;
+    
+    private static ExecutorService sharedExecutor;
+    
+    private PhonebookExecutors() {        
+    }
+    
+    /**
+     * @return true if the virtual thread mode was requested via system property
+     */
+    public static boolean isVirtualMode() {
+        return MODE_VIRTUAL.equalsIgnoreCase(System.getProperty(EXECUTION_MODE_PROPERTY, MODE_PLATFORM));
+    }
+    
+    /**
+     * Application wide executor, created on first use in the configured mode
+     * 
+     * @return shared executor
+     */
+    public static synchronized ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null || sharedExecutor.isShutdown()) {
+            sharedExecutor = newExecutor("phonebook", isVirtualMode());
+        }
+        return sharedExecutor;
+    }
+    
+    /**
+     * Container context service for work that needs the container context of a
+     * request on threads the container does not manage: a contextual proxy runs
+     * its task with the naming context and class loader of the component that
+     * created it, so the UserTransaction and the container EntityManager work
+     * on the virtual threads of the shared executor too.
+     * 
+     * @return context service named by phonebook.execution.contextService or null if it can not be looked up
+     */
+    public static ContextService lookupContextService() {
+        String name = System.getProperty(CONTEXT_SERVICE_PROPERTY, DEFAULT_CONTEXT_SERVICE);
+        try {
+            return (ContextService) new InitialContext().lookup(name);
+        } catch (NamingException | ClassCastException ex) {
+            Logger.getLogger(PhonebookExecutors.class.getName()).log(Level.WARNING,
+                    "Context service " + name + " is not available", ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Shutdown the shared executor waiting for running tasks to complete
+     */
+    public static synchronized void shutdown() {
+        if (sharedExecutor == null) {
+            return;
+        }
+        sharedExecutor.shutdown();
+        try {
+            sharedExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        sharedExecutor = null;
+    }
+    
+    /**
+     * Create a new executor
+     * 
+     * @param name prefix for thread names
+     * @param virtual run each task on a new virtual thread
+     * @return a new executor, platform thread pool if virtual threads are not available
+     */
+    public static ExecutorService newExecutor(String name, boolean virtual) {
+        
+        if (virtual) {
+            ExecutorService executor = newVirtualThreadExecutor(name);
+            if (executor != null) {
+                return executor;
+            }
+            Logger.getLogger(PhonebookExecutors.class.getName()).log(Level.WARNING, 
+                    "Virtual threads are not supported by this JVM, using platform threads");
+        }
+        
+        int poolSize = Integer.getInteger(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE);
+        return Executors.newFixedThreadPool(poolSize, new NamedThreadFactory(name));
+    }
+    
+    /**
+     * Virtual threads are looked up reflectively to keep the sources Java 8 compatible
+     * 
+     * @param name prefix for thread names
+     * @return thread per task executor or null if virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadExecutor(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-virtual-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+            
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+            // Not supported or preview features are disabled
+            return null;
+        }
+    }
+    
+    /**
+     * Daemon thread factory with sequential names
+     */
+    private static final class NamedThreadFactory implements ThreadFactory {
+        
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.prefix = name + "-platform-";
+        }
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, prefix + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.CRC32;
+import org.syso.phonebook.journal.FsyncPolicy;
+import org.syso.phonebook.journal.Journal;
+import org.syso.phonebook.service.InMemoryPhonebookService.ContactRecord;
+import org.syso.phonebook.service.InMemoryPhonebookService.NumberRecord;
+import org.syso.phonebook.service.InMemoryPhonebookService.State;
+
+/**
+ * Durability of InMemoryPhonebookService: every write is appended to the
+ * journal, snapshots keep the whole state compact so the restart cost is a
+ * snapshot load plus replay of the segments written after it.
+ * 
+ * A snapshot is written to a temporary file, forced and renamed, then the
+ * segments it covers are deleted.
+ * 
+ * @author Vladimir Syso
+ */
+public class PhonebookJournal implements Closeable {
+    
+    private static final byte CONTACT_SAVED = 1;
+    private static final byte CONTACT_DELETED = 2;
+    private static final byte NUMBER_ADDED = 3;
+    private static final byte NUMBER_DELETED = 4;
+    private static final byte CLEARED = 5;
+    
+    private static final int SNAPSHOT_MAGIC = 0x50425331;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final Journal journal;
+    private final Path directory;
+    private ScheduledExecutorService snapshots;
+    
+    /**
+     * @param directory directory of the journal segments and snapshots
+     * @param fsyncPolicy when records are forced to the disk
+     * @param fsyncIntervalMillis flush interval for the INTERVAL policy
+     * @throws IOException if the journal can not be opened
+     */
+    public PhonebookJournal(Path directory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) throws IOException {
+        this.journal = new Journal(directory, fsyncPolicy, fsyncIntervalMillis);
+        this.directory = directory;
+    }
+    
+    public Path getDirectory() {
+        return directory;
+    }
+    
+    /**
+     * Take a snapshot of the phonebook periodically
+     * 
+     * @param phonebook phonebook using this journal
+     * @param intervalSeconds time between snapshots
+     */
+    public synchronized void startSnapshots(final InMemoryPhonebookService phonebook, long intervalSeconds) {
+        if (snapshots != null) {
+            return;
+        }
+        snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "phonebook-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshots.scheduleWithFixedDelay(() -> {
+            try {
+                phonebook.snapshot();
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(PhonebookJournal.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Stop snapshots and close the journal
+     * 
+     * @throws IOException if appended records could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (snapshots != null) {
+                snapshots.shutdown();
+                try {
+                    snapshots.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                snapshots = null;
+            }
+        }
+        journal.close();
+    }
+    
+    long contactSaved(int contactId, String firstName, String lastName) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(CONTACT_SAVED);
+        out.writeInt(contactId);
+        writeNullable(out, firstName);
+        writeNullable(out, lastName);
+        return journal.append(bytes.toByteArray());
+    }
+    
+    long contactDeleted(int contactId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(CONTACT_DELETED);
+        out.writeInt(contactId);
+        return journal.append(bytes.toByteArray());
+    }
+    
+    long phoneNumberAdded(int contactId, int phoneNumberId, String digits, String type, String mask) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(NUMBER_ADDED);
+        out.writeInt(contactId);
+        out.writeInt(phoneNumberId);
+        out.writeUTF(digits);
+        out.writeUTF(type);
+        out.writeUTF(mask);
+        return journal.append(bytes.toByteArray());
+    }
+    
+    long phoneNumberDeleted(int contactId, String digits) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(NUMBER_DELETED);
+        out.writeInt(contactId);
+        out.writeUTF(digits);
+        return journal.append(bytes.toByteArray());
+    }
+    
+    long cleared() throws IOException {
+        return journal.append(new byte[]{CLEARED});
+    }
+    
+    /**
+     * @param position value returned by an append
+     * @throws IOException if the record could not be written
+     */
+    void sync(long position) throws IOException {
+        journal.sync(position);
+    }
+    
+    /**
+     * Start a new segment, must be called while writes are blocked
+     * 
+     * @return the first segment not covered by the state captured meanwhile
+     * @throws IOException if the journal could not be rolled
+     */
+    int roll() throws IOException {
+        return journal.roll();
+    }
+    
+    /**
+     * Load the latest snapshot and replay the segments written after it
+     * 
+     * @param phonebook empty phonebook to restore
+     * @throws IOException if the snapshot or journal can not be read
+     */
+    void recover(InMemoryPhonebookService phonebook) throws IOException {
+        
+        long start = System.nanoTime();
+        int fromSegment = 1;
+        
+        List<Integer> snapshotSegments = snapshotSegments();
+        if (!snapshotSegments.isEmpty()) {
+            fromSegment = snapshotSegments.get(snapshotSegments.size() - 1);
+            phonebook.restore(readSnapshot(snapshotPath(fromSegment)));
+        }
+        long snapshotMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        
+        long records = journal.replay(fromSegment, payload -> replay(phonebook, payload));
+        
+        Logger.getLogger(PhonebookJournal.class.getName()).log(Level.INFO, 
+                "Recovered {0} contacts from {1}: snapshot {2} ms, {3} records replayed in {4} ms", 
+                new Object[]{phonebook.size(), directory, snapshotMillis, records, 
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) - snapshotMillis});
+    }
+    
+    /**
+     * Write the state captured before the segment was started, then drop the
+     * older snapshots and segments
+     * 
+     * @param segment the first segment not covered by the state
+     * @param state captured state of the phonebook
+     * @throws IOException if the snapshot can not be written
+     */
+    void writeSnapshot(int segment, State state) throws IOException {
+        
+        Path temporary = directory.resolve(SNAPSHOT_PREFIX + segment + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, 
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            
+            CheckedOutputStream checked = new CheckedOutputStream(Channels.newOutputStream(channel), new CRC32());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, BUFFER_SIZE));
+            
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(segment);
+            out.writeInt(state.lastContactId);
+            out.writeInt(state.lastPhoneNumberId);
+            writeStrings(out, state.typeNames);
+            writeStrings(out, state.maskViews);
+            
+            out.writeInt(state.contacts.length);
+            for (ContactRecord contact : state.contacts) {
+                out.writeInt(contact.contactId);
+                writeNullable(out, contact.firstName);
+                writeNullable(out, contact.lastName);
+                out.writeInt(contact.numbers.length);
+                for (NumberRecord number : contact.numbers) {
+                    out.writeInt(number.phoneNumberId);
+                    out.writeUTF(number.digits());
+                    out.writeInt(number.typeId);
+                    out.writeInt(number.maskId);
+                }
+            }
+            out.flush();
+            
+            ByteBuffer trailer = ByteBuffer.allocate(8).putLong(checked.getChecksum().getValue());
+            trailer.flip();
+            while (trailer.hasRemaining()) {
+                channel.write(trailer);
+            }
+            channel.force(true);
+        }
+        
+        Files.move(temporary, snapshotPath(segment), StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+        
+        for (int older : snapshotSegments()) {
+            if (older < segment) {
+                Files.deleteIfExists(snapshotPath(older));
+            }
+        }
+        journal.deleteSegmentsBefore(segment);
+    }
+    
+    private State readSnapshot(Path path) throws IOException {
+        
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE)) {
+            
+            CheckedInputStream checked = new CheckedInputStream(stream, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a phonebook snapshot: " + path);
+            }
+            in.readInt();
+            int lastContactId = in.readInt();
+            int lastPhoneNumberId = in.readInt();
+            List<String> typeNames = readStrings(in);
+            List<String> maskViews = readStrings(in);
+            
+            ContactRecord[] contacts = new ContactRecord[in.readInt()];
+            for (int i = 0; i < contacts.length; i++) {
+                int contactId = in.readInt();
+                String firstName = readNullable(in);
+                String lastName = readNullable(in);
+                NumberRecord[] numbers = new NumberRecord[in.readInt()];
+                for (int j = 0; j < numbers.length; j++) {
+                    numbers[j] = new NumberRecord(in.readInt(), in.readUTF(), in.readInt(), in.readInt());
+                }
+                contacts[i] = new ContactRecord(contactId, firstName, lastName, numbers);
+            }
+            
+            long checksum = checked.getChecksum().getValue();
+            if (new DataInputStream(stream).readLong() != checksum) {
+                throw new IOException("Corrupt phonebook snapshot: " + path);
+            }
+            return new State(lastContactId, lastPhoneNumberId, typeNames, maskViews, contacts);
+        }
+    }
+    
+    private static void replay(InMemoryPhonebookService phonebook, byte[] payload) throws IOException {
+        
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        switch (type) {
+            case CONTACT_SAVED:
+                phonebook.replayContactSaved(in.readInt(), readNullable(in), readNullable(in));
+                break;
+            case CONTACT_DELETED:
+                phonebook.replayContactDeleted(in.readInt());
+                break;
+            case NUMBER_ADDED:
+                phonebook.replayPhoneNumberAdded(in.readInt(), in.readInt(), in.readUTF(), in.readUTF(), in.readUTF());
+                break;
+            case NUMBER_DELETED:
+                phonebook.replayPhoneNumberDeleted(in.readInt(), in.readUTF());
+                break;
+            case CLEARED:
+                phonebook.replayCleared();
+                break;
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+    
+    private List<Integer> snapshotSegments() throws IOException {
+        List<Integer> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Integer.parseInt(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    // Not a snapshot
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+    
+    private Path snapshotPath(int segment) {
+        return directory.resolve(SNAPSHOT_PREFIX + segment + SNAPSHOT_SUFFIX);
+    }
+    
+    /**
+     * Make the rename durable, not supported on every platform
+     */
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ex) {
+            Logger.getLogger(PhonebookJournal.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+    
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+    
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(in.readUTF());
+        }
+        return values;
+    }
+    
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+    
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -29,14 +29,22 @@ import org.syso.phonebook.domain.PhoneMask;
 import org.syso.phonebook.domain.PhoneNumber;
 import org.syso.phonebook.domain.PhoneNumberPK;
 import org.syso.phonebook.domain.PhoneType;
+import org.syso.phonebook.helpers.PhoneNumberNormalizer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.persistence.EntityExistsException;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.FlushModeType;
 import javax.persistence.NoResultException;
+import javax.persistence.PersistenceException;
 import javax.persistence.TransactionRequiredException;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
@@ -49,10 +57,22 @@ import javax.transaction.UserTransaction;
  *
  * @author Vladimir Syso
  */
-public class PhonebookService {
+public class PhonebookService implements Phonebook {
+    
+    // Phone types and masks are never removed, so their ids can be kept for the application lifetime.
+    // Ids differ between databases, so they are kept per EntityManagerFactory while it is open
+    private static final ConcurrentMap<EntityManagerFactory, ConcurrentMap<String, Integer>> PHONE_TYPE_IDS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<EntityManagerFactory, ConcurrentMap<String, Integer>> PHONE_MASK_IDS = new ConcurrentHashMap<>();
+    
+    // EclipseLink QueryHints.READ_ONLY, results are not registered in the persistence context,
+    // so there is nothing to snapshot or to check for changes on commit
+    private static final String READ_ONLY_HINT = "eclipselink.read-only";
+    private static final Map<String, Object> READ_ONLY_PROPERTIES = Collections.singletonMap(READ_ONLY_HINT, "true");
     
     EntityManager em;
     UserTransaction ut;
+    private final ReverseLookupIndex reverseIndex;
+    private final NumberFilter numberFilter;
     
     /**
      * Constructs the service wit Entity Manager only
@@ -62,6 +82,8 @@ public class PhonebookService {
     public PhonebookService(EntityManager em){
         this.em = em;
         this.ut = null;
+        this.reverseIndex = null;
+        this.numberFilter = null;
     }
     
     /**
@@ -71,8 +93,33 @@ public class PhonebookService {
      * @param ut UserTransaction object
      */
     public PhonebookService(EntityManager em, UserTransaction ut){
+        this(em, ut, null);
+    }
+    
+    /**
+     * Constructs the service answering exact number lookups from the reverse lookup index
+     * 
+     * @param em EntityManager object
+     * @param ut UserTransaction object, null for container managed transactions
+     * @param reverseIndex index of the numbers in this database or null
+     */
+    public PhonebookService(EntityManager em, UserTransaction ut, ReverseLookupIndex reverseIndex){
+        this(em, ut, reverseIndex, null);
+    }
+    
+    /**
+     * Constructs the service answering definite number misses from the number filter
+     * 
+     * @param em EntityManager object
+     * @param ut UserTransaction object, null for container managed transactions
+     * @param reverseIndex index of the numbers in this database or null
+     * @param numberFilter filter of the numbers in this database or null
+     */
+    public PhonebookService(EntityManager em, UserTransaction ut, ReverseLookupIndex reverseIndex, NumberFilter numberFilter){
         this.em = em;
         this.ut = ut;
+        this.reverseIndex = reverseIndex;
+        this.numberFilter = numberFilter;
     }
     
     /**
@@ -86,38 +133,96 @@ public class PhonebookService {
     }
     
     /**
-     * Delete a Contact by Id
+     * Find a Contact by Id to display it, the Contact must not be modified
+     * 
+     * @param contactId an id of a contact
+     * @param readOnly skip registering the Contact in the persistence context
+     * @return a Contact found by the id
+     */
+    public Contact findContact(Integer contactId, boolean readOnly) {
+        if (!readOnly) {
+            return findContact(contactId);
+        }
+        return em.find(Contact.class, contactId, READ_ONLY_PROPERTIES);
+    }
+    
+    /**
+     * Delete a Contact by Id.
+     * Runs a single DELETE statement, phone numbers are removed by
+     * ON DELETE CASCADE of the fk_phone_number_contact1 foreign key
      * 
      * @param contactId an id of a contact
      * @return operation completed successfully or not
      */
     public boolean deleteContact(Integer contactId) {        
         
-        Contact contact = em.find(Contact.class, contactId);
-        if (contact == null) {
+        int entitiesCount = 0;
+        try { 
+            if(ut != null){
+                ut.begin();
+            }
+            
+            entitiesCount = em.createNamedQuery("Contact.deleteByContactId")
+                    .setParameter("contactId", contactId)
+                    .executeUpdate();
+            
+            if(ut != null){
+                ut.commit();
+            }
+            
+        } catch(SecurityException | IllegalStateException | NotSupportedException | SystemException |
+                RollbackException | HeuristicMixedException | HeuristicRollbackException | PersistenceException ex) {
+            
+            Logger.getLogger(PhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+            rollback();
             return false;
         }
         
+        if (entitiesCount > 0) {
+            PhonebookEvents.fireContactsDeleted(Collections.singletonList(contactId));
+        }
+        return entitiesCount > 0;
+    } 
+    
+    /**
+     * Delete Contacts by Ids with a single DELETE statement
+     * 
+     * @param contactIds ids of contacts
+     * @return number of deleted contacts
+     */
+    public int deleteContacts(Collection<Integer> contactIds) {
+        
+        if (contactIds == null || contactIds.isEmpty()) {
+            return 0;
+        }
+        
+        int entitiesCount;
         try { 
             if(ut != null){
                 ut.begin();
             }
             
-            em.remove(em.merge(contact));
+            entitiesCount = em.createNamedQuery("Contact.deleteByContactIds")
+                    .setParameter("contactIds", contactIds)
+                    .executeUpdate();
             
             if(ut != null){
                 ut.commit();
             }
             
         } catch(SecurityException | IllegalStateException | NotSupportedException | SystemException |
-                RollbackException | HeuristicMixedException | HeuristicRollbackException ex) {
+                RollbackException | HeuristicMixedException | HeuristicRollbackException | PersistenceException ex) {
             
-            Logger.getLogger(PhonebookService.class.getName()).log(Level.SEVERE, null, ex);            
-            return false;
+            Logger.getLogger(PhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+            rollback();
+            return 0;
         }
         
-        return true;
-    } 
+        if (entitiesCount > 0) {
+            PhonebookEvents.fireContactsDeleted(contactIds);
+        }
+        return entitiesCount;
+    }
     
     /**
      * Delete phone number for specific Contact Id
@@ -127,7 +232,7 @@ public class PhonebookService {
      */
     public boolean deletePhoneNumber(Integer contactId, String phoneNumber) {        
         
-        String numbersOnly = phoneNumber.replaceAll("\\D", "");        
+        String numbersOnly = PhoneNumberNormalizer.digits(phoneNumber);        
         int entitiesCount = 0;
         try{
             if(ut != null){
@@ -147,9 +252,22 @@ public class PhonebookService {
             Logger.getLogger(PhonebookService.class.getName()).log(Level.SEVERE, null, ex);
         }       
         
+        // A rolled back delete must not turn lookups of the number into misses
+        if (entitiesCount > 0 && (reverseIndex != null || numberFilter != null)) {
+            AfterCommit.run(() -> numberDeleted(numbersOnly));
+        }
         return entitiesCount > 0;
     }
     
+    private void numberDeleted(String numbersOnly) {
+        if (reverseIndex != null) {
+            reverseIndex.numberDeleted(numbersOnly);
+        }
+        if (numberFilter != null) {
+            numberFilter.numberDeleted(numbersOnly);
+        }
+    }
+    
     /**
      * Find all contacts
      * 
@@ -159,7 +277,9 @@ public class PhonebookService {
         List<Contact> contactsList;
         
         try{            
-            contactsList = em.createNamedQuery("Contact.findAll", Contact.class).getResultList();
+            contactsList = em.createNamedQuery("Contact.findAll", Contact.class)
+                    .setHint(READ_ONLY_HINT, "true")
+                    .getResultList();
         }catch(Exception ex)
         {
             Logger.getLogger(PhonebookService.class.getName()).log(Level.SEVERE, null, ex);
@@ -181,9 +301,33 @@ public class PhonebookService {
             return null;            
         }
         List<Contact> contactsList;
-        String numbersOnly = phoneNumber.replaceAll("\\D", "");
+        String numbersOnly = PhoneNumberNormalizer.digits(phoneNumber);
         String numberToMatch;
         
+        boolean filtered = match && numberFilter != null;
+        if (filtered && !numberFilter.mightContain(numbersOnly)) {
+            return new ArrayList<>();
+        }
+        
+        if (match && reverseIndex != null) {
+            int contactId = reverseIndex.find(numbersOnly);
+            if (contactId == ReverseLookupIndex.NOT_FOUND) {
+                if (filtered) {
+                    numberFilter.falsePositive();
+                }
+                return new ArrayList<>();
+            }
+            if (contactId != ReverseLookupIndex.UNKNOWN) {
+                Contact contact = findContact(contactId, true);
+                // A stale entry falls through to the query
+                if (contact != null && hasNumber(contact, numbersOnly)) {
+                    contactsList = new ArrayList<>();
+                    contactsList.add(contact);
+                    return contactsList;
+                }
+            }
+        }
+        
         if(match) {
             numberToMatch = numbersOnly;
         }else {
@@ -193,6 +337,7 @@ public class PhonebookService {
         try {            
             contactsList = em.createNamedQuery("Contact.findByPhoneNumber", Contact.class)
                     .setParameter("phoneNumber", numberToMatch)
+                    .setHint(READ_ONLY_HINT, "true")
                     .getResultList();
             
         }catch(NoResultException ex)
@@ -201,9 +346,45 @@ public class PhonebookService {
             contactsList = new ArrayList<>();
         }        
         
+        if (filtered && contactsList.isEmpty()) {
+            numberFilter.falsePositive();
+        }
         return contactsList;
     }
 
+    /**
+     * @param contact a contact with loaded phone numbers
+     * @param numbersOnly digits of a phone number
+     * @return true if the number belongs to the contact
+     */
+    private static boolean hasNumber(Contact contact, String numbersOnly) {
+        if (contact.getPhoneNumbers() == null) {
+            return false;
+        }
+        for (PhoneNumber phoneNumber : contact.getPhoneNumbers()) {
+            if (PhoneNumberNormalizer.digits(phoneNumber.getNumber()).equals(numbersOnly)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find digits of all phone numbers owned by the Contacts
+     * 
+     * @param contactIds ids of contacts
+     * @return a List of filtered phone numbers
+     */
+    public List<String> findPhoneNumbers(Collection<Integer> contactIds) {
+        
+        if (contactIds == null || contactIds.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return em.createNamedQuery("PhoneNumber.findNumbersByContactIds", String.class)
+                .setParameter("contactIds", contactIds)
+                .getResultList();
+    }
+
     /**
      * Update Contact by id
      * 
@@ -303,7 +484,7 @@ public class PhonebookService {
      */
     public PhoneNumber addPhoneNumber(Integer contactId, String number, String type) {
                 
-        String numbersOnly = number.replaceAll("\\D", "");
+        String numbersOnly = PhoneNumberNormalizer.digits(number);
         if(numbersOnly.isEmpty()) {
             return null;
         }
@@ -313,7 +494,7 @@ public class PhonebookService {
             return null;
         }
         
-        String maskOnly = number.replace("X", "").replaceAll("\\d", "X");            
+        String maskOnly = PhoneNumberNormalizer.mask(number);            
         PhoneMask phoneMask = findPhoneMask(maskOnly, true);
         if (phoneMask == null) {
             return null;
@@ -352,9 +533,168 @@ public class PhonebookService {
             return null;
         }            
         
+        // Indexed before the commit, a rolled back number is a stale entry the lookups verify
+        if (reverseIndex != null) {
+            reverseIndex.numberAdded(numbersOnly, contactId);
+        }
+        if (numberFilter != null) {
+            numberFilter.numberAdded(numbersOnly);
+        }
+        PhonebookEvents.fireNumberAdded(numbersOnly);
         return phoneNumber;
     }
     
+    /**
+     * Add a phone number to a Contact with a single INSERT statement.
+     * The phone_number_UNIQUE key detects a number owned by any contact and
+     * the fk_phone_number_contact1 foreign key detects a missing contact,
+     * so there is no lookup before the insert and no race between them.
+     * 
+     * @param contactId of Contact to place a PhoneNumber
+     * @param number un-filtered phone number to add
+     * @param type phone type name
+     * @return result of the insert
+     */
+    public AddPhoneNumberResult insertPhoneNumber(Integer contactId, String number, String type) {
+        
+        if (number == null || type == null || type.isEmpty()) {
+            return AddPhoneNumberResult.INVALID;
+        }
+        String numbersOnly = PhoneNumberNormalizer.digits(number);
+        if (numbersOnly.isEmpty()) {
+            return AddPhoneNumberResult.INVALID;
+        }
+        
+        String maskOnly = PhoneNumberNormalizer.mask(number);
+        Integer phoneMaskId = findPhoneMaskId(maskOnly);
+        Integer phoneTypeId = findPhoneTypeId(type);
+        if (phoneMaskId == null || phoneTypeId == null) {
+            return AddPhoneNumberResult.FAILED;
+        }
+        
+        try {
+            if(ut != null){
+                ut.begin();
+            }
+            
+            em.createNamedQuery("PhoneNumber.insert")
+                    .setParameter(1, numbersOnly)
+                    .setParameter(2, phoneTypeId)
+                    .setParameter(3, phoneMaskId)
+                    .setParameter(4, contactId)
+                    .executeUpdate();
+            
+            if(ut != null){
+                ut.commit();
+            }
+            
+        } catch (PersistenceException ex) {
+            rollback();
+            if (ConstraintViolations.isDuplicateKey(ex)) {
+                return AddPhoneNumberResult.CONFLICT;
+            }
+            if (ConstraintViolations.isMissingReference(ex)) {
+                return AddPhoneNumberResult.CONTACT_NOT_FOUND;
+            }
+            Logger.getLogger(PhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+            return AddPhoneNumberResult.FAILED;
+            
+        } catch(SecurityException | IllegalStateException | NotSupportedException | SystemException |
+                RollbackException | HeuristicMixedException | HeuristicRollbackException ex) {
+            Logger.getLogger(PhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+            return AddPhoneNumberResult.FAILED;
+        }
+        
+        // Without a user transaction the mask and type might have been created in the
+        // transaction of the caller, their ids are cached only once it commits
+        ConcurrentMap<String, Integer> maskIds = phoneMaskIds();
+        ConcurrentMap<String, Integer> typeIds = phoneTypeIds();
+        AfterCommit.run(() -> {
+            maskIds.putIfAbsent(maskOnly, phoneMaskId);
+            typeIds.putIfAbsent(type, phoneTypeId);
+        });
+        
+        // Indexed before the commit, a rolled back number is a stale entry the lookups verify
+        if (reverseIndex != null) {
+            reverseIndex.numberAdded(numbersOnly, contactId);
+        }
+        if (numberFilter != null) {
+            numberFilter.numberAdded(numbersOnly);
+        }
+        PhonebookEvents.fireNumberAdded(numbersOnly);
+        return AddPhoneNumberResult.CREATED;
+    }
+    
+    private ConcurrentMap<String, Integer> phoneTypeIds() {
+        return idsOf(PHONE_TYPE_IDS, em.getEntityManagerFactory());
+    }
+    
+    private ConcurrentMap<String, Integer> phoneMaskIds() {
+        return idsOf(PHONE_MASK_IDS, em.getEntityManagerFactory());
+    }
+    
+    /**
+     * @param idsByFactory cached ids per EntityManagerFactory
+     * @param emf factory of the current EntityManager
+     * @return cached ids of the factory, entries of closed factories are dropped when a new one is added
+     */
+    private static ConcurrentMap<String, Integer> idsOf(
+            ConcurrentMap<EntityManagerFactory, ConcurrentMap<String, Integer>> idsByFactory, EntityManagerFactory emf) {
+        
+        ConcurrentMap<String, Integer> ids = idsByFactory.get(emf);
+        if (ids == null) {
+            idsByFactory.keySet().removeIf(factory -> !factory.isOpen());
+            ids = idsByFactory.computeIfAbsent(emf, factory -> new ConcurrentHashMap<>());
+        }
+        return ids;
+    }
+    
+    /**
+     * @param mask phone number mask
+     * @return id of existent or newly created PhoneMask, null if it cannot be created
+     */
+    private Integer findPhoneMaskId(String mask) {
+        Integer phoneMaskId = phoneMaskIds().get(mask);
+        if (phoneMaskId == null) {
+            PhoneMask phoneMask = findPhoneMask(mask, true);
+            if (phoneMask == null) {
+                return null;
+            }
+            phoneMaskId = phoneMask.getPhoneMaskId();
+        }
+        return phoneMaskId;
+    }
+    
+    /**
+     * @param typeName phone type name
+     * @return id of existent or newly created PhoneType, null if it cannot be created
+     */
+    private Integer findPhoneTypeId(String typeName) {
+        Integer phoneTypeId = phoneTypeIds().get(typeName);
+        if (phoneTypeId == null) {
+            PhoneType phoneType = findPhoneType(typeName, true);
+            if (phoneType == null) {
+                return null;
+            }
+            phoneTypeId = phoneType.getPhoneTypeId();
+        }
+        return phoneTypeId;
+    }
+    
+    /**
+     * Roll back the user transaction after a failed statement
+     */
+    private void rollback() {
+        if (ut == null) {
+            return;
+        }
+        try {
+            ut.rollback();
+        } catch (IllegalStateException | SecurityException | SystemException ex) {
+            Logger.getLogger(PhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
      /**
      * Find a PhoneNumber object by numbers
      * 
@@ -363,9 +703,20 @@ public class PhonebookService {
      */
     public PhoneNumber findPhoneNumber(String number){
         
-        String numbersOnly = number.replaceAll("\\D", "");
+        String numbersOnly = PhoneNumberNormalizer.digits(number);
         PhoneNumber phoneNumber;
         
+        if (numberFilter != null && !numberFilter.mightContain(numbersOnly)) {
+            return null;
+        }
+        
+        if (reverseIndex != null && reverseIndex.find(numbersOnly) == ReverseLookupIndex.NOT_FOUND) {
+            if (numberFilter != null) {
+                numberFilter.falsePositive();
+            }
+            return null;
+        }
+        
         try {
             phoneNumber = em.createNamedQuery("PhoneNumber.findByPhoneNumber", PhoneNumber.class)
                     .setParameter("phoneNumber", numbersOnly)
@@ -374,6 +725,9 @@ public class PhonebookService {
             return phoneNumber;            
 
         } catch (NoResultException e) {
+            if (numberFilter != null) {
+                numberFilter.falsePositive();
+            }
             return null;
         }
     }    
@@ -0,0 +1,363 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjIntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.syso.phonebook.helpers.PhoneNumberNormalizer;
+import org.syso.phonebook.index.NumberIndexFile;
+
+/**
+ * Phone number to contact lookups served from a memory mapped NumberIndexFile.
+ * 
+ * The file is rebuilt from the phone_number table periodically, writes made
+ * since the build are kept in a small in-heap delta. A rebuild starts a second
+ * delta for the writes made while the table is read, the new file and that
+ * delta replace the current ones in a single swap, so lookups never lock.
+ * Writes of other application instances become visible after the next rebuild.
+ * 
+ * @author Vladimir Syso
+ */
+public class ReverseLookupIndex implements PhonebookListener, Closeable {
+    
+    /** The number is not in the phonebook */
+    public static final int NOT_FOUND = NumberIndexFile.NOT_FOUND;
+    /** The index can not answer, the database must be queried */
+    public static final int UNKNOWN = -1;
+    
+    // Delta value of a deleted number
+    private static final int REMOVED = NOT_FOUND;
+    private static final int PAGE_SIZE = 10000;
+    
+    private final Path path;
+    private final AtomicReference<State> state = new AtomicReference<>(new State(null, new Delta(), null));
+    // Writes to the deltas share the lock, the swap takes it exclusively
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final Object rebuildLock = new Object();
+    private ScheduledExecutorService rebuilds;
+    
+    /**
+     * @param path location of the index file
+     */
+    public ReverseLookupIndex(Path path) {
+        this.path = path;
+    }
+    
+    /**
+     * Map the index file left by a previous run, if any
+     * 
+     * @throws IOException if the file exists but can not be mapped
+     */
+    public void open() throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        NumberIndexFile file = NumberIndexFile.open(path);
+        swapLock.writeLock().lock();
+        try {
+            State current = state.get();
+            state.set(new State(file, current.delta, current.next));
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * @param digits digits of a phone number
+     * @return id of the owner, NOT_FOUND or UNKNOWN
+     */
+    public int find(String digits) {
+        long key = PhoneNumberNormalizer.pack(digits);
+        State current = state.get();
+        if (key == PhoneNumberNormalizer.NOT_PACKED || current.file == null) {
+            return UNKNOWN;
+        }
+        
+        Integer contactId = current.delta.numbers.get(key);
+        if (contactId == null) {
+            contactId = current.file.find(key);
+        }
+        if (contactId == REMOVED || current.delta.deletedContacts.contains(contactId)) {
+            return NOT_FOUND;
+        }
+        return contactId;
+    }
+    
+    /**
+     * @param digits digits of the added number
+     * @param contactId owner of the number
+     */
+    public void numberAdded(String digits, int contactId) {
+        record(digits, contactId);
+    }
+    
+    /**
+     * @param digits digits of the deleted number
+     */
+    public void numberDeleted(String digits) {
+        record(digits, REMOVED);
+    }
+    
+    /**
+     * Numbers of deleted contacts are removed by the database, so the contacts are remembered instead
+     */
+    @Override
+    public void contactsDeleted(Collection<Integer> contactIds) {
+        swapLock.readLock().lock();
+        try {
+            State current = state.get();
+            current.delta.deletedContacts.addAll(contactIds);
+            if (current.next != null) {
+                current.next.deletedContacts.addAll(contactIds);
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * @return number of records in the mapped file, 0 if there is no file yet
+     */
+    public int getFileCount() {
+        State current = state.get();
+        return current.file != null ? current.file.getCount() : 0;
+    }
+    
+    /**
+     * @return number of numbers and contacts changed since the file was built
+     */
+    public int getDeltaSize() {
+        Delta delta = state.get().delta;
+        return delta.numbers.size() + delta.deletedContacts.size();
+    }
+    
+    /**
+     * Build a new file and swap it in together with the writes made meanwhile
+     * 
+     * @param source all phone numbers with their owners
+     * @throws IOException if the file can not be written
+     */
+    public void rebuild(NumberSource source) throws IOException {
+        synchronized (rebuildLock) {
+            
+            long start = System.currentTimeMillis();
+            Delta next = new Delta();
+            swapLock.writeLock().lock();
+            try {
+                State current = state.get();
+                state.set(new State(current.file, current.delta, next));
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            
+            NumberIndexFile file;
+            try {
+                Entries entries = new Entries();
+                source.forEachNumber(entries);
+                NumberIndexFile.write(path, entries.keys, entries.contactIds, entries.count, start);
+                file = NumberIndexFile.open(path);
+            } catch (IOException | RuntimeException ex) {
+                // The current delta has received every write, so it stays valid
+                swapLock.writeLock().lock();
+                try {
+                    State current = state.get();
+                    state.set(new State(current.file, current.delta, null));
+                } finally {
+                    swapLock.writeLock().unlock();
+                }
+                throw ex;
+            }
+            
+            swapLock.writeLock().lock();
+            try {
+                state.set(new State(file, next, null));
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            Logger.getLogger(ReverseLookupIndex.class.getName()).log(Level.INFO, 
+                    "Built number index of {0} numbers in {1} ms", 
+                    new Object[]{file.getCount(), System.currentTimeMillis() - start});
+        }
+    }
+    
+    /**
+     * Rebuild the index periodically, the first build runs at once if there is no file yet
+     * 
+     * @param source all phone numbers with their owners
+     * @param intervalSeconds time between builds
+     */
+    public synchronized void startRebuilds(final NumberSource source, long intervalSeconds) {
+        if (rebuilds != null) {
+            return;
+        }
+        rebuilds = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "phonebook-number-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rebuilds.scheduleWithFixedDelay(() -> {
+            try {
+                rebuild(source);
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(ReverseLookupIndex.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }, state.get().file == null ? 0 : intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Stop rebuilds, the file is kept for the next start
+     */
+    @Override
+    public synchronized void close() {
+        if (rebuilds != null) {
+            rebuilds.shutdownNow();
+            rebuilds = null;
+        }
+    }
+    
+    /**
+     * Read all numbers from the phone_number table in pages
+     * 
+     * @param emf factory of the phonebook persistence unit
+     * @return source for rebuild
+     */
+    public static NumberSource fromDatabase(final EntityManagerFactory emf) {
+        return consumer -> {
+            EntityManager em = emf.createEntityManager();
+            try {
+                int lastPhoneNumberId = 0;
+                List<Object[]> rows;
+                do {
+                    rows = em.createNamedQuery("PhoneNumber.findIndexPage", Object[].class)
+                            .setParameter("phoneNumberId", lastPhoneNumberId)
+                            .setMaxResults(PAGE_SIZE)
+                            .getResultList();
+                    for (Object[] row : rows) {
+                        lastPhoneNumberId = (Integer) row[0];
+                        consumer.accept((String) row[1], (Integer) row[2]);
+                    }
+                    em.clear();
+                } while (rows.size() == PAGE_SIZE);
+            } finally {
+                em.close();
+            }
+        };
+    }
+    
+    private void record(String digits, int value) {
+        long key = PhoneNumberNormalizer.pack(digits);
+        if (key == PhoneNumberNormalizer.NOT_PACKED) {
+            return;
+        }
+        swapLock.readLock().lock();
+        try {
+            State current = state.get();
+            current.delta.numbers.put(key, value);
+            if (current.next != null) {
+                current.next.numbers.put(key, value);
+            }
+        } finally {
+            swapLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Provides all phone numbers for a rebuild
+     */
+    @FunctionalInterface
+    public interface NumberSource {
+        
+        /**
+         * @param consumer receives digits of a number and the id of its owner
+         */
+        void forEachNumber(ObjIntConsumer<String> consumer);
+    }
+    
+    /**
+     * Index file with the writes made after it was built, next collects the writes during a rebuild
+     */
+    private static final class State {
+        
+        final NumberIndexFile file;
+        final Delta delta;
+        final Delta next;
+
+        State(NumberIndexFile file, Delta delta, Delta next) {
+            this.file = file;
+            this.delta = delta;
+            this.next = next;
+        }
+    }
+    
+    private static final class Delta {
+        
+        final ConcurrentMap<Long, Integer> numbers = new ConcurrentHashMap<>();
+        final Set<Integer> deletedContacts = ConcurrentHashMap.newKeySet();
+    }
+    
+    /**
+     * Growable arrays of packed numbers and owners
+     */
+    private static final class Entries implements ObjIntConsumer<String> {
+        
+        long[] keys = new long[1024];
+        int[] contactIds = new int[1024];
+        int count;
+
+        @Override
+        public void accept(String digits, int contactId) {
+            long key = PhoneNumberNormalizer.pack(digits);
+            if (key == PhoneNumberNormalizer.NOT_PACKED) {
+                // Too long to be packed, such numbers are looked up in the database
+                return;
+            }
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                contactIds = Arrays.copyOf(contactIds, count * 2);
+            }
+            keys[count] = key;
+            contactIds[count] = contactId;
+            count++;
+        }
+    }
+}
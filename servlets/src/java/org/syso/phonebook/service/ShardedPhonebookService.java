@@ -0,0 +1,388 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.persistence.EntityManagerFactory;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneNumber;
+import org.syso.phonebook.helpers.PhoneNumberNormalizer;
+
+/**
+ * AsyncPhonebookService spreading contacts over several databases.
+ * 
+ * The shard of a contact is encoded in its id: shard k of N generates contact ids
+ * k + 1, k + 1 + N, k + 1 + 2N..., so the shard is (contactId - 1) mod N and an
+ * operation on a single contact goes to exactly one database. MySQL shards need
+ * <code>auto_increment_increment = N</code> and <code>auto_increment_offset = k + 1</code>.
+ * New contacts are placed round-robin.
+ * 
+ * Listing and partial number searches run on all shards in parallel and are merged by id.
+ * PhoneNumberDirectory keeps numbers unique across shards and routes exact number searches.
+ * Numbers failed to release in the directory are retried with later releases or by
+ * retryReleases, reconcile releases numbers left reserved before a restart.
+ * 
+ * @author Vladimir Syso
+ */
+public class ShardedPhonebookService implements AsyncPhonebookService {
+    
+    private static final int RECONCILE_BATCH_SIZE = 500;
+    private static final Comparator<Contact> BY_CONTACT_ID = Comparator.comparing(Contact::getContactId);
+    
+    private final List<ConcurrentPhonebookService> shards;
+    private final PhoneNumberDirectory directory;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final Map<String, Integer> unreleased = new ConcurrentHashMap<>();
+    private final Set<String> reserving = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Constructs the service running on the shared phonebook executor
+     * 
+     * @param shards factories of RESOURCE_LOCAL entity managers, one per shard in shard order
+     * @param directory factory of RESOURCE_LOCAL entity managers of the database holding phone_number_directory
+     */
+    public ShardedPhonebookService(List<EntityManagerFactory> shards, EntityManagerFactory directory) {
+        this(shards, directory, PhonebookExecutors.getSharedExecutor());
+    }
+    
+    /**
+     * Constructs the service
+     * 
+     * @param shards factories of RESOURCE_LOCAL entity managers, one per shard in shard order
+     * @param directory factory of RESOURCE_LOCAL entity managers of the database holding phone_number_directory
+     * @param executor runs database operations
+     */
+    public ShardedPhonebookService(List<EntityManagerFactory> shards, EntityManagerFactory directory, Executor executor) {
+        
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        
+        List<ConcurrentPhonebookService> services = new ArrayList<>(shards.size());
+        for (EntityManagerFactory emf : shards) {
+            services.add(new ConcurrentPhonebookService(emf, executor));
+        }
+        this.shards = Collections.unmodifiableList(services);
+        this.directory = new PhoneNumberDirectory(directory, executor);
+    }
+    
+    /**
+     * @param contactId an id of a contact
+     * @return index of the shard holding the contact
+     */
+    public int shardOf(Integer contactId) {
+        if (contactId == null) {
+            throw new IllegalArgumentException("Contact id is required");
+        }
+        return Math.floorMod(contactId - 1, shards.size());
+    }
+    
+    /**
+     * @return number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+    
+    private ConcurrentPhonebookService shard(Integer contactId) {
+        return shards.get(shardOf(contactId));
+    }
+
+    @Override
+    public CompletableFuture<Contact> findContact(Integer contactId) {
+        if (contactId == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return shard(contactId).findContact(contactId);
+    }
+
+    @Override
+    public CompletableFuture<List<Contact>> findContacts(List<Integer> contactIds) {
+        
+        List<CompletableFuture<Contact>> contacts = new ArrayList<>(contactIds.size());
+        for (Integer contactId : contactIds) {
+            contacts.add(findContact(contactId));
+        }
+        return ConcurrentPhonebookService.collect(contacts);
+    }
+
+    @Override
+    public CompletableFuture<List<Contact>> findAllContacts() {
+        return fanOut(ConcurrentPhonebookService::findAllContacts);
+    }
+
+    @Override
+    public CompletableFuture<List<Contact>> findContactsByPhoneNumber(String phoneNumber, Boolean match) {
+        
+        if (phoneNumber == null || phoneNumber.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!Boolean.TRUE.equals(match)) {
+            return fanOut(shard -> shard.findContactsByPhoneNumber(phoneNumber, false));
+        }
+        
+        // The whole number is owned by a single shard
+        return directory.findShard(PhoneNumberNormalizer.digits(phoneNumber)).thenCompose(shard -> shard == null
+                ? CompletableFuture.completedFuture(new ArrayList<>())
+                : shards.get(shard).findContactsByPhoneNumber(phoneNumber, true));
+    }
+
+    @Override
+    public CompletableFuture<PhoneNumber> findPhoneNumber(String number) {
+        if (number == null || number.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return directory.findShard(PhoneNumberNormalizer.digits(number)).thenCompose(shard -> shard == null
+                ? CompletableFuture.completedFuture(null)
+                : shards.get(shard).findPhoneNumber(number));
+    }
+
+    @Override
+    public CompletableFuture<Contact> createContact(String firstName, String lastName) {
+        
+        // The id is checked before the commit, a contact with an id of another shard is rolled back
+        int shard = Math.floorMod(nextShard.getAndIncrement(), shards.size());
+        return shards.get(shard).createContact(firstName, lastName, contact -> {
+            if (shardOf(contact.getContactId()) != shard) {
+                throw new IllegalStateException(String.format(
+                        "Shard %d generated contact id %d, check auto increment settings of the shard",
+                        shard, contact.getContactId()));
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Contact> updateContact(Integer contactId, String firstName, String lastName) {
+        if (contactId == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return shard(contactId).updateContact(contactId, firstName, lastName);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deleteContact(Integer contactId) {
+        return deleteContacts(Collections.singletonList(contactId)).thenApply(deleted -> deleted > 0);
+    }
+
+    @Override
+    public CompletableFuture<Integer> deleteContacts(Collection<Integer> contactIds) {
+        
+        Map<Integer, List<Integer>> idsByShard = new TreeMap<>();
+        for (Integer contactId : contactIds) {
+            if (contactId == null) {
+                continue;
+            }
+            idsByShard.computeIfAbsent(shardOf(contactId), shard -> new ArrayList<>()).add(contactId);
+        }
+        
+        List<CompletableFuture<Integer>> deleted = new ArrayList<>(idsByShard.size());
+        idsByShard.forEach((shard, ids) -> deleted.add(deleteContacts(shard, ids)));
+        
+        return sum(deleted);
+    }
+    
+    /**
+     * Delete contacts of a single shard and release the numbers deleted with them in the directory
+     */
+    private CompletableFuture<Integer> deleteContacts(int shard, List<Integer> contactIds) {
+        return shards.get(shard).deleteContactsAndNumbers(contactIds).thenCompose(deleted -> release(deleted.getNumbers(), shard)
+                .thenApply(released -> deleted.getCount()));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> deletePhoneNumber(Integer contactId, String phoneNumber) {
+        if (contactId == null || phoneNumber == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        int shard = shardOf(contactId);
+        return shards.get(shard).deletePhoneNumber(contactId, phoneNumber).thenCompose(deleted -> deleted
+                ? release(Collections.singletonList(PhoneNumberNormalizer.digits(phoneNumber)), shard).thenApply(released -> true)
+                : CompletableFuture.completedFuture(false));
+    }
+
+    @Override
+    public CompletableFuture<AddPhoneNumberResult> insertPhoneNumber(Integer contactId, String number, String type) {
+        
+        String numbersOnly = number == null ? "" : PhoneNumberNormalizer.digits(number);
+        if (numbersOnly.isEmpty() || type == null || type.isEmpty()) {
+            return CompletableFuture.completedFuture(AddPhoneNumberResult.INVALID);
+        }
+        if (contactId == null) {
+            return CompletableFuture.completedFuture(AddPhoneNumberResult.CONTACT_NOT_FOUND);
+        }
+        
+        // Reconciliation keeps the number until it is inserted into the shard
+        int shard = shardOf(contactId);
+        reserving.add(numbersOnly);
+        return directory.reserve(numbersOnly, shard).thenCompose(reserved -> {
+            
+            // Owned already, possibly by another shard
+            if (!reserved) {
+                return CompletableFuture.completedFuture(AddPhoneNumberResult.CONFLICT);
+            }
+            
+            return shards.get(shard).insertPhoneNumber(contactId, number, type)
+                    .handle((result, ex) -> {
+                        if (ex == null && result == AddPhoneNumberResult.CREATED) {
+                            return CompletableFuture.completedFuture(result);
+                        }
+                        // Missing contact or failed insert, give the number back
+                        return release(Collections.singletonList(numbersOnly), shard).thenApply(released -> {
+                            if (ex != null) {
+                                Logger.getLogger(ShardedPhonebookService.class.getName()).log(Level.SEVERE, null, ex);
+                                throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+                            }
+                            return result;
+                        });
+                    })
+                    .thenCompose(Function.identity());
+        }).whenComplete((result, ex) -> reserving.remove(numbersOnly));
+    }
+    
+    /**
+     * Release numbers deleted from a shard, a failed release is logged and
+     * the numbers are kept for retryReleases, so the returned future does not fail
+     * 
+     * @return number of released numbers
+     */
+    private CompletableFuture<Integer> release(Collection<String> numbersOnly, int shard) {
+        return directory.release(numbersOnly, shard).handle((released, ex) -> {
+            if (ex != null) {
+                Logger.getLogger(ShardedPhonebookService.class.getName()).log(Level.WARNING, String.format(
+                        "%d numbers of shard %d are left reserved in the directory", numbersOnly.size(), shard), ex);
+                numbersOnly.forEach(number -> unreleased.put(number, shard));
+                return 0;
+            }
+            // The directory is reachable again
+            if (!unreleased.isEmpty()) {
+                retryReleases();
+            }
+            return released;
+        });
+    }
+    
+    /**
+     * Retry the numbers failed to release in the directory. A failed release may have
+     * committed and the number may be taken by another contact since, so only numbers
+     * still owned by their shard and missing from it are released.
+     * 
+     * @return number of released numbers
+     */
+    public CompletableFuture<Integer> retryReleases() {
+        
+        Map<Integer, List<String>> numbersByShard = new TreeMap<>();
+        for (String number : unreleased.keySet()) {
+            Integer shard = unreleased.remove(number);
+            if (shard != null) {
+                numbersByShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(number);
+            }
+        }
+        
+        List<CompletableFuture<Integer>> released = new ArrayList<>(numbersByShard.size());
+        numbersByShard.forEach((shard, numbers) -> released.add(releaseOrphans(numbers, shard).exceptionally(ex -> {
+            Logger.getLogger(ShardedPhonebookService.class.getName()).log(Level.WARNING, null, ex);
+            numbers.forEach(number -> unreleased.put(number, shard));
+            return 0;
+        })));
+        return sum(released);
+    }
+    
+    /**
+     * Release the directory numbers of a shard that are missing from the shard, such as
+     * numbers failed to release before a restart. Numbers being added by this service
+     * are kept, run it while no other service instance adds numbers to the shard.
+     * 
+     * @param shard index of a shard
+     * @return number of released numbers
+     */
+    public CompletableFuture<Integer> reconcile(int shard) {
+        return directory.findNumbers(shard).thenCompose(numbers -> {
+            List<CompletableFuture<Integer>> released = new ArrayList<>();
+            for (int from = 0; from < numbers.size(); from += RECONCILE_BATCH_SIZE) {
+                released.add(releaseOrphans(numbers.subList(from, Math.min(numbers.size(), from + RECONCILE_BATCH_SIZE)), shard));
+            }
+            return sum(released);
+        });
+    }
+    
+    /**
+     * Release the numbers of a shard that the shard does not hold and this service is not adding
+     */
+    private CompletableFuture<Integer> releaseOrphans(List<String> numbersOnly, int shard) {
+        
+        // A number inserted while the shard is queried is no longer reserving afterwards
+        Set<String> busy = new HashSet<>(reserving);
+        return shards.get(shard).findExistingNumbers(numbersOnly).thenCompose(existing -> {
+            List<String> orphans = new ArrayList<>(numbersOnly);
+            orphans.removeAll(existing);
+            orphans.removeAll(busy);
+            orphans.removeAll(reserving);
+            return release(orphans, shard);
+        });
+    }
+    
+    private static CompletableFuture<Integer> sum(List<CompletableFuture<Integer>> counts) {
+        return CompletableFuture.allOf(counts.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> counts.stream().mapToInt(CompletableFuture::join).sum());
+    }
+    
+    /**
+     * Run a query on all shards in parallel and merge results by contact id
+     */
+    private CompletableFuture<List<Contact>> fanOut(Function<ConcurrentPhonebookService, CompletableFuture<List<Contact>>> query) {
+        
+        List<CompletableFuture<List<Contact>>> results = new ArrayList<>(shards.size());
+        for (ConcurrentPhonebookService shard : shards) {
+            results.add(query.apply(shard));
+        }
+        
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<Contact> contacts = new ArrayList<>();
+            for (CompletableFuture<List<Contact>> result : results) {
+                List<Contact> shardContacts = result.join();
+                if (shardContacts != null) {
+                    contacts.addAll(shardContacts);
+                }
+            }
+            contacts.sort(BY_CONTACT_ID);
+            return contacts;
+        });
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.Collection;
+import java.util.List;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.metrics.FlightRecorderEvents;
+import org.syso.phonebook.metrics.RequestTiming;
+
+/**
+ * Phonebook adding the time of every operation to the service phase of the
+ * RequestTiming bound to the request thread, and emitting a Flight Recorder
+ * event for it while a recording is running.
+ * 
+ * It is the outermost decorator, so cache hits are measured too.
+ * 
+ * @author Vladimir Syso
+ */
+public class TimedPhonebook implements Phonebook {
+    
+    private final Phonebook phonebook;
+
+    /**
+     * @param phonebook backend
+     */
+    public TimedPhonebook(Phonebook phonebook) {
+        this.phonebook = phonebook;
+    }
+    
+    @Override
+    public Contact findContact(Integer contactId) {
+        long start = RequestTiming.start();
+        Object event = FlightRecorderEvents.beginOperation();
+        Contact contact = null;
+        try {
+            contact = phonebook.findContact(contactId);
+            return contact;
+        } finally {
+            finish(start, event, "findContact", contactId, contact != null ? 1 : 0);
+        }
+    }
+
+    @Override
+    public Contact findContact(Integer contactId, boolean readOnly) {
+        long start = RequestTiming.start();
+        Object event = FlightRecorderEvents.beginOperation();
+        Contact contact = null;
+        try {
+            contact = phonebook.findContact(contactId, readOnly);
+            return contact;
+        } finally {
+            finish(start, event, "findContact", contactId, contact != null ? 1 : 0);
+        }
+    }
+
+    @Override
+    public List<Contact> findContactsByPhoneNumber(String phoneNumber, Boolean match) {
+        long start = RequestTiming.start();
+        Object event = FlightRecorderEvents.beginOperation();
+        List<Contact> contacts = null;
+        try {
+            contacts = phonebook.findContactsByPhoneNumber(phoneNumber, match);
+            return contacts;
+        } finally {
+            finish(start, event, "findContactsByPhoneNumber", null, contacts != null ? contacts.size() : 0);
+        }
+    }
+
+    @Override
+    public List<Contact> findAllContacts() {
+        long start = RequestTiming.start();
+        Object event = FlightRecorderEvents.beginOperation();
+        List<Contact> contacts = null;
+        try {
+            contacts = phonebook.findAllContacts();
+            return contacts;
+        } finally {
+            finish(start, event, "findAllContacts", null, contacts != null ? contacts.size() : 0);
+        }
+    }
+
+    @Override
+    public Contact createContact(String firstName, String lastName) {
+        long start = RequestTiming.start();
+        Object event = FlightRecorderEvents.beginOperation();
+        Contact contact = null;
+        try {
+            contact = phonebook.createContact(firstName, lastName);
+            return contact;
+        } finally {
+            finish(start, event, "createContact", contact != null ? contact.getContactId() : null, contact != null ? 1 : 0);
+        }
+    }
+
+    @Override
+    public Contact updateContact(Integer contactId, String firstName, String lastName) {
+        long start = RequestTiming.start();
+        Object event = FlightRecorderEvents.beginOperation();
+        Contact contact = null;
+        try {
+            contact = phonebook.updateContact(contactId, firstName, lastName);
+            return contact;
+        } finally {
+            finish(start, event, "updateContact", contactId, contact != null ? 1 : 0);
+        }
+    }
+
+    @Override
+    public boolean deleteContact(Integer contactId) {
+        long start = RequestTiming.start();
+        Object event = FlightRecorderEvents.beginOperation();
+        boolean deleted = false;
+        try {
+            deleted = phonebook.deleteContact(contactId);
+            return deleted;
+        } finally {
+            finish(start, event, "deleteContact", contactId, deleted ? 1 : 0);
+        }
+    }
+
+    @Override
+    public int deleteContacts(Collection<Integer> contactIds) {
+        long start = RequestTiming.start();
+        Object event = FlightRecorderEvents.beginOperation();
+        int deleted = 0;
+        try {
+            deleted = phonebook.deleteContacts(contactIds);
+            return deleted;
+        } finally {
+            finish(start, event, "deleteContacts", null, deleted);
+        }
+    }
+
+    @Override
+    public boolean deletePhoneNumber(Integer contactId, String phoneNumber) {
+        long start = RequestTiming.start();
+        Object event = FlightRecorderEvents.beginOperation();
+        boolean deleted = false;
+        try {
+            deleted = phonebook.deletePhoneNumber(contactId, phoneNumber);
+            return deleted;
+        } finally {
+            finish(start, event, "deletePhoneNumber", contactId, deleted ? 1 : 0);
+        }
+    }
+
+    @Override
+    public AddPhoneNumberResult insertPhoneNumber(Integer contactId, String number, String type) {
+        long start = RequestTiming.start();
+        Object event = FlightRecorderEvents.beginOperation();
+        AddPhoneNumberResult result = null;
+        try {
+            result = phonebook.insertPhoneNumber(contactId, number, type);
+            return result;
+        } finally {
+            finish(start, event, "insertPhoneNumber", contactId, result == AddPhoneNumberResult.CREATED ? 1 : 0);
+        }
+    }
+    
+    private static void finish(long start, Object event, String operation, Integer contactId, int rows) {
+        RequestTiming.stop(RequestTiming.Phase.SERVICE, start);
+        FlightRecorderEvents.commitOperation(event, operation, contactId != null ? contactId : 0, rows);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.datasource;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * ReplicaRoutingDataSourceTest uses two embedded in-memory Derby databases
+ * standing in for the primary and the replica
+ * 
+ * @author Vladimir Syso
+ */
+public class ReplicaRoutingDataSourceTest {
+    
+    private static final long MAX_LAG_MILLIS = 1000;
+    
+    private EmbeddedDataSource primary;
+    private EmbeddedDataSource replica;
+    private ReplicaHealthMonitor healthMonitor;
+    private ReplicaRoutingDataSource routingDataSource;
+    private final AtomicLong replicaLag = new AtomicLong();
+    private volatile boolean probeDenied;
+    
+    @Before
+    public void setUp() throws SQLException {
+        
+        primary = createDatabase("primary");
+        replica = createDatabase("replica");
+        
+        healthMonitor = new ReplicaHealthMonitor(Collections.singletonList(replica),
+                connection -> {
+                    if (probeDenied) {
+                        throw new SQLException("Access denied; you need the REPLICATION CLIENT privilege", "42000", 1227);
+                    }
+                    return replicaLag.get();
+                }, MAX_LAG_MILLIS);
+        healthMonitor.checkNow();
+        routingDataSource = new ReplicaRoutingDataSource(primary, healthMonitor);
+    }
+    
+    @After
+    public void tearDown() {
+        
+        healthMonitor.close();
+        RoutingContext.setReadOnly(false);
+        ReadYourWrites.bind(null);
+        
+        dropDatabase(primary);
+        dropDatabase(replica);
+    }
+    
+    /**
+     * Creates a database with a single row naming the node
+     */
+    private static EmbeddedDataSource createDatabase(String node) throws SQLException {
+        
+        EmbeddedDataSource dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:" + node + "-" + UUID.randomUUID());
+        dataSource.setCreateDatabase("create");
+        
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE node (name VARCHAR(16))");
+            statement.executeUpdate("INSERT INTO node VALUES ('" + node + "')");
+        }
+        return dataSource;
+    }
+    
+    private static void dropDatabase(EmbeddedDataSource dataSource) {
+        
+        dataSource.setCreateDatabase(null);
+        dataSource.setConnectionAttributes("drop=true");
+        try {
+            dataSource.getConnection().close();
+        } catch (SQLException ex) {
+            // Derby reports a dropped database with an exception
+        }
+    }
+    
+    /**
+     * @return name of the node which served the connection
+     */
+    private String node() throws SQLException {
+        
+        try (Connection connection = routingDataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT name FROM node")) {
+            assertTrue(resultSet.next());
+            return resultSet.getString(1);
+        }
+    }
+
+    @Test
+    public void testWritesGoToPrimary() throws SQLException {
+        
+        System.out.println("writesGoToPrimary");
+        
+        RoutingContext.setReadOnly(false);
+        assertEquals("primary", node());
+    }
+    
+    @Test
+    public void testReadsGoToReplica() throws SQLException {
+        
+        System.out.println("readsGoToReplica");
+        
+        RoutingContext.setReadOnly(true);
+        assertEquals("replica", node());
+    }
+    
+    @Test
+    public void testReadYourWrites() throws SQLException {
+        
+        System.out.println("readYourWrites");
+        
+        ReadYourWrites.bind(new ReadYourWrites(60000));
+        assertEquals("primary", node());
+        
+        // Reads after the write stay on the primary within the window
+        RoutingContext.setReadOnly(true);
+        assertEquals("primary", node());
+        
+        // Nothing written in another request yet
+        ReadYourWrites.bind(new ReadYourWrites(60000));
+        assertEquals("replica", node());
+        
+        // Stickiness disabled
+        ReadYourWrites readYourWrites = new ReadYourWrites(0);
+        readYourWrites.recordWrite();
+        ReadYourWrites.bind(readYourWrites);
+        assertEquals("replica", node());
+    }
+    
+    @Test
+    public void testLaggingReplica() throws SQLException {
+        
+        System.out.println("laggingReplica");
+        
+        RoutingContext.setReadOnly(true);
+        
+        replicaLag.set(MAX_LAG_MILLIS + 1);
+        healthMonitor.checkNow();
+        assertEquals(MAX_LAG_MILLIS + 1, healthMonitor.getLagMillis(replica));
+        assertEquals("primary", node());
+        
+        // Replication stopped
+        replicaLag.set(-1);
+        healthMonitor.checkNow();
+        assertEquals("primary", node());
+        
+        replicaLag.set(0);
+        healthMonitor.checkNow();
+        assertEquals("replica", node());
+    }
+    
+    @Test
+    public void testFailedReplica() throws SQLException {
+        
+        System.out.println("failedReplica");
+        
+        RoutingContext.setReadOnly(true);
+        assertFalse(healthMonitor.getHealthyReplicas().isEmpty());
+        
+        // Replica goes away between checks
+        dropDatabase(replica);
+        assertEquals("primary", node());
+        assertTrue(healthMonitor.getHealthyReplicas().isEmpty());
+        
+        healthMonitor.checkNow();
+        assertTrue(healthMonitor.getHealthyReplicas().isEmpty());
+        assertTrue(healthMonitor.getLagMillis(replica) < 0);
+    }
+    
+    @Test
+    public void testProbeFailureFailsClosed() throws SQLException {
+        
+        System.out.println("probeFailureFailsClosed");
+        
+        RoutingContext.setReadOnly(true);
+        assertEquals("replica", node());
+        
+        // Lag cannot be measured, e.g. the user misses the privilege
+        probeDenied = true;
+        healthMonitor.checkNow();
+        assertTrue(healthMonitor.getLagMillis(replica) < 0);
+        assertEquals("primary", node());
+        
+        probeDenied = false;
+        healthMonitor.checkNow();
+        assertEquals("replica", node());
+    }
+    
+    @Test
+    public void testMonitoringDataSource() throws SQLException {
+        
+        System.out.println("monitoringDataSource");
+        
+        // Only the monitoring account may read the lag
+        EmbeddedDataSource monitor = createDatabase("monitor");
+        try (ReplicaHealthMonitor monitored = new ReplicaHealthMonitor(Collections.singletonList(replica),
+                Collections.singletonList(monitor), connection -> {
+                    try (Statement statement = connection.createStatement();
+                         ResultSet resultSet = statement.executeQuery("SELECT name FROM node")) {
+                        resultSet.next();
+                        if (!"monitor".equals(resultSet.getString(1))) {
+                            throw new SQLException("Access denied; you need the REPLICATION CLIENT privilege", "42000", 1227);
+                        }
+                        return 0;
+                    }
+                }, MAX_LAG_MILLIS)) {
+            monitored.checkNow();
+            assertEquals(Collections.singletonList(replica), monitored.getHealthyReplicas());
+        } finally {
+            dropDatabase(monitor);
+        }
+    }
+}
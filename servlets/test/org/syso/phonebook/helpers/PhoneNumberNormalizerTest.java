@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.helpers;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * PhoneNumberNormalizerTest checks the normalizer against the regular expressions
+ * it replaces and the packed form round trip
+ * 
+ * @author Vladimir Syso
+ */
+public class PhoneNumberNormalizerTest {
+    
+    @Test
+    public void testDigitsAndMask() {
+        
+        System.out.println("digitsAndMask");
+        
+        Random random = new Random(1);
+        String symbols = "0123456789+-() X";
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder number = new StringBuilder();
+            for (int j = random.nextInt(25); j > 0; j--) {
+                number.append(symbols.charAt(random.nextInt(symbols.length())));
+            }
+            String value = number.toString();
+            assertEquals(value.replaceAll("\\D", ""), PhoneNumberNormalizer.digits(value));
+            assertEquals(value.replace("X", "").replaceAll("\\d", "X"), PhoneNumberNormalizer.mask(value));
+        }
+    }
+    
+    @Test
+    public void testPack() {
+        
+        System.out.println("pack");
+        
+        long packed = PhoneNumberNormalizer.pack("+00(876)543-21-00");
+        assertEquals(12, PhoneNumberNormalizer.digitCount(packed));
+        assertEquals("008765432100", PhoneNumberNormalizer.unpack(packed));
+        assertEquals(packed, PhoneNumberNormalizer.pack("008765432100"));
+        
+        // Leading zeros stay significant
+        assertNotEquals(PhoneNumberNormalizer.pack("0123"), PhoneNumberNormalizer.pack("123"));
+        assertNotEquals(PhoneNumberNormalizer.pack("00"), PhoneNumberNormalizer.pack("0"));
+        
+        assertEquals(PhoneNumberNormalizer.NOT_PACKED, PhoneNumberNormalizer.pack("+()-"));
+        assertEquals(PhoneNumberNormalizer.NOT_PACKED, PhoneNumberNormalizer.pack("123456789012345678"));
+        long longest = PhoneNumberNormalizer.pack("99999999999999999");
+        assertTrue(longest > 0);
+        assertEquals("99999999999999999", PhoneNumberNormalizer.unpack(longest));
+    }
+    
+    @Test
+    public void testContains() {
+        
+        System.out.println("contains");
+        
+        Random random = new Random(2);
+        for (int i = 0; i < 10000; i++) {
+            String number = randomDigits(random, 1 + random.nextInt(PhoneNumberNormalizer.MAX_PACKED_DIGITS));
+            String part = randomDigits(random, 1 + random.nextInt(3));
+            if (random.nextBoolean() && part.length() <= number.length()) {
+                int start = random.nextInt(number.length() - part.length() + 1);
+                part = number.substring(start, start + part.length());
+            }
+            assertEquals(number + " " + part, number.contains(part), 
+                    PhoneNumberNormalizer.contains(PhoneNumberNormalizer.pack(number), PhoneNumberNormalizer.pack(part)));
+        }
+    }
+    
+    private static String randomDigits(Random random, int count) {
+        StringBuilder digits = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            digits.append((char) ('0' + random.nextInt(10)));
+        }
+        return digits.toString();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.metrics;
+
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * FlightRecorderEventsTest checks that events cost nothing while no recording
+ * is running and reach a recording with their fields set.
+ * jdk.jfr is used by reflection to keep the sources Java 8 compatible.
+ * 
+ * @author Vladimir Syso
+ */
+public class FlightRecorderEventsTest {
+
+    @Test
+    public void testNotRecording() {
+        
+        System.out.println("notRecording");
+        
+        Object event = FlightRecorderEvents.beginOperation();
+        assertNull(event);
+        FlightRecorderEvents.commitOperation(event, "findContact", 1, 1);
+        
+        event = FlightRecorderEvents.beginSerialization();
+        assertNull(event);
+        FlightRecorderEvents.commitSerialization(event, Object.class, "application/json", true, 10);
+        
+        FlightRecorderEvents.cacheAccess("contact", 1, true);
+    }
+    
+    @Test
+    public void testRecording() throws Exception {
+        
+        System.out.println("recording");
+        Assume.assumeTrue(FlightRecorderEvents.isSupported());
+        
+        Path file = Files.createTempFile("phonebook", ".jfr");
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        try (AutoCloseable recording = (AutoCloseable) recordingClass.getConstructor().newInstance()) {
+            Method enable = recordingClass.getMethod("enable", String.class);
+            for (String name : new String[]{FlightRecorderEvents.OPERATION, FlightRecorderEvents.SERIALIZATION, 
+                    FlightRecorderEvents.CACHE_ACCESS}) {
+                Object settings = enable.invoke(recording, name);
+                settings.getClass().getMethod("withoutThreshold").invoke(settings);
+            }
+            recordingClass.getMethod("start").invoke(recording);
+            
+            Object event = FlightRecorderEvents.beginOperation();
+            assertNotNull(event);
+            FlightRecorderEvents.commitOperation(event, "findContact", 7, 1);
+            event = FlightRecorderEvents.beginSerialization();
+            assertNotNull(event);
+            FlightRecorderEvents.commitSerialization(event, String.class, "application/json", true, 42);
+            FlightRecorderEvents.cacheAccess("contact", 7, true);
+            
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("dump", Path.class).invoke(recording, file);
+        }
+        
+        try {
+            Map<String, Object> events = new HashMap<>();
+            Class<?> recordingFile = Class.forName("jdk.jfr.consumer.RecordingFile");
+            for (Object recorded : (List<?>) recordingFile.getMethod("readAllEvents", Path.class).invoke(null, file)) {
+                Object type = recorded.getClass().getMethod("getEventType").invoke(recorded);
+                events.put((String) type.getClass().getMethod("getName").invoke(type), recorded);
+            }
+            
+            Object operation = events.get(FlightRecorderEvents.OPERATION);
+            assertNotNull(operation);
+            assertEquals("findContact", value(operation, "operation"));
+            assertEquals(7, value(operation, "contactId"));
+            assertEquals(1, value(operation, "rows"));
+            
+            Object serialization = events.get(FlightRecorderEvents.SERIALIZATION);
+            assertNotNull(serialization);
+            Object entityClass = value(serialization, "entityClass");
+            assertEquals(String.class.getName(), entityClass.getClass().getMethod("getName").invoke(entityClass));
+            assertEquals("application/json", value(serialization, "mediaType"));
+            assertEquals(true, value(serialization, "marshal"));
+            assertEquals(42L, value(serialization, "bytes"));
+            
+            Object cacheAccess = events.get(FlightRecorderEvents.CACHE_ACCESS);
+            assertNotNull(cacheAccess);
+            assertEquals("contact", value(cacheAccess, "cache"));
+            assertEquals("7", value(cacheAccess, "key"));
+            assertEquals(true, value(cacheAccess, "hit"));
+        } finally {
+            Files.delete(file);
+        }
+        
+        assertNull(FlightRecorderEvents.beginOperation());
+    }
+    
+    private static Object value(Object recorded, String field) throws ReflectiveOperationException {
+        return recorded.getClass().getMethod("getValue", String.class).invoke(recorded, field);
+    }
+}
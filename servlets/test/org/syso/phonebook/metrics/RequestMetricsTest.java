@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.metrics;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * RequestMetricsTest checks route templates, histogram quantiles and the Prometheus output
+ * 
+ * @author Vladimir Syso
+ */
+public class RequestMetricsTest {
+
+    @Test
+    public void testTemplate() {
+        
+        System.out.println("template");
+        
+        assertEquals("/", RequestMetrics.template(""));
+        assertEquals("/servlet/contact/{id}", RequestMetrics.template("/servlet/contact/42"));
+        assertEquals("/servlet/contact/{id}/{value}", RequestMetrics.template("/servlet/contact/42/+1-555-0100"));
+        assertEquals("/servlet/contacts/", RequestMetrics.template("/servlet/contacts/"));
+    }
+    
+    @Test
+    public void testQuantiles() {
+        
+        System.out.println("quantiles");
+        
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(1);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 100 + random.nextInt(1000000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        
+        long[] counts = histogram.snapshot();
+        assertEquals(values.length, LatencyHistogram.totalCount(counts));
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            long expected = values[(int) Math.ceil(quantile * values.length) - 1];
+            long actual = LatencyHistogram.valueAtQuantile(counts, quantile);
+            assertTrue(quantile + ": " + actual + " vs " + expected, 
+                    actual >= expected && actual <= expected * 1.04);
+        }
+        
+        histogram.clear();
+        assertEquals(0, LatencyHistogram.totalCount(histogram.snapshot()));
+    }
+    
+    @Test
+    public void testWritePrometheus() throws Exception {
+        
+        System.out.println("writePrometheus");
+        
+        RequestMetrics metrics = new RequestMetrics(60);
+        RequestMetrics.Route route = metrics.route("GET", "/servlet/contact/42");
+        assertSame(route, metrics.route("GET", "/servlet/contact/7"));
+        route.started();
+        RequestTiming timing = new RequestTiming(System.nanoTime());
+        timing.add(RequestTiming.Phase.SERIALIZATION, 2500000);
+        timing.statementStarted();
+        timing.statementFinished();
+        route.completed(200, System.nanoTime(), 0, 120, timing);
+        metrics.route("POST", "/servlet/contact").started();
+        
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        String text = out.toString();
+        
+        String labels = "method=\"GET\",route=\"/servlet/contact/{id}\"";
+        assertTrue(text, text.contains("# TYPE phonebook_http_request_duration_seconds summary\n"));
+        assertTrue(text, text.contains("phonebook_http_request_duration_seconds{" + labels + ",status=\"200\",quantile=\"0.99\"} "));
+        assertTrue(text, text.contains("phonebook_http_request_duration_seconds_count{" + labels + ",status=\"200\"} 1\n"));
+        assertTrue(text, text.contains("phonebook_http_requests_in_flight{" + labels + "} 0\n"));
+        assertTrue(text, text.contains("phonebook_http_requests_in_flight{method=\"POST\",route=\"/servlet/contact\"} 1\n"));
+        assertTrue(text, text.contains("phonebook_http_response_bytes_total{" + labels + "} 120\n"));
+        assertTrue(text, text.contains("phonebook_http_request_phase_seconds_total{" + labels + ",phase=\"ser\"} 0.0025\n"));
+        assertTrue(text, text.contains("phonebook_http_request_sql_statements_total{" + labels + "} 1\n"));
+    }
+    
+    @Test
+    public void testMaxRoutes() {
+        
+        System.out.println("maxRoutes");
+        
+        RequestMetrics metrics = new RequestMetrics(60);
+        for (int i = 0; i < RequestMetrics.MAX_ROUTES; i++) {
+            metrics.route("GET", "/route" + (char) ('a' + i % 26) + (char) ('a' + i / 26));
+        }
+        assertSame(metrics.route("GET", "/one/more"), metrics.route("GET", "/another/one"));
+    }
+}
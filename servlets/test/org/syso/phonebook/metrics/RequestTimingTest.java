@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.metrics;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * RequestTimingTest checks phase accounting and the Server-Timing header
+ * 
+ * @author Vladimir Syso
+ */
+public class RequestTimingTest {
+
+    @Test
+    public void testStartStop() {
+        
+        System.out.println("startStop");
+        
+        assertEquals(0, RequestTiming.start());
+        
+        RequestTiming timing = new RequestTiming(System.nanoTime());
+        RequestTiming previous = RequestTiming.bind(timing);
+        try {
+            long start = RequestTiming.start();
+            assertTrue(start != 0);
+            RequestTiming.stop(RequestTiming.Phase.SERVICE, start);
+            assertTrue(timing.getNanos(RequestTiming.Phase.SERVICE) > 0);
+            
+            timing.begin(RequestTiming.Phase.SERIALIZATION);
+            long open = timing.getNanos(RequestTiming.Phase.SERIALIZATION);
+            timing.end(RequestTiming.Phase.SERIALIZATION);
+            long ended = timing.getNanos(RequestTiming.Phase.SERIALIZATION);
+            assertTrue(open > 0 && ended >= open);
+            timing.end(RequestTiming.Phase.SERIALIZATION);
+            assertEquals(ended, timing.getNanos(RequestTiming.Phase.SERIALIZATION));
+        } finally {
+            RequestTiming.bind(previous);
+        }
+        assertNull(RequestTiming.current());
+    }
+    
+    @Test
+    public void testHydration() throws Exception {
+        
+        System.out.println("hydration");
+        
+        RequestTiming timing = new RequestTiming(System.nanoTime());
+        timing.queryStarted();
+        timing.statementStarted();
+        Thread.sleep(20);
+        timing.statementFinished();
+        // Nested query of the outer one, e.g. a batch fetch
+        timing.queryStarted();
+        timing.statementStarted();
+        timing.statementFinished();
+        timing.queryFinished();
+        Thread.sleep(10);
+        timing.queryFinished();
+        
+        assertEquals(2, timing.getStatements());
+        long database = timing.getNanos(RequestTiming.Phase.DATABASE);
+        long hydration = timing.getNanos(RequestTiming.Phase.HYDRATION);
+        assertTrue(database >= 20000000);
+        assertTrue(hydration >= 10000000 && hydration < database);
+        
+        // Unbalanced events are ignored
+        timing.queryFinished();
+        assertEquals(hydration, timing.getNanos(RequestTiming.Phase.HYDRATION));
+    }
+    
+    @Test
+    public void testToServerTiming() {
+        
+        System.out.println("toServerTiming");
+        
+        RequestTiming timing = new RequestTiming(System.nanoTime());
+        assertTrue(timing.toServerTiming().startsWith("total;dur="));
+        
+        timing.add(RequestTiming.Phase.SERVICE, 12345678);
+        timing.statementFinished();
+        timing.add(RequestTiming.Phase.SERIALIZATION, 500000);
+        String header = timing.toServerTiming();
+        assertTrue(header, header.startsWith("svc;dur=12.345, db;dur=0.0;desc=\"1 statement\", ser;dur=0.5, total;dur="));
+    }
+}
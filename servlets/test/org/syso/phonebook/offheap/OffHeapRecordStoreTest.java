@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.offheap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneMask;
+import org.syso.phonebook.domain.PhoneNumber;
+import org.syso.phonebook.domain.PhoneType;
+
+/**
+ * OffHeapRecordStoreTest checks storing, replacing and compacting records
+ * and the ContactCodec round trip
+ * 
+ * @author Vladimir Syso
+ */
+public class OffHeapRecordStoreTest {
+    
+    private static final int SLAB_SIZE = 1024;
+
+    @Test
+    public void testPutGetRemove() {
+        
+        System.out.println("putGetRemove");
+        
+        OffHeapRecordStore store = new OffHeapRecordStore(4 * SLAB_SIZE, SLAB_SIZE, 16);
+        assertNull(store.get(1));
+        assertEquals(-1, store.length(1));
+        
+        assertTrue(store.put(1, bytes(10, 1)));
+        assertTrue(store.put(2, bytes(20, 2)));
+        assertTrue(Arrays.equals(bytes(10, 1), store.get(1)));
+        assertEquals(20, store.length(2));
+        assertEquals(2, store.size());
+        assertEquals(38, store.getLiveBytes());
+        
+        assertTrue(store.put(1, bytes(5, 3)));
+        assertTrue(Arrays.equals(bytes(5, 3), store.get(1)));
+        assertEquals(33, store.getLiveBytes());
+        
+        assertTrue(store.remove(2));
+        assertFalse(store.remove(2));
+        assertFalse(store.contains(2));
+        assertEquals(1, store.size());
+        assertEquals(9, store.getLiveBytes());
+        
+        store.clear();
+        assertEquals(0, store.size());
+        assertNull(store.get(1));
+    }
+    
+    @Test
+    public void testCompaction() {
+        
+        System.out.println("compaction");
+        
+        OffHeapRecordStore store = new OffHeapRecordStore(2 * SLAB_SIZE, SLAB_SIZE, 16);
+        // Rewriting 10 keys many times fills both slabs with garbage
+        for (int round = 0; round < 100; round++) {
+            for (int key = 0; key < 10; key++) {
+                assertTrue(store.put(key, bytes(60, round + key)));
+            }
+        }
+        assertTrue(store.getCompactions() > 0);
+        assertTrue(store.getAllocatedBytes() <= 2 * SLAB_SIZE);
+        assertEquals(10, store.size());
+        for (int key = 0; key < 10; key++) {
+            assertTrue(Arrays.equals(bytes(60, 99 + key), store.get(key)));
+        }
+    }
+    
+    @Test
+    public void testLimit() {
+        
+        System.out.println("limit");
+        
+        OffHeapRecordStore store = new OffHeapRecordStore(SLAB_SIZE, SLAB_SIZE, 16);
+        assertTrue(store.put(1, bytes(10, 1)));
+        
+        // Larger than a slab, the previous record of the key is dropped
+        assertFalse(store.put(1, bytes(SLAB_SIZE, 1)));
+        assertFalse(store.contains(1));
+        
+        int key = 0;
+        while (store.put(key, bytes(100, key))) {
+            key++;
+        }
+        assertEquals(9, key);
+        assertEquals(9, store.size());
+        assertTrue(Arrays.equals(bytes(100, 8), store.get(8)));
+    }
+    
+    @Test
+    public void testContactCodec() {
+        
+        System.out.println("contactCodec");
+        
+        Contact contact = new Contact(300);
+        contact.setFirstName("J\u00f6hn");
+        contact.setLastName(null);
+        List<PhoneNumber> phoneNumbers = new ArrayList<>();
+        PhoneNumber phoneNumber = new PhoneNumber(7, 300);
+        phoneNumber.setNumber("+09(876)543-21-00");
+        phoneNumber.setType(new PhoneType(2, "mobile"));
+        phoneNumber.setPhoneMaskId(new PhoneMask(3, "+XX(XXX)XXX-XX-XX"));
+        phoneNumbers.add(phoneNumber);
+        contact.setPhoneNumbers(phoneNumbers);
+        
+        Contact decoded = ContactCodec.decode(ContactCodec.encode(contact));
+        assertEquals(300, (int) decoded.getContactId());
+        assertEquals("J\u00f6hn", decoded.getFirstName());
+        assertNull(decoded.getLastName());
+        assertEquals(1, decoded.getPhoneNumbers().size());
+        
+        PhoneNumber decodedNumber = decoded.getPhoneNumbers().iterator().next();
+        assertEquals(7, decodedNumber.getPhoneNumberPK().getPhoneNumberId());
+        assertEquals("+09(876)543-21-00", decodedNumber.getNumber());
+        assertEquals("mobile", decodedNumber.getType().getPhoneTypeName());
+        assertEquals(3, (int) decodedNumber.getPhoneMaskId().getPhoneMaskId());
+    }
+    
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) seed);
+        return bytes;
+    }
+}
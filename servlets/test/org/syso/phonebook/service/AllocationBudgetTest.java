@@ -0,0 +1,285 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.syso.phonebook.controllers.helpers.JAXBMapper;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.Contacts;
+import org.syso.phonebook.domain.PhoneMask;
+import org.syso.phonebook.domain.PhoneNumber;
+import org.syso.phonebook.metrics.ThreadAllocations;
+
+/**
+ * AllocationBudgetTest checks the heap bytes allocated by the code paths of the
+ * main endpoints against budgets of about twice the current values, so an
+ * allocation regression fails the build instead of showing up as GC load.
+ * 
+ * The lookups run through the in-memory backend and through the default JPA
+ * backend of PhonebookBackends over PhonebookLocalPU and an embedded Derby
+ * database. The endpoint tests add the JSON body the servlets write.
+ * 
+ * Each operation is warmed up before it is measured, the JIT removes some
+ * allocations by escape analysis. Lower a budget when an optimization lands.
+ * 
+ * @author Vladimir Syso
+ */
+public class AllocationBudgetTest {
+    
+    private static final int CONTACTS = 100;
+    private static final int WARM_UP = 20000;
+    
+    // Bytes per call
+    private static final long FIND_CONTACT_BUDGET = 1024;
+    private static final long FIND_BY_NUMBER_BUDGET = 1536;
+    private static final long FIND_ALL_BUDGET = CONTACTS * 1024;
+    private static final long FORMAT_NUMBER_BUDGET = 256;
+    private static final long MARSHAL_ALL_BUDGET = CONTACTS * 4096;
+    private static final long JPA_FIND_CONTACT_BUDGET = 2048;
+    private static final long JPA_FIND_BY_NUMBER_BUDGET = 80 * 1024;
+    private static final long JPA_FIND_ALL_BUDGET = CONTACTS * 1024;
+    // Lookup and JSON body, mostly the marshaller
+    private static final long GET_CONTACT_BUDGET = 64 * 1024;
+    
+    private static Phonebook phonebook;
+    
+    private static EmbeddedDataSource dataSource;
+    private static EntityManagerFactory emf;
+    private static EntityManager em;
+    private static Phonebook jpaPhonebook;
+    
+    @BeforeClass
+    public static void setUpClass() throws SQLException {
+        InMemoryPhonebookService memory = new InMemoryPhonebookService(CONTACTS);
+        for (int i = 0; i < CONTACTS; i++) {
+            Contact contact = memory.createContact("First" + i, "Last" + i);
+            memory.insertPhoneNumber(contact.getContactId(), "+1 (555) 010-" + (1000 + i), "MOBILE");
+            memory.insertPhoneNumber(contact.getContactId(), "+1 (555) 020-" + (1000 + i), "WORK");
+        }
+        // The decorators PhonebookBackends puts around the in-memory backend, with hot keys counted
+        phonebook = new TimedPhonebook(new HotKeysPhonebook(memory, 
+                HotKeys.forNumbers(20, 60), HotKeys.forContacts(20, 60)));
+        
+        dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:allocations-" + UUID.randomUUID());
+        dataSource.setCreateDatabase("create");
+        createDatabase(dataSource);
+        
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("javax.persistence.nonJtaDataSource", dataSource);
+        emf = Persistence.createEntityManagerFactory("PhonebookLocalPU", properties);
+        em = emf.createEntityManager();
+        jpaPhonebook = PhonebookBackends.create(em);
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+        
+        em.close();
+        emf.close();
+        
+        dataSource.setCreateDatabase(null);
+        dataSource.setConnectionAttributes("drop=true");
+        try {
+            dataSource.getConnection().close();
+        } catch (SQLException ex) {
+            // Derby reports a dropped database with an exception
+        }
+    }
+    
+    private static void createDatabase(EmbeddedDataSource dataSource) throws SQLException {
+        
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            
+            statement.executeUpdate("CREATE TABLE contact ("
+                    + "contact_id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "first_name VARCHAR(45), last_name VARCHAR(45))");
+            statement.executeUpdate("CREATE TABLE phone_type ("
+                    + "phone_type_id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "phone_type_name VARCHAR(45) NOT NULL UNIQUE)");
+            statement.executeUpdate("CREATE TABLE phone_mask ("
+                    + "phone_mask_id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "phone_mask_view VARCHAR(45) NOT NULL UNIQUE)");
+            statement.executeUpdate("CREATE TABLE phone_number ("
+                    + "phone_number_id INT GENERATED BY DEFAULT AS IDENTITY, "
+                    + "phone_number VARCHAR(45) NOT NULL UNIQUE, "
+                    + "phone_type_id INT NOT NULL REFERENCES phone_type (phone_type_id), "
+                    + "phone_mask_id INT NOT NULL REFERENCES phone_mask (phone_mask_id), "
+                    + "contact_id INT NOT NULL REFERENCES contact (contact_id) ON DELETE CASCADE, "
+                    + "PRIMARY KEY (phone_number_id, contact_id))");
+            
+            statement.executeUpdate("INSERT INTO phone_type (phone_type_id, phone_type_name) VALUES (1, 'MOBILE'), (2, 'WORK')");
+            statement.executeUpdate("INSERT INTO phone_mask (phone_mask_id, phone_mask_view) VALUES (1, '+X (XXX) XXX-XXXX')");
+            try (PreparedStatement contact = connection.prepareStatement(
+                    "INSERT INTO contact (contact_id, first_name, last_name) VALUES (?, ?, ?)");
+                 PreparedStatement number = connection.prepareStatement(
+                    "INSERT INTO phone_number (phone_number, phone_type_id, phone_mask_id, contact_id) VALUES (?, ?, 1, ?)")) {
+                for (int i = 1; i <= CONTACTS; i++) {
+                    contact.setInt(1, i);
+                    contact.setString(2, "First" + i);
+                    contact.setString(3, "Last" + i);
+                    contact.executeUpdate();
+                    for (int type = 1; type <= 2; type++) {
+                        number.setString(1, "1555" + (type == 1 ? "010" : "020") + (1000 + i));
+                        number.setInt(2, type);
+                        number.setInt(3, i);
+                        number.executeUpdate();
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFindContact() {
+        
+        System.out.println("findContact");
+        
+        assertBudget("findContact", FIND_CONTACT_BUDGET, 100000, () -> phonebook.findContact(50, true));
+    }
+    
+    @Test
+    public void testFindContactsByPhoneNumber() {
+        
+        System.out.println("findContactsByPhoneNumber");
+        
+        assertBudget("findContactsByPhoneNumber", FIND_BY_NUMBER_BUDGET, 100000, 
+                () -> phonebook.findContactsByPhoneNumber("+1 (555) 010-1050", true));
+    }
+    
+    @Test
+    public void testFindAllContacts() {
+        
+        System.out.println("findAllContacts");
+        
+        assertBudget("findAllContacts", FIND_ALL_BUDGET, 5000, () -> phonebook.findAllContacts());
+    }
+    
+    @Test
+    public void testFormatNumber() {
+        
+        System.out.println("formatNumber");
+        
+        PhoneNumber number = new PhoneNumber(1, 1);
+        number.setNumber("15550101050");
+        number.setPhoneMaskId(new PhoneMask(1, "+X (XXX) XXX-XXXX"));
+        assertEquals("+1 (555) 010-1050", number.getNumber());
+        assertBudget("getNumber", FORMAT_NUMBER_BUDGET, 100000, number::getNumber);
+    }
+    
+    @Test
+    public void testMarshalAllContacts() {
+        
+        System.out.println("marshalAllContacts");
+        
+        Contacts contacts = new Contacts();
+        contacts.setContacts(phonebook.findAllContacts());
+        StringWriter body = new StringWriter();
+        new JAXBMapper<>(Contacts.class).marshal(contacts, body, JAXBMapper.MEDIA_TYPE_JSON);
+        assertTrue(body.toString().contains("First99"));
+        assertBudget("marshal", MARSHAL_ALL_BUDGET, 200, () -> {
+            StringWriter out = new StringWriter(64 * 1024);
+            new JAXBMapper<>(Contacts.class).marshal(contacts, out, JAXBMapper.MEDIA_TYPE_JSON);
+        });
+    }
+    
+    @Test
+    public void testJpaFindContact() {
+        
+        System.out.println("jpaFindContact");
+        
+        assertNotNull(jpaPhonebook.findContact(50, true));
+        assertBudget("jpa findContact", JPA_FIND_CONTACT_BUDGET, 10000, () -> jpaPhonebook.findContact(50, true));
+    }
+    
+    @Test
+    public void testJpaFindContactsByPhoneNumber() {
+        
+        System.out.println("jpaFindContactsByPhoneNumber");
+        
+        assertEquals(1, jpaPhonebook.findContactsByPhoneNumber("+1 (555) 010-1050", true).size());
+        assertBudget("jpa findContactsByPhoneNumber", JPA_FIND_BY_NUMBER_BUDGET, 2000, 
+                () -> jpaPhonebook.findContactsByPhoneNumber("+1 (555) 010-1050", true));
+    }
+    
+    @Test
+    public void testJpaFindAllContacts() {
+        
+        System.out.println("jpaFindAllContacts");
+        
+        assertEquals(CONTACTS, jpaPhonebook.findAllContacts().size());
+        assertBudget("jpa findAllContacts", JPA_FIND_ALL_BUDGET, 500, () -> jpaPhonebook.findAllContacts());
+    }
+    
+    @Test
+    public void testGetContact() {
+        
+        System.out.println("getContact");
+        
+        StringWriter body = new StringWriter();
+        new JAXBMapper<>(Contact.class).marshal(jpaPhonebook.findContact(50, true), body, JAXBMapper.MEDIA_TYPE_JSON);
+        assertTrue(body.toString().contains("First50"));
+        // The work of GET /servlet/contact/{id} past the container: lookup and JSON body
+        assertBudget("GET /contact/{id}", GET_CONTACT_BUDGET, 2000, () -> {
+            try (PrintWriter out = new PrintWriter(new StringWriter(1024))) {
+                Contact contact = jpaPhonebook.findContact(50, true);
+                new JAXBMapper<>(Contact.class).marshal(contact, out, JAXBMapper.MEDIA_TYPE_JSON);
+            }
+        });
+    }
+    
+    private static void assertBudget(String operation, long budget, int calls, Runnable call) {
+        if (!ThreadAllocations.isSupported()) {
+            System.out.println("Thread allocations are not measured by this JVM, " + operation + " is not checked");
+            return;
+        }
+        for (int i = 0; i < Math.min(WARM_UP, calls * 10); i++) {
+            call.run();
+        }
+        long start = ThreadAllocations.current();
+        for (int i = 0; i < calls; i++) {
+            call.run();
+        }
+        long perCall = ThreadAllocations.since(start) / calls;
+        System.out.println(operation + ": " + perCall + " bytes per call, budget " + budget);
+        assertTrue(operation + " allocates " + perCall + " bytes per call, budget " + budget, perCall <= budget);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.syso.phonebook.domain.Contact;
+
+/**
+ * CoalescingPhonebookTest checks that lookups after a write do not join a query
+ * started before it and that callers do not share Contacts
+ * 
+ * @author Vladimir Syso
+ */
+public class CoalescingPhonebookTest {
+
+    @Test
+    public void testWriteStartsNewQuery() throws Exception {
+        
+        System.out.println("writeStartsNewQuery");
+        
+        InMemoryPhonebookService memory = new InMemoryPhonebookService(16);
+        Integer contactId = memory.createContact("Old", "Name").getContactId();
+        
+        // The first lookup reads the contact and is held before it returns
+        CountDownLatch read = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean first = new AtomicBoolean(true);
+        Phonebook backend = (Phonebook) Proxy.newProxyInstance(Phonebook.class.getClassLoader(), 
+                new Class<?>[]{Phonebook.class}, (proxy, method, args) -> {
+                    Object result;
+                    try {
+                        result = method.invoke(memory, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+                    if (method.getName().equals("findContact") && args.length == 2 && first.getAndSet(false)) {
+                        read.countDown();
+                        release.await(5, TimeUnit.SECONDS);
+                    }
+                    return result;
+                });
+        CoalescingPhonebook phonebook = new CoalescingPhonebook(backend, new SingleFlight<>(), new SingleFlight<>());
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Contact> before = executor.submit(() -> phonebook.findContact(contactId, true));
+            assertTrue(read.await(5, TimeUnit.SECONDS));
+            
+            phonebook.updateContact(contactId, "New", "Name");
+            assertEquals("New", phonebook.findContact(contactId, true).getFirstName());
+            
+            release.countDown();
+            assertEquals("Old", before.get(5, TimeUnit.SECONDS).getFirstName());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testCallersGetCopies() {
+        
+        System.out.println("callersGetCopies");
+        
+        InMemoryPhonebookService memory = new InMemoryPhonebookService(16);
+        Integer contactId = memory.createContact("First", "Last").getContactId();
+        memory.insertPhoneNumber(contactId, "+1 (555) 010-1000", "MOBILE");
+        CoalescingPhonebook phonebook = new CoalescingPhonebook(memory, new SingleFlight<>(), new SingleFlight<>());
+        
+        List<Contact> found = phonebook.findContactsByPhoneNumber("+1 (555) 010-1000", true);
+        assertEquals(1, found.size());
+        found.clear();
+        List<Contact> again = phonebook.findContactsByPhoneNumber("+1 (555) 010-1000", true);
+        assertEquals(1, again.size());
+        
+        Contact contact = phonebook.findContact(contactId, true);
+        contact.setFirstName("Changed");
+        assertEquals("First", phonebook.findContact(contactId, true).getFirstName());
+        assertEquals(1, new ArrayList<>(contact.getPhoneNumbers()).size());
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneNumber;
+
+/**
+ * ConcurrentPhonebookServiceTest runs PhonebookLocalPU over an embedded
+ * in-memory Derby database
+ * 
+ * @author Vladimir Syso
+ */
+public class ConcurrentPhonebookServiceTest {
+    
+    private EmbeddedDataSource dataSource;
+    private EntityManagerFactory emf;
+    private ExecutorService executor;
+    private ConcurrentPhonebookService phonebook;
+    
+    @Before
+    public void setUp() throws SQLException {
+        
+        dataSource = new EmbeddedDataSource();
+        dataSource.setDatabaseName("memory:concurrent-" + UUID.randomUUID());
+        dataSource.setCreateDatabase("create");
+        createSchema(dataSource);
+        
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("javax.persistence.nonJtaDataSource", dataSource);
+        emf = Persistence.createEntityManagerFactory("PhonebookLocalPU", properties);
+        
+        executor = Executors.newFixedThreadPool(8);
+        phonebook = new ConcurrentPhonebookService(emf, executor);
+    }
+    
+    @After
+    public void tearDown() {
+        
+        executor.shutdownNow();
+        emf.close();
+        
+        dataSource.setCreateDatabase(null);
+        dataSource.setConnectionAttributes("drop=true");
+        try {
+            dataSource.getConnection().close();
+        } catch (SQLException ex) {
+            // Derby reports a dropped database with an exception
+        }
+    }
+    
+    private static void createSchema(EmbeddedDataSource dataSource) throws SQLException {
+        
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            
+            statement.executeUpdate("CREATE TABLE contact ("
+                    + "contact_id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "first_name VARCHAR(45), last_name VARCHAR(45))");
+            statement.executeUpdate("CREATE TABLE phone_type ("
+                    + "phone_type_id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "phone_type_name VARCHAR(45) NOT NULL UNIQUE)");
+            statement.executeUpdate("CREATE TABLE phone_mask ("
+                    + "phone_mask_id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "phone_mask_view VARCHAR(45) NOT NULL UNIQUE)");
+            statement.executeUpdate("CREATE TABLE phone_number ("
+                    + "phone_number_id INT GENERATED BY DEFAULT AS IDENTITY, "
+                    + "phone_number VARCHAR(45) NOT NULL UNIQUE, "
+                    + "phone_type_id INT NOT NULL REFERENCES phone_type (phone_type_id), "
+                    + "phone_mask_id INT NOT NULL REFERENCES phone_mask (phone_mask_id), "
+                    + "contact_id INT NOT NULL REFERENCES contact (contact_id) ON DELETE CASCADE, "
+                    + "PRIMARY KEY (phone_number_id, contact_id))");
+        }
+    }
+    
+    private Contact createContact() {
+        return phonebook.createContact(UUID.randomUUID().toString(), UUID.randomUUID().toString()).join();
+    }
+    
+    @Test
+    public void testEventsFireAfterCommit() {
+        
+        System.out.println("eventsFireAfterCommit");
+        
+        Contact contact = createContact();
+        List<Boolean> committed = new ArrayList<>();
+        PhonebookListener listener = new PhonebookListener() {
+            @Override
+            public void numberAdded(String numbersOnly) {
+                // Another connection sees the number only once the insert commits
+                EntityManager em = emf.createEntityManager();
+                try {
+                    committed.add(new PhonebookService(em).findPhoneNumber(numbersOnly) != null);
+                } finally {
+                    em.close();
+                }
+            }
+            
+            @Override
+            public void contactsDeleted(Collection<Integer> contactIds) {
+                EntityManager em = emf.createEntityManager();
+                try {
+                    committed.add(new PhonebookService(em).findContact(contactIds.iterator().next()) == null);
+                } finally {
+                    em.close();
+                }
+            }
+        };
+        
+        PhonebookEvents.addListener(listener);
+        try {
+            phonebook.insertPhoneNumber(contact.getContactId(), "+09(876)543-21-00", "Mobile").join();
+            phonebook.deleteContacts(Arrays.asList(contact.getContactId())).join();
+        } finally {
+            PhonebookEvents.removeListener(listener);
+        }
+        assertEquals(Arrays.asList(true, true), committed);
+    }
+    
+    @Test
+    public void testInsertPhoneNumber() {
+        
+        System.out.println("insertPhoneNumber");
+        
+        Contact first = createContact();
+        Contact second = createContact();
+        
+        assertEquals(AddPhoneNumberResult.CREATED,
+                phonebook.insertPhoneNumber(first.getContactId(), "+09(876)543-21-00", "Mobile").join());
+        PhoneNumber added = phonebook.findPhoneNumber("0987654321-00").join();
+        assertEquals(first.getContactId(), Integer.valueOf(added.getPhoneNumberPK().getContactId()));
+        
+        // The number of another contact is not reported as added
+        assertEquals(AddPhoneNumberResult.CONFLICT,
+                phonebook.insertPhoneNumber(second.getContactId(), "0987654321-00", "Home").join());
+        assertEquals(AddPhoneNumberResult.CONTACT_NOT_FOUND,
+                phonebook.insertPhoneNumber(Integer.MAX_VALUE, "+01(234)567-89-00", "Mobile").join());
+        assertEquals(AddPhoneNumberResult.INVALID,
+                phonebook.insertPhoneNumber(second.getContactId(), "()-", "Mobile").join());
+        
+        assertEquals(AddPhoneNumberResult.CREATED,
+                phonebook.insertPhoneNumber(second.getContactId(), "+01(234)567-89-00", "Mobile").join());
+    }
+    
+    @Test
+    public void testConcurrentInsertsOfOneNumber() {
+        
+        System.out.println("concurrentInsertsOfOneNumber");
+        
+        // Mask and type exist already, the inserts race on the number only
+        assertEquals(AddPhoneNumberResult.CREATED,
+                phonebook.insertPhoneNumber(createContact().getContactId(), "+09(876)543-21-01", "Mobile").join());
+        
+        List<CompletableFuture<AddPhoneNumberResult>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(phonebook.insertPhoneNumber(createContact().getContactId(), "+09(876)543-21-00", "Mobile"));
+        }
+        
+        int created = 0;
+        for (CompletableFuture<AddPhoneNumberResult> result : results) {
+            if (result.join() == AddPhoneNumberResult.CREATED) {
+                created++;
+            } else {
+                assertEquals(AddPhoneNumberResult.CONFLICT, result.join());
+            }
+        }
+        assertEquals(1, created);
+    }
+    
+    @Test
+    public void testFindContacts() {
+        
+        System.out.println("findContacts");
+        
+        Contact first = createContact();
+        Contact second = createContact();
+        
+        List<Contact> found = phonebook.findContacts(
+                Arrays.asList(second.getContactId(), Integer.MAX_VALUE, first.getContactId())).join();
+        assertEquals(2, found.size());
+        assertEquals(second.getContactId(), found.get(0).getContactId());
+        assertEquals(first.getContactId(), found.get(1).getContactId());
+    }
+}
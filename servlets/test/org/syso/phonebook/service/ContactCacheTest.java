@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.syso.phonebook.collections.FrequencySketch;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneMask;
+import org.syso.phonebook.domain.PhoneNumber;
+import org.syso.phonebook.domain.PhoneType;
+import org.syso.phonebook.offheap.ContactCodec;
+
+/**
+ * ContactCacheTest checks the admission of popular contacts, the weight limit and the invalidation
+ * 
+ * @author Vladimir Syso
+ */
+public class ContactCacheTest {
+
+    @Test
+    public void testDetachedCopy() {
+        
+        System.out.println("detachedCopy");
+        
+        ContactCache cache = new ContactCache(4096, 60);
+        assertNull(cache.get(300));
+        cache.put(contact(300), cache.generation());
+        
+        Contact cached = cache.get(300);
+        assertEquals("John300", cached.getFirstName());
+        assertEquals(1, cached.getPhoneNumbers().size());
+        assertEquals("+09(876)543-21-00", cached.getPhoneNumbers().iterator().next().getNumber());
+        
+        // Changes of a returned copy do not reach the cache
+        cached.setFirstName("Jack");
+        assertEquals("John300", cache.get(300).getFirstName());
+        assertEquals(ContactCodec.encode(contact(300)).length, cache.getWeightedSize());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+    
+    @Test
+    public void testInvalidation() {
+        
+        System.out.println("invalidation");
+        
+        ContactCache cache = new ContactCache(4096, 60);
+        cache.put(contact(1), cache.generation());
+        cache.put(contact(2), cache.generation());
+        
+        long generation = cache.generation();
+        cache.invalidate(1);
+        assertNull(cache.get(1));
+        // Looked up before the write, so it may be stale
+        cache.put(contact(1), generation);
+        assertNull(cache.get(1));
+        
+        cache.contactsDeleted(Collections.singletonList(2));
+        assertNull(cache.get(2));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeightedSize());
+    }
+    
+    @Test
+    public void testInvalidationAfterCommit() {
+        
+        System.out.println("invalidationAfterCommit");
+        
+        InMemoryPhonebookService memory = new InMemoryPhonebookService();
+        Contact contact = memory.createContact("John", "Smith");
+        ContactCache cache = new ContactCache(4096, 60);
+        ContactCachingPhonebook phonebook = new ContactCachingPhonebook(memory, cache);
+        assertEquals("John", phonebook.findContact(contact.getContactId(), true).getFirstName());
+        
+        List<Runnable> enclosing = AfterCommit.begin();
+        boolean committed = false;
+        try {
+            phonebook.updateContact(contact.getContactId(), "Jack", null);
+            // A lookup running before the commit still reads and stores the old copy
+            cache.put(contact, cache.generation());
+            committed = true;
+        } finally {
+            AfterCommit.end(enclosing, committed);
+        }
+        assertEquals("Jack", phonebook.findContact(contact.getContactId(), true).getFirstName());
+    }
+    
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        
+        System.out.println("concurrentAccess");
+        
+        int weight = ContactCodec.encode(contact(1000)).length;
+        ContactCache cache = new ContactCache(50L * weight, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int worker = 0; worker < 4; worker++) {
+            final int seed = worker;
+            workers.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                for (int i = 0; i < 20000; i++) {
+                    int contactId = 1000 + random.nextInt(200);
+                    Contact cached = cache.get(contactId);
+                    if (cached != null) {
+                        assertEquals(Integer.valueOf(contactId), cached.getContactId());
+                    } else if (random.nextInt(10) == 0) {
+                        cache.invalidate(contactId);
+                    } else {
+                        cache.put(contact(contactId), cache.generation());
+                    }
+                }
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        executor.shutdown();
+        
+        assertTrue(cache.getWeightedSize() <= cache.getMaximumWeight());
+        assertEquals(cache.getWeightedSize(), (long) cache.size() * weight);
+        assertTrue(cache.getHits() > 0);
+    }
+    
+    @Test
+    public void testScanResistance() {
+        
+        System.out.println("scanResistance");
+        
+        int weight = ContactCodec.encode(contact(1000)).length;
+        ContactCache cache = new ContactCache(100L * weight, 0);
+        
+        // Hot contacts looked up repeatedly
+        for (int round = 0; round < 5; round++) {
+            for (int contactId = 1000; contactId < 1020; contactId++) {
+                if (cache.get(contactId) == null) {
+                    cache.put(contact(contactId), cache.generation());
+                }
+            }
+        }
+        // A scan of contacts looked up once, while the hot ones are still used.
+        // Each hot contact is looked up once per 200 scanned, so LRU would lose them
+        for (int contactId = 5000; contactId < 10000; contactId++) {
+            if (cache.get(contactId) == null) {
+                cache.put(contact(contactId), cache.generation());
+            }
+            if (contactId % 10 == 0) {
+                int hotId = 1000 + contactId / 10 % 20;
+                if (cache.get(hotId) == null) {
+                    cache.put(contact(hotId), cache.generation());
+                }
+            }
+        }
+        
+        for (int contactId = 1000; contactId < 1020; contactId++) {
+            assertNotNull(cache.get(contactId));
+        }
+        assertTrue(cache.getWeightedSize() <= cache.getMaximumWeight());
+        assertTrue(cache.getRejections() > 0);
+    }
+    
+    @Test
+    public void testFrequencySketch() {
+        
+        System.out.println("frequencySketch");
+        
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(7);
+        }
+        sketch.increment(8);
+        assertEquals(FrequencySketch.MAX_FREQUENCY, sketch.frequency(7));
+        assertTrue(sketch.frequency(8) >= 1);
+        
+        // Counts are halved after a sample, so old popularity fades
+        List<Integer> keys = new ArrayList<>();
+        for (int key = 100; keys.size() < sketch.getSampleSize(); key++) {
+            keys.add(key);
+        }
+        keys.forEach(sketch::increment);
+        assertTrue(sketch.getResets() > 0);
+        assertTrue(sketch.frequency(7) < FrequencySketch.MAX_FREQUENCY);
+    }
+    
+    private static Contact contact(int contactId) {
+        Contact contact = new Contact(contactId);
+        contact.setFirstName("John" + contactId);
+        contact.setLastName("Smith");
+        List<PhoneNumber> phoneNumbers = new ArrayList<>();
+        PhoneNumber phoneNumber = new PhoneNumber(contactId * 10, contactId);
+        phoneNumber.setNumber("+09(876)543-21-00");
+        phoneNumber.setType(new PhoneType(2, "mobile"));
+        phoneNumber.setPhoneMaskId(new PhoneMask(3, "+XX(XXX)XXX-XX-XX"));
+        phoneNumbers.add(phoneNumber);
+        contact.setPhoneNumbers(phoneNumbers);
+        return contact;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * HotKeysTest checks that the most looked up keys are reported and forgotten after the window
+ * 
+ * @author Vladimir Syso
+ */
+public class HotKeysTest {
+
+    @Test
+    public void testTop() {
+        
+        System.out.println("top");
+        
+        HotKeys hotKeys = new HotKeys(3, 6, 10, String::valueOf);
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            // Background of rarely repeated keys
+            hotKeys.record(1000 + random.nextInt(50000));
+            if (i % 10 == 0) {
+                hotKeys.record(7);
+            }
+            if (i % 20 == 0) {
+                hotKeys.record(8);
+            }
+            if (i % 40 == 0) {
+                hotKeys.record(9);
+            }
+        }
+        
+        List<HotKeys.HotKey> top = hotKeys.top();
+        assertEquals(3, top.size());
+        assertEquals("7", top.get(0).getKey());
+        assertEquals("8", top.get(1).getKey());
+        assertEquals("9", top.get(2).getKey());
+        // Counts are never underestimated
+        assertTrue(top.get(0).getCount() >= 10000);
+        assertTrue(top.get(0).getCount() < 11000);
+    }
+    
+    @Test
+    public void testWindow() throws InterruptedException {
+        
+        System.out.println("window");
+        
+        HotKeys hotKeys = new HotKeys(3, 2, 1, String::valueOf);
+        hotKeys.record(7);
+        hotKeys.tick();
+        hotKeys.record(8);
+        assertEquals(2, hotKeys.top().size());
+        
+        // The interval of 7 is reused
+        hotKeys.tick();
+        assertEquals(1, hotKeys.top().size());
+        assertEquals("8", hotKeys.top().get(0).getKey());
+        hotKeys.tick();
+        assertTrue(hotKeys.top().isEmpty());
+        
+        hotKeys.start();
+        try {
+            hotKeys.record(9);
+            Thread.sleep(2500);
+            assertTrue(hotKeys.top().isEmpty());
+        } finally {
+            hotKeys.close();
+        }
+    }
+    
+    @Test
+    public void testNumberKey() {
+        
+        System.out.println("numberKey");
+        
+        long exact = HotKeys.numberKey("+09(876)543-21-00", true);
+        long partial = HotKeys.numberKey("0987654", false);
+        assertEquals("098765432100", HotKeys.numberLabel(exact));
+        assertEquals("~0987654", HotKeys.numberLabel(partial));
+        assertNotEquals(HotKeys.numberKey("0987654", true), partial);
+        assertEquals(0, HotKeys.numberKey("123456789012345678", true));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneNumber;
+
+/**
+ * InMemoryPhonebookServiceTest checks that the in-memory backend returns
+ * the same results and error codes as PhonebookService
+ * 
+ * @author Vladimir Syso
+ */
+public class InMemoryPhonebookServiceTest {
+    
+    private static final String TEST_NUMBER = "+09(876)543-21-00";
+    
+    private InMemoryPhonebookService phonebook;
+    private final List<Collection<Integer>> deletedEvents = new ArrayList<>();
+    private final PhonebookListener listener = new PhonebookListener() {
+        @Override
+        public void contactsDeleted(Collection<Integer> contactIds) {
+            deletedEvents.add(contactIds);
+        }
+    };
+    
+    @Before
+    public void setUp() {
+        phonebook = new InMemoryPhonebookService(2);
+        PhonebookEvents.addListener(listener);
+    }
+    
+    @After
+    public void tearDown() {
+        PhonebookEvents.removeListener(listener);
+    }
+
+    @Test
+    public void testCreateAndUpdateContact() {
+        
+        System.out.println("createAndUpdateContact");
+        
+        assertNull(phonebook.createContact("", ""));
+        
+        Contact contact = phonebook.createContact("John", "Smith");
+        assertNotNull(contact.getContactId());
+        assertEquals("John", phonebook.findContact(contact.getContactId()).getFirstName());
+        
+        Contact updated = phonebook.updateContact(contact.getContactId(), null, "Doe");
+        assertEquals(contact.getContactId(), updated.getContactId());
+        assertEquals("John", updated.getFirstName());
+        assertEquals("Doe", updated.getLastName());
+        assertNull(phonebook.updateContact(contact.getContactId(), "", ""));
+        
+        // Missing contact is created, as by PhonebookService
+        Contact created = phonebook.updateContact(Integer.MAX_VALUE, "Jane", "Doe");
+        assertNotEquals(Integer.valueOf(Integer.MAX_VALUE), created.getContactId());
+        assertEquals(2, phonebook.findAllContacts().size());
+    }
+    
+    @Test
+    public void testInsertPhoneNumber() {
+        
+        System.out.println("insertPhoneNumber");
+        
+        Contact contact = phonebook.createContact("John", "Smith");
+        Contact other = phonebook.createContact("Jane", "Doe");
+        
+        assertEquals(AddPhoneNumberResult.CREATED, phonebook.insertPhoneNumber(contact.getContactId(), TEST_NUMBER, "home"));
+        assertEquals(AddPhoneNumberResult.CONFLICT, phonebook.insertPhoneNumber(other.getContactId(), "098765432100", "work"));
+        assertEquals(AddPhoneNumberResult.CONTACT_NOT_FOUND, phonebook.insertPhoneNumber(Integer.MAX_VALUE, "+01(234)567-89-00", "home"));
+        assertEquals(AddPhoneNumberResult.INVALID, phonebook.insertPhoneNumber(contact.getContactId(), "none", "home"));
+        assertEquals(AddPhoneNumberResult.INVALID, phonebook.insertPhoneNumber(contact.getContactId(), TEST_NUMBER, ""));
+        
+        // Leading zeros are significant
+        assertEquals(AddPhoneNumberResult.CREATED, phonebook.insertPhoneNumber(other.getContactId(), "98765432100", "work"));
+        
+        PhoneNumber phoneNumber = phonebook.findContact(contact.getContactId()).getPhoneNumbers().iterator().next();
+        assertEquals(TEST_NUMBER, phoneNumber.getNumber());
+        assertEquals("home", phoneNumber.getType().getPhoneTypeName());
+    }
+    
+    @Test
+    public void testFindContactsByPhoneNumber() {
+        
+        System.out.println("findContactsByPhoneNumber");
+        
+        Contact contact = phonebook.createContact("John", "Smith");
+        Contact other = phonebook.createContact("Jane", "Doe");
+        phonebook.insertPhoneNumber(contact.getContactId(), TEST_NUMBER, "home");
+        phonebook.insertPhoneNumber(other.getContactId(), "+1 876 000", "home");
+        // Too long to be packed into the primitive index
+        String longNumber = "1234567890 1234567890 1234567890";
+        phonebook.insertPhoneNumber(other.getContactId(), longNumber, "work");
+        
+        assertNull(phonebook.findContactsByPhoneNumber("", true));
+        
+        List<Contact> matched = phonebook.findContactsByPhoneNumber("09 876 543 21 00", true);
+        assertEquals(1, matched.size());
+        assertEquals(contact.getContactId(), matched.get(0).getContactId());
+        assertTrue(phonebook.findContactsByPhoneNumber("876", true).isEmpty());
+        
+        List<Contact> found = phonebook.findContactsByPhoneNumber("876", false);
+        assertEquals(2, found.size());
+        assertEquals(contact.getContactId(), found.get(0).getContactId());
+        // Missing match flag means a partial search
+        assertEquals(2, phonebook.findContactsByPhoneNumber("876", null).size());
+        
+        assertEquals(other.getContactId(), phonebook.findContactsByPhoneNumber(longNumber, true).get(0).getContactId());
+        assertEquals(AddPhoneNumberResult.CONFLICT, phonebook.insertPhoneNumber(contact.getContactId(), longNumber, "work"));
+    }
+    
+    @Test
+    public void testDeletePhoneNumber() {
+        
+        System.out.println("deletePhoneNumber");
+        
+        Contact contact = phonebook.createContact("John", "Smith");
+        Contact other = phonebook.createContact("Jane", "Doe");
+        phonebook.insertPhoneNumber(contact.getContactId(), TEST_NUMBER, "home");
+        
+        assertFalse(phonebook.deletePhoneNumber(other.getContactId(), TEST_NUMBER));
+        assertTrue(phonebook.deletePhoneNumber(contact.getContactId(), TEST_NUMBER));
+        assertFalse(phonebook.deletePhoneNumber(contact.getContactId(), TEST_NUMBER));
+        assertTrue(phonebook.findContact(contact.getContactId()).getPhoneNumbers().isEmpty());
+        
+        // The number is free again
+        assertEquals(AddPhoneNumberResult.CREATED, phonebook.insertPhoneNumber(other.getContactId(), TEST_NUMBER, "home"));
+    }
+    
+    @Test
+    public void testDeleteContacts() {
+        
+        System.out.println("deleteContacts");
+        
+        Contact first = phonebook.createContact("John", "Smith");
+        Contact second = phonebook.createContact("Jane", "Doe");
+        Contact third = phonebook.createContact("Jim", "Beam");
+        phonebook.insertPhoneNumber(first.getContactId(), TEST_NUMBER, "home");
+        
+        assertTrue(phonebook.deleteContact(first.getContactId()));
+        assertFalse(phonebook.deleteContact(first.getContactId()));
+        assertTrue(phonebook.findContactsByPhoneNumber(TEST_NUMBER, true).isEmpty());
+        
+        assertEquals(0, phonebook.deleteContacts(Arrays.asList(first.getContactId())));
+        assertEquals(2, phonebook.deleteContacts(Arrays.asList(second.getContactId(), third.getContactId(), Integer.MAX_VALUE)));
+        assertTrue(phonebook.findAllContacts().isEmpty());
+        
+        // Failed deletes are not reported, missing contacts are left out
+        assertEquals(2, deletedEvents.size());
+        assertEquals(Arrays.asList(second.getContactId(), third.getContactId()), new ArrayList<>(deletedEvents.get(1)));
+    }
+}
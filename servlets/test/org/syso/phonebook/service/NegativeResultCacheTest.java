@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * NegativeResultCacheTest checks that remembered misses are dropped by numbers that could match them
+ * 
+ * @author Vladimir Syso
+ */
+public class NegativeResultCacheTest {
+    
+    private NegativeResultCache cache;
+    
+    @Before
+    public void setUp() {
+        cache = new NegativeResultCache(100, 60);
+        PhonebookEvents.addListener(cache);
+    }
+    
+    @After
+    public void tearDown() {
+        PhonebookEvents.removeListener(cache);
+    }
+
+    @Test
+    public void testInvalidation() {
+        
+        System.out.println("invalidation");
+        
+        cache.putMiss("5432", false, cache.generation());
+        cache.putMiss("5432", true, cache.generation());
+        cache.putMiss("777", false, cache.generation());
+        cache.putMiss("98765432100", true, cache.generation());
+        assertTrue(cache.isKnownMiss("5432", false));
+        assertTrue(cache.isKnownMiss("5432", true));
+        assertFalse(cache.isKnownMiss("543", false));
+        assertEquals(2, cache.getHits());
+        
+        // Contains 5432 but is not equal to it
+        cache.numberAdded("98765432100");
+        assertFalse(cache.isKnownMiss("5432", false));
+        assertTrue(cache.isKnownMiss("5432", true));
+        assertTrue(cache.isKnownMiss("777", false));
+        assertFalse(cache.isKnownMiss("98765432100", true));
+    }
+    
+    @Test
+    public void testInvalidationOfLargeCache() {
+        
+        System.out.println("invalidationOfLargeCache");
+        
+        // More entries than substrings of the added number
+        for (int i = 0; i < 100; i++) {
+            cache.putMiss(String.valueOf(1000 + i), false, cache.generation());
+        }
+        // Evicts 1000, the oldest entry
+        cache.putMiss("", false, cache.generation());
+        assertEquals(100, cache.size());
+        
+        cache.numberAdded("0010420");
+        assertFalse(cache.isKnownMiss("1042", false));
+        assertFalse(cache.isKnownMiss("", false));
+        assertTrue(cache.isKnownMiss("1043", false));
+        assertEquals(98, cache.size());
+    }
+    
+    @Test
+    public void testSearchRacingWithWrite() {
+        
+        System.out.println("searchRacingWithWrite");
+        
+        long generation = cache.generation();
+        cache.numberAdded("123");
+        // The search started before the number was added, its miss may be stale
+        cache.putMiss("12", false, generation);
+        assertFalse(cache.isKnownMiss("12", false));
+    }
+    
+    @Test
+    public void testBoundsAndExpiration() {
+        
+        System.out.println("boundsAndExpiration");
+        
+        NegativeResultCache small = new NegativeResultCache(2, 60);
+        small.putMiss("1", true, small.generation());
+        small.putMiss("2", true, small.generation());
+        small.putMiss("3", true, small.generation());
+        assertEquals(2, small.size());
+        assertFalse(small.isKnownMiss("1", true));
+        
+        NegativeResultCache expired = new NegativeResultCache(2, 0);
+        expired.putMiss("1", true, expired.generation());
+        assertFalse(expired.isKnownMiss("1", true));
+        
+        NegativeResultCache disabled = new NegativeResultCache(0, 60);
+        disabled.putMiss("1", true, disabled.generation());
+        assertFalse(disabled.isKnownMiss("1", true));
+    }
+    
+    @Test
+    public void testCachingPhonebook() {
+        
+        System.out.println("cachingPhonebook");
+        
+        InMemoryPhonebookService backend = new InMemoryPhonebookService(4);
+        Phonebook phonebook = new NegativeCachingPhonebook(backend, cache);
+        int contactId = phonebook.createContact("John", "Smith").getContactId();
+        
+        assertTrue(phonebook.findContactsByPhoneNumber("(543)", false).isEmpty());
+        assertTrue(cache.isKnownMiss("543", false));
+        
+        assertEquals(AddPhoneNumberResult.CREATED, phonebook.insertPhoneNumber(contactId, "+1(543)000", "home"));
+        assertEquals(1, phonebook.findContactsByPhoneNumber("(543)", false).size());
+    }
+}
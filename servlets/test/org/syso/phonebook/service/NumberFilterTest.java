@@ -0,0 +1,132 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.syso.phonebook.collections.CuckooFilter;
+
+/**
+ * NumberFilterTest builds number filters from a map standing in for the phone_number table
+ * 
+ * @author Vladimir Syso
+ */
+public class NumberFilterTest {
+    
+    private final Map<String, Integer> table = new LinkedHashMap<>();
+    private final ReverseLookupIndex.NumberSource source = consumer -> table.forEach(consumer::accept);
+    
+    @Before
+    public void setUp() {
+        for (int i = 1; i <= 10000; i++) {
+            table.put(String.format("1555%06d", i * 7), i);
+        }
+        table.put("0987654321", 10001);
+        table.put("1234567890123456789012", 10002);
+    }
+
+    @Test
+    public void testNoFalseNegatives() {
+        
+        System.out.println("noFalseNegatives");
+        
+        NumberFilter filter = new NumberFilter(1000, 0.01);
+        // Nothing is known before the first build
+        assertTrue(filter.mightContain("1555000001"));
+        
+        filter.rebuild(source);
+        assertEquals(table.size(), filter.getSize());
+        for (String digits : table.keySet()) {
+            assertTrue(digits, filter.mightContain(digits));
+        }
+        
+        int falsePositives = 0;
+        for (int i = 1; i <= 70000; i++) {
+            if (i % 7 != 0 && filter.mightContain(String.format("1555%06d", i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positives " + falsePositives, falsePositives < 60000 * 0.01);
+        assertEquals(60000 - falsePositives, filter.getMisses());
+        assertTrue(filter.getMemoryBytes() > 0);
+    }
+    
+    @Test
+    public void testWrites() {
+        
+        System.out.println("writes");
+        
+        NumberFilter filter = new NumberFilter(1000, 0.001);
+        filter.rebuild(source);
+        
+        assertFalse(filter.mightContain("1777"));
+        filter.numberAdded("1777");
+        assertTrue(filter.mightContain("1777"));
+        filter.numberDeleted("1777");
+        assertFalse(filter.mightContain("1777"));
+        
+        // Numbers added while the table is read are not lost
+        filter.rebuild(consumer -> {
+            table.forEach(consumer::accept);
+            filter.numberAdded("1888");
+            filter.numberDeleted("0987654321");
+        });
+        assertTrue(filter.mightContain("1888"));
+        assertTrue(filter.mightContain("0987654321"));
+    }
+    
+    @Test
+    public void testCuckooFilter() {
+        
+        System.out.println("cuckooFilter");
+        
+        CuckooFilter filter = new CuckooFilter(100000, 0.001);
+        assertEquals(13, filter.getFingerprintBits());
+        for (long key = 1; key <= 100000; key++) {
+            assertTrue(filter.add(key));
+        }
+        assertFalse(filter.isSaturated());
+        for (long key = 1; key <= 100000; key++) {
+            assertTrue(filter.mightContain(key));
+        }
+        for (long key = 1; key <= 100000; key += 2) {
+            assertTrue(filter.remove(key));
+        }
+        assertEquals(50000, filter.size());
+        for (long key = 2; key <= 100000; key += 2) {
+            assertTrue(filter.mightContain(key));
+        }
+        
+        // An overfull filter turns saturated and keeps answering maybe
+        CuckooFilter small = new CuckooFilter(100, 0.01);
+        for (long key = 1; key <= 1000; key++) {
+            small.add(key);
+        }
+        assertTrue(small.isSaturated());
+        assertTrue(small.mightContain(5000));
+    }
+}
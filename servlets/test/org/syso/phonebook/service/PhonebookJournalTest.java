@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.journal.FsyncPolicy;
+
+/**
+ * PhonebookJournalTest restarts InMemoryPhonebookService over the same journal directory
+ * 
+ * @author Vladimir Syso
+ */
+public class PhonebookJournalTest {
+    
+    private static final String TEST_NUMBER = "+09(876)543-21-00";
+    
+    private Path directory;
+    private InMemoryPhonebookService phonebook;
+    
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("phonebook-journal");
+        phonebook = open(FsyncPolicy.ALWAYS);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        phonebook.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+    
+    private InMemoryPhonebookService open(FsyncPolicy fsyncPolicy) throws IOException {
+        return new InMemoryPhonebookService(16, new PhonebookJournal(directory, fsyncPolicy, 10));
+    }
+    
+    private InMemoryPhonebookService restart() throws IOException {
+        phonebook.close();
+        phonebook = open(FsyncPolicy.ALWAYS);
+        return phonebook;
+    }
+    
+    private List<Path> files(String glob) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob)) {
+            stream.forEach(files::add);
+        }
+        return files;
+    }
+
+    @Test
+    public void testWritesSurviveRestart() throws IOException {
+        
+        System.out.println("writesSurviveRestart");
+        
+        Contact first = phonebook.createContact("John", "Smith");
+        Contact second = phonebook.createContact("Jane", "Doe");
+        Contact third = phonebook.createContact("Jim", null);
+        phonebook.updateContact(first.getContactId(), null, "Doe");
+        phonebook.insertPhoneNumber(first.getContactId(), TEST_NUMBER, "home");
+        phonebook.insertPhoneNumber(second.getContactId(), "+1 000", "work");
+        phonebook.deletePhoneNumber(second.getContactId(), "+1 000");
+        phonebook.deleteContact(third.getContactId());
+        
+        restart();
+        
+        assertEquals(2, phonebook.size());
+        Contact restored = phonebook.findContact(first.getContactId());
+        assertEquals("John", restored.getFirstName());
+        assertEquals("Doe", restored.getLastName());
+        assertEquals(TEST_NUMBER, restored.getPhoneNumbers().iterator().next().getNumber());
+        assertTrue(phonebook.findContact(second.getContactId()).getPhoneNumbers().isEmpty());
+        assertNull(phonebook.findContact(third.getContactId()));
+        
+        // Ids are not reused after restart
+        assertTrue(phonebook.createContact("Jack", "Black").getContactId() > third.getContactId());
+        assertEquals(AddPhoneNumberResult.CONFLICT, phonebook.insertPhoneNumber(second.getContactId(), TEST_NUMBER, "home"));
+    }
+    
+    @Test
+    public void testSnapshotAndReplay() throws IOException {
+        
+        System.out.println("snapshotAndReplay");
+        
+        for (int i = 0; i < 100; i++) {
+            Contact contact = phonebook.createContact("First" + i, "Last" + i);
+            phonebook.insertPhoneNumber(contact.getContactId(), "+1 555 " + i, i % 2 == 0 ? "home" : "work");
+        }
+        phonebook.snapshot();
+        assertEquals(1, files("snapshot-*.bin").size());
+        
+        phonebook.deleteContact(1);
+        Contact added = phonebook.createContact("After", "Snapshot");
+        phonebook.insertPhoneNumber(added.getContactId(), "+1 777", "mobile");
+        phonebook.snapshot();
+        phonebook.deleteContact(2);
+        
+        // Older snapshots and the segments they cover are dropped
+        assertEquals(1, files("snapshot-*.bin").size());
+        assertEquals(1, files("journal-*.log").size());
+        
+        restart();
+        
+        assertEquals(99, phonebook.size());
+        assertNull(phonebook.findContact(1));
+        assertNull(phonebook.findContact(2));
+        assertEquals("work", phonebook.findContact(100).getPhoneNumbers().iterator().next().getType().getPhoneTypeName());
+        assertEquals(added.getContactId(), phonebook.findContactsByPhoneNumber("1777", true).get(0).getContactId());
+        assertEquals(100, phonebook.findContactsByPhoneNumber("1555", false).size() + 2);
+    }
+    
+    @Test
+    public void testTornRecordIsIgnored() throws IOException {
+        
+        System.out.println("tornRecordIsIgnored");
+        
+        Contact contact = phonebook.createContact("John", "Smith");
+        phonebook.close();
+        
+        // A record cut by a crash: length and checksum without the payload
+        Path segment = files("journal-*.log").get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 42, 1, 2}));
+        }
+        
+        phonebook = open(FsyncPolicy.ALWAYS);
+        assertEquals(1, phonebook.size());
+        assertEquals("John", phonebook.findContact(contact.getContactId()).getFirstName());
+        assertNotNull(phonebook.createContact("Jane", "Doe"));
+        
+        restart();
+        assertEquals(2, phonebook.size());
+    }
+    
+    @Test
+    public void testConcurrentWritersShareFsync() throws Exception {
+        
+        System.out.println("concurrentWritersShareFsync");
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Contact>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final int n = i;
+            results.add(executor.submit(() -> phonebook.createContact("First" + n, "Last" + n)));
+        }
+        for (Future<Contact> result : results) {
+            assertNotNull(result.get());
+        }
+        executor.shutdown();
+        
+        restart();
+        assertEquals(200, phonebook.size());
+    }
+    
+    @Test
+    public void testWriteIsVisibleOnceSynced() throws Exception {
+        
+        System.out.println("writeIsVisibleOnceSynced");
+        
+        phonebook.close();
+        final AtomicBoolean holding = new AtomicBoolean();
+        final CountDownLatch syncing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        phonebook = new InMemoryPhonebookService(16, new PhonebookJournal(directory, FsyncPolicy.ALWAYS, 10) {
+            @Override
+            void sync(long position) throws IOException {
+                if (holding.get()) {
+                    syncing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    }
+                }
+                super.sync(position);
+            }
+        });
+        
+        final Integer contactId = phonebook.createContact("John", "Smith").getContactId();
+        holding.set(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<AddPhoneNumberResult> added = executor.submit(
+                    () -> phonebook.insertPhoneNumber(contactId, TEST_NUMBER, "home"));
+            assertTrue(syncing.await(5, TimeUnit.SECONDS));
+            holding.set(false);
+            
+            // Journaled but not synced: not visible yet, but taken for other writes
+            assertTrue(phonebook.findContactsByPhoneNumber(TEST_NUMBER, true).isEmpty());
+            assertTrue(phonebook.findContact(contactId).getPhoneNumbers().isEmpty());
+            assertEquals(AddPhoneNumberResult.CONFLICT, phonebook.insertPhoneNumber(contactId, TEST_NUMBER, "work"));
+            
+            release.countDown();
+            assertEquals(AddPhoneNumberResult.CREATED, added.get(5, TimeUnit.SECONDS));
+            assertEquals(1, phonebook.findContactsByPhoneNumber(TEST_NUMBER, true).size());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testFailedSyncIsNotApplied() throws IOException {
+        
+        System.out.println("failedSyncIsNotApplied");
+        
+        phonebook.close();
+        final AtomicBoolean failing = new AtomicBoolean();
+        phonebook = new InMemoryPhonebookService(16, new PhonebookJournal(directory, FsyncPolicy.ALWAYS, 10) {
+            @Override
+            void sync(long position) throws IOException {
+                if (failing.get()) {
+                    throw new IOException("Disk full");
+                }
+                super.sync(position);
+            }
+        });
+        
+        Contact first = phonebook.createContact("John", "Smith");
+        Contact second = phonebook.createContact("Jane", "Doe");
+        failing.set(true);
+        
+        assertEquals(AddPhoneNumberResult.FAILED, phonebook.insertPhoneNumber(first.getContactId(), TEST_NUMBER, "home"));
+        assertTrue(phonebook.findContactsByPhoneNumber(TEST_NUMBER, true).isEmpty());
+        
+        // Neither contact is removed from memory
+        assertEquals(0, phonebook.deleteContacts(Arrays.asList(first.getContactId(), second.getContactId())));
+        assertEquals(2, phonebook.size());
+        assertNotNull(phonebook.findContact(first.getContactId()));
+    }
+    
+    @Test
+    public void testIntervalPolicy() throws IOException {
+        
+        System.out.println("intervalPolicy");
+        
+        phonebook.close();
+        phonebook = open(FsyncPolicy.INTERVAL);
+        phonebook.createContact("John", "Smith");
+        
+        // Close writes the rest of the records
+        restart();
+        assertEquals(1, phonebook.size());
+    }
+}
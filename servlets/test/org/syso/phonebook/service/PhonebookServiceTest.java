@@ -199,6 +199,37 @@ public class PhonebookServiceTest {
         assertEquals(phoneNumber.getType().getPhoneTypeName(), testPhoneType);
     }
     
+    /**
+     * Test of insertPhoneNumber method, of class PhonebookService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testAddPhoneNumberConflict() throws IOException {
+        System.out.println("addPhoneNumberConflict");
+        
+        String jsonRequest = String.format("{\"number\":\"%s\", \"type\":\"%s\"}", testPhoneNumber, testPhoneType);
+        
+        Response response = Request.Post(testContactLocation + "/add_number")
+                .bodyString(jsonRequest, ContentType.APPLICATION_JSON)
+                .execute();
+        assertEquals(response.returnResponse().getStatusLine().getStatusCode(), HttpStatus.SC_CREATED);
+        
+        // The same digits in another format belong to the test contact already
+        response = Request.Post(testContactLocation + "/add_number")
+                .bodyString(String.format("{\"number\":\"%s\", \"type\":\"%s\"}", testPhoneNumber.replaceAll("\\D", ""), testPhoneType),
+                        ContentType.APPLICATION_JSON)
+                .execute();
+        assertEquals(response.returnResponse().getStatusLine().getStatusCode(), HttpStatus.SC_CONFLICT);
+        
+        // Missing contact is reported by the foreign key
+        String missingContactLocation = testContactLocation.substring(0, testContactLocation.lastIndexOf('/') + 1) + Integer.MAX_VALUE;
+        response = Request.Post(missingContactLocation + "/add_number")
+                .bodyString(String.format("{\"number\":\"%s\", \"type\":\"%s\"}", "+01(234)567-89-00", testPhoneType),
+                        ContentType.APPLICATION_JSON)
+                .execute();
+        assertEquals(response.returnResponse().getStatusLine().getStatusCode(), HttpStatus.SC_NOT_FOUND);
+    }
+    
     /**
      * Test of findContactsByNumber method, of class PhonebookService.
      * @throws java.io.IOException
@@ -367,6 +398,43 @@ public class PhonebookServiceTest {
         deleteContactOnTearDown = false;
     }
     
+    /**
+     * Test of deleteContacts method, of class PhonebookService via HTTP
+     * @throws IOException
+     */
+    @Test
+    public void testDeleteContacts() throws IOException {
+        
+        System.out.println("deleteContacts");
+        
+        String contactId = testContactLocation.substring(testContactLocation.lastIndexOf('/') + 1);
+        String jsonRequest = String.format("{\"number\":\"%s\", \"type\":\"%s\"}", testPhoneNumber, testPhoneType);
+        Response response = Request.Post(testContactLocation + "/add_number")
+                .bodyString(jsonRequest, ContentType.APPLICATION_JSON)
+                .execute();
+        assertEquals(response.returnResponse().getStatusLine().getStatusCode(), HttpStatus.SC_CREATED);
+        
+        // Not numeric ids are rejected
+        response = Request.Delete(baseURL + "/contacts?ids=" + contactId + ",abc").execute();
+        assertEquals(response.returnResponse().getStatusLine().getStatusCode(), HttpStatus.SC_BAD_REQUEST);
+        
+        // Test contact and its phone numbers deleted
+        response = Request.Delete(baseURL + "/contacts?ids=" + contactId + "," + Integer.MAX_VALUE).execute();
+        assertEquals(response.returnResponse().getStatusLine().getStatusCode(), HttpStatus.SC_NO_CONTENT);
+        deleteContactOnTearDown = false;
+        
+        response = Request.Get(testContactLocation).execute();
+        assertEquals(response.returnResponse().getStatusLine().getStatusCode(), HttpStatus.SC_NOT_FOUND);
+        
+        response = Request.Get(baseURL + "/contacts/find_by_number?phone_number=" + testPhoneNumber.replaceAll("\\D", "") + "&match=true")
+                .execute();
+        assertEquals(response.returnResponse().getStatusLine().getStatusCode(), HttpStatus.SC_NOT_FOUND);
+        
+        // Nothing left to delete
+        response = Request.Delete(baseURL + "/contacts?ids=" + contactId).execute();
+        assertEquals(response.returnResponse().getStatusLine().getStatusCode(), HttpStatus.SC_NOT_FOUND);
+    }
+    
     /**
      * Test of deletePhoneNumber method, of class PhonebookService.
      * @throws java.io.IOException
@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * ReverseLookupIndexTest builds index files from a map standing in for the phone_number table
+ * 
+ * @author Vladimir Syso
+ */
+public class ReverseLookupIndexTest {
+    
+    private Path directory;
+    private Path file;
+    private final Map<String, Integer> table = new LinkedHashMap<>();
+    private final ReverseLookupIndex.NumberSource source = consumer -> table.forEach(consumer::accept);
+    
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("phonebook-index");
+        file = directory.resolve("numbers.idx");
+        for (int i = 1; i <= 1000; i++) {
+            table.put(String.format("1555%06d", i * 7), i);
+        }
+        table.put("0987654321", 1001);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void testLookupsFromFile() throws IOException {
+        
+        System.out.println("lookupsFromFile");
+        
+        ReverseLookupIndex index = new ReverseLookupIndex(file);
+        assertEquals(ReverseLookupIndex.UNKNOWN, index.find("1555000007"));
+        
+        index.rebuild(source);
+        assertEquals(1001, index.getFileCount());
+        assertEquals(1, index.find("1555000007"));
+        assertEquals(1000, index.find("1555007000"));
+        assertEquals(1001, index.find("0987654321"));
+        assertEquals(ReverseLookupIndex.NOT_FOUND, index.find("987654321"));
+        assertEquals(ReverseLookupIndex.NOT_FOUND, index.find("1555000008"));
+        // Too long to be packed
+        assertEquals(ReverseLookupIndex.UNKNOWN, index.find("1234567890123456789012"));
+        
+        // A restart maps the file without a rebuild
+        ReverseLookupIndex reopened = new ReverseLookupIndex(file);
+        reopened.open();
+        assertEquals(500, reopened.find("1555003500"));
+    }
+    
+    @Test
+    public void testDeltaCoversWrites() throws IOException {
+        
+        System.out.println("deltaCoversWrites");
+        
+        ReverseLookupIndex index = new ReverseLookupIndex(file);
+        index.rebuild(source);
+        
+        index.numberAdded("1777", 5);
+        index.numberDeleted("1555000007");
+        index.contactsDeleted(Arrays.asList(2));
+        
+        assertEquals(5, index.find("1777"));
+        assertEquals(ReverseLookupIndex.NOT_FOUND, index.find("1555000007"));
+        assertEquals(ReverseLookupIndex.NOT_FOUND, index.find("1555000014"));
+        assertEquals(3, index.getDeltaSize());
+        
+        // The table has the same changes at the next build, so the delta is dropped
+        table.put("1777", 5);
+        table.remove("1555000007");
+        table.remove("1555000014");
+        index.rebuild(source);
+        assertEquals(0, index.getDeltaSize());
+        assertEquals(5, index.find("1777"));
+        assertEquals(ReverseLookupIndex.NOT_FOUND, index.find("1555000014"));
+    }
+    
+    @Test
+    public void testWritesDuringRebuildAreKept() throws IOException {
+        
+        System.out.println("writesDuringRebuildAreKept");
+        
+        ReverseLookupIndex index = new ReverseLookupIndex(file);
+        index.rebuild(source);
+        
+        // Writes made after the table was read are not in the new file
+        index.rebuild(consumer -> {
+            table.forEach(consumer::accept);
+            index.numberAdded("1888", 7);
+            index.numberDeleted("0987654321");
+        });
+        
+        assertEquals(7, index.find("1888"));
+        assertEquals(ReverseLookupIndex.NOT_FOUND, index.find("0987654321"));
+        assertEquals(2, index.getDeltaSize());
+    }
+    
+    @Test
+    public void testFailedRebuildKeepsIndex() throws IOException {
+        
+        System.out.println("failedRebuildKeepsIndex");
+        
+        ReverseLookupIndex index = new ReverseLookupIndex(file);
+        index.rebuild(source);
+        index.numberAdded("1999", 9);
+        
+        try {
+            index.rebuild(consumer -> {
+                throw new IllegalStateException("Database is down");
+            });
+            fail("Rebuild must fail");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+        assertEquals(9, index.find("1999"));
+        assertEquals(1, index.find("1555000007"));
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import org.apache.derby.jdbc.EmbeddedDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneNumber;
+
+/**
+ * ShardedPhonebookServiceTest runs PhonebookLocalPU over several embedded
+ * in-memory Derby databases, the first one also holds the number directory
+ * 
+ * @author Vladimir Syso
+ */
+public class ShardedPhonebookServiceTest {
+    
+    private static final int SHARD_COUNT = 3;
+    
+    private final List<EmbeddedDataSource> dataSources = new ArrayList<>();
+    private final List<EntityManagerFactory> factories = new ArrayList<>();
+    private ExecutorService executor;
+    private ShardedPhonebookService phonebook;
+    
+    @Before
+    public void setUp() throws SQLException {
+        
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            EmbeddedDataSource dataSource = new EmbeddedDataSource();
+            dataSource.setDatabaseName("memory:shard" + shard + "-" + UUID.randomUUID());
+            dataSource.setCreateDatabase("create");
+            createSchema(dataSource, shard);
+            dataSources.add(dataSource);
+            
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("javax.persistence.nonJtaDataSource", dataSource);
+            factories.add(Persistence.createEntityManagerFactory("PhonebookLocalPU", properties));
+        }
+        
+        executor = Executors.newFixedThreadPool(8);
+        phonebook = new ShardedPhonebookService(factories, factories.get(0), executor);
+    }
+    
+    @After
+    public void tearDown() {
+        
+        executor.shutdownNow();
+        factories.forEach(EntityManagerFactory::close);
+        
+        for (EmbeddedDataSource dataSource : dataSources) {
+            dataSource.setCreateDatabase(null);
+            dataSource.setConnectionAttributes("drop=true");
+            try {
+                dataSource.getConnection().close();
+            } catch (SQLException ex) {
+                // Derby reports a dropped database with an exception
+            }
+        }
+    }
+    
+    /**
+     * Shard k generates contact ids k + 1, k + 1 + N...
+     */
+    private static void createSchema(EmbeddedDataSource dataSource, int shard) throws SQLException {
+        
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            
+            statement.executeUpdate(String.format("CREATE TABLE contact ("
+                    + "contact_id INT GENERATED BY DEFAULT AS IDENTITY (START WITH %d, INCREMENT BY %d) PRIMARY KEY, "
+                    + "first_name VARCHAR(45), last_name VARCHAR(45))", shard + 1, SHARD_COUNT));
+            statement.executeUpdate("CREATE TABLE phone_type ("
+                    + "phone_type_id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "phone_type_name VARCHAR(45) NOT NULL UNIQUE)");
+            statement.executeUpdate("CREATE TABLE phone_mask ("
+                    + "phone_mask_id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, "
+                    + "phone_mask_view VARCHAR(45) NOT NULL UNIQUE)");
+            statement.executeUpdate("CREATE TABLE phone_number ("
+                    + "phone_number_id INT GENERATED BY DEFAULT AS IDENTITY, "
+                    + "phone_number VARCHAR(45) NOT NULL UNIQUE, "
+                    + "phone_type_id INT NOT NULL REFERENCES phone_type (phone_type_id), "
+                    + "phone_mask_id INT NOT NULL REFERENCES phone_mask (phone_mask_id), "
+                    + "contact_id INT NOT NULL REFERENCES contact (contact_id) ON DELETE CASCADE, "
+                    + "PRIMARY KEY (phone_number_id, contact_id))");
+            statement.executeUpdate("CREATE TABLE phone_number_directory ("
+                    + "phone_number VARCHAR(45) NOT NULL PRIMARY KEY, shard INT NOT NULL)");
+        }
+    }
+    
+    private Contact createContact() {
+        return phonebook.createContact(UUID.randomUUID().toString(), UUID.randomUUID().toString()).join();
+    }
+
+    @Test
+    public void testContactsAreSpreadOverShards() {
+        
+        System.out.println("contactsAreSpreadOverShards");
+        
+        boolean[] used = new boolean[SHARD_COUNT];
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            Contact contact = createContact();
+            used[phonebook.shardOf(contact.getContactId())] = true;
+            
+            // Single shard lookup by id
+            Contact found = phonebook.findContact(contact.getContactId()).join();
+            assertNotNull(found);
+            assertEquals(contact.getFirstName(), found.getFirstName());
+        }
+        
+        for (boolean shardUsed : used) {
+            assertTrue(shardUsed);
+        }
+        assertEquals(SHARD_COUNT, phonebook.findAllContacts().join().size());
+    }
+    
+    @Test
+    public void testContactOfWrongShardIsRolledBack() {
+        
+        System.out.println("contactOfWrongShardIsRolledBack");
+        
+        // The first two shards swapped, the first contact gets an id of the second shard
+        ShardedPhonebookService misconfigured = new ShardedPhonebookService(
+                Arrays.asList(factories.get(1), factories.get(0), factories.get(2)), factories.get(0), executor);
+        try {
+            misconfigured.createContact("First", "Last").join();
+            fail("Contact id of another shard must be rejected");
+        } catch (CompletionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(new ConcurrentPhonebookService(factories.get(1), executor).findAllContacts().join().isEmpty());
+    }
+    
+    @Test
+    public void testPhoneNumberIsUniqueAcrossShards() {
+        
+        System.out.println("phoneNumberIsUniqueAcrossShards");
+        
+        Contact first = createContact();
+        Contact second = createContact();
+        assertNotEquals(phonebook.shardOf(first.getContactId()), phonebook.shardOf(second.getContactId()));
+        
+        assertEquals(AddPhoneNumberResult.CREATED,
+                phonebook.insertPhoneNumber(first.getContactId(), "+09(876)543-21-00", "Mobile").join());
+        
+        // The same number in another shard is owned already
+        assertEquals(AddPhoneNumberResult.CONFLICT,
+                phonebook.insertPhoneNumber(second.getContactId(), "0987654321-00", "Home").join());
+        PhoneNumber existent = phonebook.findPhoneNumber("0987654321-00").join();
+        assertEquals(first.getContactId(), Integer.valueOf(existent.getPhoneNumberPK().getContactId()));
+        
+        // Missing contact does not keep the number reserved
+        assertEquals(AddPhoneNumberResult.CONTACT_NOT_FOUND,
+                phonebook.insertPhoneNumber(Integer.MAX_VALUE, "+01(234)567-89-00", "Mobile").join());
+        assertEquals(AddPhoneNumberResult.CREATED,
+                phonebook.insertPhoneNumber(second.getContactId(), "+01(234)567-89-00", "Mobile").join());
+    }
+    
+    @Test
+    public void testFindContacts() {
+        
+        System.out.println("findContacts");
+        
+        Contact first = createContact();
+        Contact second = createContact();
+        
+        // Request order is kept across shards and missing contacts are skipped
+        List<Contact> found = phonebook.findContacts(
+                Arrays.asList(second.getContactId(), Integer.MAX_VALUE, first.getContactId())).join();
+        assertEquals(2, found.size());
+        assertEquals(second.getContactId(), found.get(0).getContactId());
+        assertEquals(first.getContactId(), found.get(1).getContactId());
+    }
+    
+    @Test
+    public void testFindContactsByPhoneNumber() {
+        
+        System.out.println("findContactsByPhoneNumber");
+        
+        Contact first = createContact();
+        Contact second = createContact();
+        phonebook.insertPhoneNumber(first.getContactId(), "+09(876)543-21-00", "Mobile").join();
+        phonebook.insertPhoneNumber(second.getContactId(), "+09(876)543-21-01", "Mobile").join();
+        
+        List<Contact> matched = phonebook.findContactsByPhoneNumber("0987654321-01", true).join();
+        assertEquals(1, matched.size());
+        assertEquals(second.getContactId(), matched.get(0).getContactId());
+        
+        // Partial match fans out to all shards
+        List<Contact> found = phonebook.findContactsByPhoneNumber("87654321", false).join();
+        assertEquals(2, found.size());
+        assertEquals(first.getContactId(), found.get(0).getContactId());
+        assertEquals(second.getContactId(), found.get(1).getContactId());
+    }
+    
+    @Test
+    public void testDeleteContactsReleasesNumbers() {
+        
+        System.out.println("deleteContactsReleasesNumbers");
+        
+        Contact first = createContact();
+        Contact second = createContact();
+        phonebook.insertPhoneNumber(first.getContactId(), "+09(876)543-21-00", "Mobile").join();
+        
+        // Nothing deleted, nothing released
+        assertEquals(Integer.valueOf(0), phonebook.deleteContacts(Arrays.asList(Integer.MAX_VALUE)).join());
+        assertEquals(AddPhoneNumberResult.CONFLICT,
+                phonebook.insertPhoneNumber(second.getContactId(), "+09(876)543-21-00", "Mobile").join());
+        
+        assertEquals(Integer.valueOf(2),
+                phonebook.deleteContacts(Arrays.asList(first.getContactId(), second.getContactId())).join());
+        assertNull(phonebook.findContact(first.getContactId()).join());
+        assertNull(phonebook.findPhoneNumber("+09(876)543-21-00").join());
+        
+        // Number can be taken by a contact of another shard
+        Contact third = createContact();
+        assertEquals(AddPhoneNumberResult.CREATED,
+                phonebook.insertPhoneNumber(third.getContactId(), "+09(876)543-21-00", "Mobile").join());
+        PhoneNumber added = phonebook.findPhoneNumber("+09(876)543-21-00").join();
+        assertEquals(third.getContactId(), Integer.valueOf(added.getPhoneNumberPK().getContactId()));
+    }
+    
+    @Test
+    public void testNullArguments() {
+        
+        System.out.println("nullArguments");
+        
+        assertNull(phonebook.findContact(null).join());
+        assertNull(phonebook.updateContact(null, "First", "Last").join());
+        assertEquals(Integer.valueOf(0), phonebook.deleteContacts(Arrays.asList((Integer) null)).join());
+        assertFalse(phonebook.deletePhoneNumber(null, "+09(876)543-21-00").join());
+        assertEquals(AddPhoneNumberResult.CONTACT_NOT_FOUND,
+                phonebook.insertPhoneNumber(null, "+09(876)543-21-00", "Mobile").join());
+        
+        Contact contact = createContact();
+        phonebook.insertPhoneNumber(contact.getContactId(), "+09(876)543-21-00", "Mobile").join();
+        assertEquals(1, phonebook.findContactsByPhoneNumber("87654321", null).join().size());
+    }
+    
+    @Test
+    public void testFailedReleaseIsRetried() throws SQLException {
+        
+        System.out.println("failedReleaseIsRetried");
+        
+        Contact first = createContact();
+        Contact second = createContact();
+        phonebook.insertPhoneNumber(first.getContactId(), "+09(876)543-21-00", "Mobile").join();
+        
+        // The directory is unreachable while the number is deleted
+        execute(dataSources.get(0), "RENAME TABLE phone_number_directory TO phone_number_directory_off");
+        assertTrue(phonebook.deletePhoneNumber(first.getContactId(), "+09(876)543-21-00").join());
+        execute(dataSources.get(0), "RENAME TABLE phone_number_directory_off TO phone_number_directory");
+        assertEquals(AddPhoneNumberResult.CONFLICT,
+                phonebook.insertPhoneNumber(second.getContactId(), "+09(876)543-21-00", "Mobile").join());
+        
+        assertEquals(Integer.valueOf(1), phonebook.retryReleases().join());
+        assertEquals(AddPhoneNumberResult.CREATED,
+                phonebook.insertPhoneNumber(second.getContactId(), "+09(876)543-21-00", "Mobile").join());
+        assertEquals(Integer.valueOf(0), phonebook.retryReleases().join());
+    }
+    
+    @Test
+    public void testReconcile() throws SQLException {
+        
+        System.out.println("reconcile");
+        
+        Contact first = createContact();
+        Contact second = createContact();
+        int shard = phonebook.shardOf(first.getContactId());
+        phonebook.insertPhoneNumber(first.getContactId(), "+09(876)543-21-00", "Mobile").join();
+        
+        // Left reserved by a release lost in a restart
+        execute(dataSources.get(0), String.format(
+                "INSERT INTO phone_number_directory (phone_number, shard) VALUES ('01234567800', %d)", shard));
+        
+        assertEquals(Integer.valueOf(1), phonebook.reconcile(shard).join());
+        assertEquals(AddPhoneNumberResult.CREATED,
+                phonebook.insertPhoneNumber(second.getContactId(), "+01(234)567-800", "Mobile").join());
+        assertEquals(AddPhoneNumberResult.CONFLICT,
+                phonebook.insertPhoneNumber(second.getContactId(), "+09(876)543-21-00", "Mobile").join());
+    }
+    
+    private static void execute(EmbeddedDataSource dataSource, String sql) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate(sql);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.bench;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.util.ArrayList;
+import java.util.List;
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.domain.PhoneMask;
+import org.syso.phonebook.domain.PhoneNumber;
+import org.syso.phonebook.domain.PhoneType;
+import org.syso.phonebook.helpers.ContactsWrapper;
+
+/**
+ * JSON bodies of the Spring controllers: Jackson writing a contact and a page
+ * of 100 contacts through PhoneTypeSerializer, reading numbers through
+ * PhoneTypeDeserializer, and PhoneNumber.getPhoneNumber formatting on its own.
+ * The ObjectMapper has the settings MappingJackson2HttpMessageConverter gets
+ * from mvc:annotation-driven.
+ * 
+ * Usage:
+ * <pre>
+ * java org.syso.phonebook.bench.JacksonBenchmark [filter regex] [result.json] [iterations] [seconds]
+ * </pre>
+ * 
+ * @author Vladimir Syso
+ */
+public class JacksonBenchmark {
+    
+    // A power of two, inputs are picked by the invocation number
+    private static final int INPUTS = 1024;
+    
+    public static void main(String[] args) throws Exception {
+        
+        ObjectMapper mapper = new ObjectMapper()
+                .disable(MapperFeature.DEFAULT_VIEW_INCLUSION)
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        ObjectWriter contactWriter = mapper.writerFor(Contact.class);
+        ObjectWriter contactsWriter = mapper.writerFor(ContactsWrapper.class);
+        ObjectReader contactReader = mapper.readerFor(Contact.class);
+        ObjectReader numberReader = mapper.readerFor(PhoneNumber.class);
+        
+        Contact[] contacts = new Contact[INPUTS];
+        String[] numberBodies = new String[INPUTS];
+        for (int i = 0; i < INPUTS; i++) {
+            contacts[i] = contact(i + 1);
+            numberBodies[i] = String.format("{\"number\":\"+1(555)%03d-%02d-%02d\",\"type\":\"%s\"}",
+                    i % 1000, i % 100, (i * 31) % 100, i % 2 == 0 ? "home" : "work");
+        }
+        List<Contact> page = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            page.add(contacts[i]);
+        }
+        ContactsWrapper wrapper = new ContactsWrapper();
+        wrapper.setContacts(page);
+        String contactBody = "{\"firstName\":\"First\",\"lastName\":\"Last\"}";
+        
+        MicroBenchmark bench = new MicroBenchmark(JacksonBenchmark.class, args);
+        bench.run("writeContact", (i) -> contactWriter.writeValueAsBytes(contacts[i & (INPUTS - 1)]));
+        bench.run("writeContacts", (i) -> contactsWriter.writeValueAsBytes(wrapper));
+        bench.run("readContact", (i) -> contactReader.readValue(contactBody));
+        bench.run("readNumber", (i) -> numberReader.readValue(numberBodies[i & (INPUTS - 1)]));
+        bench.run("formatNumber", (i) -> contacts[i & (INPUTS - 1)].getPhoneNumberCollection().iterator().next().getPhoneNumber());
+        bench.finish();
+    }
+    
+    private static Contact contact(int contactId) {
+        
+        Contact contact = new Contact(contactId);
+        contact.setFirstName("First" + contactId);
+        contact.setLastName("Last" + contactId);
+        PhoneMask mask = new PhoneMask(1, "+X(XXX)XXX-XX-XX");
+        List<PhoneNumber> numbers = new ArrayList<>();
+        String[] types = {"home", "work"};
+        for (int i = 0; i < types.length; i++) {
+            PhoneNumber number = new PhoneNumber(contactId * 2 + i, contactId);
+            number.setPhoneNumber(String.format("1555%03d%04d", contactId % 1000, i));
+            number.setPhoneMaskId(mask);
+            number.setPhoneType(new PhoneType(i + 1, types[i]));
+            number.setContact(contact);
+            numbers.add(number);
+        }
+        contact.setPhoneNumberCollection(numbers);
+        return contact;
+    }
+}
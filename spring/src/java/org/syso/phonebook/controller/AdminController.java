@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.controller;
+
+import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.service.HotKeys;
+import org.syso.phonebook.service.NegativeResultCache;
+import org.syso.phonebook.service.SingleFlight;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Admin Controller, counters of the lookup optimizations
+ * 
+ * @author Vladimir Syso
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+    
+    @Autowired(required = false)
+    @Qualifier("contactLookups")
+    private SingleFlight<Integer, Contact> contactLookups;
+    
+    @Autowired(required = false)
+    @Qualifier("numberLookups")
+    private SingleFlight<String, List<Contact>> numberLookups;
+    
+    @Autowired(required = false)
+    private NegativeResultCache negativeResultCache;
+    
+    @Autowired(required = false)
+    @Qualifier("hotNumbers")
+    private HotKeys hotNumbers;
+    
+    @Autowired(required = false)
+    @Qualifier("hotContacts")
+    private HotKeys hotContacts;
+    
+    /**
+     * Display current counters
+     * 
+     * @return counter names with values
+     */
+    @RequestMapping(value = "/stats",
+            method = RequestMethod.GET,
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Number> getStats() {
+        
+        Map<String, Number> stats = new LinkedHashMap<>();
+        if (contactLookups != null && numberLookups != null) {
+            stats.put("singleFlight.contact.calls", contactLookups.getCalls());
+            stats.put("singleFlight.contact.coalesced", contactLookups.getCoalesced());
+            stats.put("singleFlight.number.calls", numberLookups.getCalls());
+            stats.put("singleFlight.number.coalesced", numberLookups.getCoalesced());
+        }
+        if (negativeResultCache != null) {
+            stats.put("negativeCache.size", negativeResultCache.size());
+            stats.put("negativeCache.hits", negativeResultCache.getHits());
+        }
+        return stats;
+    }
+    
+    /**
+     * Display the most looked up numbers and contacts
+     * 
+     * @return window length and top keys with their counts, 404 if they are not counted
+     */
+    @RequestMapping(value = "/hot-keys",
+            method = RequestMethod.GET,
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> getHotKeys() {
+        
+        if (hotNumbers == null || hotContacts == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        Map<String, Object> hotKeys = new LinkedHashMap<>();
+        hotKeys.put("windowSeconds", hotNumbers.getWindowSeconds());
+        hotKeys.put("numbers", hotNumbers.top());
+        hotKeys.put("contacts", hotContacts.top());
+        return new ResponseEntity<>(hotKeys, HttpStatus.OK);
+    }
+}
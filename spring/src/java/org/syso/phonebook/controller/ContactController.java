@@ -23,14 +23,22 @@
  */
 package org.syso.phonebook.controller;
 
+import org.syso.phonebook.datasource.ReadYourWrites;
 import org.syso.phonebook.domain.Contact;
+import org.syso.phonebook.helpers.ContactIds;
 import org.syso.phonebook.helpers.ContactsWrapper;
 import org.syso.phonebook.domain.PhoneNumber;
+import org.syso.phonebook.helpers.PhoneNumberNormalizer;
+import org.syso.phonebook.service.AddPhoneNumberResult;
+import org.syso.phonebook.service.HotKeys;
+import org.syso.phonebook.service.NegativeResultCache;
 import org.syso.phonebook.service.PhonebookService;
+import org.syso.phonebook.service.SingleFlight;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -54,6 +62,25 @@ public class ContactController {
 
     @Autowired
     private PhonebookService phonebookService;
+    
+    @Autowired(required = false)
+    private NegativeResultCache negativeResultCache;
+    
+    @Autowired(required = false)
+    @Qualifier("contactLookups")
+    private SingleFlight<Integer, Contact> contactLookups;
+    
+    @Autowired(required = false)
+    @Qualifier("numberLookups")
+    private SingleFlight<String, List<Contact>> numberLookups;
+    
+    @Autowired(required = false)
+    @Qualifier("hotNumbers")
+    private HotKeys hotNumbers;
+    
+    @Autowired(required = false)
+    @Qualifier("hotContacts")
+    private HotKeys hotContacts;
    
     /**
      * Display All contact entities
@@ -83,8 +110,20 @@ public class ContactController {
     public ResponseEntity<ContactsWrapper> findContactsByNumber(@RequestParam("phone_number") String number,
             @RequestParam(value="match", required = false) boolean match) {
 
-        List<Contact> contactList = phonebookService.findContactByNumber(number, match);
+        if (hotNumbers != null) {
+            hotNumbers.record(HotKeys.numberKey(number, match));
+        }
+        String numbersOnly = PhoneNumberNormalizer.digits(number);
+        if (negativeResultCache != null && negativeResultCache.isKnownMiss(numbersOnly, match)) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        
+        long generation = negativeResultCache != null ? negativeResultCache.generation() : 0;
+        List<Contact> contactList = findContactsByNumber(number, match, numbersOnly);
         if(contactList.isEmpty()){
+            if (negativeResultCache != null) {
+                negativeResultCache.putMiss(numbersOnly, match, generation);
+            }
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
         
@@ -105,7 +144,10 @@ public class ContactController {
             produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_XML_VALUE})
     public ResponseEntity<Contact> getContact(@PathVariable("id") Integer contactId) {
         
-        Contact contact = phonebookService.findContactById(contactId);
+        if (hotContacts != null) {
+            hotContacts.record(contactId);
+        }
+        Contact contact = findContact(contactId);
         if (contact == null) {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
@@ -168,6 +210,7 @@ public class ContactController {
         existentContact.setLastName(contact.getLastName());
 
         phonebookService.updateContact(existentContact);
+        changed(contactId);
         return new ResponseEntity<>(HttpStatus.OK);       
     }
     
@@ -181,11 +224,33 @@ public class ContactController {
             method = RequestMethod.DELETE)
     public ResponseEntity<Void> deleteContact(@PathVariable("id") Integer contactId) {
 
-        Contact existentContact = phonebookService.findContactById(contactId);
-        if (existentContact == null) {
+        boolean deleted = phonebookService.deleteContact(contactId);
+        changed(contactId);
+        if (!deleted) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(HttpStatus.OK);       
+    }
+    
+    /**
+     * Remove Contact entities by ids
+     * 
+     * @param ids comma separated or repeated ids of contacts
+     * @return ResponseEntity object
+     */
+    @RequestMapping(value = "/contacts",
+            method = RequestMethod.DELETE)
+    public ResponseEntity<Void> deleteContacts(@RequestParam(value = "ids", required = false) List<String> ids) {
+
+        List<Integer> contactIds = ContactIds.parse(ids);
+        if (contactIds == null || contactIds.isEmpty()) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+        int deleted = phonebookService.deleteContacts(contactIds);
+        contactIds.forEach(this::changed);
+        if (deleted == 0) {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);
         }
-        phonebookService.deleteContact(contactId);
         return new ResponseEntity<>(HttpStatus.OK);       
     }
     
@@ -203,15 +268,23 @@ public class ContactController {
     public ResponseEntity<Void> addPhoneNumber(@PathVariable("id") Integer contactId, 
             @RequestBody PhoneNumber phoneNumber) {
 
-        PhoneNumber newNumber = phonebookService.addNumber(contactId, phoneNumber);
-        System.out.println(contactId);
-        if (newNumber == null) {
-            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
-        }else if(!Objects.equals(newNumber.getContact().getContactId(), contactId)) {            
-            return new ResponseEntity<>(HttpStatus.CONFLICT);  
+        if (hotNumbers != null && phoneNumber.getPhoneNumber() != null) {
+            hotNumbers.record(HotKeys.numberKey(phoneNumber.getPhoneNumber(), true));
+        }
+        AddPhoneNumberResult result = phonebookService.insertNumber(contactId, phoneNumber);
+        changed(contactId);
+        switch (result) {
+            case CREATED:
+                return new ResponseEntity<>(HttpStatus.CREATED);
+            case CONFLICT:
+                return new ResponseEntity<>(HttpStatus.CONFLICT);
+            case CONTACT_NOT_FOUND:
+                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            case INVALID:
+                return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+            default:
+                return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
         }
-        
-        return new ResponseEntity<>(HttpStatus.CREATED);  
     }
     
     /**
@@ -226,11 +299,73 @@ public class ContactController {
     public ResponseEntity<Void> deletePhoneNumber(@PathVariable("id") Integer contactId, 
             @PathVariable("phone_number") String number) {
         
-        if(phonebookService.deletePhoneNumber(contactId, number) == true) {
+        boolean deleted = phonebookService.deletePhoneNumber(contactId, number);
+        changed(contactId);
+        if(deleted) {
             return new ResponseEntity<>(HttpStatus.NO_CONTENT);  
         }else {        
             return new ResponseEntity<>(HttpStatus.NOT_FOUND);  
         }
     }
-
+    
+    /**
+     * Concurrent identical lookups share one query with the single-flight profile,
+     * every caller gets its own Contact
+     */
+    private Contact findContact(Integer contactId) {
+        if (contactLookups == null || isSticky()) {
+            return phonebookService.findContactById(contactId);
+        }
+        return copy(contactLookups.execute(contactId, () -> phonebookService.findContactById(contactId)));
+    }
+    
+    private List<Contact> findContactsByNumber(String number, boolean match, String numbersOnly) {
+        if (numberLookups == null || isSticky()) {
+            return phonebookService.findContactByNumber(number, match);
+        }
+        List<Contact> contactList = numberLookups.execute((match ? '=' : '~') + numbersOnly, 
+                () -> phonebookService.findContactByNumber(number, match));
+        List<Contact> copies = new ArrayList<>(contactList.size());
+        for (Contact contact : contactList) {
+            copies.add(copy(contact));
+        }
+        return copies;
+    }
+    
+    /**
+     * @return Contact of this caller sharing the phone numbers
+     */
+    private static Contact copy(Contact contact) {
+        if (contact == null) {
+            return null;
+        }
+        Contact copy = new Contact(contact.getContactId());
+        copy.setFirstName(contact.getFirstName());
+        copy.setLastName(contact.getLastName());
+        if (contact.getPhoneNumberCollection() != null) {
+            copy.setPhoneNumberCollection(new ArrayList<>(contact.getPhoneNumberCollection()));
+        }
+        return copy;
+    }
+    
+    /**
+     * Lookups started before a committed write are not joined, number searches
+     * match parts of numbers and return names, so any write starts them over
+     */
+    private void changed(Integer contactId) {
+        if (contactLookups != null && contactId != null) {
+            contactLookups.forget(contactId);
+        }
+        if (numberLookups != null) {
+            numberLookups.forgetAll();
+        }
+    }
+    
+    /**
+     * Requests that must read their own writes from the primary run their own query
+     */
+    private static boolean isSticky() {
+        ReadYourWrites readYourWrites = ReadYourWrites.current();
+        return readYourWrites != null && readYourWrites.isSticky();
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.controller;
+
+import org.syso.phonebook.metrics.RequestMetrics;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Metrics Controller, request metrics and the admin counters in the Prometheus text format
+ * 
+ * @author Vladimir Syso
+ */
+@RestController
+public class MetricsController {
+    
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    
+    @Autowired
+    private AdminController adminController;
+    
+    /**
+     * Write all metrics
+     * 
+     * @param response target of the metrics
+     * @throws IOException if writing fails
+     */
+    @RequestMapping(value = "/metrics",
+            method = RequestMethod.GET)
+    public void getMetrics(HttpServletResponse response) throws IOException {
+        
+        response.setContentType(CONTENT_TYPE);
+        PrintWriter out = response.getWriter();
+        RequestMetrics.shared().writePrometheus(out);
+        for (Map.Entry<String, Number> stat : adminController.getStats().entrySet()) {
+            // e.g. negativeCache.hits becomes phonebook_negative_cache_hits
+            String name = "phonebook_" + stat.getKey().replaceAll("([a-z])([A-Z])", "$1_$2").replace('.', '_').toLowerCase();
+            RequestMetrics.writeSample(name, "AdminController stat " + stat.getKey(), "untyped", stat.getValue(), out);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.datasource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * DataSource sending read-only transactions to healthy replicas and everything else to the primary.
+ * 
+ * The transaction must be known before a connection is requested, so the DataSource
+ * has to be wrapped into LazyConnectionDataSourceProxy. Reads stay on the primary
+ * while the ReadYourWrites stickiness bound to the thread is active. Replicas are
+ * picked round-robin, reads fall back to the primary when no replica can give a connection.
+ * 
+ * @author Vladimir Syso
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource {
+    
+    private final DataSource primary;
+    private final ReplicaHealthMonitor healthMonitor;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    
+    /**
+     * @param primary DataSource of the primary database
+     * @param healthMonitor tracks replicas
+     */
+    public ReplicaRoutingDataSource(DataSource primary, ReplicaHealthMonitor healthMonitor) {
+        this.primary = primary;
+        this.healthMonitor = healthMonitor;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return getConnection(null, null);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        
+        ReadYourWrites readYourWrites = ReadYourWrites.current();
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            if (readYourWrites != null && TransactionSynchronizationManager.isActualTransactionActive()) {
+                readYourWrites.recordWrite();
+            }
+            return connect(primary, username, password);
+        }
+        
+        if (readYourWrites == null || !readYourWrites.isSticky()) {
+            Connection connection = connectReplica(username, password);
+            if (connection != null) {
+                return connection;
+            }
+        }
+        return connect(primary, username, password);
+    }
+    
+    /**
+     * @return connection to one of healthy replicas or null if none of them is available
+     */
+    private Connection connectReplica(String username, String password) {
+        
+        List<DataSource> replicas = healthMonitor.getHealthyReplicas();
+        int size = replicas.size();
+        if (size == 0) {
+            return null;
+        }
+        
+        int first = Math.floorMod(nextReplica.getAndIncrement(), size);
+        for (int i = 0; i < size; i++) {
+            DataSource replica = replicas.get((first + i) % size);
+            try {
+                return connect(replica, username, password);
+            } catch (SQLException ex) {
+                Logger.getLogger(ReplicaRoutingDataSource.class.getName()).log(Level.WARNING, null, ex);
+                healthMonitor.markFailed(replica);
+            }
+        }
+        return null;
+    }
+    
+    private static Connection connect(DataSource dataSource, String username, String password) throws SQLException {
+        if (username == null && password == null) {
+            return dataSource.getConnection();
+        }
+        return dataSource.getConnection(username, password);
+    }
+    
+    /**
+     * @return DataSource of the primary database
+     */
+    public DataSource getPrimary() {
+        return primary;
+    }
+}
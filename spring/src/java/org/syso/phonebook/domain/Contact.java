@@ -57,7 +57,9 @@ import javax.xml.bind.annotation.XmlRootElement;
     @NamedQuery(name = "Contact.findByContactId", query = "SELECT c FROM Contact c WHERE c.contactId = :contactId"),
     @NamedQuery(name = "Contact.findByFirstName", query = "SELECT c FROM Contact c WHERE c.firstName = :firstName"),
     @NamedQuery(name = "Contact.findByLastName", query = "SELECT c FROM Contact c WHERE c.lastName = :lastName"),
-    @NamedQuery(name = "Contact.findByPhoneNumber", query = "SELECT c FROM Contact c, PhoneNumber p WHERE c.contactId = p.phoneNumberPK.contactId AND p.phoneNumber LIKE :phoneNumber GROUP BY c.contactId")   
+    @NamedQuery(name = "Contact.findByPhoneNumber", query = "SELECT c FROM Contact c, PhoneNumber p WHERE c.contactId = p.phoneNumberPK.contactId AND p.phoneNumber LIKE :phoneNumber GROUP BY c.contactId"),
+    @NamedQuery(name = "Contact.deleteByContactId", query = "DELETE FROM Contact WHERE contactId = :contactId"),
+    @NamedQuery(name = "Contact.deleteByContactIds", query = "DELETE FROM Contact WHERE contactId IN (:contactIds)")
 })
 public class Contact implements Serializable {
 
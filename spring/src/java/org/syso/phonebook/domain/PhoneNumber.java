@@ -39,6 +39,7 @@ import javax.persistence.EmbeddedId;
 import javax.persistence.Entity;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedNativeQuery;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.Table;
@@ -64,6 +65,7 @@ import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
     @NamedQuery(name = "PhoneNumber.findByPhoneNumber", query = "SELECT p FROM PhoneNumber p WHERE p.phoneNumber = :phoneNumber"),
     @NamedQuery(name = "PhoneNumber.findByContactId", query = "SELECT p FROM PhoneNumber p WHERE p.phoneNumberPK.contactId = :contactId"),
     @NamedQuery(name = "PhoneNumber.deletePhoneNumber", query = "DELETE FROM PhoneNumber WHERE phoneNumber = :phoneNumber AND phoneNumberPK.contactId = :contactId")})
+@NamedNativeQuery(name = "PhoneNumber.insert", query = "INSERT INTO phone_number (phone_number, phone_type_id, phone_mask_id, contact_id) VALUES (:phoneNumber, :phoneTypeId, :phoneMaskId, :contactId)")
 public class PhoneNumber implements Serializable {
 
     private static final long serialVersionUID = 1L;
@@ -119,7 +121,13 @@ public class PhoneNumber implements Serializable {
         }
 
         String mask = phoneMaskId.getPhoneMaskView();
-        if (mask.length() - mask.replace("X", "").length() != phoneNumber.length()) {
+        int digits = 0;
+        for (int i = 0; i < mask.length(); i++) {
+            if (mask.charAt(i) == 'X') {
+                digits++;
+            }
+        }
+        if (digits != phoneNumber.length()) {
             //Invalid mask
             return phoneNumber;
         }
@@ -28,15 +28,24 @@ import org.syso.phonebook.domain.PhoneMask;
 import org.syso.phonebook.domain.PhoneNumber;
 import org.syso.phonebook.domain.PhoneNumberPK;
 import org.syso.phonebook.domain.PhoneType;
+import org.syso.phonebook.helpers.PhoneNumberNormalizer;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.annotation.Resource;
 import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
 import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Phonebook Service uses Hibernate to manipulate with data
@@ -49,10 +58,18 @@ public class PhonebookService{
 
     @Resource(name = "sessionFactory")
     private SessionFactory sessionFactory;
+    
+    @Autowired(required = false)
+    private List<PhonebookListener> listeners = Collections.emptyList();
+    
+    // Phone types and masks are never removed, so their ids can be kept for the application lifetime
+    private final ConcurrentMap<String, Integer> phoneTypeIds = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> phoneMaskIds = new ConcurrentHashMap<>();
 
+    @Transactional(readOnly = true)
     public List<Contact> getAllContacts() {
  
-        Session session = sessionFactory.getCurrentSession();
+        Session session = readSession();
         
         Query query = session.createQuery("FROM Contact");
         @SuppressWarnings("unchecked")
@@ -60,6 +77,22 @@ public class PhonebookService{
         return list;
     }
 
+    /**
+     * Session of a read-only transaction loads entities without snapshots,
+     * so they are neither dirty-checked nor flushed on commit.
+     * A session joined to a read-write transaction is returned unchanged.
+     * 
+     * @return current Session
+     */
+    private Session readSession() {
+        
+        Session session = sessionFactory.getCurrentSession();
+        if (TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            session.setDefaultReadOnly(true);
+        }
+        return session;
+    }
+
     /**
      *  Add a Contact to the database
      * 
@@ -78,18 +111,114 @@ public class PhonebookService{
     }
 
     /**
-     * Delete a Contact entity from database
+     * Delete a Contact entity from database with a single DELETE statement,
+     * phone numbers are removed by ON DELETE CASCADE of the foreign key
      * 
      * @param contactId of the Contact
+     * @return operation completed successfully or not
      */
-    public void deleteContact(Integer contactId) {
+    public boolean deleteContact(Integer contactId) {
         
         Session session = sessionFactory.getCurrentSession();
+        int deleted = session.getNamedQuery("Contact.deleteByContactId")
+                .setInteger("contactId", contactId)
+                .executeUpdate();
         
-        Contact contact = (Contact) session.get(Contact.class, contactId);
-        contact.setPhoneNumberCollection(null);
+        if (deleted > 0) {
+            fireContactsDeleted(Collections.singletonList(contactId));
+        }
+        return deleted > 0;
+    }
+    
+    /**
+     * Delete Contact entities from database with a single DELETE statement
+     * 
+     * @param contactIds ids of contacts
+     * @return number of deleted contacts
+     */
+    public int deleteContacts(Collection<Integer> contactIds) {
+        
+        if (contactIds == null || contactIds.isEmpty()) {
+            return 0;
+        }
+        
+        Session session = sessionFactory.getCurrentSession();
+        int deleted = session.getNamedQuery("Contact.deleteByContactIds")
+                .setParameterList("contactIds", contactIds)
+                .executeUpdate();
         
-        session.delete(contact);
+        if (deleted > 0) {
+            fireContactsDeleted(contactIds);
+        }
+        return deleted;
+    }
+    
+    /**
+     * Notifies listeners once the current transaction is committed
+     * 
+     * @param contactIds ids of the removed contacts
+     */
+    private void fireContactsDeleted(Collection<Integer> contactIds) {
+        
+        if (listeners.isEmpty()) {
+            return;
+        }
+        
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            listeners.forEach(listener -> listener.contactsDeleted(contactIds));
+            return;
+        }
+        
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                listeners.forEach(listener -> listener.contactsDeleted(contactIds));
+            }
+        });
+    }
+    
+    /**
+     * Remembers mask and type ids once the current transaction is committed
+     */
+    private void cacheIds(String mask, Integer phoneMaskId, String typeName, Integer phoneTypeId) {
+        
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            phoneMaskIds.putIfAbsent(mask, phoneMaskId);
+            phoneTypeIds.putIfAbsent(typeName, phoneTypeId);
+            return;
+        }
+        // The mask or type might have been created in the current transaction
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                phoneMaskIds.putIfAbsent(mask, phoneMaskId);
+                phoneTypeIds.putIfAbsent(typeName, phoneTypeId);
+            }
+        });
+    }
+    
+    /**
+     * Notifies listeners once the current transaction is committed
+     * 
+     * @param numbersOnly digits of the added number
+     */
+    private void fireNumberAdded(String numbersOnly) {
+        
+        if (listeners.isEmpty()) {
+            return;
+        }
+        
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            listeners.forEach(listener -> listener.numberAdded(numbersOnly));
+            return;
+        }
+        
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                listeners.forEach(listener -> listener.numberAdded(numbersOnly));
+            }
+        });
     }
 
     public void updateContact(Contact contact) {
@@ -159,6 +288,65 @@ public class PhonebookService{
         return newPhoneNumber;
     }
     
+    /**
+     * Add a phone number to specific contact with a single INSERT statement.
+     * The phone_number_UNIQUE key detects a number owned by any contact and
+     * the fk_phone_number_contact1 foreign key detects a missing contact,
+     * so there is no lookup before the insert and no race between them.
+     * 
+     * @param contactId of the new owner
+     * @param phoneNumber un-filtered phone number and type name
+     * @return result of the insert
+     */
+    public AddPhoneNumberResult insertNumber(Integer contactId, PhoneNumber phoneNumber) {
+        
+        String number = phoneNumber.getPhoneNumber();
+        PhoneType phoneType = phoneNumber.getPhoneType();
+        if (number == null || phoneType == null || phoneType.getPhoneTypeName() == null) {
+            return AddPhoneNumberResult.INVALID;
+        }
+        String numbersOnly = PhoneNumberNormalizer.digits(number);
+        if (numbersOnly.isEmpty()) {
+            return AddPhoneNumberResult.INVALID;
+        }
+        
+        String maskOnly = PhoneNumberNormalizer.mask(number);
+        String typeName = phoneType.getPhoneTypeName();
+        
+        Integer phoneMaskId = phoneMaskIds.get(maskOnly);
+        if (phoneMaskId == null) {
+            phoneMaskId = findPhoneMask(maskOnly, true).getPhoneMaskId();
+        }
+        Integer phoneTypeId = phoneTypeIds.get(typeName);
+        if (phoneTypeId == null) {
+            phoneTypeId = findPhoneType(typeName, true).getPhoneTypeId();
+        }
+        
+        Session session = sessionFactory.getCurrentSession();
+        try {
+            session.getNamedQuery("PhoneNumber.insert")
+                    .setString("phoneNumber", numbersOnly)
+                    .setInteger("phoneTypeId", phoneTypeId)
+                    .setInteger("phoneMaskId", phoneMaskId)
+                    .setInteger("contactId", contactId)
+                    .executeUpdate();
+            
+        } catch (HibernateException ex) {
+            if (ConstraintViolations.isDuplicateKey(ex)) {
+                return AddPhoneNumberResult.CONFLICT;
+            }
+            if (ConstraintViolations.isMissingReference(ex)) {
+                return AddPhoneNumberResult.CONTACT_NOT_FOUND;
+            }
+            throw ex;
+        }
+        
+        cacheIds(maskOnly, phoneMaskId, typeName, phoneTypeId);
+        fireNumberAdded(numbersOnly);
+        
+        return AddPhoneNumberResult.CREATED;
+    }
+    
     /**
      * Delete phone number for specific Contact Id
      * 
@@ -168,7 +356,7 @@ public class PhonebookService{
      */
     public boolean deletePhoneNumber(Integer contactId, String number) {
         
-        String numbersOnly = number.replaceAll("\\D", "");
+        String numbersOnly = PhoneNumberNormalizer.digits(number);
         
         Session session = sessionFactory.getCurrentSession();        
         return session.getNamedQuery("PhoneNumber.deletePhoneNumber")
@@ -183,10 +371,11 @@ public class PhonebookService{
      * @param contactId an id of a contact
      * @return a Contact found by the id
      */
+    @Transactional(readOnly = true)
     public Contact findContactById(Integer contactId) {
 
         
-        Session session = sessionFactory.getCurrentSession();
+        Session session = readSession();
         Contact contact = (Contact) session.get(Contact.class, contactId);
         
         Hibernate.initialize(contact);
@@ -203,7 +392,7 @@ public class PhonebookService{
      */
     public PhoneNumber findPhoneNumber(String number){
         
-        String numbersOnly = number.replaceAll("\\D", "");
+        String numbersOnly = PhoneNumberNormalizer.digits(number);
         
         Session session = sessionFactory.getCurrentSession();    
         Query query = session.getNamedQuery("PhoneNumber.findByPhoneNumber")
@@ -287,9 +476,10 @@ public class PhonebookService{
      * @param match the whole number of just a part of it
      * @return a List of matched Contacts
      */
+    @Transactional(readOnly = true)
     public List<Contact> findContactByNumber(String number, boolean match) {
 
-        String numbersOnly = number.replaceAll("\\D", "");
+        String numbersOnly = PhoneNumberNormalizer.digits(number);
         String numberToMatch;
         
         if(match) {
@@ -298,7 +488,7 @@ public class PhonebookService{
             numberToMatch = '%' + numbersOnly + '%';
         }
         
-        Session session = sessionFactory.getCurrentSession();    
+        Session session = readSession();    
         Query query = session.getNamedQuery("Contact.findByPhoneNumber").setParameter("phoneNumber", numberToMatch);
         
         @SuppressWarnings("unchecked")
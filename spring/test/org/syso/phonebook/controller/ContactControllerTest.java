@@ -39,6 +39,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -275,6 +276,33 @@ public class ContactControllerTest {
         assertEquals(result.getStatusCode(), HttpStatus.OK);
         deleteContactOnTearDown = false;
     }
+    
+    /**
+     * Test of deleteContacts method, of class ContactController.
+     */
+    @Test
+    public void testDeleteContacts() {
+        
+        System.out.println("deleteContacts");
+        
+        String contactId = testContactLocation.substring(testContactLocation.lastIndexOf('/') + 1);
+        HttpEntity<String> request = new HttpEntity<>("");
+        ResponseEntity<String> result;
+        
+        // Test contact deleted, missing ids are ignored
+        result = restTemplate.exchange(REST_SERVICE_URI + "/contacts?ids=" + contactId + "," + Integer.MAX_VALUE,
+                HttpMethod.DELETE, request, String.class);
+        assertEquals(result.getStatusCode(), HttpStatus.OK);
+        deleteContactOnTearDown = false;
+        
+        // Nothing left to delete
+        try {
+            restTemplate.exchange(REST_SERVICE_URI + "/contacts?ids=" + contactId, HttpMethod.DELETE, request, String.class);
+            fail("Deleted contact was found");
+        } catch (HttpClientErrorException ex) {
+            assertEquals(ex.getStatusCode(), HttpStatus.NOT_FOUND);
+        }
+    }
 
     /**
      * Test of addPhoneNumber method, of class ContactController.
@@ -303,6 +331,30 @@ public class ContactControllerTest {
         assertEquals(phoneNumber.getPhoneType().getPhoneTypeName(), testPhoneType);
     }
 
+    /**
+     * Test of addPhoneNumber method with a number owned already, of class ContactController.
+     */
+    @Test
+    public void testAddPhoneNumberConflict() {
+        System.out.println("addPhoneNumberConflict");
+        
+        String jsonRequest = String.format("{\"number\":\"%s\", \"type\":\"%s\"}", testPhoneNumber, testPhoneType);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        HttpEntity<String> request = new HttpEntity<>(jsonRequest, headers);
+        
+        ResponseEntity<String> result = restTemplate.exchange(testContactLocation + "/add_number", HttpMethod.POST, request, String.class);
+        assertEquals(result.getStatusCode(), HttpStatus.CREATED);
+        
+        // Second insert of the same number is rejected by the unique key
+        try {
+            restTemplate.exchange(testContactLocation + "/add_number", HttpMethod.POST, request, String.class);
+            fail("Duplicate number was added");
+        } catch (HttpClientErrorException ex) {
+            assertEquals(ex.getStatusCode(), HttpStatus.CONFLICT);
+        }
+    }
+
     /**
      * Test of deletePhoneNumber method, of class ContactController.
      */
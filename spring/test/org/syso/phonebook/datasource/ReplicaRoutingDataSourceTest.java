@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Vladimir Syso.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.syso.phonebook.datasource;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * ReplicaRoutingDataSourceTest uses two embedded in-memory Derby databases
+ * standing in for the primary and the replica
+ * 
+ * @author Vladimir Syso
+ */
+public class ReplicaRoutingDataSourceTest {
+    
+    private static final long MAX_LAG_MILLIS = 1000;
+    
+    private DriverManagerDataSource primary;
+    private DriverManagerDataSource replica;
+    private ReplicaHealthMonitor healthMonitor;
+    private ReplicaRoutingDataSource routingDataSource;
+    private final AtomicLong replicaLag = new AtomicLong();
+    
+    @Before
+    public void setUp() throws SQLException {
+        
+        primary = createDatabase("primary");
+        replica = createDatabase("replica");
+        
+        healthMonitor = new ReplicaHealthMonitor(Collections.singletonList(replica),
+                connection -> replicaLag.get(), MAX_LAG_MILLIS);
+        healthMonitor.checkNow();
+        routingDataSource = new ReplicaRoutingDataSource(primary, healthMonitor);
+    }
+    
+    @After
+    public void tearDown() {
+        
+        healthMonitor.close();
+        TransactionSynchronizationManager.clear();
+        ReadYourWrites.bind(null);
+        
+        dropDatabase(primary);
+        dropDatabase(replica);
+    }
+    
+    /**
+     * Creates a database with a single row naming the node
+     */
+    private static DriverManagerDataSource createDatabase(String node) throws SQLException {
+        
+        String url = "jdbc:derby:memory:" + node + "-" + UUID.randomUUID();
+        try (Connection connection = DriverManager.getConnection(url + ";create=true");
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE node (name VARCHAR(16))");
+            statement.executeUpdate("INSERT INTO node VALUES ('" + node + "')");
+        }
+        return new DriverManagerDataSource(url);
+    }
+    
+    private static void dropDatabase(DriverManagerDataSource dataSource) {
+        try {
+            DriverManager.getConnection(dataSource.getUrl() + ";drop=true").close();
+        } catch (SQLException ex) {
+            // Derby reports a dropped database with an exception
+        }
+    }
+    
+    /**
+     * Marks the current thread as running a transaction
+     */
+    private static void beginTransaction(boolean readOnly) {
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        TransactionSynchronizationManager.setCurrentTransactionReadOnly(readOnly);
+    }
+    
+    /**
+     * @return name of the node which served the connection
+     */
+    private String node() throws SQLException {
+        
+        try (Connection connection = routingDataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT name FROM node")) {
+            assertTrue(resultSet.next());
+            return resultSet.getString(1);
+        }
+    }
+
+    @Test
+    public void testWritesGoToPrimary() throws SQLException {
+        
+        System.out.println("writesGoToPrimary");
+        
+        beginTransaction(false);
+        assertEquals("primary", node());
+    }
+    
+    @Test
+    public void testReadsGoToReplica() throws SQLException {
+        
+        System.out.println("readsGoToReplica");
+        
+        beginTransaction(true);
+        assertEquals("replica", node());
+    }
+    
+    @Test
+    public void testReadYourWrites() throws SQLException {
+        
+        System.out.println("readYourWrites");
+        
+        ReadYourWrites.bind(new ReadYourWrites(60000));
+        beginTransaction(false);
+        assertEquals("primary", node());
+        
+        // Reads after the write stay on the primary within the window
+        beginTransaction(true);
+        assertEquals("primary", node());
+        
+        // Nothing written in another request yet
+        ReadYourWrites.bind(new ReadYourWrites(60000));
+        assertEquals("replica", node());
+        
+        // Stickiness disabled
+        ReadYourWrites readYourWrites = new ReadYourWrites(0);
+        readYourWrites.recordWrite();
+        ReadYourWrites.bind(readYourWrites);
+        assertEquals("replica", node());
+    }
+    
+    @Test
+    public void testLaggingReplica() throws SQLException {
+        
+        System.out.println("laggingReplica");
+        
+        beginTransaction(true);
+        
+        replicaLag.set(MAX_LAG_MILLIS + 1);
+        healthMonitor.checkNow();
+        assertEquals(MAX_LAG_MILLIS + 1, healthMonitor.getLagMillis(replica));
+        assertEquals("primary", node());
+        
+        // Replication stopped
+        replicaLag.set(-1);
+        healthMonitor.checkNow();
+        assertEquals("primary", node());
+        
+        replicaLag.set(0);
+        healthMonitor.checkNow();
+        assertEquals("replica", node());
+    }
+    
+    @Test
+    public void testFailedReplica() throws SQLException {
+        
+        System.out.println("failedReplica");
+        
+        beginTransaction(true);
+        assertFalse(healthMonitor.getHealthyReplicas().isEmpty());
+        
+        // Replica goes away between checks
+        dropDatabase(replica);
+        assertEquals("primary", node());
+        assertTrue(healthMonitor.getHealthyReplicas().isEmpty());
+        
+        healthMonitor.checkNow();
+        assertTrue(healthMonitor.getHealthyReplicas().isEmpty());
+        assertTrue(healthMonitor.getLagMillis(replica) < 0);
+    }
+}